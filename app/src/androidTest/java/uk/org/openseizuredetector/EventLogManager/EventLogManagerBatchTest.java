@@ -0,0 +1,103 @@
+package uk.org.openseizuredetector.EventLogManager;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the batched write-behind EventLogManager.addRow() writes every
+ * event, and that an alarm logged with addRow(event, true) is in the
+ * database as soon as addRow() returns.
+ * This needs a real SQLite database, so runs on a device or emulator
+ * (./gradlew connectedAndroidTest).
+ */
+public class EventLogManagerBatchTest extends AndroidTestCase {
+    private final static int NEVENTS = 2000;
+    private final static String DB_NAME = "eventlog_batch_test";
+
+    private EventLogManager mElm;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        mElm = new EventLogManager(getContext(), DB_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assertTrue(mElm.flush(10000));
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    private LogEntryModel makeEvent(int i, int alarmState) {
+        LogEntryModel lem = new LogEntryModel();
+        lem.setDate(new Date(1000000L + i * 1000L));
+        lem.setAlarmState(alarmState);
+        lem.setNote("Event " + i);
+        lem.setDataJSON("{\"maxVal\":" + i + "}");
+        return lem;
+    }
+
+    /**
+     * @return every event matching query, reading it a page at a time.
+     */
+    private ArrayList<LogEntryModel> queryAll(EventLogQuery query) throws Exception {
+        ArrayList<LogEntryModel> all = new ArrayList<LogEntryModel>();
+        while (true) {
+            final CountDownLatch done = new CountDownLatch(1);
+            final ArrayList<LogEntryModel> page = new ArrayList<LogEntryModel>();
+            mElm.query(query, new EventLogManager.Callback<ArrayList<LogEntryModel>>() {
+                public void onResult(ArrayList<LogEntryModel> result) {
+                    page.addAll(result);
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            all.addAll(page);
+            if (page.size() < query.getPageSize()) return all;
+            query = query.nextPage(page.get(page.size() - 1));
+        }
+    }
+
+    public void testBatchedEventsAllWritten() throws Exception {
+        for (int i = 0; i < NEVENTS; i++) {
+            mElm.addRow(makeEvent(i, i % 3));
+        }
+        assertTrue(mElm.flush(60000));
+        ArrayList<LogEntryModel> events = queryAll(new EventLogQuery().setPageSize(500));
+        assertEquals(NEVENTS, events.size());
+        // Newest first.
+        for (int i = 0; i < NEVENTS; i++) {
+            assertEquals("Event " + (NEVENTS - 1 - i), events.get(i).getNote());
+            assertEquals((NEVENTS - 1 - i) % 3, events.get(i).getAlarmState());
+        }
+    }
+
+    public void testSyncAlarmWrittenAtOnce() throws Exception {
+        mElm.addRow(makeEvent(0, 0));
+        assertTrue(mElm.addRow(makeEvent(1, 2), true));
+        // Read the database directly, so queued events are not written first.
+        SQLiteDatabase db = getContext().openOrCreateDatabase(DB_NAME, 0, null);
+        try {
+            Cursor c = db.rawQuery("select note from "
+                    + EventLogManager.TABLE_NAME + " order by _id", null);
+            try {
+                // The event queued before the alarm is committed with it.
+                assertEquals(2, c.getCount());
+                c.moveToLast();
+                assertEquals("Event 1", c.getString(0));
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -12,7 +12,14 @@ function populate_filelist(dataStr) {
    $("#logfilelist").append("<ul>");
 
    $.each(dataObj['logFileList'],function(index,value) {
-       $("#logfilelist").append('<li><a href="/logs/'+value+'">'+value+'</a></li>');
+       if (value.endsWith(".osdl")) {
+           // Binary data log - the server converts it to JSON or CSV.
+           $("#logfilelist").append('<li><a href="/logs/'+value+'">'+value+'</a>'
+                                    +' (<a href="/logs/'+value+'?format=csv">csv</a>)</li>');
+       } else {
+           $("#logfilelist").append('<li><a href="/logs/'+value+'">'+value+'</a>'
+                                    +' (<a href="#" onclick="tail_logfile(\''+value+'\');return false;">tail</a>)</li>');
+       }
    });
    $("#logfilelist").append("</uk>");
 
@@ -20,6 +27,37 @@ function populate_filelist(dataStr) {
 }
 
 
+var tailFile = null;
+var tailOffset = 0;
+var tailTimer = null;
+
+// Follow a text log file - only the bytes added since the last request
+// are fetched, using the since= parameter.
+function tail_logfile(fname) {
+    if (tailTimer != null) clearTimeout(tailTimer);
+    tailFile = fname;
+    tailOffset = 0;
+    $("#logtail").empty();
+    $("#logtailtitle").text("Following "+fname);
+    fetch_tail();
+}
+
+function fetch_tail() {
+    var fname = tailFile;
+    $.ajax({url:"/logs/"+fname+"?since="+tailOffset,
+            dataType:"text",
+            success:function(dataStr, status, xhr) {
+                if (fname != tailFile) return;
+                if (xhr.getResponseHeader("X-Log-Truncated") == "true") {
+                    $("#logtail").empty();
+                }
+                $("#logtail").append(document.createTextNode(dataStr));
+                tailOffset = parseInt(xhr.getResponseHeader("X-Log-Offset"));
+            },
+            complete:function() {
+                if (fname == tailFile) tailTimer = setTimeout(fetch_tail, 5000);
+            }});
+}
 
 $(document).ready(function() {  
     //alert("logs page opened");
@@ -173,7 +173,14 @@ $(document).ready(function() {
    get_settings();
    get_data();
    get_spectrum();
-   setInterval("get_data();",2000);
+   if (!!window.EventSource) {
+       // The server pushes new data to us as soon as it arrives.
+       var source = new EventSource("/stream");
+       source.addEventListener("data", function(e) { process_data(e.data); }, false);
+       source.addEventListener("alarm", function(e) { process_data(e.data); }, false);
+   } else {
+       setInterval("get_data();",2000);
+   }
    setInterval("get_settings();",10000);
    setInterval("get_spectrum();",5000);
    $("#muteButton").click(toggleMute);
@@ -0,0 +1,53 @@
+
+// Values from the previous update, to work out rates per minute.
+var lastValues = {};
+var lastTime = 0;
+
+function get_metrics() {
+    $.ajax({url:"/metrics?format=json",success:populate_metrics});
+};
+
+
+function fmt_ms(ms) {
+    return (ms < 10) ? ms.toFixed(3) : ms.toFixed(0);
+}
+
+
+function populate_metrics(dataStr) {
+    var dataObj = JSON.parse(dataStr);
+    var now = new Date().getTime();
+    var mins = (lastTime > 0) ? (now - lastTime) / 60000 : 0;
+    $("#uptime").text("Up for "+(dataObj['uptimeMs']/60000).toFixed(0)+" minutes");
+    var tbl = $("#metricstable");
+    tbl.empty();
+    tbl.append("<tr><th>Metric</th><th></th><th>Value</th><th>Per Minute</th>"
+               +"<th>Mean (ms)</th><th>50% (ms)</th><th>99% (ms)</th><th>Max (ms)</th></tr>");
+    $.each(dataObj['metrics'],function(index,m) {
+        var key = m.name+m.labels;
+        var row = "<tr><td>"+m.name+"</td><td>"+m.labels+"</td>";
+        if (m.type == "summary") {
+            row += "<td>"+m.count+"</td>";
+            row += "<td>"+((mins > 0 && key in lastValues) ? ((m.count-lastValues[key])/mins).toFixed(1) : "")+"</td>";
+            row += "<td>"+fmt_ms(m.meanMs)+"</td><td>"+fmt_ms(m.p50Ms)+"</td>"
+                +"<td>"+fmt_ms(m.p99Ms)+"</td><td>"+fmt_ms(m.maxMs)+"</td>";
+            lastValues[key] = m.count;
+        } else {
+            row += "<td>"+m.value+"</td>";
+            if (m.type == "counter") {
+                row += "<td>"+((mins > 0 && key in lastValues) ? ((m.value-lastValues[key])/mins).toFixed(1) : "")+"</td>";
+                lastValues[key] = m.value;
+            } else {
+                row += "<td></td>";
+            }
+            row += "<td></td><td></td><td></td><td></td>";
+        }
+        tbl.append(row+"</tr>");
+    });
+    lastTime = now;
+}
+
+
+$(document).ready(function() {  
+    get_metrics();
+    setInterval("get_metrics();",10000);
+});
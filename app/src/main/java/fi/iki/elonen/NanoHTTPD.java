@@ -9,10 +9,13 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,6 +26,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -90,7 +98,11 @@ public abstract class NanoHTTPD {
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
-    private Set<Socket> openConnections = new HashSet<Socket>();
+    private final Set<Socket> openConnections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> connectionsPerClient = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private volatile int maxConnectionsPerClient = Integer.MAX_VALUE;
+    private volatile int socketReadTimeout = SOCKET_READ_TIMEOUT;
     private Thread myThread;
     /**
      * Pluggable strategy for asynchronously executing requests.
@@ -160,34 +172,46 @@ public abstract class NanoHTTPD {
                 do {
                     try {
                         final Socket finalAccept = myServerSocket.accept();
-                        registerConnection(finalAccept);
-                        finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
+                        if (!registerConnection(finalAccept)) {
+                            // Too many connections from this client.
+                            rejectedConnections.incrementAndGet();
+                            safeClose(finalAccept);
+                            continue;
+                        }
+                        finalAccept.setSoTimeout(socketReadTimeout);
                         final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
+                        try {
+                            asyncRunner.exec(new Runnable() {
+                                @Override
+                                public void run() {
+                                    OutputStream outputStream = null;
+                                    try {
+                                        outputStream = finalAccept.getOutputStream();
+                                        TempFileManager tempFileManager = tempFileManagerFactory.create();
+                                        HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
+                                        while (!finalAccept.isClosed()) {
+                                            session.execute();
+                                        }
+                                    } catch (Exception e) {
+                                        // When the socket is closed by the client, we throw our own SocketException
+                                        // to break the  "keep alive" loop above.
+                                        if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                                            e.printStackTrace();
+                                        }
+                                    } finally {
+                                        safeClose(outputStream);
+                                        safeClose(inputStream);
+                                        safeClose(finalAccept);
+                                        unRegisterConnection(finalAccept);
                                     }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
                                 }
-                            }
-                        });
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // The async runner is full - drop the connection.
+                            rejectedConnections.incrementAndGet();
+                            safeClose(finalAccept);
+                            unRegisterConnection(finalAccept);
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -217,9 +241,25 @@ public abstract class NanoHTTPD {
      * Registers that a new connection has been set up.
      *
      * @param socket the {@link Socket} for the connection.
+     * @return false if the client already has the maximum number of
+     * connections open, in which case the connection is not registered.
      */
-    public synchronized void registerConnection(Socket socket) {
+    public boolean registerConnection(Socket socket) {
+        InetAddress client = socket.getInetAddress();
+        if (client != null) {
+            AtomicInteger count = connectionsPerClient.get(client);
+            if (count == null) {
+                AtomicInteger newCount = new AtomicInteger();
+                count = connectionsPerClient.putIfAbsent(client, newCount);
+                if (count == null) count = newCount;
+            }
+            if (count.incrementAndGet() > maxConnectionsPerClient) {
+                count.decrementAndGet();
+                return false;
+            }
+        }
         openConnections.add(socket);
+        return true;
     }
 
     /**
@@ -228,19 +268,53 @@ public abstract class NanoHTTPD {
      * @param socket
      *            the {@link Socket} for the connection.
      */
-    public synchronized void unRegisterConnection(Socket socket) {
-        openConnections.remove(socket);
+    public void unRegisterConnection(Socket socket) {
+        if (openConnections.remove(socket)) {
+            InetAddress client = socket.getInetAddress();
+            AtomicInteger count = (client != null) ? connectionsPerClient.get(client) : null;
+            if (count != null) count.decrementAndGet();
+        }
     }
 
     /**
      * Forcibly closes all connections that are open.
      */
-    public synchronized void closeAllConnections() {
+    public void closeAllConnections() {
         for (Socket socket : openConnections) {
             safeClose(socket);
         }
     }
 
+    /**
+     * @return the number of connections currently open.
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.size();
+    }
+
+    /**
+     * @return the number of connections closed without being served, because
+     * the client had too many connections open or the async runner was full.
+     */
+    public long getRejectedConnectionCount() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * Limit the number of connections a single client address may have open.
+     */
+    public void setMaxConnectionsPerClient(int max) {
+        maxConnectionsPerClient = max;
+    }
+
+    /**
+     * Set how long (ms) a connection may wait for the next request before
+     * it is closed - this is the keep-alive idle timeout.
+     */
+    public void setSocketReadTimeout(int timeoutMs) {
+        socketReadTimeout = timeoutMs;
+    }
+
     public final int getListeningPort() {
         return myServerSocket == null ? -1 : myServerSocket.getLocalPort();
     }
@@ -403,6 +477,10 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for asynchronously executing requests.
      */
     public interface AsyncRunner {
+        /**
+         * @throws RejectedExecutionException if the request can not be run,
+         * in which case the connection is closed.
+         */
         void exec(Runnable code);
     }
 
@@ -558,6 +636,16 @@ public abstract class NanoHTTPD {
          * Use chunkedTransfer
          */
         private boolean chunkedTransfer;
+        /**
+         * Compress the data with gzip as it is sent (always chunked).
+         */
+        private boolean gzipEncoding;
+        /**
+         * Part of a file to send instead of data - see setFileRegion().
+         */
+        private FileChannel fileChannel;
+        private long fileOffset;
+        private long fileLength;
 
         /**
          * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
@@ -631,7 +719,17 @@ public abstract class NanoHTTPD {
 
                 sendConnectionHeaderIfNotAlreadyPresent(pw, header);
 
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
+                if (fileChannel != null) {
+                    sendContentLengthHeaderIfNotAlreadyPresent(pw, header, fileLength);
+                    pw.print("\r\n");
+                    pw.flush();
+                    if (requestMethod != Method.HEAD) {
+                        sendFileRegion(outputStream);
+                    }
+                } else if (requestMethod != Method.HEAD && gzipEncoding) {
+                    pw.print("Content-Encoding: gzip\r\n");
+                    sendAsChunked(outputStream, pw);
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
                     sendAsChunked(outputStream, pw);
                 } else {
                     int pending = data != null ? data.available() : 0;
@@ -641,13 +739,17 @@ public abstract class NanoHTTPD {
                     sendAsFixedLength(outputStream, pending);
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                // Close the data even if the client has gone away, so streams
+                // that are waiting for the client to read them find out.
+                safeClose(data);
+                safeClose(fileChannel);
             }
         }
 
-        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
+        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, long size) {
             if (!headerAlreadySent(header, "content-length")) {
                 pw.print("Content-Length: "+ size +"\r\n");
             }
@@ -672,15 +774,36 @@ public abstract class NanoHTTPD {
             pw.print("\r\n");
             pw.flush();
             int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
+            ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+            OutputStream out = gzipEncoding ? new GZIPOutputStream(chunked, BUFFER_SIZE) : chunked;
             byte[] buff = new byte[BUFFER_SIZE];
             int read;
             while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+                out.write(buff, 0, read);
+            }
+            if (gzipEncoding) {
+                ((GZIPOutputStream) out).finish();
+            }
+            chunked.finish();
+        }
+
+        /**
+         * Send the file region with FileChannel.transferTo(), which lets the
+         * platform send the file without copying it through our own buffers
+         * (using sendfile() if the socket has a channel).
+         */
+        private void sendFileRegion(OutputStream outputStream) throws IOException {
+            outputStream.flush();
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long pos = fileOffset;
+            long end = fileOffset + fileLength;
+            while (pos < end) {
+                long n = fileChannel.transferTo(pos, end - pos, target);
+                if (n <= 0) {
+                    break;
+                }
+                pos += n;
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
         }
 
         private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
@@ -734,6 +857,51 @@ public abstract class NanoHTTPD {
             this.chunkedTransfer = chunkedTransfer;
         }
 
+        /**
+         * Send length bytes of a file starting at offset as the body of the
+         * response, rather than data.  The channel is closed once sent.
+         */
+        public void setFileRegion(FileChannel channel, long offset, long length) {
+            this.fileChannel = channel;
+            this.fileOffset = offset;
+            this.fileLength = length;
+        }
+
+        public void setGzipEncoding(boolean gzipEncoding) {
+            this.gzipEncoding = gzipEncoding;
+        }
+
+        public boolean isGzipEncoding() {
+            return gzipEncoding;
+        }
+
+        /**
+         * Writes each block of data written to it as one HTTP chunk, so data
+         * is sent as soon as it is written (e.g. for event streams).
+         */
+        private static class ChunkedOutputStream extends FilterOutputStream {
+            ChunkedOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return;
+                out.write(String.format("%x\r\n", len).getBytes());
+                out.write(b, off, len);
+                out.write("\r\n".getBytes());
+            }
+
+            public void finish() throws IOException {
+                out.write("0\r\n\r\n".getBytes());
+            }
+        }
+
         public interface IStatus {
             int getRequestStatus();
             String getDescription();
@@ -746,7 +914,8 @@ public abstract class NanoHTTPD {
             SWITCH_PROTOCOL(101, "Switching Protocols"), OK(200, "OK"), CREATED(201, "Created"), ACCEPTED(202, "Accepted"), NO_CONTENT(204, "No Content"), PARTIAL_CONTENT(206, "Partial Content"), REDIRECT(301,
                 "Moved Permanently"), NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401,
                 "Unauthorized"), FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"), RANGE_NOT_SATISFIABLE(416,
-                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
+                "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"), SERVICE_UNAVAILABLE(503,
+                "Service Unavailable");
             private final int requestStatus;
             private final String description;
 
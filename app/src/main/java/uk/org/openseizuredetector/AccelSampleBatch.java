@@ -0,0 +1,68 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * A batch of accelerometer samples stored as parallel arrays (one per axis)
+ * rather than one object per sample, so that the same batch can be re-used
+ * for every raw data message received from the watch.
+ * Only the first size entries of each array are valid.  If the watch only
+ * sends magnitudes, x, y and z are not filled in (hasXyz is false).
+ */
+public class AccelSampleBatch {
+    public int[] x;
+    public int[] y;
+    public int[] z;
+    public int[] mag;
+    public int size = 0;
+    public boolean hasXyz = false;
+
+    public AccelSampleBatch(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        z = new int[capacity];
+        mag = new int[capacity];
+    }
+
+    public int capacity() {
+        return mag.length;
+    }
+
+    /**
+     * Empty the batch, growing the arrays if they can not hold n samples.
+     * The arrays are only re-allocated if a message is larger than any
+     * we have seen before.
+     */
+    public void reset(int n) {
+        if (n > mag.length) {
+            allocate(n);
+        }
+        size = 0;
+        hasXyz = false;
+    }
+}
@@ -0,0 +1,466 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides what to do about each set of data received from the seizure
+ * detector, based on its alarmState and on whether an alarm is latched.
+ *
+ * process() runs on the caller's thread and only updates the alarm phrase
+ * and standing flags in the SdData, and starts or stops timers.  The other
+ * side effects (beeps, notifications, showing the main activity, SMS and
+ * logging) are passed to an Actions implementation on other threads so a
+ * slow log write can not delay an alarm beep.  Annunciations are run in
+ * priority order - beep, notification, activity, SMS - and logging on a
+ * separate executor.
+ *
+ * The time from the data being received to the beep being started is
+ * recorded in a LatencyHistogram for each alarm type.
+ */
+public class AlarmStateMachine {
+    // Values of SdData.alarmState received from the data source.
+    public static final int ALARM_STATE_OK = 0;
+    public static final int ALARM_STATE_WARNING = 1;
+    public static final int ALARM_STATE_ALARM = 2;
+    public static final int ALARM_STATE_FALL = 3;
+    public static final int ALARM_STATE_FAULT = 4;
+    public static final int ALARM_STATE_MANUAL = 5;
+    public static final int ALARM_STATE_MUTE = 6;
+    public static final int ALARM_STATE_NETFAULT = 7;
+
+    // States of the state machine.
+    public static final int STATE_OK = 0;
+    public static final int STATE_WARNING = 1;
+    public static final int STATE_ALARM = 2;
+    public static final int STATE_FALL = 3;
+    public static final int STATE_FAULT = 4;
+    public static final int STATE_MUTE = 6;
+    public static final int STATE_NETFAULT = 7;
+    public static final String[] STATE_NAMES = {"OK", "WARNING", "ALARM", "FALL", "FAULT",
+            "ALARM", "MUTE", "NET FAULT"};
+
+    // Priorities of the annunciations - lower runs first.
+    static final int PRIORITY_BEEP = 0;
+    static final int PRIORITY_NOTIFICATION = 1;
+    static final int PRIORITY_ACTIVITY = 2;
+    static final int PRIORITY_SMS = 3;
+
+    public static final String WAKE_REASON = "alarm";
+
+    // Minimum time between SMS alarms.
+    public static final long SMS_INTERVAL_MS = 60000;
+
+    /**
+     * The side effects of the alarm states - implemented by SdServer.
+     * Only startLatchTimer() and stopFaultTimer() are called on the thread
+     * that calls process().
+     */
+    public interface Actions {
+        /** @return true if a beep was actually made. */
+        boolean warningBeep();
+        boolean alarmBeep();
+        boolean faultWarningBeep();
+        void showNotification(int alarmLevel);
+        void showMainActivity();
+        void sendSMSAlarm();
+        void logAlarm(boolean logData);
+        /** Record a change to an alarm or fault state - called on the logger thread. */
+        void logEvent(int state, String alarmPhrase, String dataJson);
+        void startLatchTimer();
+        void stopFaultTimer();
+    }
+
+    private String TAG = "AlarmStateMachine";
+    private final Actions mActions;
+    private final Executor mAnnunciator;
+    private final Executor mLogger;
+    private final AtomicLong mSeq = new AtomicLong();
+    private volatile SdWakeManager mWakeManager = null;
+
+    private int mState = STATE_OK;
+    private boolean mAlarmStanding = false;
+    private boolean mFallAlarmStanding = false;
+    private long mTransitionCount = 0;
+    private long mLastSmsMs = Long.MIN_VALUE / 2;
+
+    private boolean mLatchAlarms = false;
+    private boolean mLogAlarms = true;
+    private boolean mSmsAlarm = false;
+    private boolean mAudibleFaultWarning = true;
+
+    private final SdDataSerializer mSerializer = new SdDataSerializer();
+
+    private final LatencyHistogram mWarningLatency = new LatencyHistogram("WARNING");
+    private final LatencyHistogram mAlarmLatency = new LatencyHistogram("ALARM");
+    private final LatencyHistogram mFallLatency = new LatencyHistogram("FALL");
+    private final LatencyHistogram mFaultLatency = new LatencyHistogram("FAULT");
+    private final SdMetrics.Histogram mWarningMetric = latencyMetric("WARNING");
+    private final SdMetrics.Histogram mAlarmMetric = latencyMetric("ALARM");
+    private final SdMetrics.Histogram mFallMetric = latencyMetric("FALL");
+    private final SdMetrics.Histogram mFaultMetric = latencyMetric("FAULT");
+
+    /**
+     * @param annunciator - runs the beeps, notifications etc., e.g. newAnnunciatorExecutor().
+     * @param logger - runs the log file writes.
+     */
+    public AlarmStateMachine(Actions actions, Executor annunciator, Executor logger) {
+        mActions = actions;
+        mAnnunciator = annunciator;
+        mLogger = logger;
+    }
+
+    /**
+     * @return a single thread executor that runs the highest priority
+     * annunciation waiting first.
+     */
+    public static ThreadPoolExecutor newAnnunciatorExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AlarmAnnunciator");
+                t.setDaemon(true);
+                t.setPriority(Thread.MAX_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Keep the phone awake until queued annunciations and log writes have
+     * been done.
+     */
+    public void setWakeManager(SdWakeManager wakeManager) {
+        mWakeManager = wakeManager;
+    }
+
+    public synchronized void setLatchAlarms(boolean latchAlarms) {
+        mLatchAlarms = latchAlarms;
+    }
+
+    public synchronized void setLogAlarms(boolean logAlarms) {
+        mLogAlarms = logAlarms;
+    }
+
+    public synchronized void setSmsAlarm(boolean smsAlarm) {
+        mSmsAlarm = smsAlarm;
+    }
+
+    public synchronized void setAudibleFaultWarning(boolean audibleFaultWarning) {
+        mAudibleFaultWarning = audibleFaultWarning;
+    }
+
+    /**
+     * Update sdData.alarmPhrase and the standing flags for the data just
+     * received, and start the appropriate annunciations.
+     * @param receivedNs - System.nanoTime() when the data was received.
+     */
+    public synchronized void process(SdData sdData, long receivedNs) {
+        int alarmState = (int) sdData.alarmState;
+        boolean latched = mLatchAlarms && (mAlarmStanding || mFallAlarmStanding);
+        int newState = mState;
+
+        switch (alarmState) {
+            case ALARM_STATE_OK:
+                if (!latched) {
+                    sdData.alarmPhrase = "OK";
+                    sdData.alarmStanding = false;
+                    sdData.fallAlarmStanding = false;
+                    newState = STATE_OK;
+                    annunciate(PRIORITY_NOTIFICATION, 0, null, null, 0);
+                }
+                break;
+            case ALARM_STATE_MUTE:
+                // Manual mute from the watch buttons.
+                sdData.alarmPhrase = "MUTE";
+                sdData.alarmStanding = false;
+                sdData.fallAlarmStanding = false;
+                newState = STATE_MUTE;
+                annunciate(PRIORITY_NOTIFICATION, 0, null, null, 0);
+                break;
+            case ALARM_STATE_WARNING:
+                if (!latched) {
+                    sdData.alarmPhrase = "WARNING";
+                    sdData.alarmStanding = false;
+                    sdData.fallAlarmStanding = false;
+                    newState = STATE_WARNING;
+                }
+                log("WARNING");
+                annunciate(PRIORITY_BEEP, ALARM_STATE_WARNING, mWarningLatency, mWarningMetric,
+                        receivedNs);
+                annunciate(PRIORITY_NOTIFICATION, 1, null, null, 0);
+                break;
+            case ALARM_STATE_ALARM:
+            case ALARM_STATE_MANUAL:
+                sdData.alarmPhrase = "ALARM";
+                sdData.alarmStanding = true;
+                newState = STATE_ALARM;
+                log("***ALARM***");
+                annunciate(PRIORITY_BEEP, ALARM_STATE_ALARM, mAlarmLatency, mAlarmMetric,
+                        receivedNs);
+                annunciate(PRIORITY_NOTIFICATION, 2, null, null, 0);
+                annunciate(PRIORITY_ACTIVITY, 0, null, null, 0);
+                sendSms();
+                mActions.startLatchTimer();
+                break;
+        }
+        // A fall alarm stays standing until it is accepted.
+        if (alarmState == ALARM_STATE_FALL || sdData.fallAlarmStanding) {
+            sdData.alarmPhrase = "FALL";
+            sdData.fallAlarmStanding = true;
+            newState = STATE_FALL;
+            log("***FALL***");
+            annunciate(PRIORITY_BEEP, ALARM_STATE_ALARM, mFallLatency, mFallMetric, receivedNs);
+            annunciate(PRIORITY_ACTIVITY, 0, null, null, 0);
+            sendSms();
+        }
+        if (alarmState == ALARM_STATE_FAULT || alarmState == ALARM_STATE_NETFAULT) {
+            sdData.alarmPhrase = "FAULT";
+            newState = (alarmState == ALARM_STATE_FAULT) ? STATE_FAULT : STATE_NETFAULT;
+            if (mLogAlarms) logAlarm(false);
+            annunciate(PRIORITY_BEEP, ALARM_STATE_FAULT, mFaultLatency, mFaultMetric, receivedNs);
+        } else {
+            mActions.stopFaultTimer();
+        }
+
+        mAlarmStanding = sdData.alarmStanding;
+        mFallAlarmStanding = sdData.fallAlarmStanding;
+        setState(newState, sdData);
+    }
+
+    /**
+     * The data source has detected a fault (e.g. no data from the watch).
+     */
+    public synchronized void processFault(SdData sdData, long receivedNs) {
+        sdData.alarmState = ALARM_STATE_FAULT;
+        setState(STATE_FAULT, sdData);
+        if (mAudibleFaultWarning) {
+            annunciate(PRIORITY_BEEP, ALARM_STATE_FAULT, mFaultLatency, mFaultMetric, receivedNs);
+        }
+    }
+
+    /**
+     * Release any latched alarm.
+     */
+    public synchronized void acceptAlarm() {
+        mAlarmStanding = false;
+        mFallAlarmStanding = false;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isLatched() {
+        return mLatchAlarms && (mAlarmStanding || mFallAlarmStanding);
+    }
+
+    public synchronized long getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    public LatencyHistogram[] getLatencyHistograms() {
+        return new LatencyHistogram[]{mWarningLatency, mAlarmLatency, mFallLatency, mFaultLatency};
+    }
+
+    /**
+     * Append the state and latency histograms to sb as a JSON object.
+     */
+    public void toJson(StringBuilder sb) {
+        synchronized (this) {
+            sb.append("{\"state\":\"").append(STATE_NAMES[mState]).append('"')
+                    .append(",\"latched\":").append(isLatched())
+                    .append(",\"transitions\":").append(mTransitionCount);
+        }
+        sb.append(",\"latency\":[");
+        LatencyHistogram[] hists = getLatencyHistograms();
+        for (int i = 0; i < hists.length; i++) {
+            if (i > 0) sb.append(',');
+            hists[i].toJson(sb);
+        }
+        sb.append("]}");
+    }
+
+    /**
+     * Change state, recording the change in the event log if it is to an
+     * alarm or fault state, so a standing alarm gives one event rather than
+     * one per update.
+     */
+    private void setState(int newState, SdData sdData) {
+        if (newState != mState) {
+            Log.v(TAG, "setState() - " + STATE_NAMES[mState] + " -> " + STATE_NAMES[newState]);
+            mState = newState;
+            mTransitionCount++;
+            if (mLogAlarms && newState != STATE_OK && newState != STATE_MUTE) {
+                logEvent(newState, sdData);
+            }
+        }
+    }
+
+    private void logEvent(final int state, SdData sdData) {
+        // Serialise now - sdData is re-used for the next update.
+        final String alarmPhrase = sdData.alarmPhrase;
+        final String dataJson = mSerializer.toJson(sdData);
+        final SdWakeManager wm = mWakeManager;
+        if (wm != null) wm.acquire(WAKE_REASON);
+        mLogger.execute(new Runnable() {
+            public void run() {
+                try {
+                    mActions.logEvent(state, alarmPhrase, dataJson);
+                } finally {
+                    if (wm != null) wm.release(WAKE_REASON);
+                }
+            }
+        });
+    }
+
+    private void log(String what) {
+        if (mLogAlarms) {
+            Log.v(TAG, what + " - Logging to SD Card");
+            logAlarm(true);
+        } else {
+            Log.v(TAG, what);
+        }
+    }
+
+    private void logAlarm(final boolean logData) {
+        final SdWakeManager wm = mWakeManager;
+        if (wm != null) wm.acquire(WAKE_REASON);
+        mLogger.execute(new Runnable() {
+            public void run() {
+                try {
+                    mActions.logAlarm(logData);
+                } finally {
+                    if (wm != null) wm.release(WAKE_REASON);
+                }
+            }
+        });
+    }
+
+    // Limit SMS alarms to one per minute.
+    private void sendSms() {
+        if (!mSmsAlarm) return;
+        long now = now();
+        if (now - mLastSmsMs > SMS_INTERVAL_MS) {
+            mLastSmsMs = now;
+            annunciate(PRIORITY_SMS, 0, null, null, 0);
+        }
+    }
+
+    private void annunciate(int priority, int arg, LatencyHistogram hist,
+                            SdMetrics.Histogram metric, long receivedNs) {
+        SdWakeManager wm = mWakeManager;
+        if (wm != null) wm.acquire(WAKE_REASON);
+        mAnnunciator.execute(new Annunciation(priority, mSeq.getAndIncrement(), arg, hist,
+                metric, receivedNs, wm));
+    }
+
+    private static SdMetrics.Histogram latencyMetric(String type) {
+        return SdMetrics.getInstance().histogram("osd_alarm_annunciation_seconds",
+                "type=\"" + type + "\"",
+                "Time from data being received to the alarm beep.");
+    }
+
+    /**
+     * @return the current time in ms - overridden by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * One side effect, ordered by priority then by when it was requested.
+     */
+    private class Annunciation implements Runnable, Comparable<Annunciation> {
+        final int mPriority;
+        final long mSeqNo;
+        final int mArg;
+        final LatencyHistogram mHist;
+        final SdMetrics.Histogram mMetric;
+        final long mReceivedNs;
+        final SdWakeManager mWm;
+
+        Annunciation(int priority, long seqNo, int arg, LatencyHistogram hist,
+                     SdMetrics.Histogram metric, long receivedNs, SdWakeManager wm) {
+            mPriority = priority;
+            mSeqNo = seqNo;
+            mArg = arg;
+            mHist = hist;
+            mMetric = metric;
+            mReceivedNs = receivedNs;
+            mWm = wm;
+        }
+
+        public int compareTo(Annunciation other) {
+            if (mPriority != other.mPriority) return mPriority < other.mPriority ? -1 : 1;
+            return mSeqNo < other.mSeqNo ? -1 : (mSeqNo == other.mSeqNo ? 0 : 1);
+        }
+
+        public void run() {
+            try {
+                switch (mPriority) {
+                    case PRIORITY_BEEP:
+                        boolean beeped;
+                        if (mArg == ALARM_STATE_WARNING) {
+                            beeped = mActions.warningBeep();
+                        } else if (mArg == ALARM_STATE_FAULT) {
+                            beeped = mActions.faultWarningBeep();
+                        } else {
+                            beeped = mActions.alarmBeep();
+                        }
+                        // A fault beep is held back until the fault timer
+                        // completes, so only time the beeps that were made.
+                        if (beeped && mHist != null) {
+                            long latencyNs = System.nanoTime() - mReceivedNs;
+                            mHist.record(latencyNs);
+                            mMetric.record(latencyNs);
+                        }
+                        break;
+                    case PRIORITY_NOTIFICATION:
+                        mActions.showNotification(mArg);
+                        break;
+                    case PRIORITY_ACTIVITY:
+                        mActions.showMainActivity();
+                        break;
+                    case PRIORITY_SMS:
+                        mActions.sendSMSAlarm();
+                        break;
+                }
+            } catch (Exception ex) {
+                // Keep going so later alarms are still annunciated.
+                Log.e(TAG, "Annunciation " + mPriority + " failed - " + ex.toString());
+            } finally {
+                if (mWm != null) mWm.release(WAKE_REASON);
+            }
+        }
+    }
+}
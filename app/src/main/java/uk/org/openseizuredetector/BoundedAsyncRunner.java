@@ -0,0 +1,110 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * NanoHTTPD AsyncRunner that serves connections from a bounded thread pool,
+ * rather than starting a new thread for every connection.
+ * When all threads are busy, new connections wait in a short queue; once
+ * that is full they are rejected (NanoHTTPD closes the socket), so a
+ * misbehaving client can not make the phone start hundreds of threads.
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private ThreadPoolExecutor mExecutor;
+    private AtomicLong mRejectedCount = new AtomicLong();
+
+    public BoundedAsyncRunner(int maxThreads, int queueSize) {
+        final AtomicInteger threadNo = new AtomicInteger();
+        // A ThreadPoolExecutor only starts threads beyond the core size once
+        // the queue is full, so the core size is the maximum and idle threads
+        // are allowed to time out instead.  Otherwise a couple of long lived
+        // connections (/stream clients, idle keep-alive sockets) would hold
+        // up every other request.
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NanoHttpd Request Processor #"
+                                + threadNo.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        mRejectedCount.incrementAndGet();
+                        throw new RejectedExecutionException("Web server busy");
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void exec(Runnable code) {
+        mExecutor.execute(code);
+    }
+
+    /**
+     * Stop accepting work, and interrupt the running connections.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /** @return the number of connections being served now. */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /** @return the number of connections waiting for a free thread. */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** @return the number of connections rejected because the pool was full. */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /** @return the number of connections that have been served. */
+    public long getCompletedCount() {
+        return mExecutor.getCompletedTaskCount();
+    }
+
+    public int getMaxThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+}
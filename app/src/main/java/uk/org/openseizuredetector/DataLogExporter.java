@@ -0,0 +1,194 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Converts a binary data log (see DataLogFormat) to JSON or CSV text.
+ * The exporter is an InputStream that converts one record at a time as the
+ * text is read, so it uses the same small amount of memory whatever the
+ * size of the log file - it can be handed straight to the web server as the
+ * response body.
+ * It does not use any Android classes, so can also be run on a desktop
+ * computer to convert log files copied from the phone:
+ *   java uk.org.openseizuredetector.DataLogExporter [--csv|--json] DataLog_2016-01-01.osdl
+ */
+public class DataLogExporter extends InputStream {
+    public final static int FORMAT_JSON = 0;
+    public final static int FORMAT_CSV = 1;
+
+    private final DataLogFormat.Reader mReader;
+    private final int mFormat;
+    private final DataLogFormat.Record mRec = new DataLogFormat.Record();
+    private final StringBuilder mSb = new StringBuilder(256);
+    private final SimpleDateFormat mDateFmt = new SimpleDateFormat("yyyyMMdd'T'HHmmss", Locale.UK);
+    private final Date mDate = new Date();
+    private byte[] mChunk = null;
+    private int mChunkPos = 0;
+    private int mRecordCount = 0;
+    private boolean mFinished = false;
+
+    /**
+     * @param in - stream containing a binary data log.
+     * @param format - FORMAT_JSON or FORMAT_CSV.
+     * @throws IOException if in is not a valid data log.
+     */
+    public DataLogExporter(InputStream in, int format) throws IOException {
+        mReader = new DataLogFormat.Reader(in);
+        mFormat = format;
+        if (mFormat == FORMAT_CSV) {
+            mSb.append("time,dataTimeStr,alarmState,maxVal,maxFreq,specPower,roiPower,batteryPc");
+            for (int i = 0; i < DataLogFormat.NSPEC; i++) {
+                mSb.append(",spec").append(i);
+            }
+            mSb.append('\n');
+        } else {
+            mSb.append("{\"dataLog\":[\n");
+        }
+        setChunk();
+    }
+
+    public String getMimeType() {
+        return (mFormat == FORMAT_CSV) ? "text/csv" : "application/json";
+    }
+
+    private void setChunk() throws IOException {
+        mChunk = mSb.toString().getBytes("UTF-8");
+        mChunkPos = 0;
+        mSb.setLength(0);
+    }
+
+    /**
+     * Convert the next record (or write the end of the document) into mChunk.
+     * @return false if there is nothing more to write.
+     */
+    private boolean nextChunk() throws IOException {
+        if (mFinished) return false;
+        if (!mReader.next(mRec)) {
+            mFinished = true;
+            if (mFormat == FORMAT_JSON) {
+                mSb.append("\n]}\n");
+                setChunk();
+                return true;
+            }
+            return false;
+        }
+        mDate.setTime(mRec.timeMs);
+        String dateStr = mDateFmt.format(mDate);
+        if (mFormat == FORMAT_CSV) {
+            mSb.append(mRec.timeMs).append(',')
+                    .append(dateStr).append(',')
+                    .append(mRec.alarmState).append(',')
+                    .append(mRec.maxVal).append(',')
+                    .append(mRec.maxFreq).append(',')
+                    .append(mRec.specPower).append(',')
+                    .append(mRec.roiPower).append(',')
+                    .append(mRec.batteryPc);
+            for (int i = 0; i < DataLogFormat.NSPEC; i++) {
+                mSb.append(',').append(mRec.simpleSpec[i]);
+            }
+            mSb.append('\n');
+        } else {
+            if (mRecordCount > 0) mSb.append(",\n");
+            mSb.append("{\"time\":").append(mRec.timeMs)
+                    .append(",\"dataTimeStr\":\"").append(dateStr)
+                    .append("\",\"alarmState\":").append(mRec.alarmState)
+                    .append(",\"maxVal\":").append(mRec.maxVal)
+                    .append(",\"maxFreq\":").append(mRec.maxFreq)
+                    .append(",\"specPower\":").append(mRec.specPower)
+                    .append(",\"roiPower\":").append(mRec.roiPower)
+                    .append(",\"batteryPc\":").append(mRec.batteryPc)
+                    .append(",\"simpleSpec\":[");
+            for (int i = 0; i < DataLogFormat.NSPEC; i++) {
+                if (i > 0) mSb.append(',');
+                mSb.append(mRec.simpleSpec[i]);
+            }
+            mSb.append("]}");
+        }
+        mRecordCount++;
+        setChunk();
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (mChunkPos >= mChunk.length) {
+            if (!nextChunk()) return -1;
+        }
+        return mChunk[mChunkPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n = 0;
+        while (n < len) {
+            if (mChunkPos >= mChunk.length && !nextChunk()) break;
+            int count = Math.min(len - n, mChunk.length - mChunkPos);
+            System.arraycopy(mChunk, mChunkPos, b, off + n, count);
+            mChunkPos += count;
+            n += count;
+        }
+        return (n == 0) ? -1 : n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    /**
+     * Convert the data log file named on the command line to JSON (default)
+     * or CSV on standard output.
+     */
+    public static void main(String[] args) throws IOException {
+        int format = FORMAT_JSON;
+        String fname = null;
+        for (String arg : args) {
+            if (arg.equals("--csv")) format = FORMAT_CSV;
+            else if (arg.equals("--json")) format = FORMAT_JSON;
+            else fname = arg;
+        }
+        if (fname == null) {
+            System.err.println("Usage: DataLogExporter [--csv|--json] <DataLog file>");
+            System.exit(1);
+        }
+        InputStream in = new DataLogExporter(new FileInputStream(fname), format);
+        OutputStream out = System.out;
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, n);
+        }
+        out.flush();
+        in.close();
+    }
+}
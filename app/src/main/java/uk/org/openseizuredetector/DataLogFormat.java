@@ -0,0 +1,184 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary format for the DataLog files.
+ * A file is an 8 byte header (the characters "OSDL", a 2 byte format version
+ * and the 2 byte record size) followed by fixed size records, one per logged
+ * SdData, all big endian:
+ *   8 bytes  - time (ms since 1970)
+ *   1 byte   - alarmState
+ *   1 byte   - batteryPc
+ *   2 bytes  - maxFreq
+ *   4 bytes  - maxVal
+ *   4 bytes  - specPower
+ *   4 bytes  - roiPower
+ *   40 bytes - simpleSpec[10]
+ * This is 64 bytes per record, compared to about 500 bytes for the JSON
+ * version.  Use DataLogExporter to convert a file to JSON or CSV.
+ */
+public class DataLogFormat {
+    public final static String FILE_EXT = ".osdl";
+    public final static byte[] MAGIC = {'O', 'S', 'D', 'L'};
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 8;
+    public final static int NSPEC = 10;
+    public final static int RECORD_SIZE = 8 + 1 + 1 + 2 + 4 + 4 + 4 + 4 * NSPEC;
+
+    /**
+     * One decoded record.
+     */
+    public static class Record {
+        public long timeMs;
+        public int alarmState;
+        public int batteryPc;
+        public int maxFreq;
+        public int maxVal;
+        public int specPower;
+        public int roiPower;
+        public final int[] simpleSpec = new int[NSPEC];
+    }
+
+    /**
+     * @return the header to write at the start of each file.
+     */
+    public static byte[] header() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.put(MAGIC);
+        buf.putShort((short) VERSION);
+        buf.putShort((short) RECORD_SIZE);
+        return buf.array();
+    }
+
+    /**
+     * Encode sdData as a data log record.
+     * @param timeMs - time stamp for the record.
+     */
+    public static byte[] encode(long timeMs, SdData sdData) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+        buf.putLong(timeMs);
+        buf.put((byte) clamp(sdData.alarmState, 0, 255));
+        buf.put((byte) clamp(sdData.batteryPc, 0, 255));
+        buf.putShort((short) clamp(sdData.maxFreq, 0, 65535));
+        buf.putInt(clamp(sdData.maxVal, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        buf.putInt(clamp(sdData.specPower, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        buf.putInt(clamp(sdData.roiPower, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        for (int i = 0; i < NSPEC; i++) {
+            int val = 0;
+            if (sdData.simpleSpec != null && i < sdData.simpleSpec.length) {
+                val = sdData.simpleSpec[i];
+            }
+            buf.putInt(val);
+        }
+        return buf.array();
+    }
+
+    private static int clamp(long val, long min, long max) {
+        if (val < min) return (int) min;
+        if (val > max) return (int) max;
+        return (int) val;
+    }
+
+    /**
+     * Reads records from a data log stream one at a time, so a file of any
+     * size can be read in constant memory.
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+        private final byte[] mBuf;
+        private final ByteBuffer mBB;
+        private final int mRecordSize;
+
+        /**
+         * Read and check the file header.
+         * @throws IOException if the stream is not a data log we understand.
+         */
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            mIn.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not an OpenSeizureDetector data log file");
+                }
+            }
+            int version = mIn.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported data log version " + version);
+            }
+            // Later versions may only add fields to the end of the record,
+            // so we use the record size from the file to skip them.
+            mRecordSize = mIn.readUnsignedShort();
+            if (mRecordSize < RECORD_SIZE) {
+                throw new IOException("Invalid data log record size " + mRecordSize);
+            }
+            mBuf = new byte[mRecordSize];
+            mBB = ByteBuffer.wrap(mBuf);
+        }
+
+        /**
+         * @return the size of each record in the file, which may be more
+         * than RECORD_SIZE for files written by later versions.
+         */
+        public int getRecordSize() {
+            return mRecordSize;
+        }
+
+        /**
+         * Read the next record into rec.
+         * @return false at the end of the file (an incomplete last record,
+         * e.g. if the phone crashed while writing it, is ignored).
+         */
+        public boolean next(Record rec) throws IOException {
+            try {
+                mIn.readFully(mBuf);
+            } catch (EOFException e) {
+                return false;
+            }
+            mBB.clear();
+            rec.timeMs = mBB.getLong();
+            rec.alarmState = mBB.get() & 0xff;
+            rec.batteryPc = mBB.get() & 0xff;
+            rec.maxFreq = mBB.getShort() & 0xffff;
+            rec.maxVal = mBB.getInt();
+            rec.specPower = mBB.getInt();
+            rec.roiPower = mBB.getInt();
+            for (int i = 0; i < NSPEC; i++) {
+                rec.simpleSpec[i] = mBB.getInt();
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package uk.org.openseizuredetector.EventLogManager;
 
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -19,6 +21,12 @@ public class EventLogListAdapter extends BaseAdapter {
 	ArrayList<LogEntryModel> logEntryModelList;
 	LayoutInflater inflater;
 	Context _context;
+	// Events are loaded a page at a time, as the list is scrolled.
+	private EventLogQuery mQuery = new EventLogQuery();
+	private boolean mLoading = false;
+	private boolean mAllLoaded = false;
+	private int mGeneration = 0;
+	private DateFormat mDateFormat = DateFormat.getDateTimeInstance();
 
 	public EventLogListAdapter(Context context) {
 
@@ -26,23 +34,49 @@ public class EventLogListAdapter extends BaseAdapter {
 		_context = context;
 		inflater = (LayoutInflater) context
 				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		dm = new EventLogManager(_context);
-		logEntryModelList = dm.getAllData();
+		dm = EventLogManager.getInstance(_context);
+		loadNextPage();
 
 	}
 
-	@Override
-	public void notifyDataSetChanged() {
-		super.notifyDataSetChanged();
-		//refetching the new data from database
-		logEntryModelList = dm.getAllData();
+	/**
+	 * Discard the loaded events and re-load them from the database.
+	 */
+	public void refresh() {
+		mGeneration++;
+		logEntryModelList = new ArrayList<LogEntryModel>();
+		mLoading = false;
+		mAllLoaded = false;
+		notifyDataSetChanged();
+		loadNextPage();
+	}
 
+	/**
+	 * Request the next page of events from the database, if we are not
+	 * already waiting for one.
+	 */
+	private void loadNextPage() {
+		if (mLoading || mAllLoaded) return;
+		mLoading = true;
+		EventLogQuery q = logEntryModelList.isEmpty() ? mQuery
+				: mQuery.nextPage(logEntryModelList.get(logEntryModelList.size() - 1));
+		final int generation = mGeneration;
+		dm.query(q, new EventLogManager.Callback<ArrayList<LogEntryModel>>() {
+			public void onResult(ArrayList<LogEntryModel> rows) {
+				if (generation != mGeneration) return;  // refresh() since requested.
+				mLoading = false;
+				if (rows.size() < mQuery.getPageSize()) mAllLoaded = true;
+				logEntryModelList.addAll(rows);
+				notifyDataSetChanged();
+			}
+		});
 	}
 
 	public void delRow(int delPosition) {
 
 		dm.deleteRow(logEntryModelList.get(delPosition).getId());
 		logEntryModelList.remove(delPosition);
+		notifyDataSetChanged();
 
 	}
 
@@ -81,12 +115,19 @@ public class EventLogListAdapter extends BaseAdapter {
 			vHolder = (ViewHolder) convertView.getTag();
 		}
 
+		// Start loading more events before the user reaches the end of the list.
+		if (position >= logEntryModelList.size() - mQuery.getPageSize() / 4) {
+			loadNextPage();
+		}
+
 		LogEntryModel eventObj = logEntryModelList.get(position);
 
-		//vHolder.date.setText(eventObj.getDate().toString());
-		vHolder.alarmState.setText(eventObj.getAlarmState());
+		Date date = eventObj.getDate();
+		vHolder.date.setText((date == null) ? "" : mDateFormat.format(date));
+		vHolder.alarmState.setText(String.valueOf(eventObj.getAlarmState()));
 		vHolder.note.setText(eventObj.getNote());
-		vHolder.dataJSON.setText(eventObj.getDataJSON());
+		// The list does not load the event data - use EventLogManager.getRow() for that.
+		vHolder.dataJSON.setText("");
 
 		return convertView;
 	}
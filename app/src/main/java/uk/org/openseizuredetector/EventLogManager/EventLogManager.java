@@ -7,6 +7,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -14,78 +19,286 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+/**
+ * All database work is done on a single background thread (sDbExecutor),
+ * so callers never block on the database - query results are passed to a
+ * Callback on the main thread.
+ * New events are written in batches (write-behind) - see addRow().
+ */
 public class EventLogManager {
     final static String TAG = "EventLogManager";
 	private SQLiteDatabase db; // a reference to the database manager class.
 	private static final String DB_NAME = "eventlog"; // the name of our database
-	private static final int DB_VERSION = 1; // the version of the database
+	private static final int DB_VERSION = 2; // the version of the database
 
-	private static final String TABLE_NAME = "events";// table name
+	static final String TABLE_NAME = "events";// table name
 
 	// the names for our database columns
-	private static final String TABLE_ROW_ID = "_id";
-	private static final String TABLE_ROW_DATE = "event_date";
-	private static final String TABLE_ROW_ALARM_STATE = "alarm_state";
-	private static final String TABLE_ROW_DATA_JSON = "data_json";
-	private static final String TABLE_ROW_NOTE = "note";
+	static final String TABLE_ROW_ID = "_id";
+	static final String TABLE_ROW_DATE = "event_date";
+	static final String TABLE_ROW_TIME = "event_time";  // ms since the epoch (version 2).
+	static final String TABLE_ROW_ALARM_STATE = "alarm_state";
+	static final String TABLE_ROW_DATA_JSON = "data_json";
+	static final String TABLE_ROW_NOTE = "note";
 	private Context context;
+	private CustomSQLiteOpenHelper mHelper;
+	private Handler mMainHandler;
+
+	// Events are queued in mPending and written in a single transaction
+	// when BATCH_SIZE have been queued, or BATCH_PERIOD_MS after the first
+	// one was queued, whichever is sooner.
+	static final int BATCH_SIZE = 50;
+	static final long BATCH_PERIOD_MS = 2000;
+	static final long FLUSH_TIMEOUT_MS = 2000;
+	private final ArrayList<PendingEvent> mPending = new ArrayList<PendingEvent>();
+	private boolean mWriteScheduled = false;
+	private SQLiteStatement mInsertStmt;
+	private final Runnable mWriteTask = new Runnable() {
+		public void run() {
+			writePending();
+		}
+	};
+
+	private static final ScheduledExecutorService sDbExecutor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "EventLogManager");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static EventLogManager sInstance = null;
+
+	/**
+	 * @return the EventLogManager shared by the whole process.  Use this
+	 * rather than creating new instances, so that everything sees events
+	 * that are still waiting to be written.
+	 */
+	public static synchronized EventLogManager getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new EventLogManager(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Receives the result of a query on the main thread.
+	 */
+	public interface Callback<T> {
+		void onResult(T result);
+	}
 
 	public EventLogManager(Context context) {
-		this.context = context;
+		this(context, DB_NAME);
+	}
 
-		// create or open the database
-		CustomSQLiteOpenHelper helper = new CustomSQLiteOpenHelper(context);
-		this.db = helper.getWritableDatabase();
+	/**
+	 * Use database dbName rather than the default one (for testing).
+	 */
+	public EventLogManager(Context context, String dbName) {
+		this.context = context;
+		mMainHandler = new Handler(Looper.getMainLooper());
 
-		helper.onCreate(this.db);
+		// The database is opened (and created or upgraded if necessary) by
+		// the first operation on the database thread.
+		mHelper = new CustomSQLiteOpenHelper(context, dbName);
 	}
 
 	// the beginnings our SQLiteOpenHelper class
 	private class CustomSQLiteOpenHelper extends SQLiteOpenHelper {
 
-		public CustomSQLiteOpenHelper(Context context) {
-			super(context, DB_NAME, null, DB_VERSION);
+		public CustomSQLiteOpenHelper(Context context, String dbName) {
+			super(context, dbName, null, DB_VERSION);
 		}
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			// the SQLite query string that will create our column database
 			// table.
-			String newTableQueryString = "create table " + TABLE_NAME + " ("
+			String newTableQueryString = "create table if not exists " + TABLE_NAME + " ("
 					+ TABLE_ROW_ID
 					+ " integer primary key autoincrement not null,"
-					+ TABLE_ROW_DATE + " timestamp not null," + TABLE_ROW_ALARM_STATE
+					+ TABLE_ROW_DATE + " timestamp not null,"
+					+ TABLE_ROW_TIME + " integer not null default 0,"
+					+ TABLE_ROW_ALARM_STATE
 					+ " integer not null," + TABLE_ROW_NOTE + " text not null,"
 					+ TABLE_ROW_DATA_JSON + " text not null" + ");";
 
 			// execute the query string to the database.
 			db.execSQL(newTableQueryString);
+			createIndexes(db);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			Log.v(TAG, "onUpgrade() - from version " + oldVersion + " to " + newVersion);
+			if (oldVersion < 2) {
+				// Add the numeric timestamp, filling it in from the text date,
+				// which was stored in local time.
+				db.beginTransaction();
+				try {
+					db.execSQL("alter table " + TABLE_NAME + " add column "
+							+ TABLE_ROW_TIME + " integer not null default 0");
+					db.execSQL("update " + TABLE_NAME + " set " + TABLE_ROW_TIME
+							+ " = ifnull(strftime('%s', " + TABLE_ROW_DATE + ", 'utc'), 0) * 1000");
+					createIndexes(db);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		}
+
+		/**
+		 * Indexes for queries by time, and by alarm state then time.
+		 */
+		private void createIndexes(SQLiteDatabase db) {
+			db.execSQL("create index if not exists events_time_idx on "
+					+ TABLE_NAME + " (" + TABLE_ROW_TIME + ", " + TABLE_ROW_ID + ")");
+			db.execSQL("create index if not exists events_alarm_time_idx on "
+					+ TABLE_NAME + " (" + TABLE_ROW_ALARM_STATE + ", " + TABLE_ROW_TIME
+					+ ", " + TABLE_ROW_ID + ")");
+		}
 
-			// LATER, WE WOULD SPECIFIY HOW TO UPGRADE THE DATABASE
-			// FROM OLDER VERSIONS.
-			String DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_NAME;
-			db.execSQL(DROP_TABLE);
-			onCreate(db);
+	}
 
+	/**
+	 * Open the database - only called on the database thread.
+	 */
+	private SQLiteDatabase getDb() {
+		if (db == null) {
+			db = mHelper.getWritableDatabase();
+			// Write ahead logging means a commit only has to sync the log,
+			// and readers do not block the writer.
+			db.enableWriteAheadLogging();
 		}
+		return db;
+	}
 
+	/**
+	 * Pass result to callback on the main thread.
+	 */
+	private <T> void postResult(final Callback<T> callback, final T result) {
+		if (callback == null) return;
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				callback.onResult(result);
+			}
+		});
 	}
 
+	/**
+	 * Queue an event to be written to the database with the next batch.
+	 */
 	public void addRow(LogEntryModel eventObj) {
-		ContentValues values = prepareData(eventObj);
-		// ask the database object to insert the new data
+		addRow(eventObj, false);
+	}
+
+	/**
+	 * Queue an event to be written to the database.
+	 * @param sync - if true, wait until the event (and any others queued)
+	 *             has been committed, so it is not lost if the process dies.
+	 *             Use this for alarms.  Must not be called on the main thread.
+	 * @return false if sync was requested but the write did not complete in time.
+	 */
+	public boolean addRow(LogEntryModel eventObj, boolean sync) {
+		PendingEvent event = new PendingEvent(eventObj);
+		synchronized (mPending) {
+			mPending.add(event);
+			if (!sync) {
+				if (mPending.size() == BATCH_SIZE) {
+					sDbExecutor.execute(mWriteTask);
+				} else if (!mWriteScheduled) {
+					mWriteScheduled = true;
+					sDbExecutor.schedule(mWriteTask, BATCH_PERIOD_MS, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (sync) {
+			return flush(FLUSH_TIMEOUT_MS);
+		}
+		return true;
+	}
+
+	/**
+	 * Write all queued events to the database now, waiting up to timeoutMs
+	 * for them to be committed.  Must not be called on the main thread.
+	 * @return true if the events were written.
+	 */
+	public boolean flush(long timeoutMs) {
+		Future<?> f = sDbExecutor.submit(mWriteTask);
+		try {
+			f.get(timeoutMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, "flush() - " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Write the queued events in a single transaction - only called on the
+	 * database thread.  Database operations call this first so they see
+	 * events that have been queued but not written yet.
+	 */
+	private void writePending() {
+		ArrayList<PendingEvent> batch;
+		synchronized (mPending) {
+			mWriteScheduled = false;
+			if (mPending.isEmpty()) return;
+			batch = new ArrayList<PendingEvent>(mPending);
+			mPending.clear();
+		}
+		SQLiteDatabase db = getDb();
+		db.beginTransaction();
 		try {
-			db.insert(TABLE_NAME, null, values);
+			if (mInsertStmt == null) {
+				mInsertStmt = db.compileStatement("insert into " + TABLE_NAME + " ("
+						+ TABLE_ROW_ALARM_STATE + ", " + TABLE_ROW_DATE + ", " + TABLE_ROW_TIME + ", "
+						+ TABLE_ROW_NOTE + ", " + TABLE_ROW_DATA_JSON + ") values (?, ?, ?, ?, ?)");
+			}
+			for (PendingEvent event : batch) {
+				mInsertStmt.bindLong(1, event.alarmState);
+				mInsertStmt.bindString(2, event.dateStr);
+				mInsertStmt.bindLong(3, event.time);
+				mInsertStmt.bindString(4, event.note);
+				mInsertStmt.bindString(5, event.dataJSON);
+				mInsertStmt.executeInsert();
+			}
+			db.setTransactionSuccessful();
 		} catch (Exception e) {
-			Log.e("DB ERROR", e.toString()); // prints the error message to
-			// the log
-			e.printStackTrace(); // prints the stack trace to the log
+			Log.e("DB ERROR", "writePending() - lost " + batch.size() + " events - " + e.toString());
+			e.printStackTrace();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * An event waiting to be written to the database.
+	 */
+	private class PendingEvent {
+		final int alarmState;
+		final String dateStr;
+		final long time;
+		final String note;
+		final String dataJSON;
+
+		PendingEvent(LogEntryModel eventObj) {
+			// Events without a date are given the time they were logged.
+			Date date = eventObj.getDate();
+			if (date == null) date = new Date();
+			alarmState = eventObj.getAlarmState();
+			dateStr = getDateTime(date);
+			time = date.getTime();
+			note = (eventObj.getNote() == null) ? "" : eventObj.getNote();
+			dataJSON = (eventObj.getDataJSON() == null) ? "" : eventObj.getDataJSON();
 		}
 	}
 
@@ -99,111 +312,135 @@ public class EventLogManager {
     }
 
 	private ContentValues prepareData(LogEntryModel eventObj) {
+		// Events without a date are given the time they were logged.
+		Date date = eventObj.getDate();
+		if (date == null) date = new Date();
 
 		ContentValues values = new ContentValues();
 		values.put(TABLE_ROW_ALARM_STATE, eventObj.getAlarmState());
-		values.put(TABLE_ROW_DATE, getDateTime(eventObj.getDate()));
+		values.put(TABLE_ROW_DATE, getDateTime(date));
+		values.put(TABLE_ROW_TIME, date.getTime());
 		values.put(TABLE_ROW_NOTE, eventObj.getNote());
 		values.put(TABLE_ROW_DATA_JSON, eventObj.getDataJSON());
 		return values;
 	}
 
-	// Returns row data in form of LogEntryModel object
-	public LogEntryModel getRowAsObject(int rowID) {
-
-		LogEntryModel rowContactObj = new LogEntryModel();
-		Cursor cursor;
-
-		try {
-
-			cursor = db.query(TABLE_NAME, new String[] { TABLE_ROW_ID,
-					TABLE_ROW_ALARM_STATE, TABLE_ROW_DATE, TABLE_ROW_NOTE,
-					TABLE_ROW_DATA_JSON }, TABLE_ROW_ID + "=" + rowID, null,
-					null, null, null, null);
-			
-			cursor.moveToFirst();
-			prepareSendObject(rowContactObj, cursor);
-			
-		} catch (SQLException e) {
-			Log.e("DB ERROR", e.toString());
-			e.printStackTrace();
-		}
-
-		return rowContactObj;
+	/**
+	 * Retrieve a single event, including its data, and pass it to callback
+	 * (null if it does not exist).
+	 */
+	public void getRow(final int rowID, final Callback<LogEntryModel> callback) {
+		sDbExecutor.execute(new Runnable() {
+			public void run() {
+				LogEntryModel rowObj = null;
+				Cursor cursor = null;
+				writePending();
+				try {
+					EventLogQuery q = new EventLogQuery().setIncludeData(true);
+					cursor = getDb().query(TABLE_NAME, q.getColumns(),
+							TABLE_ROW_ID + "=?", new String[]{String.valueOf(rowID)},
+							null, null, null, null);
+					if (cursor.moveToFirst()) {
+						rowObj = new LogEntryModel();
+						prepareSendObject(rowObj, cursor, true);
+					}
+				} catch (SQLException e) {
+					Log.e("DB ERROR", e.toString());
+					e.printStackTrace();
+				} finally {
+					if (cursor != null) cursor.close();
+				}
+				postResult(callback, rowObj);
+			}
+		});
 	}
 
-	// Returns all the rows data in form of LogEntryModel object list
-
-	public ArrayList<LogEntryModel> getAllData() {
-
-		ArrayList<LogEntryModel> allRowsObj = new ArrayList<LogEntryModel>();
-		Cursor cursor;
-		LogEntryModel rowContactObj;
-
-		String[] columns = new String[] { TABLE_ROW_ID, TABLE_ROW_ALARM_STATE,
-				TABLE_ROW_DATE, TABLE_ROW_NOTE, TABLE_ROW_DATA_JSON };
+	/**
+	 * Run query and pass the page of events it returns to callback.
+	 * Use query.nextPage(<last event>) to get the following page.
+	 */
+	public void query(final EventLogQuery query, final Callback<ArrayList<LogEntryModel>> callback) {
+		sDbExecutor.execute(new Runnable() {
+			public void run() {
+				writePending();
+				postResult(callback, queryNow(query));
+			}
+		});
+	}
 
+	/**
+	 * Run query on the current (database) thread.
+	 */
+	private ArrayList<LogEntryModel> queryNow(EventLogQuery query) {
+		ArrayList<LogEntryModel> rows = new ArrayList<LogEntryModel>(query.getPageSize());
+		Cursor cursor = null;
 		try {
-
-			cursor = db
-					.query(TABLE_NAME, columns, null, null, null, null, null);
-			cursor.moveToFirst();
-
-			if (!cursor.isAfterLast()) {
-				do {
-					rowContactObj = new LogEntryModel();
-					rowContactObj.setId(cursor.getInt(0));
-					prepareSendObject(rowContactObj, cursor);
-					allRowsObj.add(rowContactObj);
-
-				} while (cursor.moveToNext()); // try to move the cursor's
-				// pointer forward one position.
+			cursor = getDb().query(TABLE_NAME, query.getColumns(),
+					query.getSelection(), query.getSelectionArgs(),
+					null, null, query.getOrderBy(), query.getLimit());
+			while (cursor.moveToNext()) {
+				LogEntryModel rowObj = new LogEntryModel();
+				prepareSendObject(rowObj, cursor, query.getIncludeData());
+				rows.add(rowObj);
 			}
 		} catch (SQLException e) {
 			Log.e("DB ERROR", e.toString());
 			e.printStackTrace();
+		} finally {
+			if (cursor != null) cursor.close();
 		}
-
-		return allRowsObj;
-
+		return rows;
 	}
 
-	private void prepareSendObject(LogEntryModel rowObj, Cursor cursor) {
-		rowObj.setId(cursor.getInt(cursor.getColumnIndexOrThrow(TABLE_ROW_ID)));
-		rowObj.setAlarmState(cursor.getInt(cursor
-				.getColumnIndexOrThrow(TABLE_ROW_ALARM_STATE)));
-		String dateTimeStr = cursor.getString(cursor
-				.getColumnIndexOrThrow(TABLE_ROW_DATE));
-        Log.v(TAG,"dateTimeStr = "+dateTimeStr);
-        Date dateVal;
-        try { dateVal = new Date(dateTimeStr); }
-        catch (IllegalArgumentException e) { dateVal = null; }
-        rowObj.setDate(dateVal);
-		rowObj.setNote(cursor.getString(cursor
-				.getColumnIndexOrThrow(TABLE_ROW_NOTE)));
-		rowObj.setDataJSON(cursor.getString(cursor
-				.getColumnIndexOrThrow(TABLE_ROW_DATA_JSON)));
+	/**
+	 * Fill rowObj from the current cursor row.  The columns are in the order
+	 * given by EventLogQuery.getColumns().
+	 */
+	private void prepareSendObject(LogEntryModel rowObj, Cursor cursor, boolean includeData) {
+		rowObj.setId(cursor.getInt(0));
+		rowObj.setAlarmState(cursor.getInt(1));
+		long eventTime = cursor.getLong(2);
+		rowObj.setDate((eventTime == 0) ? null : new Date(eventTime));
+		rowObj.setNote(cursor.getString(3));
+		if (includeData) {
+			rowObj.setDataJSON(cursor.getString(4));
+		}
 	}
 
-	public void deleteRow(int rowID) {
-		// ask the database manager to delete the row of given id
-		try {
-			db.delete(TABLE_NAME, TABLE_ROW_ID + "=" + rowID, null);
-		} catch (Exception e) {
-			Log.e("DB ERROR", e.toString());
-			e.printStackTrace();
-		}
+	public void deleteRow(final int rowID) {
+		sDbExecutor.execute(new Runnable() {
+			public void run() {
+				writePending();
+				// ask the database manager to delete the row of given id
+				try {
+					getDb().delete(TABLE_NAME, TABLE_ROW_ID + "=?",
+							new String[]{String.valueOf(rowID)});
+				} catch (Exception e) {
+					Log.e("DB ERROR", e.toString());
+					e.printStackTrace();
+				}
+			}
+		});
 	}
 
 	public void updateRow(int rowId, LogEntryModel contactObj) {
 
-		ContentValues values = prepareData(contactObj);
+		final ContentValues values = prepareData(contactObj);
 
-		String whereClause = TABLE_ROW_ID + "=?";
-		String whereArgs[] = new String[] { String.valueOf(rowId) };
-
-		db.update(TABLE_NAME, values, whereClause, whereArgs);
+		final String whereClause = TABLE_ROW_ID + "=?";
+		final String whereArgs[] = new String[] { String.valueOf(rowId) };
 
+		sDbExecutor.execute(new Runnable() {
+			public void run() {
+				writePending();
+				try {
+					getDb().update(TABLE_NAME, values, whereClause, whereArgs);
+				} catch (Exception e) {
+					Log.e("DB ERROR", e.toString());
+					e.printStackTrace();
+				}
+			}
+		});
 	}
 
 
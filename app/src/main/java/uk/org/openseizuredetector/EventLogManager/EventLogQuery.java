@@ -0,0 +1,127 @@
+package uk.org.openseizuredetector.EventLogManager;
+
+import java.util.ArrayList;
+
+/**
+ * Describes one page of an EventLogManager query - events in a time range,
+ * optionally with a given alarm state, newest first.
+ * The data_json column is only read if setIncludeData(true) is called, as
+ * it is much larger than the rest of the row.
+ * Pages are chained with nextPage(), which continues from the last event of
+ * the previous page using the (event_time, _id) index rather than an
+ * OFFSET, so later pages are as quick to read as the first.
+ */
+public class EventLogQuery {
+	public static final int ANY_ALARM_STATE = -1;
+	public static final int DEFAULT_PAGE_SIZE = 50;
+
+	private long mFromMs = 0;
+	private long mToMs = Long.MAX_VALUE;
+	private int mAlarmState = ANY_ALARM_STATE;
+	private boolean mIncludeData = false;
+	private int mPageSize = DEFAULT_PAGE_SIZE;
+	private boolean mHasAfter = false;
+	private long mAfterTime;
+	private int mAfterId;
+
+	/**
+	 * Only return events between fromMs and toMs (inclusive, ms since the epoch).
+	 */
+	public EventLogQuery setTimeRange(long fromMs, long toMs) {
+		mFromMs = fromMs;
+		mToMs = toMs;
+		return this;
+	}
+
+	/**
+	 * Only return events with the given alarm state (or ANY_ALARM_STATE).
+	 */
+	public EventLogQuery setAlarmState(int alarmState) {
+		mAlarmState = alarmState;
+		return this;
+	}
+
+	public EventLogQuery setIncludeData(boolean includeData) {
+		mIncludeData = includeData;
+		return this;
+	}
+
+	public EventLogQuery setPageSize(int pageSize) {
+		mPageSize = pageSize;
+		return this;
+	}
+
+	public int getPageSize() {
+		return mPageSize;
+	}
+
+	public boolean getIncludeData() {
+		return mIncludeData;
+	}
+
+	/**
+	 * @return a query for the page following the one that ended with last.
+	 */
+	public EventLogQuery nextPage(LogEntryModel last) {
+		EventLogQuery q = new EventLogQuery();
+		q.mFromMs = mFromMs;
+		q.mToMs = mToMs;
+		q.mAlarmState = mAlarmState;
+		q.mIncludeData = mIncludeData;
+		q.mPageSize = mPageSize;
+		q.mHasAfter = true;
+		q.mAfterTime = last.getEventTime();
+		q.mAfterId = last.getId();
+		return q;
+	}
+
+	String[] getColumns() {
+		if (mIncludeData) {
+			return new String[]{EventLogManager.TABLE_ROW_ID,
+					EventLogManager.TABLE_ROW_ALARM_STATE, EventLogManager.TABLE_ROW_TIME,
+					EventLogManager.TABLE_ROW_NOTE, EventLogManager.TABLE_ROW_DATA_JSON};
+		} else {
+			return new String[]{EventLogManager.TABLE_ROW_ID,
+					EventLogManager.TABLE_ROW_ALARM_STATE, EventLogManager.TABLE_ROW_TIME,
+					EventLogManager.TABLE_ROW_NOTE};
+		}
+	}
+
+	String getSelection() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(EventLogManager.TABLE_ROW_TIME).append(">=? AND ")
+				.append(EventLogManager.TABLE_ROW_TIME).append("<=?");
+		if (mAlarmState != ANY_ALARM_STATE) {
+			sb.append(" AND ").append(EventLogManager.TABLE_ROW_ALARM_STATE).append("=?");
+		}
+		if (mHasAfter) {
+			sb.append(" AND (").append(EventLogManager.TABLE_ROW_TIME).append("<? OR (")
+					.append(EventLogManager.TABLE_ROW_TIME).append("=? AND ")
+					.append(EventLogManager.TABLE_ROW_ID).append("<?))");
+		}
+		return sb.toString();
+	}
+
+	String[] getSelectionArgs() {
+		ArrayList<String> args = new ArrayList<String>();
+		args.add(String.valueOf(mFromMs));
+		args.add(String.valueOf(mToMs));
+		if (mAlarmState != ANY_ALARM_STATE) {
+			args.add(String.valueOf(mAlarmState));
+		}
+		if (mHasAfter) {
+			args.add(String.valueOf(mAfterTime));
+			args.add(String.valueOf(mAfterTime));
+			args.add(String.valueOf(mAfterId));
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	String getOrderBy() {
+		return EventLogManager.TABLE_ROW_TIME + " DESC, " + EventLogManager.TABLE_ROW_ID + " DESC";
+	}
+
+	String getLimit() {
+		return String.valueOf(mPageSize);
+	}
+}
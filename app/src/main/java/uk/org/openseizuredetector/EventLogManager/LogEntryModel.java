@@ -47,6 +47,13 @@ public class LogEntryModel {
 		this.date = date;
 	}
 
+	/**
+	 * @return the event date in ms since the epoch, or 0 if it is not set.
+	 */
+	public long getEventTime() {
+		return (date == null) ? 0 : date.getTime();
+	}
+
 	public String getDataJSON() { return dataJSON; }
 
 	public void setDataJSON(String dataJSON) { this.dataJSON = dataJSON; }
@@ -0,0 +1,407 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content type detection, ETags and compression for the web server, and an
+ * in-memory cache of the static files it serves from the app's assets.
+ * Assets can not change while the app is running, so each one is read once
+ * to work out its ETag, and small ones are kept in memory, together with a
+ * gzip compressed copy if they are text.
+ */
+public class HttpContent {
+    public final static int MAX_CACHED_SIZE = 256 * 1024;    // Largest asset kept in memory.
+    public final static int MAX_CACHE_SIZE = 2 * 1024 * 1024;  // Total for all cached assets.
+    // Smaller responses are not worth compressing.
+    public final static int MIN_GZIP_SIZE = 1024;
+    public final static String CACHE_STATIC = "public, max-age=86400";
+    public final static String CACHE_REVALIDATE = "no-cache";
+    public final static String MIME_UNKNOWN = "application/octet-stream";
+    private final static String GZIP_SUFFIX = "-gzip";
+
+    private final static String[][] MIME_TYPES = {
+            {".html", "text/html"},
+            {".htm", "text/html"},
+            {".css", "text/css"},
+            {".js", "application/javascript"},
+            {".json", "application/json"},
+            {".map", "application/json"},
+            {".txt", "text/plain"},
+            {".md", "text/plain"},
+            {".log", "text/plain"},
+            {".csv", "text/csv"},
+            {".svg", "image/svg+xml"},
+            {".png", "image/png"},
+            {".jpg", "image/jpeg"},
+            {".jpeg", "image/jpeg"},
+            {".gif", "image/gif"},
+            {".ico", "image/x-icon"},
+            {".wav", "audio/wav"},
+    };
+
+    /**
+     * A byte range of a file, from start to end inclusive, as requested by
+     * a Range header.
+     */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getLength() {
+            return end - start + 1;
+        }
+
+        /**
+         * @return the Content-Range header value for this range of a file of length total.
+         */
+        public String toContentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+
+    /**
+     * Returned by parseRange() if none of the requested bytes exist.
+     */
+    public final static Range UNSATISFIABLE = new Range(-1, -1);
+
+    /**
+     * Opens an asset by name.
+     */
+    public interface Loader {
+        InputStream open(String path) throws IOException;
+    }
+
+    /**
+     * A cached asset.  data and gzipData are null if it was too big to keep
+     * in memory, and gzipData is null if it is not worth compressing.
+     */
+    public static class Entry {
+        public final String mimeType;
+        public final String etag;
+        public final long length;
+        public final byte[] data;
+        public final byte[] gzipData;
+
+        Entry(String mimeType, String etag, long length, byte[] data, byte[] gzipData) {
+            this.mimeType = mimeType;
+            this.etag = etag;
+            this.length = length;
+            this.data = data;
+            this.gzipData = gzipData;
+        }
+    }
+
+    private final Loader mLoader;
+    private final LinkedHashMap<String, Entry> mCache = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long mCacheBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public HttpContent(Loader loader) {
+        mLoader = loader;
+    }
+
+    /**
+     * @return the details of asset path, reading it if it has not been
+     * requested before.
+     * @throws IOException if the asset does not exist.
+     */
+    public Entry get(String path) throws IOException {
+        synchronized (this) {
+            Entry entry = mCache.get(path);
+            if (entry != null) {
+                mHits++;
+                return entry;
+            }
+            mMisses++;
+        }
+        // Read the asset outside the lock, so one slow read does not hold
+        // up requests for assets that are already cached.
+        byte[] bytes = readFully(mLoader.open(path));
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        String mimeType = getMimeType(path);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(bytes.length) + "\"";
+        boolean keep = bytes.length <= MAX_CACHED_SIZE;
+        byte[] gzipData = null;
+        if (keep && isCompressible(mimeType) && bytes.length >= MIN_GZIP_SIZE) {
+            gzipData = gzip(bytes);
+            // Images etc. that are already compressed do not get any smaller.
+            if (gzipData.length >= bytes.length) gzipData = null;
+        }
+        Entry entry = new Entry(mimeType, etag, bytes.length, keep ? bytes : null, gzipData);
+        synchronized (this) {
+            Entry prev = mCache.put(path, entry);
+            if (prev != null) mCacheBytes -= size(prev);
+            mCacheBytes += size(entry);
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Drop the contents of the least recently used assets (keeping their
+     * ETags) until the cache is within MAX_CACHE_SIZE.
+     */
+    private void evict() {
+        for (Map.Entry<String, Entry> e : mCache.entrySet()) {
+            if (mCacheBytes <= MAX_CACHE_SIZE) break;
+            Entry old = e.getValue();
+            if (old.data == null) continue;
+            mCacheBytes -= size(old);
+            e.setValue(new Entry(old.mimeType, old.etag, old.length, null, null));
+        }
+    }
+
+    private static long size(Entry entry) {
+        return ((entry.data != null) ? entry.data.length : 0)
+                + ((entry.gzipData != null) ? entry.gzipData.length : 0);
+    }
+
+    /**
+     * @return the number of bytes of asset data held in memory.
+     */
+    public synchronized long getCacheBytes() {
+        return mCacheBytes;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return the MIME type for a file name, from its extension.
+     */
+    public static String getMimeType(String path) {
+        String lower = path.toLowerCase(Locale.US);
+        for (String[] m : MIME_TYPES) {
+            if (lower.endsWith(m[0])) return m[1];
+        }
+        return MIME_UNKNOWN;
+    }
+
+    /**
+     * @return true for types that are worth gzip compressing.
+     */
+    public static boolean isCompressible(String mimeType) {
+        return mimeType != null && (mimeType.startsWith("text/")
+                || mimeType.startsWith("application/javascript")
+                || mimeType.startsWith("application/json")
+                || mimeType.startsWith("image/svg+xml"));
+    }
+
+    /**
+     * @return the Cache-Control header value for a request path - assets in
+     * /js, /css and /img may be cached for a day, everything else must be
+     * checked with the server (using its ETag) each time.
+     */
+    public static String getCacheControl(String path) {
+        if (path.startsWith("/js/") || path.startsWith("/css/") || path.startsWith("/img/")) {
+            return CACHE_STATIC;
+        }
+        return CACHE_REVALIDATE;
+    }
+
+    /**
+     * @param acceptEncoding - the request's Accept-Encoding header (may be null).
+     * @return true if the client accepts gzip content encoding.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            // gzip;q=0 means not acceptable.
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(p.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ETag to send for the gzip compressed version of a
+     * resource - it must be different from the uncompressed one.
+     */
+    public static String gzipEtag(String etag) {
+        return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch - the request's If-None-Match header (may be null).
+     * @param etag - the current ETag of the (uncompressed) resource.
+     * @return true if the client's copy is up to date, so we can reply 304
+     * Not Modified.  Either the compressed or uncompressed version's ETag matches.
+     */
+    public static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) return false;
+        String gzEtag = gzipEtag(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(gzEtag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a strong ETag for a file, from its size and modification time
+     * (and the format it is being converted to, if any).
+     */
+    public static String fileEtag(long length, long lastModified, String format) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+                + ((format != null) ? "-" + format : "") + "\"";
+    }
+
+    /**
+     * Parse a Range header for a file of the given length.  Only a single
+     * range is supported - the whole file is sent for anything else, as
+     * HTTP allows.
+     * @param rangeHeader - the request's Range header (may be null).
+     * @return the range to send, null to send the whole file, or
+     * UNSATISFIABLE if the range is beyond the end of the file.
+     */
+    public static Range parseRange(String rangeHeader, long length) {
+        if (rangeHeader == null) return null;
+        String spec = rangeHeader.trim();
+        if (!spec.toLowerCase(Locale.US).startsWith("bytes=")) return null;
+        spec = spec.substring(6).trim();
+        if (spec.contains(",")) return null;
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-n is the last n bytes.
+                long n = Long.parseLong(last);
+                if (n <= 0) return UNSATISFIABLE;
+                start = Math.max(0, length - n);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start && start < length) return null;
+            }
+            if (start < 0) return null;
+            if (start >= length) return UNSATISFIABLE;
+            return new Range(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param ifRange - the request's If-Range header (may be null).
+     * @return true if a Range request should be honoured, i.e. there is no
+     * If-Range header, or it matches the current ETag or modification time
+     * of the file (so the client's partial copy is of the same version).
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        // Only strong ETags may be used with If-Range.
+        if (ifRange.startsWith("W/")) return false;
+        if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+        long date = parseHttpDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return fmt;
+    }
+
+    /**
+     * @return timeMs formatted for a Last-Modified header.
+     */
+    public static String formatHttpDate(long timeMs) {
+        return httpDateFormat().format(new Date(timeMs));
+    }
+
+    /**
+     * @return the time in ms of an HTTP date, or -1 if it is not valid.
+     */
+    public static long parseHttpDate(String date) {
+        try {
+            return httpDateFormat().parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gz = new GZIPOutputStream(bos);
+        gz.write(data);
+        gz.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(in.available(), 1024));
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circular buffer of int samples for passing raw accelerometer data from the
+ * thread that receives it from the watch (the producer) to the thread that
+ * analyses it (the consumer).
+ * There must be only one producer thread and one consumer thread - in that
+ * case no locks are needed.  When the buffer is full the oldest samples are
+ * overwritten rather than the new data being dropped, and the consumer is told
+ * how many samples it missed by getOverwrittenCount().
+ * The producer announces how far it is about to write (mReserved) before
+ * writing, and publishes the new data (mHead) afterwards, so the consumer can
+ * tell if the data it has just copied was overwritten while it was copying.
+ */
+public class IntRingBuffer {
+    private final AtomicIntegerArray mBuf;
+    private final int mSize;
+    private final int mMask;
+    // Total number of samples ever written - only changed by the producer.
+    private final AtomicLong mHead = new AtomicLong(0);
+    // Number of samples written once the current write has finished.
+    private final AtomicLong mReserved = new AtomicLong(0);
+    // Position of the next sample to read - only used by the consumer.
+    private long mTail = 0;
+    private long mOverwritten = 0;
+
+    /**
+     * @param capacity - minimum number of samples to store - rounded up to a power of two.
+     */
+    public IntRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) size *= 2;
+        mBuf = new AtomicIntegerArray(size);
+        mSize = size;
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mSize;
+    }
+
+    /**
+     * Producer - add a single sample.
+     */
+    public void put(int val) {
+        long head = mHead.get();
+        mReserved.set(head + 1);
+        mBuf.lazySet((int) (head & mMask), val);
+        mHead.lazySet(head + 1);
+    }
+
+    /**
+     * Producer - add n samples from src, starting at src[off].
+     */
+    public void put(int[] src, int off, int n) {
+        long head = mHead.get();
+        mReserved.set(head + n);
+        for (int i = 0; i < n; i++) {
+            mBuf.lazySet((int) ((head + i) & mMask), src[off + i]);
+        }
+        mHead.lazySet(head + n);
+    }
+
+    /**
+     * Producer - add nSamples 4 byte little endian integers from the byte
+     * array src, starting at byte offset off (the format of the raw data
+     * messages from the watch).
+     */
+    public void putInt32LE(byte[] src, int off, int nSamples) {
+        long head = mHead.get();
+        mReserved.set(head + nSamples);
+        for (int i = 0; i < nSamples; i++) {
+            int p = off + 4 * i;
+            mBuf.lazySet((int) ((head + i) & mMask), (src[p] & 0xff)
+                    | ((src[p + 1] & 0xff) << 8)
+                    | ((src[p + 2] & 0xff) << 16)
+                    | (src[p + 3] << 24));
+        }
+        mHead.lazySet(head + nSamples);
+    }
+
+    /**
+     * @return the total number of samples written since the buffer was created.
+     */
+    public long getWriteCount() {
+        return mHead.get();
+    }
+
+    /**
+     * Consumer - the number of samples waiting to be read.
+     */
+    public int available() {
+        long n = mHead.get() - mTail;
+        return (int) Math.min(n, mSize);
+    }
+
+    /**
+     * Consumer - number of samples that were overwritten before they could be read.
+     */
+    public long getOverwrittenCount() {
+        return mOverwritten;
+    }
+
+    /**
+     * Consumer - copy up to maxN unread samples into dest, oldest first.
+     * @return the number of samples copied.
+     */
+    public int read(int[] dest, int off, int maxN) {
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail;
+            long oldest = mReserved.get() - mSize;
+            if (oldest > tail) {
+                mOverwritten += oldest - tail;
+                tail = oldest;
+            }
+            int n = (int) Math.max(0, Math.min(head - tail, maxN));
+            for (int i = 0; i < n; i++) {
+                dest[off + i] = mBuf.get((int) ((tail + i) & mMask));
+            }
+            // If the producer lapped us while we were copying, the start of
+            // dest may contain newer data than we think - try again.
+            if (mReserved.get() - mSize > tail) {
+                mTail = tail;
+                continue;
+            }
+            mTail = tail + n;
+            return n;
+        }
+    }
+
+    /**
+     * Consumer - copy the most recent n samples into dest (oldest first)
+     * without marking them as read, for sliding window analysis.
+     * @return the number of samples copied, which is less than n if fewer
+     * than n samples have been written.
+     */
+    public int readWindow(double[] dest, int n) {
+        while (true) {
+            long head = mHead.get();
+            int count = (int) Math.min(Math.min(head, n), mSize);
+            long start = head - count;
+            for (int i = 0; i < count; i++) {
+                dest[i] = mBuf.get((int) ((start + i) & mMask));
+            }
+            if (mReserved.get() - mSize > start) continue;
+            return count;
+        }
+    }
+
+    /**
+     * Consumer - discard any unread data.
+     */
+    public void clear() {
+        mTail = mHead.get();
+    }
+}
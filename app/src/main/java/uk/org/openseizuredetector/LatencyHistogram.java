@@ -0,0 +1,131 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * A histogram of latencies, in roughly logarithmic buckets from 1 ms to
+ * 10 s, that is cheap enough to update for every alarm annunciation.
+ * Percentiles are estimated as the upper bound of the bucket that contains
+ * them.
+ */
+public class LatencyHistogram {
+    /** Upper bounds of the buckets in ms - the last bucket has no upper bound. */
+    public static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long mCount = 0;
+    private long mTotalNs = 0;
+    private long mMaxNs = 0;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Add one latency measurement.
+     */
+    public synchronized void record(long latencyNs) {
+        if (latencyNs < 0) latencyNs = 0;
+        long ms = latencyNs / 1000000;
+        int i = 0;
+        while (i < BUCKET_BOUNDS_MS.length && ms >= BUCKET_BOUNDS_MS[i]) {
+            i++;
+        }
+        mCounts[i]++;
+        mCount++;
+        mTotalNs += latencyNs;
+        if (latencyNs > mMaxNs) mMaxNs = latencyNs;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMeanMs() {
+        return (mCount == 0) ? 0 : mTotalNs / 1e6 / mCount;
+    }
+
+    public synchronized double getMaxMs() {
+        return mMaxNs / 1e6;
+    }
+
+    /**
+     * @param fraction - e.g. 0.99 for the 99th percentile.
+     * @return the upper bound of the bucket containing the given percentile
+     * in ms, or the maximum if it is in the last bucket.
+     */
+    public synchronized double getPercentileMs(double fraction) {
+        if (mCount == 0) return 0;
+        long target = (long) Math.ceil(fraction * mCount);
+        if (target < 1) target = 1;
+        long n = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            n += mCounts[i];
+            if (n >= target) return Math.min(BUCKET_BOUNDS_MS[i], getMaxMs());
+        }
+        return getMaxMs();
+    }
+
+    /**
+     * @return a copy of the count in each bucket.
+     */
+    public synchronized long[] getCounts() {
+        return mCounts.clone();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) mCounts[i] = 0;
+        mCount = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+    }
+
+    /**
+     * Append the histogram to sb as a JSON object.
+     */
+    public synchronized void toJson(StringBuilder sb) {
+        sb.append("{\"name\":\"").append(mName).append('"')
+                .append(",\"count\":").append(mCount)
+                .append(",\"meanMs\":").append(Math.round(getMeanMs() * 1000) / 1000.0)
+                .append(",\"p50Ms\":").append(getPercentileMs(0.5))
+                .append(",\"p99Ms\":").append(getPercentileMs(0.99))
+                .append(",\"maxMs\":").append(Math.round(getMaxMs() * 1000) / 1000.0)
+                .append(",\"bucketsMs\":[");
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(BUCKET_BOUNDS_MS[i]);
+        }
+        sb.append("],\"counts\":[");
+        for (int i = 0; i < mCounts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(mCounts[i]);
+        }
+        sb.append("]}");
+    }
+}
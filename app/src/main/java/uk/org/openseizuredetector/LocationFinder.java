@@ -11,8 +11,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 
-import java.util.Timer;
-import java.util.TimerTask;
 
 interface SdLocationReceiver {
     public void onSdLocationReceived(Location ll);
@@ -26,7 +24,7 @@ public class LocationFinder implements LocationListener
     OsdUtil mUtil;
     Handler mHandler;
     Context mContext;
-    Timer mTimeoutTimer = null;
+    SdScheduler.Task mTimeoutTimer = null;
     LocationManager mLocationManager = null;
     LocationListener mLocationListener;
     int mTimeoutPeriod = 60;   // Location search timeout period in seconds.
@@ -52,9 +50,7 @@ public class LocationFinder implements LocationListener
         mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
         mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
 
-        mTimeoutTimer = new Timer();
-        mTimeoutTimer.schedule(new TimerTask() {
-            @Override
+        mTimeoutTimer = SdScheduler.getInstance().scheduleOnce("LocationFinder.timeout", new Runnable() {
             public void run() {
                 Log.v(TAG,"mTimeOutTimer expired - returning last location");
                 //mUtil.showToast("mTimeOutTimer expired - returning last location");
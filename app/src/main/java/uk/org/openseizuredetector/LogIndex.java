@@ -0,0 +1,475 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A sparse time index for a log file, so the records for a given time can
+ * be found without reading the file from the start.
+ * The index is kept in a sidecar file (the log file name with .idx added)
+ * of fixed size entries, each a record time and the byte offset of that
+ * record in the log file (8 bytes each, big endian).  An entry is written
+ * for the first record in the file and then every INTERVAL records, by
+ * LogWriter as it writes the log.  Indexes for log files written before
+ * the index existed are built by reading the log (see build()).
+ * Record times are taken from the record where possible (the time field
+ * of SysLog lines, dataTimeStr of AlarmLog lines, or the time of binary
+ * data log records - see getRecordTime()).
+ */
+public class LogIndex {
+    public final static String FILE_EXT = ".idx";
+    public final static int INTERVAL = 32;
+    public final static int ENTRY_SIZE = 16;
+
+    private final long[] mTimes;
+    private final long[] mOffsets;
+    private final int mCount;
+
+    LogIndex(long[] times, long[] offsets, int count) {
+        mTimes = times;
+        mOffsets = offsets;
+        mCount = count;
+    }
+
+    /**
+     * @return the index file for logFile - a compressed log (see
+     * LogMaintenance) uses the index of the uncompressed file.
+     */
+    public static File indexFile(File logFile) {
+        return new File(uncompressedFile(logFile).getPath() + FILE_EXT);
+    }
+
+    /**
+     * @return the name logFile had before it was compressed.
+     */
+    public static File uncompressedFile(File logFile) {
+        String path = logFile.getPath();
+        if (!LogMaintenance.isCompressed(logFile)) return logFile;
+        return new File(path.substring(0, path.length() - LogMaintenance.GZIP_EXT.length()));
+    }
+
+    /**
+     * @return true if logFile is a binary data log rather than a text log.
+     */
+    public static boolean isBinary(File logFile) {
+        return uncompressedFile(logFile).getName().endsWith(DataLogFormat.FILE_EXT);
+    }
+
+    /**
+     * @return the length of the log data in logFile - this is not known
+     * without reading it for compressed logs, so Long.MAX_VALUE is returned.
+     */
+    public static long getDataLength(File logFile) {
+        return LogMaintenance.isCompressed(logFile) ? Long.MAX_VALUE : logFile.length();
+    }
+
+    /**
+     * @return true if fname is an index file rather than a log.
+     */
+    public static boolean isIndexFile(String fname) {
+        return fname.endsWith(FILE_EXT);
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getTime(int i) {
+        return mTimes[i];
+    }
+
+    public long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /**
+     * @return the offset in the log file to start reading from to find the
+     * first record at or after timeMs.  Nothing before this offset can be
+     * at or after timeMs, unless the clock went backwards.
+     */
+    public long findStart(long timeMs, long dataStart) {
+        // The first entry that is not before timeMs - the records we want
+        // may start anywhere after the entry before it.
+        int i = search(timeMs);
+        return (i == 0) ? dataStart : mOffsets[i - 1];
+    }
+
+    /**
+     * @return the offset in the log file after which there are no records
+     * later than timeMs, or length if they may go up to the end.
+     */
+    public long findEnd(long timeMs, long length) {
+        int i = search(timeMs + 1);
+        return (i >= mCount) ? length : Math.min(mOffsets[i], length);
+    }
+
+    /**
+     * @return the first entry with a time at or after timeMs, or mCount if
+     * there is none.
+     */
+    private int search(long timeMs) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimes[mid] < timeMs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Read the index for logFile, building it from the log file if there
+     * is none.  The new index is saved if save is true - only do this for
+     * files LogWriter is not writing.
+     */
+    public static LogIndex load(File logFile, boolean save) throws IOException {
+        File idxFile = indexFile(logFile);
+        if (!idxFile.exists()) {
+            return build(logFile, save ? idxFile : null);
+        }
+        LogIndex idx = read(idxFile);
+        // Entries for records that are not in the file yet (still in
+        // LogWriter's buffer) are ignored.
+        long length = getDataLength(logFile);
+        int count = idx.mCount;
+        while (count > 0 && idx.mOffsets[count - 1] >= length) count--;
+        return (count == idx.mCount) ? idx : new LogIndex(idx.mTimes, idx.mOffsets, count);
+    }
+
+    /**
+     * Read an index file.  An incomplete last entry is ignored.
+     */
+    static LogIndex read(File idxFile) throws IOException {
+        int count = (int) (idxFile.length() / ENTRY_SIZE);
+        long[] times = new long[count];
+        long[] offsets = new long[count];
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(idxFile)));
+        try {
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+                offsets[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+        return new LogIndex(times, offsets, count);
+    }
+
+    /**
+     * Build the index for logFile by reading it, and write it to idxFile
+     * unless idxFile is null.
+     */
+    public static LogIndex build(File logFile, File idxFile) throws IOException {
+        int size = 16;
+        long[] times = new long[size];
+        long[] offsets = new long[size];
+        int count = 0;
+        RecordReader reader = new RecordReader(logFile, 0, getDataLength(logFile));
+        try {
+            int n = 0;
+            while (reader.next()) {
+                // Records without a time (e.g. continuation lines) do
+                // not get an entry.
+                if (reader.getTime() < 0) continue;
+                if (n % INTERVAL == 0) {
+                    if (count == size) {
+                        size *= 2;
+                        long[] t = new long[size];
+                        long[] o = new long[size];
+                        System.arraycopy(times, 0, t, 0, count);
+                        System.arraycopy(offsets, 0, o, 0, count);
+                        times = t;
+                        offsets = o;
+                    }
+                    times[count] = reader.getTime();
+                    offsets[count] = reader.getOffset();
+                    count++;
+                }
+                n++;
+            }
+        } finally {
+            reader.close();
+        }
+        if (idxFile != null) {
+            Writer w = new Writer(idxFile, 0, 0);
+            try {
+                for (int i = 0; i < count; i++) {
+                    w.writeEntry(times[i], offsets[i]);
+                }
+            } finally {
+                w.close();
+            }
+        }
+        return new LogIndex(times, offsets, count);
+    }
+
+    /**
+     * @return the time in ms of a text log line, or -1 if it does not
+     * contain one.  SysLog lines start with "<date> <time>, <ms>, " and
+     * AlarmLog lines are SdData JSON containing "dataTimeStr":"yyyyMMddTHHmmss".
+     */
+    public static long getRecordTime(String line) {
+        int c1 = line.indexOf(", ");
+        if (c1 > 0 && c1 <= 20) {
+            int c2 = line.indexOf(", ", c1 + 2);
+            if (c2 > 0) {
+                try {
+                    return Long.parseLong(line.substring(c1 + 2, c2));
+                } catch (NumberFormatException e) {
+                    // Not a SysLog line.
+                }
+            }
+        }
+        int t = line.indexOf("\"dataTimeStr\":\"");
+        if (t >= 0) {
+            t += 15;
+            int e = line.indexOf('"', t);
+            if (e > t) {
+                try {
+                    SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd'T'HHmmss", Locale.UK);
+                    return fmt.parse(line.substring(t, e)).getTime();
+                } catch (ParseException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends entries to an index file as its log file is written.
+     * Call add() for each record before it is written to the log.
+     */
+    public static class Writer {
+        private final DataOutputStream mOut;
+        private long mOffset;
+        private int mCount;
+
+        /**
+         * @param offset - the current length of the log file.
+         * @param count - the number of records since the last index entry.
+         */
+        Writer(File idxFile, long offset, int count) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(idxFile, true), 1024));
+            mOffset = offset;
+            mCount = count;
+        }
+
+        /**
+         * Open the index for logFile for appending, building it first if it
+         * is missing or out of date.
+         */
+        public static Writer open(File logFile) throws IOException {
+            File idxFile = indexFile(logFile);
+            long length = logFile.length();
+            if (idxFile.exists()) {
+                // A partly written last entry, or entries beyond the end of
+                // the log, mean the index does not match the log.
+                LogIndex idx = read(idxFile);
+                if (idxFile.length() % ENTRY_SIZE != 0
+                        || (idx.mCount == 0 && length > 0)
+                        || (idx.mCount > 0 && idx.mOffsets[idx.mCount - 1] >= length)) {
+                    idxFile.delete();
+                }
+            }
+            if (!idxFile.exists() && length > 0) {
+                build(logFile, idxFile);
+            }
+            // Records after the last entry are not counted, so the next
+            // record gets an entry of its own.
+            return new Writer(idxFile, length, 0);
+        }
+
+        /**
+         * Skip bytes written to the log that are not a record (e.g. a header).
+         */
+        public void skip(long length) {
+            mOffset += length;
+        }
+
+        /**
+         * Note a record of length bytes at timeMs, about to be written to
+         * the log.
+         */
+        public void add(long timeMs, long length) throws IOException {
+            if (mCount % INTERVAL == 0) {
+                writeEntry(timeMs, mOffset);
+                mCount = 0;
+            }
+            mCount++;
+            mOffset += length;
+        }
+
+        void writeEntry(long timeMs, long offset) throws IOException {
+            mOut.writeLong(timeMs);
+            mOut.writeLong(offset);
+        }
+
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Reads the records (lines of a text log, or records of a binary data
+     * log) between two offsets of a log file, with their times.  Compressed
+     * log files are read as if they were not compressed.
+     */
+    public static class RecordReader {
+        private final InputStream mIn;
+        private final boolean mBinary;
+        private final long mEnd;
+        private int mRecordSize;
+        private long mPos;
+        private long mOffset;
+        private long mTime = -1;
+        private byte[] mBuf = new byte[256];
+        private int mLength;
+
+        /**
+         * @param start - offset of the first record to read - for binary
+         *              logs, anything within the header means the first record.
+         * @param end - stop at this offset.
+         */
+        public RecordReader(File logFile, long start, long end) throws IOException {
+            mBinary = isBinary(logFile);
+            mEnd = end;
+            InputStream fis = new FileInputStream(logFile);
+            if (LogMaintenance.isCompressed(logFile)) fis = new GZIPInputStream(fis, 8192);
+            mIn = new BufferedInputStream(fis, 8192);
+            if (mBinary) {
+                DataLogFormat.Reader header = new DataLogFormat.Reader(mIn);
+                mRecordSize = header.getRecordSize();
+                mBuf = new byte[mRecordSize];
+                mPos = DataLogFormat.HEADER_SIZE;
+                start = Math.max(start, mPos);
+            }
+            skipTo(start);
+        }
+
+        private void skipTo(long pos) throws IOException {
+            while (mPos < pos) {
+                long n = mIn.skip(pos - mPos);
+                if (n <= 0) break;
+                mPos += n;
+            }
+        }
+
+        /**
+         * Read the next record.
+         * @return false if there are no more records before the end offset.
+         */
+        public boolean next() throws IOException {
+            if (mPos >= mEnd) return false;
+            mOffset = mPos;
+            if (mBinary) {
+                int n = 0;
+                while (n < mRecordSize) {
+                    int r = mIn.read(mBuf, n, mRecordSize - n);
+                    if (r < 0) return false;
+                    n += r;
+                }
+                mPos += n;
+                mLength = n;
+                mTime = 0;
+                for (int i = 0; i < 8; i++) {
+                    mTime = (mTime << 8) | (mBuf[i] & 0xff);
+                }
+                return true;
+            }
+            mLength = 0;
+            int b;
+            while (mPos < mEnd && (b = mIn.read()) >= 0) {
+                mPos++;
+                if (mLength == mBuf.length) {
+                    byte[] buf = new byte[mBuf.length * 2];
+                    System.arraycopy(mBuf, 0, buf, 0, mLength);
+                    mBuf = buf;
+                }
+                mBuf[mLength++] = (byte) b;
+                if (b == '\n') break;
+            }
+            if (mLength == 0) return false;
+            mTime = getRecordTime(new String(mBuf, 0, Math.min(mLength, 2048), "UTF-8"));
+            return true;
+        }
+
+        /**
+         * @return the time of the current record, or -1 if it has none.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return the offset of the current record in the file.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return the current record - only the first getLength() bytes
+         * are valid, and only until next() is called.
+         */
+        public byte[] getData() {
+            return mBuf;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public int getRecordSize() {
+            return mRecordSize;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
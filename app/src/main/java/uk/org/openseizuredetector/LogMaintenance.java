@@ -0,0 +1,346 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the log folder from filling the phone's storage.
+ * Daily log files (<type>_<yyyy-MM-dd><ext>, as written by LogWriter) for
+ * days that have finished are gzip compressed (the file name gets .gz
+ * added - SdWebServer and LogQuery read them as if they were not
+ * compressed).  Files older than the maximum age are then deleted, followed
+ * by the oldest files of each log type until the type is within its size
+ * limit.  Today's files are never compressed or deleted, and alarm logs
+ * (KEPT_TYPE) are only ever compressed, as they are the record of the
+ * patient's seizures.
+ * Use runInBackground() to do this on a low priority thread.
+ */
+public class LogMaintenance {
+    private String TAG = "LogMaintenance";
+    public final static String GZIP_EXT = ".gz";
+    // Records can still be written to yesterday's file for a short time
+    // after midnight, so leave files alone until they have been quiet for this long.
+    public final static long QUIET_MS = 60 * 60 * 1000L;
+    // Log type that is never deleted.
+    public final static String KEPT_TYPE = "AlarmLog";
+    private final static Pattern LOG_NAME =
+            Pattern.compile("([A-Za-z]+)_(\\d{4}-\\d{2}-\\d{2})(\\.[A-Za-z]+)(\\.gz)?");
+
+    private final File mDir;
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    private volatile boolean mCompress = true;
+    private volatile int mMaxAgeDays = 0;
+    private volatile long mMaxBytesPerType = 0;
+    private volatile long mRuns = 0;
+    private volatile long mFilesCompressed = 0;
+    private volatile long mBytesSaved = 0;
+    private volatile long mFilesDeleted = 0;
+    private volatile long mBytesDeleted = 0;
+    private volatile long mErrors = 0;
+    private volatile long mLastRunMs = 0;
+    private volatile long mLastRunDurationMs = 0;
+
+    /**
+     * A daily log file found in the log folder.
+     */
+    static class LogFile {
+        final File file;
+        final String type;
+        final String dateStr;
+        final boolean compressed;
+
+        LogFile(File file, String type, String dateStr, boolean compressed) {
+            this.file = file;
+            this.type = type;
+            this.dateStr = dateStr;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return the space used by the file and its index.
+         */
+        long getSize() {
+            return file.length() + LogIndex.indexFile(file).length();
+        }
+    }
+
+    public LogMaintenance(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @param compress - compress files for days that have finished.
+     * @param maxAgeDays - delete files older than this (0 to keep them).
+     * @param maxBytesPerType - delete the oldest files of each log type
+     *                        (e.g. SysLog) that use more than this (0 for no limit).
+     * Neither limit applies to KEPT_TYPE.
+     */
+    public void setPolicy(boolean compress, int maxAgeDays, long maxBytesPerType) {
+        mCompress = compress;
+        mMaxAgeDays = maxAgeDays;
+        mMaxBytesPerType = maxBytesPerType;
+    }
+
+    /**
+     * @return the compressed version of a log file.
+     */
+    public static File getCompressedFile(File logFile) {
+        return new File(logFile.getPath() + GZIP_EXT);
+    }
+
+    /**
+     * @return true if logFile has been compressed.
+     */
+    public static boolean isCompressed(File logFile) {
+        return logFile.getName().endsWith(GZIP_EXT);
+    }
+
+    /**
+     * Run the maintenance on a background thread, unless it is already running.
+     * @return false if it was already running.
+     */
+    public boolean runInBackground() {
+        if (!mRunning.compareAndSet(false, true)) return false;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    runNow(System.currentTimeMillis());
+                } finally {
+                    mRunning.set(false);
+                }
+            }
+        }, "OsdLogMaintenance");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    public boolean isRunning() {
+        return mRunning.get();
+    }
+
+    /**
+     * Compress and delete files as set by setPolicy(), on this thread.
+     * @param nowMs - the current time.
+     */
+    public synchronized void runNow(long nowMs) {
+        long startMs = System.currentTimeMillis();
+        SimpleDateFormat dateFmt = new SimpleDateFormat("yyyy-MM-dd", Locale.UK);
+        String today = dateFmt.format(new Date(nowMs));
+        ArrayList<LogFile> files = listFiles();
+        if (mCompress) {
+            for (int i = 0; i < files.size(); i++) {
+                LogFile lf = files.get(i);
+                if (!lf.compressed && lf.dateStr.compareTo(today) < 0
+                        && nowMs - lf.file.lastModified() > QUIET_MS) {
+                    LogFile gz = compress(lf);
+                    if (gz != null) files.set(i, gz);
+                }
+            }
+        }
+        int maxAgeDays = mMaxAgeDays;
+        if (maxAgeDays > 0) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(nowMs);
+            cal.add(Calendar.DAY_OF_MONTH, -maxAgeDays);
+            String oldest = dateFmt.format(cal.getTime());
+            for (LogFile lf : files) {
+                if (lf.dateStr.compareTo(oldest) < 0 && !lf.type.equals(KEPT_TYPE)) delete(lf);
+            }
+        }
+        long maxBytes = mMaxBytesPerType;
+        if (maxBytes > 0) {
+            HashMap<String, ArrayList<LogFile>> byType = new HashMap<String, ArrayList<LogFile>>();
+            for (LogFile lf : files) {
+                if (!lf.file.exists() || lf.type.equals(KEPT_TYPE)) continue;
+                ArrayList<LogFile> list = byType.get(lf.type);
+                if (list == null) {
+                    list = new ArrayList<LogFile>();
+                    byType.put(lf.type, list);
+                }
+                list.add(lf);
+            }
+            for (ArrayList<LogFile> list : byType.values()) {
+                // Newest first, so the oldest are the ones over the limit.
+                Collections.sort(list, new Comparator<LogFile>() {
+                    public int compare(LogFile a, LogFile b) {
+                        return b.dateStr.compareTo(a.dateStr);
+                    }
+                });
+                long total = 0;
+                for (LogFile lf : list) {
+                    total += lf.getSize();
+                    if (total > maxBytes && !lf.dateStr.equals(today)) delete(lf);
+                }
+            }
+        }
+        mRuns++;
+        mLastRunMs = nowMs;
+        mLastRunDurationMs = System.currentTimeMillis() - startMs;
+        Log.v(TAG, "runNow() - " + toString());
+    }
+
+    /**
+     * @return the daily log files in the log folder.
+     */
+    ArrayList<LogFile> listFiles() {
+        ArrayList<LogFile> files = new ArrayList<LogFile>();
+        String[] names = mDir.list();
+        if (names == null) return files;
+        for (String name : names) {
+            Matcher m = LOG_NAME.matcher(name);
+            if (m.matches()) {
+                files.add(new LogFile(new File(mDir, name), m.group(1), m.group(2),
+                        m.group(4) != null));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Compress a log file, keeping its modification time.  Its index is
+     * kept, as the offsets in it are of the uncompressed data.  If the
+     * compressed file already exists (because a record was written to the
+     * file after it was compressed) the data is added to it as another gzip
+     * member, and the index is deleted to be rebuilt when it is next used.
+     * @return the compressed file, or null if it could not be compressed.
+     */
+    private LogFile compress(LogFile lf) {
+        File src = lf.file;
+        File dest = getCompressedFile(src);
+        File tmp = new File(dest.getPath() + ".tmp");
+        long srcLength = src.length();
+        long modified = src.lastModified();
+        boolean append = dest.exists();
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 8192);
+            try {
+                copy(new FileInputStream(src), out);
+            } finally {
+                out.close();
+            }
+            long compressedLength = tmp.length();
+            if (append) {
+                FileOutputStream fos = new FileOutputStream(dest, true);
+                try {
+                    copy(new FileInputStream(tmp), fos);
+                } finally {
+                    fos.close();
+                }
+                tmp.delete();
+                LogIndex.indexFile(src).delete();
+            } else if (!tmp.renameTo(dest)) {
+                throw new IOException("Can not rename " + tmp);
+            }
+            dest.setLastModified(modified);
+            src.delete();
+            mFilesCompressed++;
+            mBytesSaved += srcLength - compressedLength;
+            return new LogFile(dest, lf.type, lf.dateStr, true);
+        } catch (IOException ex) {
+            mErrors++;
+            Log.e(TAG, "compress(" + src + ") - error " + ex.toString());
+            tmp.delete();
+            return null;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete a log file, and its index unless the uncompressed or compressed
+     * version of the same log is still there.
+     */
+    private void delete(LogFile lf) {
+        if (!lf.file.exists()) return;
+        long size = lf.file.length();
+        if (!lf.file.delete()) {
+            mErrors++;
+            Log.e(TAG, "delete() - can not delete " + lf.file);
+            return;
+        }
+        File plain = lf.compressed ? LogIndex.uncompressedFile(lf.file) : lf.file;
+        if (!plain.exists() && !getCompressedFile(plain).exists()) {
+            File idx = LogIndex.indexFile(plain);
+            size += idx.length();
+            idx.delete();
+        }
+        mFilesDeleted++;
+        mBytesDeleted += size;
+    }
+
+    /**
+     * Append the maintenance statistics to sb as a JSON object.
+     */
+    public void toJson(StringBuilder sb) {
+        sb.append("{\"runs\":").append(mRuns)
+                .append(",\"running\":").append(isRunning())
+                .append(",\"lastRunMs\":").append(mLastRunMs)
+                .append(",\"lastRunDurationMs\":").append(mLastRunDurationMs)
+                .append(",\"filesCompressed\":").append(mFilesCompressed)
+                .append(",\"bytesSaved\":").append(mBytesSaved)
+                .append(",\"filesDeleted\":").append(mFilesDeleted)
+                .append(",\"bytesDeleted\":").append(mBytesDeleted)
+                .append(",\"errors\":").append(mErrors)
+                .append('}');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        toJson(sb);
+        return sb.toString();
+    }
+}
@@ -28,7 +28,7 @@ public class LogManagerActivity extends Activity {
         lem.setDataJSON("[]");
         lem.setAlarmState(1);
 
-        mElm = new EventLogManager(this);
+        mElm = EventLogManager.getInstance(this);
         mElm.addRow(lem);
 
         mEventLogListAdapter = new EventLogListAdapter(this);
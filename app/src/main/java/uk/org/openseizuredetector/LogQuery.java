@@ -0,0 +1,199 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Reads the records of one log type (e.g. SysLog) between two times, from
+ * as many of the daily log files as the time range covers.  Each file's
+ * LogIndex is used to find the part of the file that may contain the
+ * records, so only that part is read.  Files compressed by LogMaintenance
+ * are read too.
+ * The query is an InputStream giving the records as they are stored - text
+ * lines, or for binary data logs a data log header followed by the records,
+ * so it can be passed to DataLogExporter.
+ */
+public class LogQuery extends InputStream {
+    public final static int MAX_DAYS = 31;
+
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+    private final ArrayList<Boolean> mSaveIndex = new ArrayList<Boolean>();
+    private final long mFromMs;
+    private final long mToMs;
+    private final boolean mBinary;
+    private int mFileNo = 0;
+    private LogIndex.RecordReader mReader = null;
+    private long mLastTime = -1;
+    private long mRecordsRead = 0;
+    private long mRecordsSent = 0;
+    private byte[] mChunk = null;
+    private int mChunkPos = 0;
+    private int mChunkLength = 0;
+    private boolean mFinished = false;
+
+    /**
+     * @param dir - the log directory.
+     * @param logName - the log type, e.g. "SysLog".
+     * @param ext - the log file extension, ".txt" or DataLogFormat.FILE_EXT.
+     * @param fromMs - the time of the first record wanted.
+     * @param toMs - the time of the last record wanted - at most MAX_DAYS
+     *             of files after fromMs are read.
+     */
+    public LogQuery(File dir, String logName, String ext, long fromMs, long toMs) {
+        mFromMs = fromMs;
+        mToMs = toMs;
+        mBinary = ext.equals(DataLogFormat.FILE_EXT);
+        // The files are named after the local date, as in LogWriter.
+        SimpleDateFormat dateFmt = new SimpleDateFormat("yyyy-MM-dd", Locale.UK);
+        String today = dateFmt.format(new Date());
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(fromMs);
+        String lastDate = dateFmt.format(new Date(toMs));
+        for (int i = 0; i < MAX_DAYS && fromMs <= toMs; i++) {
+            String dateStr = dateFmt.format(cal.getTime());
+            File f = new File(dir, logName + "_" + dateStr + ext);
+            if (!f.exists()) f = LogMaintenance.getCompressedFile(f);
+            if (f.exists()) {
+                mFiles.add(f);
+                // LogWriter may still be writing today's file.
+                mSaveIndex.add(dateStr.compareTo(today) < 0);
+            }
+            if (dateStr.equals(lastDate)) break;
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        if (mBinary) {
+            setChunk(DataLogFormat.header(), DataLogFormat.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * @return the log files the query will read.
+     */
+    public ArrayList<File> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * @return the number of records read from the files so far, including
+     * those outside the time range.
+     */
+    public long getRecordsRead() {
+        return mRecordsRead;
+    }
+
+    /**
+     * @return the number of records in the time range returned so far.
+     */
+    public long getRecordsSent() {
+        return mRecordsSent;
+    }
+
+    private void setChunk(byte[] data, int length) {
+        mChunk = data;
+        mChunkPos = 0;
+        mChunkLength = length;
+    }
+
+    /**
+     * Make the next record in the time range the current chunk.
+     * @return false if there are no more.
+     */
+    private boolean nextRecord() throws IOException {
+        while (true) {
+            if (mReader == null) {
+                if (mFileNo >= mFiles.size()) return false;
+                File f = mFiles.get(mFileNo);
+                LogIndex idx = LogIndex.load(f, mSaveIndex.get(mFileNo));
+                mFileNo++;
+                long length = LogIndex.getDataLength(f);
+                long start = idx.findStart(mFromMs, 0);
+                long end = idx.findEnd(mToMs, length);
+                if (start >= end) continue;
+                mReader = new LogIndex.RecordReader(f, start, end);
+                mLastTime = -1;
+            }
+            if (!mReader.next()) {
+                mReader.close();
+                mReader = null;
+                continue;
+            }
+            mRecordsRead++;
+            // Lines without a time of their own belong with the line before.
+            long time = mReader.getTime();
+            if (time < 0) time = mLastTime;
+            mLastTime = time;
+            if (time >= mFromMs && time <= mToMs) {
+                mRecordsSent++;
+                // Later data log versions may have longer records, but
+                // always start with the fields of this version.
+                setChunk(mReader.getData(),
+                        mBinary ? DataLogFormat.RECORD_SIZE : mReader.getLength());
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int total = 0;
+        while (total < len) {
+            if (mChunk == null || mChunkPos >= mChunkLength) {
+                if (mFinished || !nextRecord()) {
+                    mFinished = true;
+                    break;
+                }
+            }
+            int n = Math.min(len - total, mChunkLength - mChunkPos);
+            System.arraycopy(mChunk, mChunkPos, b, off + total, n);
+            mChunkPos += n;
+            total += n;
+        }
+        return (total == 0) ? -1 : total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFinished = true;
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the SysLog, AlarmLog and DataLog files on a single background thread.
+ * Callers just add a record to a bounded queue, so they never wait for the
+ * SD card.  The writer thread keeps one buffered file open per log type,
+ * starts a new file at midnight, and flushes the buffers every
+ * FLUSH_PERIOD_MS or FLUSH_BYTES, whichever comes first.  Records written with
+ * sync=true (alarms) are flushed and fsync'd to the card as soon as they are
+ * written so they survive the phone crashing or the battery going flat.
+ * If the queue is full, non-sync records are dropped and counted rather than
+ * blocking the caller.
+ * As well as text lines, fixed size binary records can be written with
+ * writeBinary() (used for the DataLog, see DataLogFormat).
+ * Each file has a LogIndex sidecar file, updated as records are written, so
+ * records can be found by time (see LogQuery).
+ */
+public class LogWriter {
+    private final static String TAG = "LogWriter";
+
+    public final static int QUEUE_SIZE = 1000;
+    public final static long FLUSH_PERIOD_MS = 5000;
+    public final static int FLUSH_BYTES = 8192;
+
+    private static LogWriter sInstance = null;
+
+    private final File mDir;
+    private final ArrayBlockingQueue<Record> mQueue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+    private final Map<String, LogChannel> mChannels = new HashMap<String, LogChannel>();
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile long mDroppedCount = 0;
+    private volatile long mWrittenCount = 0;
+    private volatile long mErrorCount = 0;
+
+    // Only used on the writer thread.
+    private final SimpleDateFormat mDateFmt = new SimpleDateFormat("yyyy-MM-dd", Locale.UK);
+    private final SimpleDateFormat mDateTimeFmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+    private final Date mDate = new Date();
+    private int mPendingBytes = 0;
+    private long mLastFlushTime = 0;
+
+    private final SdMetrics.Histogram mWriteDelay = SdMetrics.getInstance().histogram(
+            "osd_log_write_delay_seconds", "Time from a log record being queued to it being written.");
+    private final SdMetrics.Histogram mFlushTime = SdMetrics.getInstance().histogram(
+            "osd_log_flush_seconds", "sync=\"false\"", "Time taken to flush the log files.");
+    private final SdMetrics.Histogram mSyncTime = SdMetrics.getInstance().histogram(
+            "osd_log_flush_seconds", "sync=\"true\"", "Time taken to flush the log files.");
+
+    private static class Record {
+        final String logName;
+        final String ext;
+        final String msg;
+        final byte[] header;
+        final byte[] data;
+        final long timeMs;
+        final boolean addTimeStamp;
+        final boolean sync;
+        final CountDownLatch flushLatch;
+
+        Record(String logName, String ext, String msg, byte[] header, byte[] data,
+               long timeMs, boolean addTimeStamp, boolean sync, CountDownLatch flushLatch) {
+            this.logName = logName;
+            this.ext = ext;
+            this.msg = msg;
+            this.header = header;
+            this.data = data;
+            this.timeMs = timeMs;
+            this.addTimeStamp = addTimeStamp;
+            this.sync = sync;
+            this.flushLatch = flushLatch;
+        }
+    }
+
+    /**
+     * An open log file for one log type, the date it is for, and its index
+     * (null if the index could not be opened - the log is still written).
+     */
+    private static class LogChannel {
+        String dateStr;
+        FileOutputStream fos;
+        BufferedOutputStream out;
+        LogIndex.Writer index;
+    }
+
+    /**
+     * Return the process wide log writer, creating it to write into dir if it
+     * does not exist yet.
+     */
+    public static synchronized LogWriter getInstance(File dir) {
+        if (sInstance == null) {
+            sInstance = new LogWriter(dir);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a log writer - normally use getInstance() so that there is only
+     * one writer per log directory.
+     */
+    public LogWriter(File dir) {
+        mDir = dir;
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                writerLoop();
+            }
+        }, "OsdLogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+        SdMetrics metrics = SdMetrics.getInstance();
+        metrics.gauge("osd_log_queue_length", "Log records waiting to be written.", new SdMetrics.Gauge() {
+            public double get() {
+                return getQueueLength();
+            }
+        });
+        metrics.counter("osd_log_records_written_total", "Log records written.", new SdMetrics.Gauge() {
+            public double get() {
+                return mWrittenCount;
+            }
+        });
+        metrics.counter("osd_log_records_dropped_total", "Log records dropped because the queue was full.",
+                new SdMetrics.Gauge() {
+                    public double get() {
+                        return mDroppedCount;
+                    }
+                });
+        metrics.counter("osd_log_errors_total", "Errors writing log files.", new SdMetrics.Gauge() {
+            public double get() {
+                return mErrorCount;
+            }
+        });
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /**
+     * Queue a message to be written to <logName>_<date>.txt.
+     * @param logName - log type, e.g. "SysLog".
+     * @param msg - the text to write.
+     * @param addTimeStamp - if true the line is prefixed with the date, time
+     *                     and time in milliseconds, and ends with <br/>, as
+     *                     in the SysLog files.  Otherwise msg is written as it is.
+     * @param sync - if true the file is flushed to the card as soon as the
+     *             message is written (for alarms).
+     */
+    public void write(String logName, String msg, boolean addTimeStamp, boolean sync) {
+        queue(new Record(logName, ".txt", msg, null, null, System.currentTimeMillis(),
+                addTimeStamp, sync, null));
+    }
+
+    /**
+     * Queue a binary record to be written to <logName>_<date><ext>.
+     * @param header - written at the start of the file if the file is new (may be null).
+     * @param data - the record - it must not be changed after calling this.
+     * @param sync - if true the file is flushed to the card as soon as the
+     *             record is written.
+     */
+    public void writeBinary(String logName, String ext, byte[] header, byte[] data, boolean sync) {
+        queue(new Record(logName, ext, null, header, data, System.currentTimeMillis(),
+                false, sync, null));
+    }
+
+    private void queue(Record rec) {
+        if (rec.sync) {
+            try {
+                mQueue.put(rec);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mDroppedCount++;
+            }
+        } else if (!mQueue.offer(rec)) {
+            mDroppedCount++;
+        }
+    }
+
+    /**
+     * Wait for everything queued so far to be written and flushed to the card.
+     * @return false if this took longer than timeoutMs.
+     */
+    public boolean flush(long timeoutMs) {
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            if (!mQueue.offer(new Record(null, null, null, null, null, 0, false, true, latch),
+                    timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Flush everything, close the files and stop the writer thread.
+     */
+    public void close() {
+        flush(FLUSH_PERIOD_MS);
+        mRunning = false;
+        mThread.interrupt();
+        synchronized (LogWriter.class) {
+            if (sInstance == this) sInstance = null;
+        }
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    public int getQueueLength() {
+        return mQueue.size();
+    }
+
+    private void writerLoop() {
+        mLastFlushTime = System.currentTimeMillis();
+        while (mRunning) {
+            Record rec;
+            try {
+                rec = mQueue.poll(FLUSH_PERIOD_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (rec != null) {
+                if (rec.flushLatch == null) {
+                    writeRecord(rec);
+                }
+                // Write whatever else is already waiting before deciding
+                // whether to flush, so a burst of records is one commit.
+                Record next;
+                boolean sync = rec.sync;
+                while (!sync && (next = mQueue.peek()) != null && next.flushLatch == null) {
+                    mQueue.poll();
+                    writeRecord(next);
+                    sync = next.sync;
+                }
+                if (sync) {
+                    flushAll(true);
+                    if (rec.flushLatch != null) rec.flushLatch.countDown();
+                    continue;
+                }
+            }
+            if (mPendingBytes >= FLUSH_BYTES
+                    || (mPendingBytes > 0
+                    && System.currentTimeMillis() - mLastFlushTime >= FLUSH_PERIOD_MS)) {
+                flushAll(false);
+            }
+        }
+        flushAll(true);
+        for (LogChannel ch : mChannels.values()) {
+            closeChannel(ch);
+        }
+        mChannels.clear();
+    }
+
+    private void writeRecord(Record rec) {
+        mDate.setTime(rec.timeMs);
+        String dateStr = mDateFmt.format(mDate);
+        try {
+            LogChannel ch = getChannel(rec.logName, rec.ext, dateStr, rec.header,
+                    rec.data != null ? rec.data.length : 0);
+            byte[] bytes;
+            if (rec.data != null) {
+                bytes = rec.data;
+            } else if (rec.addTimeStamp) {
+                bytes = (mDateTimeFmt.format(mDate) + ", " + rec.timeMs + ", "
+                        + rec.msg + "<br/>\n").getBytes("UTF-8");
+            } else {
+                bytes = (rec.msg + "\n").getBytes("UTF-8");
+            }
+            addToIndex(ch, rec.timeMs, bytes.length);
+            ch.out.write(bytes);
+            mPendingBytes += bytes.length;
+            mWrittenCount++;
+            mWriteDelay.record((System.currentTimeMillis() - rec.timeMs) * 1000000L);
+        } catch (IOException ex) {
+            mErrorCount++;
+            Log.e(TAG, "writeRecord - error " + ex.toString());
+        }
+    }
+
+    /**
+     * Return the open file for logName, opening a new one if this is the
+     * first record for logName or if the date has changed.
+     * @param recordSize - size of each record in a binary file with a header,
+     *                   used to remove a partly written record.
+     */
+    private LogChannel getChannel(String logName, String ext, String dateStr,
+                                  byte[] header, int recordSize) throws IOException {
+        String key = logName + ext;
+        LogChannel ch = mChannels.get(key);
+        if (ch != null && dateStr.equals(ch.dateStr)) {
+            return ch;
+        }
+        if (ch != null) {
+            closeChannel(ch);
+        } else {
+            ch = new LogChannel();
+            mChannels.put(key, ch);
+        }
+        File f = new File(mDir, logName + "_" + dateStr + ext);
+        if (header != null && recordSize > 0) truncateToRecord(f, header.length, recordSize);
+        boolean newFile = !f.exists() || f.length() == 0;
+        ch.fos = new FileOutputStream(f, true);
+        ch.out = new BufferedOutputStream(ch.fos, FLUSH_BYTES);
+        ch.dateStr = dateStr;
+        try {
+            ch.index = LogIndex.Writer.open(f);
+        } catch (IOException ex) {
+            mErrorCount++;
+            Log.e(TAG, "getChannel - error opening index " + ex.toString());
+            ch.index = null;
+        }
+        if (newFile && header != null) {
+            ch.out.write(header);
+            if (ch.index != null) ch.index.skip(header.length);
+        }
+        return ch;
+    }
+
+    /**
+     * If the phone stopped part way through writing a record to a binary
+     * file, cut the file back to the last whole record, so that the records
+     * we append are not misaligned.  A partly written header is removed too.
+     */
+    static void truncateToRecord(File f, int headerSize, int recordSize) throws IOException {
+        long len = f.length();
+        if (len == 0) return;
+        long whole = (len < headerSize) ? 0
+                : len - (len - headerSize) % recordSize;
+        if (whole == len) return;
+        Log.v(TAG, "truncateToRecord() - removing " + (len - whole) + " bytes from " + f.getName());
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(whole);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Add a record to the channel's index - if this fails the index is
+     * dropped rather than stopping the log being written.
+     */
+    private void addToIndex(LogChannel ch, long timeMs, int length) {
+        if (ch.index == null) return;
+        try {
+            ch.index.add(timeMs, length);
+        } catch (IOException ex) {
+            mErrorCount++;
+            Log.e(TAG, "addToIndex - error " + ex.toString());
+            closeIndex(ch);
+        }
+    }
+
+    private void closeIndex(LogChannel ch) {
+        if (ch.index == null) return;
+        try {
+            ch.index.close();
+        } catch (IOException ex) {
+            mErrorCount++;
+            Log.e(TAG, "closeIndex - error " + ex.toString());
+        }
+        ch.index = null;
+    }
+
+    private void flushAll(boolean sync) {
+        long startNs = System.nanoTime();
+        for (LogChannel ch : mChannels.values()) {
+            if (ch.out == null) continue;
+            try {
+                ch.out.flush();
+                if (sync) ch.fos.getFD().sync();
+                // After the log, so index entries do not point past its end.
+                if (ch.index != null) ch.index.flush();
+            } catch (IOException ex) {
+                mErrorCount++;
+                Log.e(TAG, "flushAll - error " + ex.toString());
+            }
+        }
+        mPendingBytes = 0;
+        mLastFlushTime = System.currentTimeMillis();
+        (sync ? mSyncTime : mFlushTime).recordSince(startNs);
+    }
+
+    private void closeChannel(LogChannel ch) {
+        if (ch.out != null) {
+            try {
+                ch.out.close();
+            } catch (IOException ex) {
+                mErrorCount++;
+                Log.e(TAG, "closeChannel - error " + ex.toString());
+            }
+            ch.out = null;
+            ch.fos = null;
+        }
+        closeIndex(ch);
+    }
+}
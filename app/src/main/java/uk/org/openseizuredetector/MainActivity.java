@@ -50,9 +50,8 @@ import android.widget.Button;
 
 import java.lang.reflect.Field;
 import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
 
 //MPAndroidChart
 import com.github.mikephil.charting.charts.BarChart;
@@ -84,6 +83,49 @@ public class MainActivity extends Activity {
     private Intent sdServerIntent;
 
     final Handler serverStatusHandler = new Handler();
+
+    // Views updated by serverStatusRunnable.
+    private TextView mServerStatusTv;
+    private TextView mServerIpTv;
+    private TextView mAlarmTv;
+    private TextView mPebTimeTv;
+    private TextView mPebbleTv;
+    private TextView mAppTv;
+    private TextView mBattTv;
+    private TextView mPowerTv;
+    private TextView mSpectrumTv;
+    private ProgressBar mPowerPb;
+    private ProgressBar mSpectrumPb;
+    private int mPowerPbLevel = -1;
+    private int mSpectrumPbLevel = -1;
+    private Button mAcceptAlarmButton;
+    private Button mCancelAudibleButton;
+
+    // Spectrum chart - the entries are updated in place.
+    private BarChart mChart;
+    private BarData mBarData;
+    private BarDataSet mBarDataSet;
+    private ArrayList<BarEntry> mBarEntries;
+    private ArrayList<Integer> mBarColours;
+    private int mChartFreqMin = -1;
+    private int mChartFreqMax = -1;
+
+    // History chart - re-drawn at most every HISTORY_CHART_PERIOD_MS.
+    private final static long HISTORY_CHART_PERIOD_MS = 10000;
+    private final static long HISTORY_CHART_SPAN_MS = 3600 * 1000L;
+    private final static int HISTORY_CHART_POINTS = 120;
+    private LineChart mHistoryChart;
+    private long mHistoryChartTime = 0;
+    private SimpleDateFormat mHistoryTimeFormat = new SimpleDateFormat("HH:mm");
+
+    // Sequence numbers of the latest server change notification, and of the
+    // one the user interface shows.
+    private long mLatestSeq = 0;
+    private long mRenderedSeq = -1;
+    private boolean mUiUpdatePending = false;
+    private boolean mVisible = false;
+    private SdServer mRenderedServer = null;
+
     Messenger messenger = new Messenger(new ResponseHandler());
 
     /**
@@ -146,15 +188,24 @@ public class MainActivity extends Activity {
         });
 
 
-        // start timer to refresh user interface every second.
-        Timer uiTimer = new Timer();
-        uiTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateServerStatus();
-            }
-        }, 0, 1000);
-
+        // Look up the views we update once, rather than on every update.
+        mServerStatusTv = (TextView) findViewById(R.id.serverStatusTv);
+        mServerIpTv = (TextView) findViewById(R.id.serverIpTv);
+        mAlarmTv = (TextView) findViewById(R.id.alarmTv);
+        mPebTimeTv = (TextView) findViewById(R.id.pebTimeTv);
+        mPebbleTv = (TextView) findViewById(R.id.pebbleTv);
+        mAppTv = (TextView) findViewById(R.id.appTv);
+        mBattTv = (TextView) findViewById(R.id.battTv);
+        mPowerTv = (TextView) findViewById(R.id.powerTv);
+        mSpectrumTv = (TextView) findViewById(R.id.spectrumTv);
+        mPowerPb = (ProgressBar) findViewById(R.id.powerProgressBar);
+        mPowerPb.setMax(100);
+        mSpectrumPb = (ProgressBar) findViewById(R.id.spectrumProgressBar);
+        mSpectrumPb.setMax(100);
+        mAcceptAlarmButton = (Button) findViewById(R.id.acceptAlarmButton);
+        mCancelAudibleButton = (Button) findViewById(R.id.cancelAudibleButton);
+        initChart();
+        initHistoryChart();
     }
 
     /**
@@ -277,6 +328,12 @@ public class MainActivity extends Activity {
         String versionName = mUtil.getAppVersionName();
         tv.setText("OpenSeizureDetector Android App Version " + versionName);
 
+        // The user interface is updated when SdServer tells us its data has
+        // changed (see mSdDataListener), rather than on a timer.
+        mVisible = true;
+        mConnection.setSdDataListener(mSdDataListener);
+        forceUiUpdate();
+
         mUtil.writeToSysLogFile("MainActivity.onStart - Binding to Server");
         mUtil.bindToServer(this, mConnection);
     }
@@ -285,6 +342,9 @@ public class MainActivity extends Activity {
     protected void onStop() {
         super.onStop();
         mUtil.writeToSysLogFile("MainActivity.onStop()");
+        // We are not visible, so do not need updates.
+        mVisible = false;
+        mConnection.setSdDataListener(null);
         mUtil.unbindFromServer(this, mConnection);
     }
 
@@ -302,6 +362,7 @@ public class MainActivity extends Activity {
         } else {
             Log.v(TAG, "mOptionsMenu is null - not changing icons!");
         }
+        forceUiUpdate();
     }
 
     private void stopServer() {
@@ -316,191 +377,157 @@ public class MainActivity extends Activity {
         } else {
             Log.v(TAG, "mOptionsMenu is null, not changing icons!");
         }
+        forceUiUpdate();
     }
 
 
     /*
-     * updateServerStatus - called by the uiTimer timer periodically.
-     * requests the ui to be updated by calling serverStatusRunnable.
+     * requestUiUpdate - called when the server tells us its data has
+     * changed.  Several notifications arriving together result in a single
+     * call to serverStatusRunnable.
      */
-    private void updateServerStatus() {
+    private synchronized void requestUiUpdate(long seq) {
+        mLatestSeq = seq;
+        if (mUiUpdatePending) return;
+        mUiUpdatePending = true;
         serverStatusHandler.post(serverStatusRunnable);
     }
 
     /*
-     * serverStatusRunnable - called by serverStatus - updates the
-     * user interface to reflect the current status received from the server.
+     * forceUiUpdate - re-draw the user interface even if the server data
+     * has not changed (e.g. because we have started or stopped the server).
+     */
+    private synchronized void forceUiUpdate() {
+        mRenderedSeq = -1;
+        requestUiUpdate(mLatestSeq);
+    }
+
+    final SdDataListener mSdDataListener = new SdDataListener() {
+        public void onSdDataChanged(long seq) {
+            requestUiUpdate(seq);
+        }
+    };
+
+    /*
+     * serverStatusRunnable - updates the user interface to reflect the
+     * current status received from the server, if it has changed since we
+     * last drew it.
      */
     final Runnable serverStatusRunnable = new Runnable() {
         public void run() {
-            TextView tv;
+            long seq;
+            synchronized (MainActivity.this) {
+                mUiUpdatePending = false;
+                seq = mLatestSeq;
+                // A re-started server starts counting again, so check
+                // which server the sequence number came from.
+                if (!mVisible || (seq == mRenderedSeq
+                        && mConnection.mSdServer == mRenderedServer)) return;
+                mRenderedSeq = seq;
+                mRenderedServer = mConnection.mSdServer;
+            }
             if (mUtil.isServerRunning()) {
-                tv = (TextView) findViewById(R.id.serverStatusTv);
                 if (mConnection.mBound)
-                    tv.setText("Server Running OK\n" + mConnection.mSdServer.mSdDataSourceName + " Data Source");
-                tv.setBackgroundColor(okColour);
-                tv.setTextColor(okTextColour);
-                tv = (TextView) findViewById(R.id.serverIpTv);
-                tv.setText("Access Server at http://"
+                    setTv(mServerStatusTv, "Server Running OK\n" + mConnection.mSdServer.mSdDataSourceName + " Data Source",
+                            okColour, okTextColour);
+                else
+                    setTv(mServerStatusTv, null, okColour, okTextColour);
+                setTv(mServerIpTv, "Access Server at http://"
                         + mUtil.getLocalIpAddress()
-                        + ":8080");
-                tv.setBackgroundColor(okColour);
-                tv.setTextColor(okTextColour);
+                        + ":8080", okColour, okTextColour);
             } else {
-                tv = (TextView) findViewById(R.id.serverStatusTv);
-                tv.setText("Server Stopped");
-                tv.setBackgroundColor(warnColour);
-                tv.setTextColor(warnTextColour);
-                tv = (TextView) findViewById(R.id.serverIpTv);
-                tv.setText("--");
-                tv.setBackgroundColor(warnColour);
-                tv.setTextColor(warnTextColour);
+                setTv(mServerStatusTv, "Server Stopped", warnColour, warnTextColour);
+                setTv(mServerIpTv, "--", warnColour, warnTextColour);
             }
 
 
             try {
                 if (mConnection.mBound) {
-                    tv = (TextView) findViewById(R.id.alarmTv);
-                    if ((mConnection.mSdServer.mSdData.alarmState == 0)
-                            && !mConnection.mSdServer.mSdData.alarmStanding
-                            && !mConnection.mSdServer.mSdData.fallAlarmStanding) {
-                        tv.setText("OK");
-                        tv.setBackgroundColor(okColour);
-                        tv.setTextColor(okTextColour);
+                    SdData sdData = mConnection.mSdServer.mSdData;
+                    if ((sdData.alarmState == 0)
+                            && !sdData.alarmStanding
+                            && !sdData.fallAlarmStanding) {
+                        setTv(mAlarmTv, "OK", okColour, okTextColour);
                     }
-                    if ((mConnection.mSdServer.mSdData.alarmState == 1)
-                            && !mConnection.mSdServer.mSdData.alarmStanding
-                            && !mConnection.mSdServer.mSdData.fallAlarmStanding) {
-                        tv.setText("WARNING");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                    if ((sdData.alarmState == 1)
+                            && !sdData.alarmStanding
+                            && !sdData.fallAlarmStanding) {
+                        setTv(mAlarmTv, "WARNING", warnColour, warnTextColour);
                     }
-                    if (mConnection.mSdServer.mSdData.alarmState == 4) {
-                        tv.setText("FAULT");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                    if (sdData.alarmState == 4) {
+                        setTv(mAlarmTv, "FAULT", warnColour, warnTextColour);
                     }
-                    if (mConnection.mSdServer.mSdData.alarmState == 6) {
-                        tv.setText("MUTE");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                    if (sdData.alarmState == 6) {
+                        setTv(mAlarmTv, "MUTE", warnColour, warnTextColour);
                     }
-                    if (mConnection.mSdServer.mSdData.alarmState == 7) {
-                        tv.setText("NET FAULT");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                    if (sdData.alarmState == 7) {
+                        setTv(mAlarmTv, "NET FAULT", warnColour, warnTextColour);
                     }
-                    if (mConnection.mSdServer.mSdData.alarmStanding) {
-                        tv.setText("**ALARM**");
-                        tv.setBackgroundColor(alarmColour);
-                        tv.setTextColor(alarmTextColour);
+                    if (sdData.alarmStanding) {
+                        setTv(mAlarmTv, "**ALARM**", alarmColour, alarmTextColour);
                     }
-                    if (mConnection.mSdServer.mSdData.fallAlarmStanding) {
-                        tv.setText("**FALL**");
-                        tv.setBackgroundColor(alarmColour);
-                        tv.setTextColor(alarmTextColour);
+                    if (sdData.fallAlarmStanding) {
+                        setTv(mAlarmTv, "**FALL**", alarmColour, alarmTextColour);
                     }
-                    tv = (TextView) findViewById(R.id.pebTimeTv);
-                    tv.setText(mConnection.mSdServer.mSdData.dataTime.format("%H:%M:%S"));
-                    tv.setBackgroundColor(okColour);
-                    tv.setTextColor(okTextColour);
+                    setTv(mPebTimeTv, sdData.dataTime.format("%H:%M:%S"), okColour, okTextColour);
 
                     // Pebble Connected Phrase
-                    tv = (TextView) findViewById(R.id.pebbleTv);
-                    if (mConnection.mSdServer.mSdData.pebbleConnected) {
-                        tv.setText("Watch Connected OK");
-                        tv.setBackgroundColor(okColour);
-                        tv.setTextColor(okTextColour);
-
+                    if (sdData.pebbleConnected) {
+                        setTv(mPebbleTv, "Watch Connected OK", okColour, okTextColour);
                     } else {
-                        tv.setText("Watch NOT Connected");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                        setTv(mPebbleTv, "Watch NOT Connected", warnColour, warnTextColour);
                     }
-                    tv = (TextView) findViewById(R.id.appTv);
-                    if (mConnection.mSdServer.mSdData.pebbleAppRunning) {
-                        tv.setText("Watch App OK");
-                        tv.setBackgroundColor(okColour);
-                        tv.setTextColor(okTextColour);
+                    if (sdData.pebbleAppRunning) {
+                        setTv(mAppTv, "Watch App OK", okColour, okTextColour);
                     } else {
-                        tv.setText("Watch App NOT Running");
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
+                        setTv(mAppTv, "Watch App NOT Running", warnColour, warnTextColour);
                     }
-                    tv = (TextView) findViewById(R.id.battTv);
-                    tv.setText("Pebble Battery = " + String.valueOf(mConnection.mSdServer.mSdData.batteryPc) + "%");
-                    if (mConnection.mSdServer.mSdData.batteryPc <= 20) {
-                        tv.setBackgroundColor(alarmColour);
-                        tv.setTextColor(alarmTextColour);
-                    }
-                    if (mConnection.mSdServer.mSdData.batteryPc > 20) {
-                        tv.setBackgroundColor(warnColour);
-                        tv.setTextColor(warnTextColour);
-                    }
-                    if (mConnection.mSdServer.mSdData.batteryPc >= 40) {
-                        tv.setBackgroundColor(okColour);
-                        tv.setTextColor(okTextColour);
+                    String battStr = "Pebble Battery = " + String.valueOf(sdData.batteryPc) + "%";
+                    if (sdData.batteryPc >= 40) {
+                        setTv(mBattTv, battStr, okColour, okTextColour);
+                    } else if (sdData.batteryPc > 20) {
+                        setTv(mBattTv, battStr, warnColour, warnTextColour);
+                    } else {
+                        setTv(mBattTv, battStr, alarmColour, alarmTextColour);
                     }
                     // Set ProgressBars to show margin to alarm.
                     long powerPc;
-                    if (mConnection.mSdServer.mSdData.alarmThresh != 0)
-                        powerPc = mConnection.mSdServer.mSdData.roiPower * 100 /
-                                mConnection.mSdServer.mSdData.alarmThresh;
+                    if (sdData.alarmThresh != 0)
+                        powerPc = sdData.roiPower * 100 /
+                                sdData.alarmThresh;
                     else
                         powerPc = 0;
 
                     long specPc;
-                    if (mConnection.mSdServer.mSdData.specPower != 0 &&
-                            mConnection.mSdServer.mSdData.alarmRatioThresh != 0)
-                        specPc = 100 * (mConnection.mSdServer.mSdData.roiPower * 10 /
-                                mConnection.mSdServer.mSdData.specPower) /
-                                mConnection.mSdServer.mSdData.alarmRatioThresh;
+                    if (sdData.specPower != 0 &&
+                            sdData.alarmRatioThresh != 0)
+                        specPc = 100 * (sdData.roiPower * 10 /
+                                sdData.specPower) /
+                                sdData.alarmRatioThresh;
                     else
                         specPc = 0;
 
                     long specRatio;
-                    if (mConnection.mSdServer.mSdData.specPower != 0) {
-                        specRatio = 10 * mConnection.mSdServer.mSdData.roiPower /
-                                mConnection.mSdServer.mSdData.specPower;
+                    if (sdData.specPower != 0) {
+                        specRatio = 10 * sdData.roiPower /
+                                sdData.specPower;
                     } else
                         specRatio = 0;
 
-                    ((TextView) findViewById(R.id.powerTv)).setText("Power = " + mConnection.mSdServer.mSdData.roiPower +
-                            " (threshold = " + mConnection.mSdServer.mSdData.alarmThresh + ")");
-                    ((TextView) findViewById(R.id.spectrumTv)).setText("Spectrum Ratio = " + specRatio +
-                            " (threshold = " + mConnection.mSdServer.mSdData.alarmRatioThresh + ")");
-
-                    ProgressBar pb;
-                    Drawable pbDrawable;
-                    pb = ((ProgressBar) findViewById(R.id.powerProgressBar));
-                    pb.setMax(100);
-                    pb.setProgress((int) powerPc);
-                    pbDrawable = getResources().getDrawable(R.drawable.progress_bar_blue);
-                    if (powerPc > 75)
-                        pbDrawable = getResources().getDrawable(R.drawable.progress_bar_yellow);
-                    if (powerPc > 100)
-                        pbDrawable = getResources().getDrawable(R.drawable.progress_bar_red);
-
-                    //pb.getProgressDrawable().setColorFilter(colour, PorterDuff.Mode.SRC_IN);
-
-                    pb.setProgressDrawable(pbDrawable);
-
-                    pb = ((ProgressBar) findViewById(R.id.spectrumProgressBar));
-                    pb.setMax(100);
-                    pb.setProgress((int) specPc);
-                    pbDrawable = getResources().getDrawable(R.drawable.progress_bar_blue);
-                    if (specPc > 75)
-                        pbDrawable = getResources().getDrawable(R.drawable.progress_bar_yellow);
-                    if (specPc > 100)
-                        pbDrawable = getResources().getDrawable(R.drawable.progress_bar_red);
-                    //pb.getProgressDrawable().setColorFilter(colour, PorterDuff.Mode.SRC_IN);
-                    pb.setProgressDrawable(pbDrawable);
-                } else {   // Not bound to server
-                    tv = (TextView) findViewById(R.id.alarmTv);
-                    tv.setText("------");
-                    tv.setBackgroundColor(warnColour);
-                    tv.setTextColor(warnTextColour);
+                    setTv(mPowerTv, "Power = " + sdData.roiPower +
+                            " (threshold = " + sdData.alarmThresh + ")");
+                    setTv(mSpectrumTv, "Spectrum Ratio = " + specRatio +
+                            " (threshold = " + sdData.alarmRatioThresh + ")");
+
+                    mPowerPb.setProgress((int) powerPc);
+                    mPowerPbLevel = setProgressColour(mPowerPb, mPowerPbLevel, powerPc);
+                    mSpectrumPb.setProgress((int) specPc);
+                    mSpectrumPbLevel = setProgressColour(mSpectrumPb, mSpectrumPbLevel, specPc);
 
+                    updateChart(sdData);
+                    updateHistoryChart(mConnection.mSdServer.getSdDataHistory());
+                } else {   // Not bound to server
+                    setTv(mAlarmTv, "------", warnColour, warnTextColour);
                 }
             } catch (Exception e) {
                 Log.v(TAG, "ServerStatusRunnable: Exception - ");
@@ -508,20 +535,13 @@ public class MainActivity extends Activity {
             }
 
             // deal with latch alarms button
-            Button acceptAlarmButton = (Button) findViewById(R.id.acceptAlarmButton);
             if (mConnection.mBound)
-                if (mConnection.mSdServer.isLatchAlarms()) {
-                    acceptAlarmButton.setEnabled(true);
-                } else {
-                    acceptAlarmButton.setEnabled(false);
-                }
+                mAcceptAlarmButton.setEnabled(mConnection.mSdServer.isLatchAlarms());
 
             // Deal with Cancel Audible button
-            Button cancelAudibleButton =
-                    (Button) findViewById(R.id.cancelAudibleButton);
             if (mConnection.mBound)
                 if (mConnection.mSdServer.isAudibleCancelled()) {
-                    cancelAudibleButton.setText("Audible Alarms Cancelled "
+                    setTv(mCancelAudibleButton, "Audible Alarms Cancelled "
                             + "for "
                             + mConnection.mSdServer.
                             cancelAudibleTimeRemaining()
@@ -529,97 +549,206 @@ public class MainActivity extends Activity {
                             + " Press to re-enable");
                 } else {
                     if (mConnection.mSdServer.mAudibleAlarm) {
-                        cancelAudibleButton.setText("Cancel Audible Alarms (temporarily)");
+                        setTv(mCancelAudibleButton, "Cancel Audible Alarms (temporarily)");
                     } else {
-                        cancelAudibleButton.setText("Audible Alarms OFF");
+                        setTv(mCancelAudibleButton, "Audible Alarms OFF");
                     }
                 }
+        }
+    };
 
-            ////////////////////////////////////////////////////////////
-            // Produce graph
-            BarChart mChart = (BarChart) findViewById(R.id.chart1);
-            mChart.setDrawBarShadow(false);
-            mChart.setNoDataTextDescription("You need to provide data for the chart.");
-            mChart.setDescription("");
+    /**
+     * Set the text of a TextView, only if it has changed, to avoid
+     * unnecessary re-layouts.
+     */
+    private void setTv(TextView tv, String text) {
+        if (text != null && !text.contentEquals(tv.getText())) {
+            tv.setText(text);
+        }
+    }
 
-            // X and Y Values
-            ArrayList<String> xVals = new ArrayList<String>();
-            ArrayList<BarEntry> yBarVals = new ArrayList<BarEntry>();
-            for (int i = 0; i < 10; i++) {
-                xVals.add(i+"-"+(i+1)+" Hz");
-                if (mConnection.mSdServer != null) {
-                    yBarVals.add(new BarEntry(mConnection.mSdServer.mSdData.simpleSpec[i], i));
-                }
-                else {
-                    yBarVals.add(new BarEntry(i,i));
-                }
-            }
+    private void setTv(TextView tv, String text, int bgColour, int textColour) {
+        setTv(tv, text);
+        tv.setBackgroundColor(bgColour);
+        tv.setTextColor(textColour);
+    }
 
-            // create a dataset and give it a type
-            BarDataSet barDataSet = new BarDataSet(yBarVals,"Spectrum");
-            try {
-                int[] barColours = new int[10];
-                for (int i = 0; i < 10; i++) {
-                    if ((i < mConnection.mSdServer.mSdData.alarmFreqMin) ||
-                            (i > mConnection.mSdServer.mSdData.alarmFreqMax)) {
-                        barColours[i] = Color.GRAY;
-                    } else {
-                        barColours[i] = Color.RED;
-                    }
-                }
-                barDataSet.setColors(barColours);
-            } catch (NullPointerException e){
-                Log.v(TAG,"Null pointer exception setting bar colours");
+    /**
+     * Colour a ProgressBar blue, yellow or red depending on how close pc is
+     * to 100%.  The drawable is only replaced when the colour changes.
+     * @return the new colour level.
+     */
+    private int setProgressColour(ProgressBar pb, int oldLevel, long pc) {
+        int level = 0;
+        if (pc > 75) level = 1;
+        if (pc > 100) level = 2;
+        if (level != oldLevel) {
+            int[] drawableIds = {R.drawable.progress_bar_blue,
+                    R.drawable.progress_bar_yellow,
+                    R.drawable.progress_bar_red};
+            pb.setProgressDrawable(getResources().getDrawable(drawableIds[level]));
+        }
+        return level;
+    }
+
+    /**
+     * Create the spectrum chart.  It is created once, then updateChart()
+     * changes the values in place.
+     */
+    private void initChart() {
+        mChart = (BarChart) findViewById(R.id.chart1);
+        mChart.setDrawBarShadow(false);
+        mChart.setNoDataTextDescription("You need to provide data for the chart.");
+        mChart.setDescription("");
+
+        // X and Y Values
+        ArrayList<String> xVals = new ArrayList<String>();
+        mBarEntries = new ArrayList<BarEntry>();
+        mBarColours = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            xVals.add(i+"-"+(i+1)+" Hz");
+            mBarEntries.add(new BarEntry(0, i));
+            mBarColours.add(Color.GRAY);
+        }
+
+        // create a dataset and give it a type
+        mBarDataSet = new BarDataSet(mBarEntries,"Spectrum");
+        mBarDataSet.setColors(mBarColours);
+        mBarDataSet.setBarSpacePercent(20f);
+        mBarDataSet.setBarShadowColor(Color.WHITE);
+        mBarData = new BarData(xVals,mBarDataSet);
+        mBarData.setValueFormatter(new ValueFormatter() {
+            DecimalFormat format = new DecimalFormat("####");
+            @Override
+            public String getFormattedValue(float v) {
+                return format.format(v);
             }
-            barDataSet.setBarSpacePercent(20f);
-            barDataSet.setBarShadowColor(Color.WHITE);
-            BarData barData = new BarData(xVals,barDataSet);
-            barData.setValueFormatter(new ValueFormatter() {
-                                          @Override
-                                          public String getFormattedValue(float v) {
-                                              DecimalFormat format = new DecimalFormat("####");
-                                              return format.format(v);
-                                          }
-                                      });
-                    mChart.setData(barData);
-
-            // format the axes
-            XAxis xAxis = mChart.getXAxis();
-            xAxis.setPosition(XAxis.XAxisPosition.BOTTOM);
-            xAxis.setTextSize(10f);
-            xAxis.setDrawAxisLine(true);
-            xAxis.setDrawLabels(true);
-            // Note:  the default text colour is BLACK, so does not show up on black background!!!
-            //  This took a lot of finding....
-            xAxis.setTextColor(Color.WHITE);
-            xAxis.setDrawGridLines(false);
-
-            YAxis yAxis = mChart.getAxisLeft();
-            yAxis.setAxisMinValue(0f);
-            yAxis.setAxisMaxValue(3000f);
-            yAxis.setDrawGridLines(true);
-            yAxis.setDrawLabels(true);
-            yAxis.setTextColor(Color.WHITE);
-            yAxis.setValueFormatter(new ValueFormatter() {
-                @Override
-                public String getFormattedValue(float v) {
-                    DecimalFormat format = new DecimalFormat("#####");
-                    return format.format(v);
-                }
-            });
+        });
+        mChart.setData(mBarData);
+
+        // format the axes
+        XAxis xAxis = mChart.getXAxis();
+        xAxis.setPosition(XAxis.XAxisPosition.BOTTOM);
+        xAxis.setTextSize(10f);
+        xAxis.setDrawAxisLine(true);
+        xAxis.setDrawLabels(true);
+        // Note:  the default text colour is BLACK, so does not show up on black background!!!
+        //  This took a lot of finding....
+        xAxis.setTextColor(Color.WHITE);
+        xAxis.setDrawGridLines(false);
+
+        YAxis yAxis = mChart.getAxisLeft();
+        yAxis.setAxisMinValue(0f);
+        yAxis.setAxisMaxValue(3000f);
+        yAxis.setDrawGridLines(true);
+        yAxis.setDrawLabels(true);
+        yAxis.setTextColor(Color.WHITE);
+        yAxis.setValueFormatter(new ValueFormatter() {
+            DecimalFormat format = new DecimalFormat("#####");
+            @Override
+            public String getFormattedValue(float v) {
+                return format.format(v);
+            }
+        });
 
-            YAxis yAxis2 = mChart.getAxisRight();
-            yAxis2.setDrawGridLines(false);
+        YAxis yAxis2 = mChart.getAxisRight();
+        yAxis2.setDrawGridLines(false);
 
-            try {
-                mChart.getLegend().setEnabled(false);
-            } catch (NullPointerException e) {
-                Log.v(TAG,"Null Pointer Exception setting legend");
+        try {
+            mChart.getLegend().setEnabled(false);
+        } catch (NullPointerException e) {
+            Log.v(TAG,"Null Pointer Exception setting legend");
+        }
+    }
+
+    /**
+     * Copy the spectrum from sdData into the existing chart entries and
+     * re-draw the chart.
+     */
+    private void updateChart(SdData sdData) {
+        for (int i = 0; i < 10; i++) {
+            mBarEntries.get(i).setVal(sdData.simpleSpec[i]);
+        }
+        if (sdData.alarmFreqMin != mChartFreqMin || sdData.alarmFreqMax != mChartFreqMax) {
+            mChartFreqMin = sdData.alarmFreqMin;
+            mChartFreqMax = sdData.alarmFreqMax;
+            for (int i = 0; i < 10; i++) {
+                if ((i < sdData.alarmFreqMin) ||
+                        (i > sdData.alarmFreqMax)) {
+                    mBarColours.set(i, Color.GRAY);
+                } else {
+                    mBarColours.set(i, Color.RED);
+                }
             }
+            mBarDataSet.setColors(mBarColours);
+        }
+        mBarDataSet.notifyDataSetChanged();
+        mBarData.notifyDataChanged();
+        mChart.notifyDataSetChanged();
+        mChart.invalidate();
+    }
 
-            mChart.invalidate();
+    /**
+     * Set up the chart of the last hour of detector outputs.
+     */
+    private void initHistoryChart() {
+        mHistoryChart = (LineChart) findViewById(R.id.historyChart);
+        mHistoryChart.setDescription("");
+        mHistoryChart.setNoDataTextDescription("Waiting for data.");
+        XAxis xAxis = mHistoryChart.getXAxis();
+        xAxis.setPosition(XAxis.XAxisPosition.BOTTOM);
+        xAxis.setTextColor(Color.WHITE);
+        xAxis.setDrawGridLines(false);
+        YAxis yAxis = mHistoryChart.getAxisLeft();
+        yAxis.setAxisMinValue(0f);
+        yAxis.setTextColor(Color.WHITE);
+        yAxis.setValueFormatter(new LargeValueFormatter());
+        mHistoryChart.getAxisRight().setEnabled(false);
+        try {
+            mHistoryChart.getLegend().setTextColor(Color.WHITE);
+        } catch (NullPointerException e) {
+            Log.v(TAG,"Null Pointer Exception setting history legend");
         }
-    };
+    }
+
+    /**
+     * Re-draw the history chart, if it has not been drawn in the last
+     * HISTORY_CHART_PERIOD_MS - there is no point doing it for every data
+     * update as each point covers 30 seconds.
+     */
+    private void updateHistoryChart(SdDataHistory history) {
+        long now = System.currentTimeMillis();
+        if (now - mHistoryChartTime < HISTORY_CHART_PERIOD_MS) return;
+        mHistoryChartTime = now;
+        SdDataHistory.Series series = history.query(now - HISTORY_CHART_SPAN_MS, now,
+                HISTORY_CHART_POINTS);
+        if (series.n == 0) return;
+        ArrayList<String> xVals = new ArrayList<String>(series.n);
+        ArrayList<Entry> specVals = new ArrayList<Entry>(series.n);
+        ArrayList<Entry> roiVals = new ArrayList<Entry>(series.n);
+        ArrayList<Entry> roiMaxVals = new ArrayList<Entry>(series.n);
+        for (int i = 0; i < series.n; i++) {
+            xVals.add(mHistoryTimeFormat.format(series.time[i]));
+            specVals.add(new Entry(series.mean[SdDataHistory.FIELD_SPEC_POWER][i], i));
+            roiVals.add(new Entry(series.mean[SdDataHistory.FIELD_ROI_POWER][i], i));
+            roiMaxVals.add(new Entry(series.max[SdDataHistory.FIELD_ROI_POWER][i], i));
+        }
+        ArrayList<LineDataSet> dataSets = new ArrayList<LineDataSet>();
+        dataSets.add(historyDataSet(specVals, "Spectrum Power", Color.GRAY));
+        dataSets.add(historyDataSet(roiVals, "ROI Power", Color.YELLOW));
+        dataSets.add(historyDataSet(roiMaxVals, "ROI Power (max)", Color.RED));
+        mHistoryChart.setData(new LineData(xVals, dataSets));
+        mHistoryChart.invalidate();
+    }
+
+    private LineDataSet historyDataSet(ArrayList<Entry> vals, String label, int colour) {
+        LineDataSet dataSet = new LineDataSet(vals, label);
+        dataSet.setColor(colour);
+        dataSet.setDrawCircles(false);
+        dataSet.setDrawValues(false);
+        dataSet.setLineWidth(1.5f);
+        return dataSet;
+    }
 
 
     @Override
@@ -64,7 +64,6 @@ import android.widget.Toast;
 import org.apache.http.conn.util.InetAddressUtils;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.AbstractList;
@@ -93,6 +92,16 @@ public class OsdUtil {
     private boolean mLogAlarms = true;
     private boolean mLogSystem = true;
     private boolean mLogData = true;
+    private LogWriter mLogWriter = null;
+
+    private static final SdMetrics.Counter sSysLogMessages = SdMetrics.getInstance().counter(
+            "osd_log_messages_total", "log=\"SysLog\"", "Messages written to the log files.");
+    private static final SdMetrics.Counter sAlarmLogMessages = SdMetrics.getInstance().counter(
+            "osd_log_messages_total", "log=\"AlarmLog\"", "Messages written to the log files.");
+    private static final SdMetrics.Counter sOtherLogMessages = SdMetrics.getInstance().counter(
+            "osd_log_messages_total", "log=\"other\"", "Messages written to the log files.");
+    private static final SdMetrics.Histogram sLogCallTime = SdMetrics.getInstance().histogram(
+            "osd_log_call_seconds", "Time callers of writeToLogFile() wait for it.");
 
     public OsdUtil(Context context, Handler handler) {
         mContext = context;
@@ -310,37 +319,37 @@ public class OsdUtil {
 
 
     /**
-     * Write data to SD card - writes to data log file unless alarm=true,
-     * in which case writes to alarm log file.
+     * Write a time stamped message to the log file fname_<date>.txt.
+     * The message is queued and written by the LogWriter thread, so this
+     * does not wait for the SD card.  Alarm log messages are flushed to the
+     * card straight away.
      */
     public void writeToLogFile(String fname, String msgStr) {
-        Log.v(TAG, "writeToLogFile(" + fname + "," + msgStr + ")");
-        //showToast("Logging " + msgStr);
-        Time tnow = new Time(Time.getCurrentTimezone());
-        tnow.setToNow();
-        String dateStr = tnow.format("%Y-%m-%d");
-
-        fname = fname + "_" + dateStr + ".txt";
-        // Open output directory on SD Card.
+        if (msgStr == null) return;
+        long startNs = System.nanoTime();
         if (isExternalStorageWritable()) {
-            try {
-                FileWriter of = new FileWriter(getDataStorageDir().toString()
-                        + "/" + fname, true);
-                if (msgStr != null) {
-                    String dateTimeStr = tnow.format("%Y-%m-%d %H:%M:%S");
-                    Log.v(TAG, "writing msgStr");
-                    of.append(dateTimeStr+", "
-                            +tnow.toMillis(true)+", "
-                            +msgStr+"<br/>\n");
-                }
-                of.close();
-            } catch (Exception ex) {
-                Log.e(TAG, "writeToLogFile - error " + ex.toString());
-                showToast("ERROR Writing to Log File");
-            }
+            getLogWriter().write(fname, msgStr, true, ALARMLOG.equals(fname));
         } else {
             Log.e(TAG, "ERROR - Can not Write to External Folder");
         }
+        if (SYSLOG.equals(fname)) {
+            sSysLogMessages.inc();
+        } else if (ALARMLOG.equals(fname)) {
+            sAlarmLogMessages.inc();
+        } else {
+            sOtherLogMessages.inc();
+        }
+        sLogCallTime.recordSince(startNs);
+    }
+
+    /**
+     * @return the process wide LogWriter that writes the log files.
+     */
+    public LogWriter getLogWriter() {
+        if (mLogWriter == null) {
+            mLogWriter = LogWriter.getInstance(getDataStorageDir());
+        }
+        return mLogWriter;
     }
 
     /* Checks if external storage is available for read and write */
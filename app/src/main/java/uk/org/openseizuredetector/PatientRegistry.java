@@ -0,0 +1,274 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The patients being monitored by SdServer in addition to the one using its
+ * own data source, so that one phone can watch several people (e.g. in a
+ * care home).
+ *
+ * Each Patient is an SdDataReceiver with its own SdData snapshot, alarm
+ * state machine and history.  The data sources for the patients share the
+ * small thread pool returned by getPool(), so the number of threads does not
+ * grow with the number of patients.  Each source delivers its data on the
+ * pool thread that fetched it and processes it before fetching more, so the
+ * data for one patient is never processed by two threads at once.
+ *
+ * Memory per patient is bounded - see HISTORY_CAPACITY.
+ */
+public class PatientRegistry {
+    public static final int DEFAULT_MAX_PATIENTS = 32;
+    public static final int DEFAULT_POOL_THREADS = 4;
+    // One hour of raw data at one update every 2 seconds - the history
+    // also keeps 24 hours of aggregated data.
+    public static final int HISTORY_CAPACITY = 3600 / 2;
+
+    private String TAG = "PatientRegistry";
+    private final int mMaxPatients;
+    private final LinkedHashMap<String, Patient> mPatients = new LinkedHashMap<String, Patient>();
+    private final ScheduledThreadPoolExecutor mPool;
+
+    public PatientRegistry(int maxPatients, int poolThreads) {
+        mMaxPatients = maxPatients;
+        mPool = new ScheduledThreadPoolExecutor(poolThreads, new ThreadFactory() {
+            private int mCount = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PatientRegistry #" + (++mCount));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the thread pool shared by the patients' data sources.
+     */
+    public ScheduledThreadPoolExecutor getPool() {
+        return mPool;
+    }
+
+    /**
+     * Add a patient.
+     * @param alarmStateMachine - used to process the patient's alarms.
+     * @throws IllegalStateException if there are already getMaxPatients().
+     */
+    public synchronized Patient addPatient(String id, String name, AlarmStateMachine alarmStateMachine) {
+        if (mPatients.size() >= mMaxPatients) {
+            throw new IllegalStateException("Too many patients - maximum is " + mMaxPatients);
+        }
+        if (mPatients.containsKey(id)) {
+            throw new IllegalArgumentException("Patient " + id + " already exists");
+        }
+        Log.v(TAG, "addPatient(" + id + ", " + name + ")");
+        Patient p = new Patient(id, name, alarmStateMachine);
+        mPatients.put(id, p);
+        return p;
+    }
+
+    public synchronized Patient removePatient(String id) {
+        return mPatients.remove(id);
+    }
+
+    public synchronized Patient getPatient(String id) {
+        return mPatients.get(id);
+    }
+
+    public synchronized List<Patient> getPatients() {
+        return new ArrayList<Patient>(mPatients.values());
+    }
+
+    public synchronized int size() {
+        return mPatients.size();
+    }
+
+    public int getMaxPatients() {
+        return mMaxPatients;
+    }
+
+    /**
+     * Stop the pool - the data sources should be stopped first.
+     */
+    public void shutdown() {
+        mPool.shutdownNow();
+        synchronized (this) {
+            mPatients.clear();
+        }
+    }
+
+    /**
+     * Append a summary of every patient to sb as a JSON array, for a
+     * dashboard.
+     */
+    public void dashboardToJson(StringBuilder sb) {
+        long nowMs = System.currentTimeMillis();
+        sb.append('[');
+        boolean first = true;
+        for (Patient p : getPatients()) {
+            if (!first) sb.append(',');
+            first = false;
+            p.summaryToJson(sb, nowMs);
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Parse a list of patients in the form "name=address,name=address".
+     * Entries without a name are given their address as the name.
+     * @return a list of {name, address} pairs.
+     */
+    public static List<String[]> parsePatientList(String list) {
+        ArrayList<String[]> patients = new ArrayList<String[]>();
+        if (list == null) return patients;
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) continue;
+            int eq = entry.lastIndexOf('=');
+            String address = entry.substring(eq + 1).trim();
+            String name = (eq > 0) ? entry.substring(0, eq).trim() : address;
+            if (address.length() == 0) continue;
+            patients.add(new String[]{name, address});
+        }
+        return patients;
+    }
+
+    /**
+     * One patient - receives data from the patient's data source.
+     */
+    public static class Patient implements SdDataReceiver {
+        private final String mId;
+        private final String mName;
+        private final AlarmStateMachine mAlarmStateMachine;
+        private final SdDataHistory mHistory = new SdDataHistory(HISTORY_CAPACITY);
+        private final SdDataSerializer mSerializer = new SdDataSerializer();
+        private final LatencyHistogram mProcessTime;
+        private volatile SdDataSnapshot mSnapshot = null;
+        private volatile long mLastUpdateMs = 0;
+        private long mUpdateCount = 0;
+        private long mFaultCount = 0;
+        private long mSnapshotVersion = 0;
+
+        Patient(String id, String name, AlarmStateMachine alarmStateMachine) {
+            mId = id;
+            mName = name;
+            mAlarmStateMachine = alarmStateMachine;
+            mProcessTime = new LatencyHistogram("process");
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public AlarmStateMachine getAlarmStateMachine() {
+            return mAlarmStateMachine;
+        }
+
+        public SdDataHistory getHistory() {
+            return mHistory;
+        }
+
+        /**
+         * @return how long each update took to process.
+         */
+        public LatencyHistogram getProcessTime() {
+            return mProcessTime;
+        }
+
+        /**
+         * @return the latest data, or null if none has been received.
+         */
+        public SdDataSnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        public synchronized long getUpdateCount() {
+            return mUpdateCount;
+        }
+
+        public long getLastUpdateMs() {
+            return mLastUpdateMs;
+        }
+
+        public synchronized void onSdDataReceived(SdData sdData) {
+            long receivedNs = System.nanoTime();
+            mAlarmStateMachine.process(sdData, receivedNs);
+            update(sdData, receivedNs);
+        }
+
+        public synchronized void onSdDataFault(SdData sdData) {
+            long receivedNs = System.nanoTime();
+            mFaultCount++;
+            mAlarmStateMachine.processFault(sdData, receivedNs);
+            update(sdData, receivedNs);
+        }
+
+        public synchronized void onSdDataStatus(SdData sdData) {
+            mSnapshot = SdDataSnapshot.create(sdData, ++mSnapshotVersion, mSerializer);
+        }
+
+        private void update(SdData sdData, long receivedNs) {
+            long nowMs = System.currentTimeMillis();
+            mUpdateCount++;
+            mHistory.add(nowMs, sdData);
+            mSnapshot = SdDataSnapshot.create(sdData, ++mSnapshotVersion, mSerializer);
+            mLastUpdateMs = nowMs;
+            mProcessTime.record(System.nanoTime() - receivedNs);
+        }
+
+        /**
+         * Release a latched alarm.
+         */
+        public void acceptAlarm() {
+            mAlarmStateMachine.acceptAlarm();
+        }
+
+        synchronized void summaryToJson(StringBuilder sb, long nowMs) {
+            sb.append("{\"id\":\"").append(mId).append('"')
+                    .append(",\"name\":\"").append(mName.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"')
+                    .append(",\"state\":\"")
+                    .append(AlarmStateMachine.STATE_NAMES[mAlarmStateMachine.getState()]).append('"')
+                    .append(",\"latched\":").append(mAlarmStateMachine.isLatched())
+                    .append(",\"alarmState\":")
+                    .append(mSnapshot == null ? -1 : mSnapshot.getAlarmState())
+                    .append(",\"updates\":").append(mUpdateCount)
+                    .append(",\"faults\":").append(mFaultCount)
+                    .append(",\"lastUpdateMs\":").append(mLastUpdateMs)
+                    .append(",\"ageMs\":").append(mLastUpdateMs == 0 ? -1 : nowMs - mLastUpdateMs)
+                    .append('}');
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * Keeps track of the quality of the bluetooth link to the Pebble watch app.
+ *  - Watch apps that send KEY_MSG_SEQ number every message, so we can count
+ *    messages that were lost, re-sent (duplicates) or arrived out of order.
+ *    A large jump, or a step back that is not explained by the watch time,
+ *    means the watch app was restarted.  Without KEY_WATCH_TIME only a
+ *    repeat of the last sequence number counts as a duplicate.
+ *  - Inter-arrival jitter is estimated as in RFC 3550, using the watch clock
+ *    (KEY_WATCH_TIME) if it is sent, or the expected period between results
+ *    messages for older watch apps.
+ *  - The age of the most recent results message.
+ * These are combined into a quality score (0-100) so that SdDataSourcePebble
+ * can tell a poor radio link apart from a watch app that has stopped sending.
+ */
+public class PebbleLinkMonitor {
+    public final static int MSG_OK = 0;
+    public final static int MSG_NO_SEQ = 1;     // older watch app - no sequence number.
+    public final static int MSG_GAP = 2;        // in order, but some messages were lost.
+    public final static int MSG_LATE = 3;       // arrived after a later message.
+    public final static int MSG_DUPLICATE = 4;  // already received - do not process again.
+    public final static int MSG_RESET = 5;      // watch app restarted its sequence.
+
+    public final static int MIN_MESSAGES = 8;   // messages needed before the link is judged.
+    public final static int POOR_SCORE = 50;
+    private final static int REORDER_WINDOW = 64;
+    private final static int MAX_GAP = 1000;
+    private final static double LOSS_ALPHA = 1.0 / 32;
+    private final static double JITTER_GAIN = 1.0 / 16;
+
+    private long mExpectedPeriodMs;
+    private boolean mHaveSeq = false;
+    private long mLastSeq;
+    private long mSeqWindow;            // bit i set if message mLastSeq-i has been received.
+    private long mLastArrivalMs = 0;
+    private long mLastWatchTimeMs = -1;
+    private long mLastResultsMs = 0;
+    private boolean mHaveWatchTime = false;
+    private double mLossRate = 0;
+    private double mJitterMs = 0;
+    private boolean mConnected = false;
+    private long mLastDisconnectMs = 0;
+
+    private long mMessages = 0;
+    private long mLost = 0;
+    private long mDuplicates = 0;
+    private long mLate = 0;
+    private long mResets = 0;
+    private long mDisconnects = 0;
+
+    public PebbleLinkMonitor(long expectedPeriodMs) {
+        setExpectedPeriod(expectedPeriodMs);
+    }
+
+    /**
+     * Set the period (ms) at which the watch sends results messages.
+     */
+    public synchronized void setExpectedPeriod(long expectedPeriodMs) {
+        mExpectedPeriodMs = Math.max(expectedPeriodMs, 1);
+    }
+
+    /**
+     * Record a message from the watch.
+     * @param seq the message sequence number (uint32), or null for older watch apps.
+     * @param watchTimeMs the watch clock (ms, uint32) when the message was sent, or null.
+     * @param nowMs the time the message was received.
+     * @return one of the MSG_ values.
+     */
+    public synchronized int onMessage(Long seq, Long watchTimeMs, long nowMs) {
+        int result;
+        if (seq == null) {
+            result = MSG_NO_SEQ;
+        } else {
+            long s = seq & 0xFFFFFFFFL;
+            int diff = (int) (s - mLastSeq);
+            // Messages re-sent by the watch carry the same watch time, so a
+            // step back in the sequence with a newer (or no) watch time means
+            // the watch app has restarted its sequence, not a duplicate.
+            boolean olderWatchTime = watchTimeMs != null && mLastWatchTimeMs >= 0
+                    && (int) ((watchTimeMs & 0xFFFFFFFFL) - mLastWatchTimeMs) < 0;
+            boolean sameWatchTime = watchTimeMs == null ? mLastWatchTimeMs < 0
+                    : (watchTimeMs & 0xFFFFFFFFL) == mLastWatchTimeMs;
+            if (!mHaveSeq || diff > MAX_GAP || diff <= -REORDER_WINDOW
+                    || (diff == 0 && !sameWatchTime) || (diff < 0 && !olderWatchTime)) {
+                if (mHaveSeq) mResets++;
+                mHaveSeq = true;
+                mLastSeq = s;
+                mSeqWindow = 1;
+                mLastWatchTimeMs = -1;
+                result = MSG_RESET;
+            } else if (diff == 0) {
+                mDuplicates++;
+                return MSG_DUPLICATE;
+            } else if (diff < 0) {
+                long bit = 1L << -diff;
+                if ((mSeqWindow & bit) != 0) {
+                    mDuplicates++;
+                    return MSG_DUPLICATE;
+                }
+                // We counted it as lost when the later message arrived.
+                mSeqWindow |= bit;
+                mLate++;
+                if (mLost > 0) mLost--;
+                mLossRate = Math.max(0, mLossRate - LOSS_ALPHA * Math.pow(1 - LOSS_ALPHA, -diff));
+                mMessages++;
+                return MSG_LATE;
+            } else {
+                int lost = diff - 1;
+                mLost += lost;
+                // Equivalent to an EWMA sample of 1 for each lost message and 0 for this one.
+                mLossRate = 1 - (1 - mLossRate) * Math.pow(1 - LOSS_ALPHA, lost);
+                mLossRate *= 1 - LOSS_ALPHA;
+                mSeqWindow = diff >= REORDER_WINDOW ? 1 : (mSeqWindow << diff) | 1;
+                mLastSeq = s;
+                result = lost > 0 ? MSG_GAP : MSG_OK;
+            }
+        }
+        mMessages++;
+        if (watchTimeMs != null) {
+            long w = watchTimeMs & 0xFFFFFFFFL;
+            if (mLastWatchTimeMs >= 0 && mLastArrivalMs > 0) {
+                long sent = (w - mLastWatchTimeMs) & 0xFFFFFFFFL;
+                updateJitter((nowMs - mLastArrivalMs) - sent);
+            }
+            mLastWatchTimeMs = w;
+            mHaveWatchTime = true;
+        }
+        mLastArrivalMs = nowMs;
+        return result;
+    }
+
+    /**
+     * Record the arrival of a results message (after onMessage()).
+     */
+    public synchronized void onResults(long nowMs) {
+        // Without the watch clock, use the deviation from the expected period.
+        if (!mHaveWatchTime && mLastResultsMs > 0) {
+            long interval = nowMs - mLastResultsMs;
+            long periods = Math.max(1, Math.round((double) interval / mExpectedPeriodMs));
+            updateJitter(interval - periods * mExpectedPeriodMs);
+        }
+        mLastResultsMs = nowMs;
+    }
+
+    /**
+     * Record whether the watch is connected to the phone.
+     */
+    public synchronized void onConnectionState(boolean connected, long nowMs) {
+        if (mConnected && !connected) {
+            mDisconnects++;
+            mLastDisconnectMs = nowMs;
+        }
+        mConnected = connected;
+    }
+
+    private void updateJitter(long deviationMs) {
+        mJitterMs += (Math.abs(deviationMs) - mJitterMs) * JITTER_GAIN;
+    }
+
+    /**
+     * @return the estimated proportion of messages lost (%).
+     */
+    public synchronized double getLossPc() {
+        return 100 * mLossRate;
+    }
+
+    public synchronized double getJitterMs() {
+        return mJitterMs;
+    }
+
+    /**
+     * @return the time since the last results message (ms), or 0 if there has not been one.
+     */
+    public synchronized long getDataAgeMs(long nowMs) {
+        return mLastResultsMs == 0 ? 0 : Math.max(0, nowMs - mLastResultsMs);
+    }
+
+    /**
+     * @return the time since any message was received (ms), or 0 if there has not been one.
+     */
+    public synchronized long getMessageAgeMs(long nowMs) {
+        return mLastArrivalMs == 0 ? 0 : Math.max(0, nowMs - mLastArrivalMs);
+    }
+
+    /**
+     * @return a link quality score from 0 (unusable) to 100 (perfect), reduced by
+     * message loss, by jitter relative to the expected period and by data older
+     * than two periods.
+     */
+    public synchronized int getQuality(long nowMs) {
+        double q = 1 - mLossRate;
+        q *= 1 - Math.min(1, mJitterMs / mExpectedPeriodMs);
+        long age = getDataAgeMs(nowMs);
+        if (age > 2 * mExpectedPeriodMs) q *= 2.0 * mExpectedPeriodMs / age;
+        return (int) Math.round(100 * q);
+    }
+
+    /**
+     * @return true if we have seen enough messages to say the radio link is
+     * losing or delaying them.  This ignores the age of the data, so it stays
+     * false if the watch app simply stops sending.
+     */
+    public synchronized boolean isLinkPoor() {
+        if (mMessages < MIN_MESSAGES) return false;
+        double q = (1 - mLossRate) * (1 - Math.min(1, mJitterMs / mExpectedPeriodMs));
+        return 100 * q < POOR_SCORE;
+    }
+
+    /**
+     * @return true if the watch is disconnected, or has been disconnected within windowMs.
+     */
+    public synchronized boolean isConnectionUnstable(long nowMs, long windowMs) {
+        return !mConnected || (mLastDisconnectMs > 0 && nowMs - mLastDisconnectMs < windowMs);
+    }
+
+    public synchronized boolean hasSequenceNumbers() {
+        return mHaveSeq;
+    }
+
+    public synchronized long getMessages() {
+        return mMessages;
+    }
+
+    public synchronized long getLost() {
+        return mLost;
+    }
+
+    public synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    public synchronized long getLate() {
+        return mLate;
+    }
+
+    public synchronized long getResets() {
+        return mResets;
+    }
+
+    public synchronized long getDisconnects() {
+        return mDisconnects;
+    }
+}
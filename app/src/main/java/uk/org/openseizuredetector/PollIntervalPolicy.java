@@ -0,0 +1,82 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * Decides how long SdDataSourceNetwork waits between requests to the server.
+ *  - Normally the configured data update period is used.
+ *  - While the server is reporting a WARNING or ALARM we poll twice as often
+ *    (but not faster than MIN_PERIOD_MS) so alarm changes are seen sooner.
+ *  - If requests fail, the period is doubled for each consecutive failure,
+ *    up to MAX_BACKOFF_MS, so we do not keep the radio busy trying to reach
+ *    a server that is not there.  The first success resets it.
+ */
+public class PollIntervalPolicy {
+    public final static long MIN_PERIOD_MS = 500;
+    public final static long MAX_BACKOFF_MS = 30000;
+
+    private long mBasePeriodMs;
+    private int mConsecutiveFailures = 0;
+    private long mLastAlarmState = 0;
+
+    public PollIntervalPolicy(long basePeriodMs) {
+        setBasePeriod(basePeriodMs);
+    }
+
+    public void setBasePeriod(long basePeriodMs) {
+        mBasePeriodMs = Math.max(basePeriodMs, MIN_PERIOD_MS);
+    }
+
+    public void onSuccess(long alarmState) {
+        mConsecutiveFailures = 0;
+        mLastAlarmState = alarmState;
+    }
+
+    public void onFailure() {
+        mConsecutiveFailures++;
+    }
+
+    public int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    /**
+     * @return the time to wait before the next request (ms).
+     */
+    public long getNextDelayMs() {
+        if (mConsecutiveFailures > 0) {
+            long delay = mBasePeriodMs;
+            for (int i = 1; i < mConsecutiveFailures && delay < MAX_BACKOFF_MS; i++) {
+                delay *= 2;
+            }
+            return Math.min(delay, Math.max(MAX_BACKOFF_MS, mBasePeriodMs));
+        }
+        // WARNING (1), ALARM (2), FALL (3) or manual alarm (5).
+        if (mLastAlarmState == 1 || mLastAlarmState == 2
+                || mLastAlarmState == 3 || mLastAlarmState == 5) {
+            return Math.max(mBasePeriodMs / 2, MIN_PERIOD_MS);
+        }
+        return mBasePeriodMs;
+    }
+}
@@ -202,6 +202,16 @@ public class PrefActivity extends PreferenceActivity implements SharedPreference
         }
     }
 
+    public static class SimulatorDatasourcePrefsFragment extends PreferenceFragment {
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+
+            // Load the preferences from an XML resource
+            addPreferencesFromResource(R.xml.simulator_datasource_prefs);
+        }
+    }
+
     //public static class CameraPrefsFragment extends PreferenceFragment {
     //    @Override
     //    public void onCreate(Bundle savedInstanceState) {
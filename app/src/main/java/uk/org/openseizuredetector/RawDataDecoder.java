@@ -0,0 +1,94 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the KEY_RAW_DATA payload of DATA_TYPE_RAW messages from the watch
+ * into a re-used AccelSampleBatch.
+ * Two payload formats are understood, told apart by the number of bytes per
+ * sample:
+ *  - 4 bytes - accelerometer magnitude as a little endian int32 (the
+ *    current watch app).
+ *  - 15 bytes - x, y, z as little endian int16, a vibration flag and a
+ *    64 bit timestamp (the AccelData format).
+ * The payload is read through a little endian ByteBuffer view of the
+ * message bytes, so nothing is copied or allocated per sample.
+ */
+public class RawDataDecoder {
+    public final static int BYTES_PER_MAG_SAMPLE = 4;
+    public final static int BYTES_PER_XYZ_SAMPLE = 15;
+
+    private final AccelSampleBatch mBatch;
+
+    public RawDataDecoder(int initialCapacity) {
+        mBatch = new AccelSampleBatch(initialCapacity);
+    }
+
+    /**
+     * Decode a raw data payload.
+     * @param data - the KEY_RAW_DATA byte array.
+     * @param numSamples - the KEY_NUM_RAW_DATA value, or a value <= 0 if it
+     *                   was not sent, in which case the magnitude format is assumed.
+     * @return the decoded batch - this is the same object on every call, so it
+     * is only valid until the next call to decode().
+     */
+    public AccelSampleBatch decode(byte[] data, long numSamples) {
+        int len = (data == null) ? 0 : data.length;
+        int bytesPerSample = BYTES_PER_MAG_SAMPLE;
+        if (numSamples > 0 && len == numSamples * BYTES_PER_XYZ_SAMPLE) {
+            bytesPerSample = BYTES_PER_XYZ_SAMPLE;
+        }
+        int n = len / bytesPerSample;
+        mBatch.reset(n);
+        if (n == 0) return mBatch;
+
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int[] mag = mBatch.mag;
+        if (bytesPerSample == BYTES_PER_MAG_SAMPLE) {
+            for (int i = 0; i < n; i++) {
+                mag[i] = buf.getInt(i * BYTES_PER_MAG_SAMPLE);
+            }
+        } else {
+            int[] x = mBatch.x;
+            int[] y = mBatch.y;
+            int[] z = mBatch.z;
+            for (int i = 0; i < n; i++) {
+                int p = i * BYTES_PER_XYZ_SAMPLE;
+                int xv = buf.getShort(p);
+                int yv = buf.getShort(p + 2);
+                int zv = buf.getShort(p + 4);
+                x[i] = xv;
+                y[i] = yv;
+                z[i] = zv;
+                mag[i] = (int) Math.sqrt(xv * xv + yv * yv + zv * zv);
+            }
+            mBatch.hasXyz = true;
+        }
+        mBatch.size = n;
+        return mBatch;
+    }
+}
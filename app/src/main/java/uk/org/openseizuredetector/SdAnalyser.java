@@ -0,0 +1,292 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+/**
+ * Phone based implementation of the pebble_sd FFT seizure detection algorithm.
+ * Used when the watch is in SD_MODE_RAW and sends us accelerometer magnitudes
+ * rather than analysis results.
+ * Samples are added to a sliding window with addSample(), and analyse() runs
+ * the FFT over the most recent window and populates an SdData object with the
+ * same values the watch would have sent as DATA_TYPE_RESULTS.
+ * All of the work buffers and twiddle tables are allocated in the constructor,
+ * so analyse() does not create any garbage and can be run continuously.
+ */
+public class SdAnalyser {
+    private final static String TAG = "SdAnalyser";
+
+    public final static int NSAMP_MAX = 512;   // Largest fft we support (same as the watch).
+    public final static int NSPEC = 10;        // Number of 1 Hz bins in simpleSpec.
+
+    private final static int ALARM_STATE_OK = 0;
+    private final static int ALARM_STATE_WARNING = 1;
+    private final static int ALARM_STATE_ALARM = 2;
+
+    // Analysis settings
+    private int mSampleFreq = 25;
+    private int mAnalysisPeriod = 5;
+    private int mAlarmFreqMin = 3;
+    private int mAlarmFreqMax = 10;
+    private int mFreqCutoff = 12;
+    private int mWarnTime = 5;
+    private int mAlarmTime = 10;
+    private int mAlarmThresh = 100;
+    private int mAlarmRatioThresh = 50;
+
+    // Derived from the settings by configure()
+    private int mNSamp;
+    private int mTwiddleStride;
+    private int mNMin;
+    private int mNMax;
+    private int mNFreqCutoff;
+
+    // Sliding window of accelerometer magnitudes.
+    private final double[] mWindow = new double[NSAMP_MAX];
+    private int mWindowPos = 0;
+    private int mWindowCount = 0;
+
+    // FFT work buffers and pre-calculated tables.
+    private final double[] mRe = new double[NSAMP_MAX];
+    private final double[] mIm = new double[NSAMP_MAX];
+    private final double[] mCos = new double[NSAMP_MAX / 2];
+    private final double[] mSin = new double[NSAMP_MAX / 2];
+    private final int[] mBitRev = new int[NSAMP_MAX];
+    private final double[] mSpec = new double[NSAMP_MAX / 2];
+
+    // Alarm state carried between analyses.
+    private int mAlarmCount = 0;
+
+    public SdAnalyser() {
+        for (int i = 0; i < NSAMP_MAX / 2; i++) {
+            mCos[i] = Math.cos(2.0 * Math.PI * i / NSAMP_MAX);
+            mSin[i] = -Math.sin(2.0 * Math.PI * i / NSAMP_MAX);
+        }
+        configure();
+    }
+
+    /**
+     * Set the analysis parameters - these have the same meaning as the
+     * equivalent watch app settings.
+     */
+    public void setSettings(int sampleFreq, int analysisPeriod,
+                            int alarmFreqMin, int alarmFreqMax,
+                            int warnTime, int alarmTime,
+                            int alarmThresh, int alarmRatioThresh) {
+        mSampleFreq = sampleFreq > 0 ? sampleFreq : 25;
+        mAnalysisPeriod = analysisPeriod > 0 ? analysisPeriod : 5;
+        mAlarmFreqMin = alarmFreqMin;
+        mAlarmFreqMax = alarmFreqMax;
+        mWarnTime = warnTime;
+        mAlarmTime = alarmTime;
+        mAlarmThresh = alarmThresh;
+        mAlarmRatioThresh = alarmRatioThresh;
+        configure();
+    }
+
+    /**
+     * Work out the fft length and bin numbers from the current settings.
+     * The fft length is the number of samples in one analysis period, rounded
+     * up to a power of two and limited to NSAMP_MAX, as on the watch.
+     */
+    private void configure() {
+        int nReq = mSampleFreq * mAnalysisPeriod;
+        int nSamp = 2;
+        while (nSamp < nReq && nSamp < NSAMP_MAX) nSamp *= 2;
+        mNSamp = nSamp;
+        mTwiddleStride = NSAMP_MAX / mNSamp;
+
+        int bits = Integer.numberOfTrailingZeros(mNSamp);
+        for (int i = 0; i < mNSamp; i++) {
+            mBitRev[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        // As on the watch, the region of interest is bins nMin to nMax-1.
+        mNMin = freqToBin(mAlarmFreqMin);
+        mNMax = freqToBin(mAlarmFreqMax);
+        mNFreqCutoff = freqToBin(mFreqCutoff);
+        if (mNFreqCutoff >= mNSamp / 2) mNFreqCutoff = mNSamp / 2 - 1;
+        if (mNMax > mNFreqCutoff + 1) mNMax = mNFreqCutoff + 1;
+        if (mNMin < 1) mNMin = 1;
+        if (mNMin >= mNMax) mNMin = mNMax - 1;
+        Log.v(TAG, "configure() - nSamp=" + mNSamp + " nMin=" + mNMin + " nMax=" + mNMax);
+    }
+
+    private int freqToBin(int freq) {
+        return freq * mNSamp / mSampleFreq;
+    }
+
+    public int getNSamp() {
+        return mNSamp;
+    }
+
+    public int getNMin() {
+        return mNMin;
+    }
+
+    public int getNMax() {
+        return mNMax;
+    }
+
+    /**
+     * Add a single accelerometer magnitude sample to the analysis window,
+     * overwriting the oldest sample once the window is full.
+     */
+    public void addSample(double val) {
+        mWindow[mWindowPos] = val;
+        mWindowPos = (mWindowPos + 1) % NSAMP_MAX;
+        if (mWindowCount < NSAMP_MAX) mWindowCount++;
+    }
+
+    /**
+     * @return the number of samples available for analysis.
+     */
+    public int getSampleCount() {
+        return mWindowCount;
+    }
+
+    public void reset() {
+        mWindowPos = 0;
+        mWindowCount = 0;
+        mAlarmCount = 0;
+    }
+
+    /**
+     * Analyse the most recent window of data and write the results into sdData.
+     * @param sdData - SdData object to receive the results.
+     * @param elapsedSec - time since the previous analysis (used for the
+     *                   warning and alarm timers).
+     * @return false if we do not yet have enough data to analyse.
+     */
+    public boolean analyse(SdData sdData, int elapsedSec) {
+        if (mWindowCount < mNSamp) {
+            return false;
+        }
+        // Copy the most recent mNSamp samples into the fft input in
+        // bit reversed order, ready for the in-place fft.
+        int start = mWindowPos - mNSamp;
+        if (start < 0) start += NSAMP_MAX;
+        for (int i = 0; i < mNSamp; i++) {
+            int j = mBitRev[i];
+            mRe[j] = mWindow[(start + i) % NSAMP_MAX];
+            mIm[j] = 0;
+        }
+        fft();
+
+        // Power spectrum (square of the magnitude - the watch avoids the square
+        // root), with the fft output scaled by 1/nSamp like the watch fixed
+        // point fft.
+        int maxBin = 1;
+        double maxVal = 0;
+        double scale = 1.0 / ((double) mNSamp * mNSamp);
+        for (int i = 0; i < mNSamp / 2; i++) {
+            mSpec[i] = (mRe[i] * mRe[i] + mIm[i] * mIm[i]) * scale;
+            if (i > 0 && mSpec[i] > maxVal) {
+                maxVal = mSpec[i];
+                maxBin = i;
+            }
+        }
+
+        // The watch divides the total power below the cut-off by 2*nSamp, but
+        // averages the region of interest over its bins, so the ratio of the
+        // two is about 40 for a flat spectrum and rises to about 70 when all
+        // of the power is in the region of interest.  The alarm ratio
+        // threshold (default 50) relies on this scaling.
+        double specPower = 0;
+        for (int i = 1; i <= mNFreqCutoff; i++) specPower += mSpec[i];
+        specPower = specPower / mNSamp / 2;
+
+        double roiPower = 0;
+        for (int i = mNMin; i < mNMax; i++) roiPower += mSpec[i];
+        roiPower = roiPower / (mNMax - mNMin);
+
+        for (int f = 0; f < NSPEC; f++) {
+            double binPower = 0;
+            int binMin = 1 + freqToBin(f);   // add 1 to lose the dc component.
+            int binMax = 1 + freqToBin(f + 1);
+            for (int i = binMin; i < binMax && i < mNSamp / 2; i++) binPower += mSpec[i];
+            sdData.simpleSpec[f] = (int) binPower;
+        }
+
+        sdData.maxVal = (long) maxVal;
+        sdData.maxFreq = (long) (maxBin * mSampleFreq / mNSamp);
+        sdData.specPower = (long) specPower;
+        sdData.roiPower = (long) roiPower;
+        sdData.alarmState = alarmCheck(sdData.roiPower, sdData.specPower, elapsedSec);
+        sdData.alarmFreqMin = mAlarmFreqMin;
+        sdData.alarmFreqMax = mAlarmFreqMax;
+        sdData.alarmThresh = mAlarmThresh;
+        sdData.alarmRatioThresh = mAlarmRatioThresh;
+        sdData.warnTime = mWarnTime;
+        sdData.alarmTime = mAlarmTime;
+        sdData.nMin = mNMin;
+        sdData.nMax = mNMax;
+        return true;
+    }
+
+    /**
+     * Decide the alarm state from the spectrum powers, using the same logic
+     * as the watch app - the region of interest power and the ratio of region
+     * of interest power to overall power must both exceed their thresholds for
+     * warnTime (WARNING) or alarmTime (ALARM) seconds.
+     */
+    private long alarmCheck(long roiPower, long specPower, int elapsedSec) {
+        long roiRatio = (specPower > 0) ? 10 * roiPower / specPower : 0;
+        if (roiPower > mAlarmThresh && roiRatio > mAlarmRatioThresh) {
+            mAlarmCount += elapsedSec;
+            if (mAlarmCount > mAlarmTime) return ALARM_STATE_ALARM;
+            if (mAlarmCount > mWarnTime) return ALARM_STATE_WARNING;
+        } else {
+            mAlarmCount = 0;
+        }
+        return ALARM_STATE_OK;
+    }
+
+    /**
+     * In-place iterative radix-2 fft of mRe/mIm, which must already be in
+     * bit reversed order.  Twiddle factors are taken from the NSAMP_MAX
+     * tables with a stride so that smaller fft sizes do not need new tables.
+     */
+    private void fft() {
+        for (int size = 2; size <= mNSamp; size *= 2) {
+            int half = size / 2;
+            int step = mTwiddleStride * (mNSamp / size);
+            for (int i = 0; i < mNSamp; i += size) {
+                for (int j = 0; j < half; j++) {
+                    double wr = mCos[j * step];
+                    double wi = mSin[j * step];
+                    int a = i + j;
+                    int b = a + half;
+                    double tr = mRe[b] * wr - mIm[b] * wi;
+                    double ti = mRe[b] * wi + mIm[b] * wr;
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -78,6 +78,21 @@ public class SdData implements Parcelable {
     public boolean pebbleAppRunning = false;
     public boolean serverOK = false;
 
+    /* Network data source statistics */
+    public long netRequestCount = 0;        // number of requests made to the server.
+    public long netFailureCount = 0;        // number of failed requests.
+    public long netConsecutiveFailures = 0; // failures since the last successful request.
+    public long netLatencyMs = 0;           // time taken by the last successful request.
+    public long netAvgLatencyMs = 0;        // average request time.
+
+    /* Watch link statistics (see PebbleLinkMonitor) */
+    public long linkQuality = 0;            // 0 (unusable) to 100 (perfect).
+    public long linkLossPc = 0;             // estimated % of messages lost.
+    public long linkJitterMs = 0;           // inter-arrival jitter.
+    public long linkDataAgeMs = 0;          // time since the last results message.
+    public long linkMsgLost = 0;            // messages missing from the sequence.
+    public long linkMsgDuplicates = 0;      // messages received more than once.
+
     public SdData() {
         simpleSpec = new int[10];
         dataTime = new Time(Time.getCurrentTimezone());
@@ -158,6 +173,16 @@ public class SdData implements Parcelable {
             jsonObj.put("alarmFreqMax",alarmFreqMax);
             jsonObj.put("alarmThresh", alarmThresh);
             jsonObj.put("alarmRatioThresh", alarmRatioThresh);
+            jsonObj.put("netRequestCount", netRequestCount);
+            jsonObj.put("netFailureCount", netFailureCount);
+            jsonObj.put("netLatencyMs", netLatencyMs);
+            jsonObj.put("netAvgLatencyMs", netAvgLatencyMs);
+            jsonObj.put("linkQuality", linkQuality);
+            jsonObj.put("linkLossPc", linkLossPc);
+            jsonObj.put("linkJitterMs", linkJitterMs);
+            jsonObj.put("linkDataAgeMs", linkDataAgeMs);
+            jsonObj.put("linkMsgLost", linkMsgLost);
+            jsonObj.put("linkMsgDuplicates", linkMsgDuplicates);
             JSONArray arr = new JSONArray();
             for (int i = 0; i < simpleSpec.length; i++) {
                 arr.put(simpleSpec[i]);
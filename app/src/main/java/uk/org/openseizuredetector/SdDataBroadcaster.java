@@ -0,0 +1,244 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes SdData updates to any number of connected web clients as a
+ * Server-Sent Events (text/event-stream) stream.
+ * Each client is a Subscriber, which is an InputStream that the web server
+ * sends as a chunked response - reading it blocks until there is a new event.
+ * Every subscriber has its own small queue, so a slow client can not hold
+ * up the others or SdServer:
+ *  - if a client's queue is full, the oldest data update is thrown away to
+ *    make room, as only the latest data matters.
+ *  - a client that has had MAX_DROPPED_EVENTS updates thrown away in a row
+ *    is disconnected.
+ *  - alarm events are never thrown away to make room for data updates.
+ * A comment line is sent if nothing has happened for KEEPALIVE_MS, so that
+ * clients that have gone away are detected.
+ */
+public class SdDataBroadcaster {
+    public final static int MAX_SUBSCRIBERS = 8;
+    public final static int QUEUE_SIZE = 8;
+    public final static int MAX_DROPPED_EVENTS = 32;
+    public final static long KEEPALIVE_MS = 15000;
+
+    private final static byte[] KEEPALIVE = {':', '\n', '\n'};
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final long mKeepAliveMs;
+    private volatile long mEventCount = 0;
+    private volatile long mEvictedCount = 0;
+
+    public SdDataBroadcaster() {
+        this(KEEPALIVE_MS);
+    }
+
+    public SdDataBroadcaster(long keepAliveMs) {
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Add a new client.
+     * @return the stream to send to the client, or null if there are
+     * already MAX_SUBSCRIBERS clients connected.
+     */
+    public synchronized Subscriber subscribe() {
+        if (mSubscribers.size() >= MAX_SUBSCRIBERS) return null;
+        Subscriber sub = new Subscriber();
+        mSubscribers.add(sub);
+        return sub;
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return the number of clients disconnected for being too slow.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Send a new data snapshot to all clients.
+     * @param alarm - true if the alarm state has changed, in which case the
+     *              event is sent as an 'alarm' event rather than 'data',
+     *              and is never dropped.
+     */
+    public void publish(SdDataSnapshot snapshot, boolean alarm) {
+        if (mSubscribers.isEmpty()) return;
+        String event = "event: " + (alarm ? "alarm" : "data") + "\n"
+                + "id: " + snapshot.getVersion() + "\n"
+                + "data: " + snapshot.getJson() + "\n\n";
+        byte[] bytes;
+        try {
+            bytes = event.getBytes("UTF-8");
+        } catch (IOException e) {
+            return;
+        }
+        Event ev = new Event(bytes, alarm);
+        mEventCount++;
+        for (Subscriber sub : mSubscribers) {
+            sub.offer(ev);
+        }
+    }
+
+    /**
+     * Disconnect all clients.
+     */
+    public void closeAll() {
+        for (Subscriber sub : mSubscribers) {
+            sub.close();
+        }
+    }
+
+    private static class Event {
+        final byte[] bytes;
+        final boolean alarm;
+
+        Event(byte[] bytes, boolean alarm) {
+            this.bytes = bytes;
+            this.alarm = alarm;
+        }
+    }
+
+    private final static Event CLOSED = new Event(new byte[0], true);
+
+    /**
+     * The event stream for one client.
+     */
+    public class Subscriber extends InputStream {
+        private final ArrayBlockingQueue<Event> mQueue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+        private volatile boolean mClosed = false;
+        private int mDropped = 0;
+        private byte[] mCurrent = null;
+        private int mCurrentPos = 0;
+
+        /**
+         * Add an event to the queue - called by publish().
+         */
+        synchronized void offer(Event ev) {
+            if (mClosed) return;
+            while (!mQueue.offer(ev)) {
+                if (!dropOldestData()) {
+                    // The queue is full of alarms - the client must have stopped reading.
+                    evict();
+                    return;
+                }
+                mDropped++;
+                if (mDropped >= MAX_DROPPED_EVENTS) {
+                    evict();
+                    return;
+                }
+            }
+            if (!ev.alarm && mQueue.size() == 1) mDropped = 0;
+        }
+
+        /**
+         * Remove the oldest data (not alarm) event from the queue.
+         * @return false if there were no data events to remove.
+         */
+        private boolean dropOldestData() {
+            for (Event e : mQueue) {
+                if (!e.alarm) {
+                    return mQueue.remove(e);
+                }
+            }
+            return false;
+        }
+
+        private void evict() {
+            mEvictedCount++;
+            close();
+        }
+
+        public int getDroppedCount() {
+            return mDropped;
+        }
+
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n <= 0) ? -1 : (b[0] & 0xff);
+        }
+
+        /**
+         * Wait for the next event, and copy as much of it as will fit into b.
+         * @return the number of bytes copied, or -1 once the stream has been closed.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (mCurrent == null || mCurrentPos >= mCurrent.length) {
+                if (mClosed && mQueue.isEmpty()) return -1;
+                Event ev;
+                try {
+                    ev = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    close();
+                    return -1;
+                }
+                if (ev == CLOSED || (ev == null && mClosed)) return -1;
+                mCurrent = (ev == null) ? KEEPALIVE : ev.bytes;
+                mCurrentPos = 0;
+            }
+            int n = Math.min(len, mCurrent.length - mCurrentPos);
+            System.arraycopy(mCurrent, mCurrentPos, b, off, n);
+            mCurrentPos += n;
+            return n;
+        }
+
+        /**
+         * Disconnect this client - any reader waiting for an event sees the
+         * end of the stream.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                mQueue.clear();
+                mQueue.offer(CLOSED);
+            }
+            mSubscribers.remove(this);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * Fixed size, in-memory history of the seizure detector outputs, so we can
+ * show trends rather than just the latest values.
+ *
+ * Each field is stored in its own primitive array (a ring buffer), so
+ * memory use is fixed when the history is created.  As well as the raw
+ * values, running min/max/sum aggregates are kept at coarser time
+ * resolutions (LEVEL_WIDTH_MS), so a query for a long period reads a few
+ * aggregate buckets for each point it returns rather than every raw value.
+ */
+public class SdDataHistory {
+    public final static int FIELD_SPEC_POWER = 0;
+    public final static int FIELD_ROI_POWER = 1;
+    public final static int FIELD_ALARM_STATE = 2;
+    public final static String[] FIELD_NAMES = {"specPower", "roiPower", "alarmState"};
+    public final static int NFIELDS = FIELD_NAMES.length;
+
+    public final static long HISTORY_MS = 24 * 3600 * 1000L;
+    public final static long[] LEVEL_WIDTH_MS = {10 * 1000L, 60 * 1000L, 600 * 1000L};
+
+    private Level mRaw;
+    private Level[] mLevels;
+    private long mLastTime = Long.MIN_VALUE;
+    private float[] mValues = new float[NFIELDS];
+
+    /**
+     * @param rawCapacity - the number of raw samples to keep (e.g. 24 hours
+     *                    at the data rate).
+     */
+    public SdDataHistory(int rawCapacity) {
+        mRaw = new Level(0, rawCapacity);
+        mLevels = new Level[LEVEL_WIDTH_MS.length];
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = new Level(LEVEL_WIDTH_MS[i], (int) (HISTORY_MS / LEVEL_WIDTH_MS[i]) + 1);
+        }
+    }
+
+    /**
+     * Add the outputs from sdData to the history.
+     */
+    public void add(long timeMs, SdData sdData) {
+        synchronized (this) {
+            mValues[FIELD_SPEC_POWER] = sdData.specPower;
+            mValues[FIELD_ROI_POWER] = sdData.roiPower;
+            mValues[FIELD_ALARM_STATE] = sdData.alarmState;
+            add(timeMs, mValues);
+        }
+    }
+
+    /**
+     * Add a set of values (indexed by the FIELD_ constants) to the history.
+     * Times must not go backwards - an earlier time is treated as equal to
+     * the last one.
+     */
+    public synchronized void add(long timeMs, float[] values) {
+        if (timeMs < mLastTime) timeMs = mLastTime;
+        mLastTime = timeMs;
+        mRaw.add(timeMs, values);
+        for (Level level : mLevels) {
+            level.add(timeMs, values);
+        }
+    }
+
+    /**
+     * @return the number of raw samples held.
+     */
+    public synchronized int size() {
+        return mRaw.mSize;
+    }
+
+    public synchronized void clear() {
+        mRaw.clear();
+        for (Level level : mLevels) {
+            level.clear();
+        }
+        mLastTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Return the history between fromMs and toMs (inclusive), reduced to no
+     * more than maxPoints points, each giving the min, max and mean of the
+     * values in an equal slice of the time range.  Slices with no data are
+     * left out.
+     */
+    public synchronized Series query(long fromMs, long toMs, int maxPoints) {
+        if (maxPoints < 1) maxPoints = 1;
+        long width = Math.max(1, (toMs - fromMs + maxPoints) / maxPoints);
+        // Use the coarsest aggregates that are no wider than an output point.
+        Level src = mRaw;
+        for (Level level : mLevels) {
+            if (level.mWidth <= width) src = level;
+        }
+        Series series = new Series(maxPoints);
+        int n = src.mSize;
+        // Include an aggregate bucket that starts before fromMs but overlaps it.
+        int i = src.search((src.mWidth > 0) ? fromMs - src.mWidth + 1 : fromMs);
+        long curBucket = Long.MIN_VALUE;
+        for (; i < n; i++) {
+            int p = src.pos(i);
+            long t = src.mTime[p];
+            if (t > toMs) break;
+            if (t < fromMs) t = fromMs;
+            long bucket = (t - fromMs) / width;
+            if (bucket != curBucket) {
+                curBucket = bucket;
+                series.startPoint(t);
+            }
+            series.addToPoint(src, p);
+        }
+        series.finish();
+        return series;
+    }
+
+    /**
+     * Columnar ring buffer of samples, or of aggregate buckets of width
+     * mWidth ms (a raw sample is a bucket of width 0 holding one value).
+     */
+    private static class Level {
+        final long mWidth;
+        final int mCapacity;
+        final long[] mTime;
+        final float[][] mMin;
+        final float[][] mMax;
+        final float[][] mSum;
+        final int[] mCount;
+        int mHead = 0;   // index of the next slot to write.
+        int mSize = 0;
+
+        Level(long width, int capacity) {
+            mWidth = width;
+            mCapacity = capacity;
+            mTime = new long[capacity];
+            mMin = new float[NFIELDS][capacity];
+            if (width == 0) {
+                // For raw samples min = max = sum so only store it once.
+                mMax = mMin;
+                mSum = mMin;
+                mCount = null;
+            } else {
+                mMax = new float[NFIELDS][capacity];
+                mSum = new float[NFIELDS][capacity];
+                mCount = new int[capacity];
+            }
+        }
+
+        /** Position in the arrays of the i'th oldest entry. */
+        int pos(int i) {
+            int p = mHead - mSize + i;
+            return (p < 0) ? p + mCapacity : p;
+        }
+
+        int count(int p) {
+            return (mCount == null) ? 1 : mCount[p];
+        }
+
+        void add(long timeMs, float[] values) {
+            if (mWidth > 0) {
+                long bucketTime = timeMs - (timeMs % mWidth);
+                if (mSize > 0) {
+                    int last = pos(mSize - 1);
+                    if (mTime[last] == bucketTime) {
+                        for (int f = 0; f < NFIELDS; f++) {
+                            if (values[f] < mMin[f][last]) mMin[f][last] = values[f];
+                            if (values[f] > mMax[f][last]) mMax[f][last] = values[f];
+                            mSum[f][last] += values[f];
+                        }
+                        mCount[last]++;
+                        return;
+                    }
+                }
+                timeMs = bucketTime;
+            }
+            int p = mHead;
+            mTime[p] = timeMs;
+            for (int f = 0; f < NFIELDS; f++) {
+                mMin[f][p] = values[f];
+                mMax[f][p] = values[f];
+                mSum[f][p] = values[f];
+            }
+            if (mCount != null) mCount[p] = 1;
+            mHead = (mHead + 1) % mCapacity;
+            if (mSize < mCapacity) mSize++;
+        }
+
+        /**
+         * @return the index (0 = oldest) of the first entry with time >= timeMs.
+         */
+        int search(long timeMs) {
+            int lo = 0;
+            int hi = mSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mTime[pos(mid)] < timeMs) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        void clear() {
+            mHead = 0;
+            mSize = 0;
+        }
+    }
+
+    /**
+     * The result of a query - n points, each with the time of its first
+     * sample (or aggregate bucket) and the min, max and mean of each field,
+     * indexed [field][point].
+     */
+    public static class Series {
+        public int n = 0;
+        public final long[] time;
+        public final float[][] min;
+        public final float[][] max;
+        public final float[][] mean;
+        private final int[] mCount;
+
+        Series(int maxPoints) {
+            time = new long[maxPoints];
+            min = new float[NFIELDS][maxPoints];
+            max = new float[NFIELDS][maxPoints];
+            mean = new float[NFIELDS][maxPoints];
+            mCount = new int[maxPoints];
+        }
+
+        void startPoint(long timeMs) {
+            time[n] = timeMs;
+            for (int f = 0; f < NFIELDS; f++) {
+                min[f][n] = Float.MAX_VALUE;
+                max[f][n] = -Float.MAX_VALUE;
+                mean[f][n] = 0;
+            }
+            mCount[n] = 0;
+            n++;
+        }
+
+        void addToPoint(Level src, int p) {
+            int i = n - 1;
+            for (int f = 0; f < NFIELDS; f++) {
+                if (src.mMin[f][p] < min[f][i]) min[f][i] = src.mMin[f][p];
+                if (src.mMax[f][p] > max[f][i]) max[f][i] = src.mMax[f][p];
+                // mean holds the sum until finish() is called.
+                mean[f][i] += src.mSum[f][p];
+            }
+            mCount[i] += src.count(p);
+        }
+
+        void finish() {
+            for (int i = 0; i < n; i++) {
+                for (int f = 0; f < NFIELDS; f++) {
+                    mean[f][i] /= mCount[i];
+                }
+            }
+        }
+
+        /**
+         * Append the series to sb as a JSON object of the form
+         * {"time":[...],"specPower":{"min":[...],"max":[...],"mean":[...]},...}
+         */
+        public void toJson(StringBuilder sb) {
+            sb.append("{\"time\":[");
+            for (int i = 0; i < n; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(time[i]);
+            }
+            sb.append(']');
+            for (int f = 0; f < NFIELDS; f++) {
+                sb.append(",\"").append(FIELD_NAMES[f]).append("\":{");
+                appendArray(sb, "min", min[f]);
+                sb.append(',');
+                appendArray(sb, "max", max[f]);
+                sb.append(',');
+                appendArray(sb, "mean", mean[f]);
+                sb.append('}');
+            }
+            sb.append('}');
+        }
+
+        private void appendArray(StringBuilder sb, String name, float[] vals) {
+            sb.append('"').append(name).append("\":[");
+            for (int i = 0; i < n; i++) {
+                if (i > 0) sb.append(',');
+                float v = vals[i];
+                if (v == (long) v) sb.append((long) v);
+                else sb.append(v);
+            }
+            sb.append(']');
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * Implemented by classes that want to be told when SdServer's data or alarm
+ * status changes, rather than polling it.
+ * Listeners are called on the main (UI) thread.
+ */
+interface SdDataListener {
+    /**
+     * @param seq - change sequence number, which increases by one or more
+     *            for every change, so a listener can tell whether it has
+     *            already seen the latest state.
+     */
+    public void onSdDataChanged(long seq);
+}
@@ -0,0 +1,343 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming JSON parser for the SdData objects served by the /data endpoint
+ * of another OpenSeizureDetector phone.
+ * It reads straight from a Reader (e.g. the HTTP connection) into an
+ * existing SdData object, with no limit on the size of the data, and
+ * without building the whole string or a JSONObject first.  Fields that
+ * are not recognised (e.g. from a newer server) are skipped, whatever their
+ * type.
+ * An SdDataParser re-uses its buffers so is not thread safe - use one per thread.
+ */
+public class SdDataParser {
+    private final char[] mBuf = new char[512];
+    private int mPos = 0;
+    private int mLen = 0;
+    private Reader mReader;
+    private final StringBuilder mKey = new StringBuilder(32);
+    private final StringBuilder mStr = new StringBuilder(64);
+
+    /**
+     * Parse one JSON object from reader into sdData.
+     * sdData is first reset to the same state as a new SdData, so that
+     * values from a previous parse do not survive if the server stops
+     * sending them.
+     * @return true if a complete object was read.
+     * @throws IOException if the data is not valid JSON, or can not be read.
+     */
+    public boolean parse(Reader reader, SdData sdData) throws IOException {
+        mReader = reader;
+        mPos = 0;
+        mLen = 0;
+        clear(sdData);
+        try {
+            if (nextNonSpace() != '{') throw error("Expected '{'");
+            int c = nextNonSpace();
+            if (c == '}') return true;
+            while (true) {
+                if (c != '"') throw error("Expected field name");
+                readString(mKey);
+                if (nextNonSpace() != ':') throw error("Expected ':'");
+                readField(sdData);
+                c = nextNonSpace();
+                if (c == '}') break;
+                if (c != ',') throw error("Expected ',' or '}'");
+                c = nextNonSpace();
+            }
+        } finally {
+            mReader = null;
+        }
+        // As SdData.fromJSON() - the server does not send a usable time, so
+        // use the time we received the data.
+        sdData.dataTime.setToNow();
+        sdData.haveData = true;
+        return true;
+    }
+
+    private void clear(SdData sdData) {
+        sdData.haveSettings = false;
+        sdData.haveData = false;
+        sdData.mSdMode = 0;
+        sdData.mSampleFreq = 0;
+        sdData.analysisPeriod = 0;
+        sdData.alarmFreqMin = 0;
+        sdData.alarmFreqMax = 0;
+        sdData.alarmThresh = 0;
+        sdData.alarmRatioThresh = 0;
+        sdData.batteryPc = 0;
+        sdData.alarmState = 0;
+        sdData.alarmStanding = false;
+        sdData.fallAlarmStanding = false;
+        sdData.maxVal = 0;
+        sdData.maxFreq = 0;
+        sdData.specPower = 0;
+        sdData.roiPower = 0;
+        sdData.alarmPhrase = "";
+        for (int i = 0; i < sdData.simpleSpec.length; i++) sdData.simpleSpec[i] = 0;
+        sdData.pebbleConnected = false;
+        sdData.pebbleAppRunning = false;
+        sdData.serverOK = false;
+        sdData.linkQuality = 0;
+        sdData.linkLossPc = 0;
+        sdData.linkJitterMs = 0;
+        sdData.linkDataAgeMs = 0;
+        sdData.linkMsgLost = 0;
+        sdData.linkMsgDuplicates = 0;
+    }
+
+    /**
+     * Read the value of the field named in mKey into sdData.
+     */
+    private void readField(SdData sdData) throws IOException {
+        if (keyIs("maxVal")) sdData.maxVal = readLong();
+        else if (keyIs("maxFreq")) sdData.maxFreq = readLong();
+        else if (keyIs("specPower")) sdData.specPower = readLong();
+        else if (keyIs("roiPower")) sdData.roiPower = readLong();
+        else if (keyIs("batteryPc")) sdData.batteryPc = readLong();
+        else if (keyIs("alarmState")) sdData.alarmState = readLong();
+        else if (keyIs("alarmThresh")) sdData.alarmThresh = readLong();
+        else if (keyIs("alarmRatioThresh")) sdData.alarmRatioThresh = readLong();
+        else if (keyIs("alarmFreqMin")) sdData.alarmFreqMin = readLong();
+        else if (keyIs("alarmFreqMax")) sdData.alarmFreqMax = readLong();
+        else if (keyIs("sdMode")) sdData.mSdMode = readLong();
+        else if (keyIs("sampleFreq")) sdData.mSampleFreq = readLong();
+        else if (keyIs("analysisPeriod")) sdData.analysisPeriod = readLong();
+        else if (keyIs("pebbleConnected")) sdData.pebbleConnected = readBoolean();
+        else if (keyIs("pebbleAppRunning")) sdData.pebbleAppRunning = readBoolean();
+        else if (keyIs("linkQuality")) sdData.linkQuality = readLong();
+        else if (keyIs("linkLossPc")) sdData.linkLossPc = readLong();
+        else if (keyIs("linkJitterMs")) sdData.linkJitterMs = readLong();
+        else if (keyIs("linkDataAgeMs")) sdData.linkDataAgeMs = readLong();
+        else if (keyIs("linkMsgLost")) sdData.linkMsgLost = readLong();
+        else if (keyIs("linkMsgDuplicates")) sdData.linkMsgDuplicates = readLong();
+        else if (keyIs("alarmPhrase")) {
+            int c = nextNonSpace();
+            if (c == '"') {
+                readString(mStr);
+                if (!contentEquals(mStr, sdData.alarmPhrase)) {
+                    sdData.alarmPhrase = mStr.toString();
+                }
+            } else {
+                pushBack();
+                skipValue();
+            }
+        } else if (keyIs("simpleSpec")) readIntArray(sdData.simpleSpec);
+        else skipValue();
+    }
+
+    private boolean keyIs(String name) {
+        return contentEquals(mKey, name);
+    }
+
+    private static boolean contentEquals(StringBuilder sb, String str) {
+        if (str == null || sb.length() != str.length()) return false;
+        for (int i = 0; i < str.length(); i++) {
+            if (sb.charAt(i) != str.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private IOException error(String msg) {
+        return new IOException("SdDataParser - " + msg);
+    }
+
+    private int next() throws IOException {
+        if (mPos >= mLen) {
+            mLen = mReader.read(mBuf, 0, mBuf.length);
+            mPos = 0;
+            if (mLen <= 0) {
+                mLen = 0;
+                throw error("Unexpected end of data");
+            }
+        }
+        return mBuf[mPos++];
+    }
+
+    /**
+     * Un-read the last character returned by next() - only valid once after
+     * each call to next().
+     */
+    private void pushBack() {
+        mPos--;
+    }
+
+    private int nextNonSpace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    /**
+     * Read a string (the opening quote has already been read) into sb.
+     */
+    private void readString(StringBuilder sb) throws IOException {
+        sb.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == '"') return;
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        int val = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int d = Character.digit(next(), 16);
+                            if (d < 0) throw error("Invalid unicode escape");
+                            val = val * 16 + d;
+                        }
+                        sb.append((char) val);
+                        break;
+                    default:
+                        sb.append((char) c);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Read a number as a long - any fractional part or exponent is ignored.
+     * Values sent as strings or null are read as 0.
+     */
+    private long readLong() throws IOException {
+        int c = nextNonSpace();
+        if (c != '-' && (c < '0' || c > '9')) {
+            pushBack();
+            skipValue();
+            return 0;
+        }
+        boolean neg = (c == '-');
+        long val = neg ? 0 : c - '0';
+        boolean inFraction = false;
+        while (true) {
+            c = next();
+            if (c >= '0' && c <= '9') {
+                if (!inFraction) val = val * 10 + (c - '0');
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                inFraction = true;
+            } else {
+                pushBack();
+                break;
+            }
+        }
+        return neg ? -val : val;
+    }
+
+    private boolean readBoolean() throws IOException {
+        int c = nextNonSpace();
+        pushBack();
+        if (c == 't') {
+            skipValue();
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Read an array of numbers into dest - extra values are ignored.
+     */
+    private void readIntArray(int[] dest) throws IOException {
+        int c = nextNonSpace();
+        if (c != '[') {
+            pushBack();
+            skipValue();
+            return;
+        }
+        c = nextNonSpace();
+        if (c == ']') return;
+        pushBack();
+        int i = 0;
+        while (true) {
+            long val = readLong();
+            if (i < dest.length) dest[i] = (int) val;
+            i++;
+            c = nextNonSpace();
+            if (c == ']') return;
+            if (c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+
+    /**
+     * Skip over a value of any type, including nested objects and arrays.
+     */
+    private void skipValue() throws IOException {
+        int c = nextNonSpace();
+        if (c == '"') {
+            skipString();
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = next();
+                if (c == '"') skipString();
+                else if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+            }
+            return;
+        }
+        // number, true, false or null.
+        while (true) {
+            c = next();
+            if (c == ',' || c == '}' || c == ']' || c == ' '
+                    || c == '\n' || c == '\r' || c == '\t') {
+                pushBack();
+                return;
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = next();
+            if (c == '\\') next();
+            else if (c == '"') return;
+        }
+    }
+}
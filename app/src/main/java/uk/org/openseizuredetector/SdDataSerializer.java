@@ -0,0 +1,161 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.text.format.Time;
+
+/**
+ * Writes SdData as JSON without using org.json.
+ * Produces the same fields as SdData.toDataString(), but appends them
+ * straight into a StringBuilder that is re-used between calls, and formats
+ * dataTime from its fields rather than with Time.format(), so very little
+ * garbage is created.
+ * An SdDataSerializer is not thread safe - use one per thread.
+ */
+public class SdDataSerializer {
+    private final StringBuilder mSb = new StringBuilder(512);
+
+    /**
+     * @return sdData as a JSON string.
+     */
+    public String toJson(SdData sdData) {
+        mSb.setLength(0);
+        write(sdData, mSb);
+        return mSb.toString();
+    }
+
+    /**
+     * Append sdData as a JSON object to sb.
+     */
+    public void write(SdData sdData, StringBuilder sb) {
+        sb.append('{');
+        Time t = sdData.dataTime;
+        sb.append("\"dataTime\":\"");
+        if (t != null) {
+            pad2(sb, t.monthDay).append('-');
+            pad2(sb, t.month + 1).append('-');
+            sb.append(t.year).append(' ');
+            pad2(sb, t.hour).append(':');
+            pad2(sb, t.minute).append(':');
+            pad2(sb, t.second);
+        } else {
+            sb.append("00-00-00 00:00:00");
+        }
+        sb.append("\",\"dataTimeStr\":\"");
+        if (t != null) {
+            sb.append(t.year);
+            pad2(sb, t.month + 1);
+            pad2(sb, t.monthDay).append('T');
+            pad2(sb, t.hour);
+            pad2(sb, t.minute);
+            pad2(sb, t.second);
+        } else {
+            sb.append("00000000T000000");
+        }
+        sb.append('"');
+        field(sb, "maxVal").append(sdData.maxVal);
+        field(sb, "maxFreq").append(sdData.maxFreq);
+        field(sb, "specPower").append(sdData.specPower);
+        field(sb, "roiPower").append(sdData.roiPower);
+        field(sb, "batteryPc").append(sdData.batteryPc);
+        field(sb, "pebbleConnected").append(sdData.pebbleConnected);
+        field(sb, "pebbleAppRunning").append(sdData.pebbleAppRunning);
+        field(sb, "haveSettings").append(sdData.haveSettings);
+        field(sb, "alarmState").append(sdData.alarmState);
+        if (sdData.alarmPhrase != null) {
+            field(sb, "alarmPhrase");
+            appendString(sb, sdData.alarmPhrase);
+        }
+        field(sb, "sdMode").append(sdData.mSdMode);
+        field(sb, "sampleFreq").append(sdData.mSampleFreq);
+        field(sb, "analysisPeriod").append(sdData.analysisPeriod);
+        field(sb, "alarmFreqMin").append(sdData.alarmFreqMin);
+        field(sb, "alarmFreqMax").append(sdData.alarmFreqMax);
+        field(sb, "alarmThresh").append(sdData.alarmThresh);
+        field(sb, "alarmRatioThresh").append(sdData.alarmRatioThresh);
+        field(sb, "netRequestCount").append(sdData.netRequestCount);
+        field(sb, "netFailureCount").append(sdData.netFailureCount);
+        field(sb, "netLatencyMs").append(sdData.netLatencyMs);
+        field(sb, "netAvgLatencyMs").append(sdData.netAvgLatencyMs);
+        field(sb, "linkQuality").append(sdData.linkQuality);
+        field(sb, "linkLossPc").append(sdData.linkLossPc);
+        field(sb, "linkJitterMs").append(sdData.linkJitterMs);
+        field(sb, "linkDataAgeMs").append(sdData.linkDataAgeMs);
+        field(sb, "linkMsgLost").append(sdData.linkMsgLost);
+        field(sb, "linkMsgDuplicates").append(sdData.linkMsgDuplicates);
+        field(sb, "simpleSpec").append('[');
+        if (sdData.simpleSpec != null) {
+            for (int i = 0; i < sdData.simpleSpec.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(sdData.simpleSpec[i]);
+            }
+        }
+        sb.append("]}");
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name) {
+        return sb.append(",\"").append(name).append("\":");
+    }
+
+    private static StringBuilder pad2(StringBuilder sb, int val) {
+        if (val < 10) sb.append('0');
+        return sb.append(val);
+    }
+
+    /**
+     * Append str as a quoted JSON string, escaping characters as required.
+     */
+    static void appendString(StringBuilder sb, String str) {
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00");
+                        sb.append(Character.forDigit(c >> 4, 16));
+                        sb.append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
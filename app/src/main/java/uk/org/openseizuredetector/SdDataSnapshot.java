@@ -0,0 +1,77 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+/**
+ * An immutable copy of the latest SdData, as JSON, with a version number
+ * that increases every time the data is updated.
+ * SdServer creates one snapshot per data update, so the web server, log
+ * files and anything else that wants the current data as JSON can share the
+ * same string rather than each serialising SdData again.  Being immutable,
+ * a snapshot can be passed between threads freely.
+ */
+public final class SdDataSnapshot {
+    private final long mVersion;
+    private final long mCreatedMs;
+    private final long mAlarmState;
+    private final String mJson;
+
+    public SdDataSnapshot(long version, long alarmState, String json) {
+        mVersion = version;
+        mCreatedMs = System.currentTimeMillis();
+        mAlarmState = alarmState;
+        mJson = json;
+    }
+
+    /**
+     * Create a snapshot of sdData using serializer.
+     */
+    public static SdDataSnapshot create(SdData sdData, long version, SdDataSerializer serializer) {
+        return new SdDataSnapshot(version, sdData.alarmState, serializer.toJson(sdData));
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the time the snapshot was made (ms since 1970).
+     */
+    public long getCreatedMs() {
+        return mCreatedMs;
+    }
+
+    public long getAlarmState() {
+        return mAlarmState;
+    }
+
+    public String getJson() {
+        return mJson;
+    }
+
+    @Override
+    public String toString() {
+        return mJson;
+    }
+}
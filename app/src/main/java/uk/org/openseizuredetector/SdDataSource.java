@@ -31,6 +31,9 @@ import android.widget.Toast;
 interface SdDataReceiver {
     public void onSdDataReceived(SdData sdData);
     public void onSdDataFault(SdData sdData);
+    // Called when the connection status or watch settings in sdData change
+    // between analysis results.
+    public void onSdDataStatus(SdData sdData);
 }
 
 /**
@@ -44,6 +47,7 @@ public abstract class SdDataSource {
     protected Context mContext;
     protected Handler mHandler;
     protected SdDataReceiver mSdDataReceiver;
+    protected SdWakeManager mWakeManager = null;
     private String TAG = "SdDataSource";
 
     public SdDataSource(Context context, Handler handler, SdDataReceiver sdDataReceiver) {
@@ -87,6 +91,25 @@ public abstract class SdDataSource {
 
     public void acceptAlarm() { Log.v(TAG,"acceptAlarm()"); }
 
+    /**
+     * Set the wake manager to hold while processing incoming data.
+     */
+    public void setWakeManager(SdWakeManager wakeManager) {
+        mWakeManager = wakeManager;
+    }
+
+    /**
+     * @return how long after the last data was received checkStatus() should
+     * be called to detect a fault, or 0 if the data source does not need it.
+     */
+    public long getFaultCheckDelayMs() { return 0; }
+
+    /**
+     * Check whether data is still being received, reporting a fault to the
+     * SdDataReceiver if not.
+     */
+    public void checkStatus() { Log.v(TAG,"checkStatus()"); }
+
     /**
      * Display a Toast message on screen.
      * @param msg - message to display.
@@ -17,8 +17,9 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by graham on 22/11/15.
@@ -26,53 +27,108 @@ import java.util.TimerTask;
 public class SdDataSourceNetwork extends SdDataSource {
     private String TAG = "SdDataSourceNetwork";
     private Time mStatusTime;
-    private Timer mDataUpdateTimer;
+    private volatile Thread mPollThread = null;
+    private volatile boolean mPolling = false;
+    private final Object mPollLock = new Object();
     private int mDataUpdatePeriod = 2000;
+    private int mConnTimeout = 2000;
+    private int mSoTimeout = 2000;
     private String mServerIP = "unknown";
+    private PollIntervalPolicy mPollPolicy = new PollIntervalPolicy(2000);
+    // Set when polling a given server on a shared pool, rather than the
+    // server from the preferences on our own thread.
+    private String mFixedServerIP = null;
+    private ScheduledExecutorService mPool = null;
+    private volatile ScheduledFuture<?> mPollFuture = null;
+    private volatile Runnable mPollTask = null;
+
+    // Request statistics, reported in the SdData we pass on.
+    private long mRequestCount = 0;
+    private long mFailureCount = 0;
+    private long mLastLatencyMs = 0;
+    private long mAvgLatencyMs = 0;
 
     private int ALARM_STATE_NETFAULT = 7;
 
+    // Two SdData objects are used alternately for received data, so we never
+    // overwrite the one that was last passed to mSdDataReceiver.
+    private SdData[] mSdDataBufs = {new SdData(), new SdData()};
+    private int mSdDataBufNo = 0;
+    private SdDataParser mParser = new SdDataParser();
+    private byte[] mDrainBuf = new byte[256];
+
 
     public SdDataSourceNetwork(Context context, Handler handler, SdDataReceiver sdDataReceiver) {
         super(context, handler, sdDataReceiver);
         mName = "Network";
     }
 
+    /**
+     * Create a data source for a server other than the one in the
+     * preferences (e.g. for one of several patients), that polls using the
+     * shared pool and calls sdDataReceiver on the pool thread.  Each poll
+     * is scheduled after the previous one has been processed, so only one
+     * pool thread at a time works for this data source.
+     */
+    public SdDataSourceNetwork(Context context, Handler handler, SdDataReceiver sdDataReceiver,
+                               String serverIP, ScheduledExecutorService pool) {
+        this(context, handler, sdDataReceiver);
+        mName = "Network " + serverIP;
+        mFixedServerIP = serverIP;
+        mPool = pool;
+    }
+
     @Override public void start() {
         // Update preferences.
         Log.v(TAG,"start(): calling updatePrefs()");
         mUtil.writeToSysLogFile("SdDataSourceNetwork().start()");
         updatePrefs();
 
-        // Start timer to retrieve seizure detector data regularly.
+        // Start the thread that retrieves seizure detector data regularly.
         mStatusTime = new Time(Time.getCurrentTimezone());
         mStatusTime.setToNow();
-        if (mDataUpdateTimer ==null) {
-            Log.v(TAG,"start(): starting data update timer");
-            mDataUpdateTimer = new Timer();
-            mDataUpdateTimer.schedule(new TimerTask() {
-                @Override
+        if (mPool != null) {
+            if (mPollTask == null) {
+                Log.v(TAG, "start(): polling " + mServerIP + " on shared pool");
+                mPolling = true;
+                mPollTask = new Runnable() {
+                    public void run() {
+                        pollOnce(this);
+                    }
+                };
+                mPollFuture = mPool.schedule(mPollTask, 0, TimeUnit.MILLISECONDS);
+            }
+        } else if (mPollThread == null) {
+            Log.v(TAG,"start(): starting poll thread");
+            mPolling = true;
+            mPollThread = new Thread(new Runnable() {
                 public void run() {
-                    downloadSdData();
+                    pollLoop();
                 }
-            }, 0, mDataUpdatePeriod);
+            }, "SdDataSourceNetwork Poller");
+            mPollThread.setDaemon(true);
+            mPollThread.start();
         } else {
-            Log.v(TAG,"start(): data update timer already running.");
+            Log.v(TAG,"start(): poll thread already running.");
         }
-
-
     }
 
     @Override public void stop() {
         mUtil.writeToSysLogFile("SdDataSourceNetwork().stop()");
-        // Stop the data update timer
-        if (mDataUpdateTimer !=null) {
-            Log.v(TAG,"stop(): cancelling status timer");
-            mDataUpdateTimer.cancel();
-            mDataUpdateTimer.purge();
-            mDataUpdateTimer = null;
+        // Stop the poll thread
+        mPolling = false;
+        mPollTask = null;
+        if (mPollFuture != null) {
+            mPollFuture.cancel(false);
+            mPollFuture = null;
+        }
+        if (mPollThread != null) {
+            Log.v(TAG,"stop(): stopping poll thread");
+            synchronized (mPollLock) {
+                mPollLock.notifyAll();
+            }
+            mPollThread = null;
         }
-
     }
 
 
@@ -86,12 +142,16 @@ public class SdDataSourceNetwork extends SdDataSource {
         mUtil.writeToSysLogFile("SdDataSourceNetwork().updatePrefs()");
         SharedPreferences SP = PreferenceManager
                 .getDefaultSharedPreferences(mContext);
-        mServerIP = SP.getString("ServerIP","192.168.1.175");
+        mServerIP = (mFixedServerIP != null) ? mFixedServerIP : SP.getString("ServerIP","192.168.1.175");
         Log.v(TAG,"updatePrefs() - mServerIP = "+mServerIP);
         try {
             String dataUpdatePeriodStr = SP.getString("DataUpdatePeriod","2000");
             mDataUpdatePeriod = Integer.parseInt(dataUpdatePeriodStr);
             Log.v(TAG,"updatePrefs() - mDataUpdatePeriod = "+mDataUpdatePeriod);
+            mPollPolicy.setBasePeriod(mDataUpdatePeriod);
+            mConnTimeout = Integer.parseInt(SP.getString("ConnTimeout","2000"));
+            mSoTimeout = Integer.parseInt(SP.getString("SoTimeout","2000"));
+            Log.v(TAG,"updatePrefs() - mConnTimeout = "+mConnTimeout+", mSoTimeout = "+mSoTimeout);
         } catch (Exception ex) {
             Log.v(TAG,"updatePrefs() - Problem parsing preferences!");
             mUtil.writeToSysLogFile("SdDataSourceNetwork().updatePrefs() - " +ex.toString());
@@ -100,59 +160,98 @@ public class SdDataSourceNetwork extends SdDataSource {
     }
 
     /**
-     * Retrive the current Seizure Detector Data from the server.
-     * Uses the DownloadSdDataTask class to download the data in the
-     * background.  The data is processed in DownloadSdDataTask.onPostExecute().
+     * Runs on mPollThread - requests data from the server, waits for the
+     * response, then waits for the period chosen by mPollPolicy before
+     * making the next request, so there is never more than one request in
+     * progress.  HttpURLConnection keeps the connection to the server open
+     * between requests (HTTP keep-alive) as long as each response is read
+     * to the end.
      */
-    public void downloadSdData() {
-        Log.v(TAG, "downloadSdData()");
-        new DownloadSdDataTask().execute("http://" + mServerIP + ":8080/data");
-    }
-
-    private class DownloadSdDataTask extends AsyncTask<String, Void, SdData> {
-        private SdData sdData;
-        @Override
-        protected SdData doInBackground(String... urls) {
-            // params comes from the execute() call: params[0] is the url.
-            sdData = new SdData();
-            try {
-                String result = downloadUrl(urls[0]);
-                if (result.startsWith("Unable to retrieve web page")) {
-                    Log.v(TAG,"doInBackground() - Unable to retrieve data");
-                    sdData.serverOK = false;
-                    sdData.pebbleConnected = false;
-                    sdData.pebbleAppRunning = false;
-                    sdData.alarmState = ALARM_STATE_NETFAULT;
-                    sdData.alarmPhrase = "Warning - No Connection to Server";
-                    Log.v(TAG,"doInBackground(): No Connection to Server - sdData = "+sdData.toString());
-                } else {
-                    sdData.fromJSON(result);
-                    // Populate mSdData using the received data.
-                    sdData.serverOK = true;
-                    if (sdData.batteryPc>0) {
-                        sdData.haveSettings = true;
-                    }
-                    mStatusTime.setToNow();
-                    Log.v(TAG,"doInBackground(): sdData = "+sdData.toString());
+    private void pollLoop() {
+        String url = "http://" + mServerIP + ":8080/data";
+        Thread thisThread = Thread.currentThread();
+        // Check we are still the current poll thread, in case we were
+        // stopped and re-started while waiting for a response.
+        while (mPolling && mPollThread == thisThread) {
+            final SdData sdData = downloadSdData(url);
+            if (!mPolling || mPollThread != thisThread) break;
+            // onSdDataReceived() starts CountDownTimers so must run on the UI thread.
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mSdDataReceiver.onSdDataReceived(sdData);
+                }
+            });
+            long delay = mPollPolicy.getNextDelayMs();
+            synchronized (mPollLock) {
+                try {
+                    if (mPolling) mPollLock.wait(delay);
+                } catch (InterruptedException e) {
+                    break;
                 }
-                return (sdData);
-
-            } catch (IOException e) {
-                sdData.serverOK = false;
-                sdData.pebbleConnected = false;
-                sdData.pebbleAppRunning = false;
-                sdData.alarmState = ALARM_STATE_NETFAULT;
-                sdData.alarmPhrase = "Warning - No Connection to Server";
-                Log.v(TAG,"doInBackground(): IOException - "+e.toString());
-                return sdData;
             }
         }
-        // onPostExecute displays the results of the AsyncTask.
-        @Override
-        protected void onPostExecute(SdData sdData) {
-            Log.v(TAG,"onPostExecute() - sdData = "+sdData.toString());
+        Log.v(TAG, "pollLoop() - exiting");
+    }
+
+    /**
+     * Runs on a thread of mPool - makes one request, passes the result
+     * straight to mSdDataReceiver, then schedules the next request.
+     */
+    private void pollOnce(Runnable self) {
+        // Check we are still the current poll task, in case we were stopped
+        // and re-started while waiting for a response.
+        if (!mPolling || mPollTask != self) return;
+        SdData sdData = downloadSdData("http://" + mServerIP + ":8080/data");
+        if (!mPolling || mPollTask != self) return;
+        try {
             mSdDataReceiver.onSdDataReceived(sdData);
+        } catch (Exception ex) {
+            Log.e(TAG, "pollOnce() - error processing data - " + ex.toString());
+        }
+        if (mPolling && mPollTask == self) {
+            mPollFuture = mPool.schedule(self, mPollPolicy.getNextDelayMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Retrieve the current Seizure Detector Data from the server.
+     * @return the data, or an SdData showing a network fault if the request failed.
+     */
+    public SdData downloadSdData(String url) {
+        SdData sdData = nextSdDataBuf();
+        long startTime = System.currentTimeMillis();
+        mRequestCount++;
+        try {
+            downloadSdData(url, sdData);
+            // Populate mSdData using the received data.
+            sdData.serverOK = true;
+            if (sdData.batteryPc>0) {
+                sdData.haveSettings = true;
+            }
+            mStatusTime.setToNow();
+            mLastLatencyMs = System.currentTimeMillis() - startTime;
+            // Exponentially weighted average, so one slow request does not dominate.
+            mAvgLatencyMs = (mAvgLatencyMs == 0) ? mLastLatencyMs
+                    : (7 * mAvgLatencyMs + mLastLatencyMs) / 8;
+            mPollPolicy.onSuccess(sdData.alarmState);
+            Log.v(TAG,"downloadSdData(): alarmState = "+sdData.alarmState
+                    +", latency = "+mLastLatencyMs+" ms");
+        } catch (IOException e) {
+            mFailureCount++;
+            mPollPolicy.onFailure();
+            sdData.serverOK = false;
+            sdData.pebbleConnected = false;
+            sdData.pebbleAppRunning = false;
+            sdData.alarmState = ALARM_STATE_NETFAULT;
+            sdData.alarmPhrase = "Warning - No Connection to Server";
+            Log.v(TAG,"downloadSdData(): IOException - "+e.toString());
         }
+        sdData.netRequestCount = mRequestCount;
+        sdData.netFailureCount = mFailureCount;
+        sdData.netConsecutiveFailures = mPollPolicy.getConsecutiveFailures();
+        sdData.netLatencyMs = mLastLatencyMs;
+        sdData.netAvgLatencyMs = mAvgLatencyMs;
+        return sdData;
     }
 
     /**
@@ -191,6 +290,54 @@ public class SdDataSourceNetwork extends SdDataSource {
 
 
 
+    /**
+     * Select the SdData object to use for the next download.
+     */
+    private synchronized SdData nextSdDataBuf() {
+        mSdDataBufNo = (mSdDataBufNo + 1) % mSdDataBufs.length;
+        return mSdDataBufs[mSdDataBufNo];
+    }
+
+    /**
+     * Download SdData from the server at myurl, parsing it directly from
+     * the connection into sdData.
+     */
+    private void downloadSdData(String myurl, SdData sdData) throws IOException {
+        InputStream is = null;
+        try {
+            URL url = new URL(myurl);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setReadTimeout(mSoTimeout);
+            conn.setConnectTimeout(mConnTimeout);
+            conn.setRequestMethod("GET");
+            conn.setRequestProperty("Connection", "keep-alive");
+            conn.setUseCaches(false);
+            conn.setDoInput(true);
+            conn.connect();
+            int response = conn.getResponseCode();
+            if (response != HttpURLConnection.HTTP_OK) {
+                is = conn.getErrorStream();
+                drain(is);
+                throw new IOException("Server returned " + response);
+            }
+            is = conn.getInputStream();
+            mParser.parse(new InputStreamReader(is, "UTF-8"), sdData);
+            // The connection is only re-used if we read all of the response.
+            drain(is);
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    private void drain(InputStream is) throws IOException {
+        if (is == null) return;
+        while (is.read(mDrainBuf) > 0) {
+            // discard
+        }
+    }
+
     // Given a URL, establishes an HttpUrlConnection and retrieves
     // the web page content as a InputStream, which it returns as
     // a string.
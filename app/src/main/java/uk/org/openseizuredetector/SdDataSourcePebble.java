@@ -45,8 +45,6 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
 
@@ -57,9 +55,12 @@ import java.util.UUID;
  */
 public class SdDataSourcePebble extends SdDataSource {
     private Handler mHandler = new Handler();
-    private Timer mSettingsTimer;
-    private Timer mStatusTimer;
+    private SdScheduler.Task mSettingsTimer;
+    private SdScheduler.Task mStatusTimer;
     private Time mPebbleStatusTime;
+    private volatile long mLastMessageMs = 0;
+    private volatile long mLastStatusCheckMs = 0;
+    private static final String WAKE_REASON = "pebbleMessage";
     private boolean mPebbleAppRunningCheck = false;
     private int mAppRestartTimeout = 10;  // Timeout before re-starting watch app (sec) if we have not received
     // data after mDataUpdatePeriod
@@ -111,6 +112,8 @@ public class SdDataSourcePebble extends SdDataSource {
     private int KEY_VERSION_MAJOR = 35;
     private int KEY_VERSION_MINOR = 36;
     private int KEY_FREQ_CUTOFF = 37;
+    private int KEY_MSG_SEQ = 38;       // message sequence number (optional - newer watch apps only)
+    private int KEY_WATCH_TIME = 39;    // watch clock (ms) when the message was sent (optional)
 
     // Values of the KEY_DATA_TYPE entry in a message
     private int DATA_TYPE_RESULTS = 1;   // Analysis Results
@@ -142,10 +145,38 @@ public class SdDataSourcePebble extends SdDataSource {
     private short mFallThreshMax;
     private short mFallWindow;
 
-    // raw data storage for SD_MODE_RAW
-    private int MAX_RAW_DATA = 500;
-    private double[] rawData = new double[MAX_RAW_DATA];
-    private int nRawData = 0;
+    // raw data storage for SD_MODE_RAW - written by the pebble receive handler,
+    // read by analyseRawData() on the status timer thread.
+    private int MAX_RAW_DATA = 2 * SdAnalyser.NSAMP_MAX;
+    private IntRingBuffer mRawData = new IntRingBuffer(MAX_RAW_DATA);
+    private int[] mRawReadBuf = new int[MAX_RAW_DATA];
+    private RawDataDecoder mRawDecoder = new RawDataDecoder(SdAnalyser.NSAMP_MAX);
+    private long mRawOverwritten = 0;
+    private SdAnalyser mAnalyser = new SdAnalyser();
+    private PebbleLinkMonitor mLinkMonitor = new PebbleLinkMonitor(5000);
+    private int mLinkFaultCount = 0;
+
+    // Performance metrics (see SdMetrics).
+    private final SdMetrics.Histogram mMessageTime = SdMetrics.getInstance().histogram(
+            "osd_watch_message_seconds", "Time taken to handle a message from the watch.");
+    private final SdMetrics.Histogram mRawDecodeTime = SdMetrics.getInstance().histogram(
+            "osd_raw_decode_seconds", "Time taken to decode a raw accelerometer data message.");
+    private final SdMetrics.Counter mResultsMessages = SdMetrics.getInstance().counter(
+            "osd_watch_messages_total", "type=\"results\"", "Messages received from the watch.");
+    private final SdMetrics.Counter mSettingsMessages = SdMetrics.getInstance().counter(
+            "osd_watch_messages_total", "type=\"settings\"", "Messages received from the watch.");
+    private final SdMetrics.Counter mRawMessages = SdMetrics.getInstance().counter(
+            "osd_watch_messages_total", "type=\"raw\"", "Messages received from the watch.");
+    private final SdMetrics.Counter mRawSamples = SdMetrics.getInstance().counter(
+            "osd_raw_samples_total", "Raw accelerometer samples received from the watch.");
+    private final SdMetrics.Counter mRawDropped = SdMetrics.getInstance().counter(
+            "osd_raw_samples_dropped_total", "Raw samples overwritten before they were analysed.");
+    private final SdMetrics.Counter mAppStarts = SdMetrics.getInstance().counter(
+            "osd_watch_app_starts_total", "Times the watch app has been (re)started to reconnect to it.");
+    private final SdMetrics.Counter mStallFaults = SdMetrics.getInstance().counter(
+            "osd_watch_faults_total", "cause=\"app\"", "Watch faults, by whether the watch app or the radio link was to blame.");
+    private final SdMetrics.Counter mLinkFaults = SdMetrics.getInstance().counter(
+            "osd_watch_faults_total", "cause=\"link\"", "Watch faults, by whether the watch app or the radio link was to blame.");
 
     public SdDataSourcePebble(Context context, Handler handler,
                               SdDataReceiver sdDataReceiver) {
@@ -165,6 +196,31 @@ public class SdDataSourcePebble extends SdDataSource {
         Log.v(TAG, "start()");
         mUtil.writeToSysLogFile("SdDataSourcePebble.start()");
         updatePrefs();
+        SdMetrics.getInstance().gauge("osd_watch_connected",
+                "1 if the watch is connected to the phone, otherwise 0.", new SdMetrics.Gauge() {
+                    public double get() {
+                        return mSdData.pebbleConnected ? 1 : 0;
+                    }
+                });
+        mLinkMonitor.setExpectedPeriod(mDataUpdatePeriod * 1000);
+        SdMetrics.getInstance().gauge("osd_watch_link_quality",
+                "Quality of the bluetooth link to the watch (0-100).", new SdMetrics.Gauge() {
+                    public double get() {
+                        return mLinkMonitor.getQuality(System.currentTimeMillis());
+                    }
+                });
+        SdMetrics.getInstance().counter("osd_watch_messages_lost_total",
+                "Messages missing from the watch message sequence.", new SdMetrics.Gauge() {
+                    public double get() {
+                        return mLinkMonitor.getLost();
+                    }
+                });
+        SdMetrics.getInstance().counter("osd_watch_messages_duplicate_total",
+                "Messages received from the watch more than once.", new SdMetrics.Gauge() {
+                    public double get() {
+                        return mLinkMonitor.getDuplicates();
+                    }
+                });
         startPebbleServer();
         // Start timer to check status of pebble regularly.
         mPebbleStatusTime = new Time(Time.getCurrentTimezone());
@@ -173,13 +229,12 @@ public class SdDataSourcePebble extends SdDataSource {
         if (mStatusTimer == null) {
             Log.v(TAG, "start(): starting status timer");
             mUtil.writeToSysLogFile("SdDataSourcePebble.start() - starting status timer");
-            mStatusTimer = new Timer();
-            mStatusTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    getPebbleStatus();
-                }
-            }, 0, mDataUpdatePeriod * 1000);
+            mStatusTimer = SdScheduler.getInstance().schedulePeriodic("SdDataSourcePebble.status",
+                    new Runnable() {
+                        public void run() {
+                            getPebbleStatus();
+                        }
+                    }, 0, mDataUpdatePeriod * 1000);
         } else {
             Log.v(TAG, "start(): status timer already running.");
             mUtil.writeToSysLogFile("SdDataSourcePebble.start() - status timer already running??");
@@ -191,14 +246,13 @@ public class SdDataSourcePebble extends SdDataSource {
         if (mSettingsTimer == null) {
             Log.v(TAG, "start(): starting settings timer");
             mUtil.writeToSysLogFile("SdDataSourcePebble.start() - starting settings timer");
-            mSettingsTimer = new Timer();
-            mSettingsTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    //mUtil.writeToSysLogFile("SdDataSourcePebble.mSettingsTimer timed out.");
-                    getPebbleSdSettings();
-                }
-            }, 0, 1000 * mSettingsPeriod);  // ask for settings less frequently than we get data
+            mSettingsTimer = SdScheduler.getInstance().schedulePeriodic("SdDataSourcePebble.settings",
+                    new Runnable() {
+                        public void run() {
+                            //mUtil.writeToSysLogFile("SdDataSourcePebble.mSettingsTimer timed out.");
+                            getPebbleSdSettings();
+                        }
+                    }, 0, 1000 * mSettingsPeriod);  // ask for settings less frequently than we get data
         } else {
             Log.v(TAG, "start(): settings timer already running.");
             mUtil.writeToSysLogFile("SdDataSourcePebble.start() - settings timer already running??");
@@ -217,7 +271,6 @@ public class SdDataSourcePebble extends SdDataSource {
                 Log.v(TAG, "stop(): cancelling status timer");
                 mUtil.writeToSysLogFile("SdDataSourcePebble.stop() - cancelling status timer");
                 mStatusTimer.cancel();
-                mStatusTimer.purge();
                 mStatusTimer = null;
             }
             // Stop the settings timer
@@ -225,7 +278,6 @@ public class SdDataSourcePebble extends SdDataSource {
                 Log.v(TAG, "stop(): cancelling settings timer");
                 mUtil.writeToSysLogFile("SdDataSourcePebble.stop() - cancelling settings timer");
                 mSettingsTimer.cancel();
-                mSettingsTimer.purge();
                 mSettingsTimer = null;
             }
             // Stop pebble message handler.
@@ -346,6 +398,10 @@ public class SdDataSourcePebble extends SdDataSource {
             mFallWindow = (short) Integer.parseInt(prefStr);
             Log.v(TAG, "updatePrefs() FallWindow = " + mFallWindow);
 
+            // The phone does the analysis in SD_MODE_RAW, so give it the same settings as the watch.
+            mAnalyser.setSettings(mSampleFreq, mSamplePeriod, mAlarmFreqMin, mAlarmFreqMax,
+                    mWarnTime, mAlarmTime, mAlarmThresh, mAlarmRatioThresh);
+
         } catch (Exception ex) {
             Log.v(TAG, "updatePrefs() - Problem parsing preferences!");
             mUtil.writeToSysLogFile("SdDataSourcePebble.updatePrefs() - ERROR "+ex.toString());
@@ -368,101 +424,103 @@ public class SdDataSourcePebble extends SdDataSource {
             public void receiveData(final Context context,
                                     final int transactionId,
                                     final PebbleDictionary data) {
-                Log.v(TAG, "Received message from Pebble - data type="
-                        + data.getUnsignedIntegerAsLong(KEY_DATA_TYPE));
-                // If we have a message, the app must be running
-                Log.v(TAG, "Setting mPebbleAppRunningCheck to true");
-                mPebbleAppRunningCheck = true;
-                PebbleKit.sendAckToPebble(context, transactionId);
-                //Log.v(TAG,"Message is: "+data.toJsonString());
-                if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
-                        == DATA_TYPE_RESULTS) {
-                    Log.v(TAG, "DATA_TYPE = Results");
-                    mSdData.dataTime.setToNow();
-                    Log.v(TAG, "mSdData.dataTime=" + mSdData.dataTime);
-
-                    mSdData.alarmState = data.getUnsignedIntegerAsLong(
-                            KEY_ALARMSTATE);
-                    mSdData.maxVal = data.getUnsignedIntegerAsLong(KEY_MAXVAL);
-                    mSdData.maxFreq = data.getUnsignedIntegerAsLong(KEY_MAXFREQ);
-                    mSdData.specPower = data.getUnsignedIntegerAsLong(KEY_SPECPOWER);
-                    mSdData.roiPower = data.getUnsignedIntegerAsLong(KEY_ROIPOWER);
-                    mSdData.alarmPhrase = "Unknown";
-                    mSdData.haveData = true;
-                    mSdDataReceiver.onSdDataReceived(mSdData);
-
-
-                    // Read the data that has been sent, and convert it into
-                    // an integer array.
-                    byte[] byteArr = data.getBytes(KEY_SPEC_DATA);
-                    if ((byteArr != null) && (byteArr.length != 0)) {
-                        IntBuffer intBuf = ByteBuffer.wrap(byteArr)
-                                .order(ByteOrder.LITTLE_ENDIAN)
-                                .asIntBuffer();
-                        int[] intArray = new int[intBuf.remaining()];
-                        intBuf.get(intArray);
-                        for (int i = 0; i < intArray.length; i++) {
-                            mSdData.simpleSpec[i] = intArray[i];
-                        }
-                    } else {
-                        Log.v(TAG, "***** zero length spectrum received - error!!!!");
+                // Keep the phone awake until we have dealt with the message.
+                if (mWakeManager != null) mWakeManager.acquire(WAKE_REASON);
+                long startNs = System.nanoTime();
+                try {
+                    Log.v(TAG, "Received message from Pebble - data type="
+                            + data.getUnsignedIntegerAsLong(KEY_DATA_TYPE));
+                    // If we have a message, the app must be running
+                    Log.v(TAG, "Setting mPebbleAppRunningCheck to true");
+                    mPebbleAppRunningCheck = true;
+                    mLastMessageMs = System.currentTimeMillis();
+                    PebbleKit.sendAckToPebble(context, transactionId);
+                    // The watch re-sends a message if our ack is lost, so
+                    // make sure we only act on each message once.
+                    int seqStatus = mLinkMonitor.onMessage(data.getUnsignedIntegerAsLong(KEY_MSG_SEQ),
+                            data.getUnsignedIntegerAsLong(KEY_WATCH_TIME), mLastMessageMs);
+                    // Never discard a results message that reports an alarm, in
+                    // case it was wrongly taken for a duplicate.
+                    Long alarmState = data.getUnsignedIntegerAsLong(KEY_ALARMSTATE);
+                    if (seqStatus == PebbleLinkMonitor.MSG_DUPLICATE
+                            && (alarmState == null || alarmState == 0
+                            || data.getUnsignedIntegerAsLong(KEY_DATA_TYPE) != DATA_TYPE_RESULTS)) {
+                        Log.v(TAG, "Ignoring duplicate message from Pebble");
+                        return;
+                    } else if (seqStatus == PebbleLinkMonitor.MSG_RESET
+                            && mLinkMonitor.getResets() > 0) {
+                        mUtil.writeToSysLogFile("SdDataSourcePebble - watch app message sequence restarted");
+                    }
+                    //Log.v(TAG,"Message is: "+data.toJsonString());
+                    if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
+                            == DATA_TYPE_RESULTS) {
+                        Log.v(TAG, "DATA_TYPE = Results");
+                        mResultsMessages.inc();
+                        mSdData.dataTime.setToNow();
+                        Log.v(TAG, "mSdData.dataTime=" + mSdData.dataTime);
+
+                        mSdData.alarmState = data.getUnsignedIntegerAsLong(
+                                KEY_ALARMSTATE);
+                        mSdData.maxVal = data.getUnsignedIntegerAsLong(KEY_MAXVAL);
+                        mSdData.maxFreq = data.getUnsignedIntegerAsLong(KEY_MAXFREQ);
+                        mSdData.specPower = data.getUnsignedIntegerAsLong(KEY_SPECPOWER);
+                        mSdData.roiPower = data.getUnsignedIntegerAsLong(KEY_ROIPOWER);
+                        mSdData.alarmPhrase = "Unknown";
+                        mSdData.haveData = true;
+                        mLinkMonitor.onResults(mLastMessageMs);
+                        updateLinkStatus(mLastMessageMs);
+                        deliverResults(mSdData, data.getBytes(KEY_SPEC_DATA), mSdDataReceiver);
                     }
-                }
 
-                if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
-                        == DATA_TYPE_SETTINGS) {
-                    Log.v(TAG, "DATA_TYPE = Settings");
-                    try {
-                        mSdData.analysisPeriod = data.getUnsignedIntegerAsLong(KEY_SAMPLE_PERIOD);
-                        mSdData.alarmFreqMin = data.getUnsignedIntegerAsLong(KEY_ALARM_FREQ_MIN);
-                        mSdData.alarmFreqMax = data.getUnsignedIntegerAsLong(KEY_ALARM_FREQ_MAX);
-                        mSdData.nMin = data.getUnsignedIntegerAsLong(KEY_NMIN);
-                        mSdData.nMax = data.getUnsignedIntegerAsLong(KEY_NMAX);
-                        mSdData.warnTime = data.getUnsignedIntegerAsLong(KEY_WARN_TIME);
-                        mSdData.alarmTime = data.getUnsignedIntegerAsLong(KEY_ALARM_TIME);
-                        mSdData.alarmThresh = data.getUnsignedIntegerAsLong(KEY_ALARM_THRESH);
-                        mSdData.alarmRatioThresh = data.getUnsignedIntegerAsLong(KEY_ALARM_RATIO_THRESH);
-                        mSdData.batteryPc = data.getUnsignedIntegerAsLong(KEY_BATTERY_PC);
-                        mSdData.haveSettings = true;
-                    } catch (Exception ex) {
-                        mUtil.showToast("*** Error interpreting settings sent from watch - Please check you have "
-                                + "the latest version of the watch app installed by using the OpenSeizureDetector "
-                                + "menu to install the Watch App");
-                        mUtil.writeToSysLogFile("Error interpreting settings received from watch - wrong version "
-                                + "of watch app installed?");
+                    if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
+                            == DATA_TYPE_SETTINGS) {
+                        Log.v(TAG, "DATA_TYPE = Settings");
+                        mSettingsMessages.inc();
+                        try {
+                            mSdData.analysisPeriod = data.getUnsignedIntegerAsLong(KEY_SAMPLE_PERIOD);
+                            mSdData.alarmFreqMin = data.getUnsignedIntegerAsLong(KEY_ALARM_FREQ_MIN);
+                            mSdData.alarmFreqMax = data.getUnsignedIntegerAsLong(KEY_ALARM_FREQ_MAX);
+                            mSdData.nMin = data.getUnsignedIntegerAsLong(KEY_NMIN);
+                            mSdData.nMax = data.getUnsignedIntegerAsLong(KEY_NMAX);
+                            mSdData.warnTime = data.getUnsignedIntegerAsLong(KEY_WARN_TIME);
+                            mSdData.alarmTime = data.getUnsignedIntegerAsLong(KEY_ALARM_TIME);
+                            mSdData.alarmThresh = data.getUnsignedIntegerAsLong(KEY_ALARM_THRESH);
+                            mSdData.alarmRatioThresh = data.getUnsignedIntegerAsLong(KEY_ALARM_RATIO_THRESH);
+                            mSdData.batteryPc = data.getUnsignedIntegerAsLong(KEY_BATTERY_PC);
+                            mSdData.haveSettings = true;
+                            mSdDataReceiver.onSdDataStatus(mSdData);
+                        } catch (Exception ex) {
+                            mUtil.showToast("*** Error interpreting settings sent from watch - Please check you have "
+                                    + "the latest version of the watch app installed by using the OpenSeizureDetector "
+                                    + "menu to install the Watch App");
+                            mUtil.writeToSysLogFile("Error interpreting settings received from watch - wrong version "
+                                    + "of watch app installed?");
+                        }
                     }
-                }
-                if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
-                        == DATA_TYPE_RAW) {
-                    Log.v(TAG, "DATA_TYPE = Raw");
-                    long numSamples;
-                    numSamples = data.getUnsignedIntegerAsLong(KEY_NUM_RAW_DATA);
-                    Log.v(TAG, "numSamples = " + numSamples);
-                    byte[] rawDataBytes = data.getBytes(KEY_RAW_DATA);
-                    for (int i = 0; i < rawDataBytes.length - 4; i += 4) { // 4 bytes per sample
-                        int x = (rawDataBytes[i]);
-                        //int y = (rawDataBytes[i+2] & 0xff) | (rawDataBytes[i+3] << 8);
-                        //int z = (rawDataBytes[i+4] & 0xff) | (rawDataBytes[i+5] << 8);
-                        //Log.v(TAG,"x="+x+", y="+y+", z="+z);
-                        Log.v(TAG,"x="+x);
-                        if (nRawData < MAX_RAW_DATA) {
-                            rawData[nRawData] = (int)Math.sqrt(x);
-                        } else {
-                            Log.i(TAG, "WARNING - rawData Buffer Full");
+                    if (data.getUnsignedIntegerAsLong(KEY_DATA_TYPE)
+                            == DATA_TYPE_RAW) {
+                        Log.v(TAG, "DATA_TYPE = Raw");
+                        mRawMessages.inc();
+                        long decodeStartNs = System.nanoTime();
+                        long numSamples = data.getUnsignedIntegerAsLong(KEY_NUM_RAW_DATA);
+                        AccelSampleBatch batch = mRawDecoder.decode(data.getBytes(KEY_RAW_DATA),
+                                numSamples);
+                        mRawData.put(batch.mag, 0, batch.size);
+                        mRawDecodeTime.recordSince(decodeStartNs);
+                        mRawSamples.add(batch.size);
+                        // In power saving mode the status timer does not run while
+                        // the phone is asleep between messages, so analyse the
+                        // data here if it is due.
+                        if (mWakeManager != null && mWakeManager.isDutyCycled()
+                                && System.currentTimeMillis() - mLastStatusCheckMs
+                                >= mDataUpdatePeriod * 1000) {
+                            getPebbleStatus();
                         }
 
                     }
-
-
-                    //for (AccelData reading : AccelData.fromDataArray(rawDataBytes)) {
-                    //    if (nRawData < MAX_RAW_DATA) {
-                    //        rawData[nRawData] = reading.getMagnitude();
-                    //        nRawData++;
-                    //    } else {
-                    //        Log.i(TAG, "WARNING - rawData Buffer Full");
-                    //    }
-                   // }
-
+                } finally {
+                    mMessageTime.recordSince(startNs);
+                    if (mWakeManager != null) mWakeManager.release(WAKE_REASON);
                 }
             }
         };
@@ -494,14 +552,13 @@ public class SdDataSourcePebble extends SdDataSource {
      */
     public void startWatchApp() {
         Log.v(TAG, "startWatchApp() - closing app first");
+        mAppStarts.inc();
         mUtil.writeToSysLogFile("SdDataSourcePebble.startWatchApp() - closing app first");
         // first close the watch app if it is running.
         PebbleKit.closeAppOnPebble(mContext, SD_UUID);
         Log.v(TAG, "startWatchApp() - starting watch app after 5 seconds delay...");
 	// Wait 5 seconds then start the app.
-        Timer appStartTimer = new Timer();
-        appStartTimer.schedule(new TimerTask() {
-            @Override
+        SdScheduler.getInstance().scheduleOnce("SdDataSourcePebble.startWatchApp", new Runnable() {
             public void run() {
                 Log.v(TAG, "startWatchApp() - starting watch app...");
                 mUtil.writeToSysLogFile("SdDataSourcePebble.startWatchApp() - starting watch app");
@@ -666,16 +723,22 @@ public class SdDataSourcePebble extends SdDataSource {
      * and sets class variables for use by other functions.
      * If the watch app is not running, it attempts to re-start it.
      */
-    public void getPebbleStatus() {
+    public synchronized void getPebbleStatus() {
         Time tnow = new Time(Time.getCurrentTimezone());
         long tdiff;
         tnow.setToNow();
+        mLastStatusCheckMs = tnow.toMillis(false);
         // get time since the last data was received from the Pebble watch.
         tdiff = (tnow.toMillis(false) - mPebbleStatusTime.toMillis(false));
         Log.v(TAG, "getPebbleStatus() - mPebbleAppRunningCheck=" + mPebbleAppRunningCheck + " tdiff=" + tdiff);
+        boolean wasConnected = mSdData.pebbleConnected;
+        boolean wasRunning = mSdData.pebbleAppRunning;
+        boolean faultSent = false;
         // Check we are actually connected to the pebble.
         mSdData.pebbleConnected = PebbleKit.isWatchConnected(mContext);
         if (!mSdData.pebbleConnected) mPebbleAppRunningCheck = false;
+        mLinkMonitor.onConnectionState(mSdData.pebbleConnected, mLastStatusCheckMs);
+        updateLinkStatus(mLastStatusCheckMs);
         // And is the pebble_sd app running?
         // set mPebbleAppRunningCheck has been false for more than 10 seconds
         // the app is not talking to us
@@ -691,11 +754,34 @@ public class SdDataSourcePebble extends SdDataSource {
             //getPebbleSdSettings();
             // Only make audible warning beep if we have not received data for more than mFaultTimerPeriod seconds.
             if (tdiff > (mDataUpdatePeriod + mFaultTimerPeriod) * 1000) {
-                Log.v(TAG, "getPebbleStatus() - Pebble App Not Running - Attempting to Re-Start");
-                mUtil.writeToSysLogFile("SdDataSourcePebble.getPebbleStatus() - Pebble App not Running - Attempting to Re-Start");
-                startWatchApp();
+                // If the radio link has been dropping or delaying messages, the
+                // watch app is probably still running and re-starting it will not
+                // help, so only do that if the link stays down for several fault periods.
+                long faultMs = (mDataUpdatePeriod + mFaultTimerPeriod) * 1000;
+                if (mLinkMonitor.isLinkPoor()
+                        || mLinkMonitor.isConnectionUnstable(mLastStatusCheckMs, faultMs)) {
+                    mLinkFaults.inc();
+                    mLinkFaultCount++;
+                    mSdData.alarmPhrase = "FAULT - Watch radio link";
+                    Log.v(TAG, "getPebbleStatus() - Radio link fault - quality=" + mSdData.linkQuality
+                            + " loss=" + mSdData.linkLossPc + "% jitter=" + mSdData.linkJitterMs + " ms");
+                    mUtil.writeToSysLogFile("SdDataSourcePebble.getPebbleStatus() - Radio link fault - connected="
+                            + mSdData.pebbleConnected + " quality=" + mSdData.linkQuality
+                            + " loss=" + mSdData.linkLossPc + "% jitter=" + mSdData.linkJitterMs + " ms");
+                } else {
+                    mStallFaults.inc();
+                    mLinkFaultCount = 0;
+                    mSdData.alarmPhrase = "FAULT - Watch app not responding";
+                }
+                if (mLinkFaultCount == 0 || mLinkFaultCount >= 3) {
+                    Log.v(TAG, "getPebbleStatus() - Pebble App Not Running - Attempting to Re-Start");
+                    mUtil.writeToSysLogFile("SdDataSourcePebble.getPebbleStatus() - Pebble App not Running - Attempting to Re-Start");
+                    startWatchApp();
+                    mLinkFaultCount = 0;
+                }
                 mPebbleStatusTime.setToNow();
                 mSdDataReceiver.onSdDataFault(mSdData);
+                faultSent = true;
             } else {
                 Log.v(TAG, "getPebbleStatus() - Waiting for mFaultTimerPeriod before issuing audible warning...");
             }
@@ -716,22 +802,109 @@ public class SdDataSourcePebble extends SdDataSource {
             getPebbleData();
         }
 
+        // Results messages publish the status with the data, but a change of
+        // connection status between them would otherwise not be seen.
+        if (!faultSent && (mSdData.pebbleConnected != wasConnected
+                || mSdData.pebbleAppRunning != wasRunning)) {
+            mSdDataReceiver.onSdDataStatus(mSdData);
+        }
+
         if (mPebbleSdMode == SD_MODE_RAW) {
             analyseRawData();
         }
     }
 
     /**
-     * analyseRawData() - called when raw data is received.
-     * FIXME - this does not do anything at the moment so raw data is
-     * ignored!
+     * Read the spectrum sent with a results message into sdData.simpleSpec,
+     * then pass sdData to receiver.  The receiver publishes a snapshot of
+     * sdData, so the spectrum must be in place first or the snapshot would
+     * hold the previous message's spectrum.
+     * @param specData - the KEY_SPEC_DATA bytes, little endian int32 values.
+     */
+    static void deliverResults(SdData sdData, byte[] specData, SdDataReceiver receiver) {
+        if ((specData != null) && (specData.length != 0)) {
+            IntBuffer intBuf = ByteBuffer.wrap(specData)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+            int n = Math.min(intBuf.remaining(), sdData.simpleSpec.length);
+            for (int i = 0; i < n; i++) {
+                sdData.simpleSpec[i] = intBuf.get(i);
+            }
+        } else {
+            Log.v("SdDataSourcePebble", "***** zero length spectrum received - error!!!!");
+        }
+        receiver.onSdDataReceived(sdData);
+    }
+
+    /**
+     * Copy the watch link statistics into mSdData.
+     */
+    private void updateLinkStatus(long nowMs) {
+        mSdData.linkQuality = mLinkMonitor.getQuality(nowMs);
+        mSdData.linkLossPc = Math.round(mLinkMonitor.getLossPc());
+        mSdData.linkJitterMs = Math.round(mLinkMonitor.getJitterMs());
+        mSdData.linkDataAgeMs = mLinkMonitor.getDataAgeMs(nowMs);
+        mSdData.linkMsgLost = mLinkMonitor.getLost();
+        mSdData.linkMsgDuplicates = mLinkMonitor.getDuplicates();
+    }
+
+    /**
+     * The status timer does not run while the phone is asleep in power saving
+     * mode, so SdServer sets an AlarmManager wake-up to call checkStatus()
+     * when a fault would have been detected if no more data has arrived.
+     */
+    @Override
+    public long getFaultCheckDelayMs() {
+        return (mDataUpdatePeriod + mFaultTimerPeriod + 1) * 1000;
+    }
+
+    @Override
+    public synchronized void checkStatus() {
+        // If the status timer has not run since the last message, base the
+        // check on when that message arrived rather than on the last check.
+        if (mPebbleAppRunningCheck
+                && System.currentTimeMillis() - mLastMessageMs > mDataUpdatePeriod * 1000) {
+            mPebbleAppRunningCheck = false;
+            mPebbleStatusTime.set(mLastMessageMs);
+        }
+        getPebbleStatus();
+    }
+
+    /**
+     * analyseRawData() - called every mDataUpdatePeriod seconds in SD_MODE_RAW.
+     * Passes the raw data received since the last call to the analyser, and
+     * if it has enough data, sends the results to the SdDataReceiver
+     * in the same way as DATA_TYPE_RESULTS messages from the watch.
      */
     private void analyseRawData() {
         Log.v(TAG,"analyserawData()");
-        //DoubleFFT_1D fft = new DoubleFFT_1D(MAX_RAW_DATA);
-        //fft.realForward(rawData);
-        // FIXME - rawData should really be a circular buffer.
-        nRawData = 0;
+        int n;
+        while ((n = mRawData.read(mRawReadBuf, 0, mRawReadBuf.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                mAnalyser.addSample(mRawReadBuf[i]);
+            }
+        }
+        if (mRawData.getOverwrittenCount() != mRawOverwritten) {
+            Log.i(TAG, "analyseRawData() - WARNING - "
+                    + (mRawData.getOverwrittenCount() - mRawOverwritten)
+                    + " raw samples overwritten before analysis");
+            mRawDropped.add(mRawData.getOverwrittenCount() - mRawOverwritten);
+            mRawOverwritten = mRawData.getOverwrittenCount();
+        }
+        if (mAnalyser.analyse(mSdData, mDataUpdatePeriod)) {
+            mSdData.dataTime.setToNow();
+            mSdData.alarmPhrase = "Unknown";
+            mSdData.haveData = true;
+            // onSdDataReceived() starts CountDownTimers so must run on the UI thread.
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mSdDataReceiver.onSdDataReceived(mSdData);
+                }
+            });
+        } else {
+            Log.v(TAG, "analyseRawData() - not enough data yet - "
+                    + mAnalyser.getSampleCount() + " samples");
+        }
     }
 
     /**
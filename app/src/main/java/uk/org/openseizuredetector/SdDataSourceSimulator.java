@@ -0,0 +1,138 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * A data source that uses SdSimulator to produce data from a synthetic
+ * scenario or a recording, rather than from a real watch, so the rest of
+ * SdServer can be tested and benchmarked on any phone (or emulator).
+ * Settings are in res/xml/simulator_datasource_prefs.xml.
+ */
+public class SdDataSourceSimulator extends SdDataSource {
+    private String TAG = "SdDataSourceSimulator";
+    private SdSimulator mSimulator;
+
+    public SdDataSourceSimulator(Context context, Handler handler, SdDataReceiver sdDataReceiver) {
+        super(context, handler, sdDataReceiver);
+        mName = "Simulator";
+        // SdServer.onSdDataReceived() must run on the UI thread, as for the
+        // other data sources.
+        mSimulator = new SdSimulator(sdDataReceiver, new Executor() {
+            public void execute(Runnable r) {
+                mHandler.post(r);
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        Log.v(TAG, "start()");
+        mUtil.writeToSysLogFile("SdDataSourceSimulator.start()");
+        updatePrefs();
+        mSimulator.start();
+    }
+
+    @Override
+    public void stop() {
+        Log.v(TAG, "stop()");
+        mSimulator.stop();
+        StringBuilder sb = new StringBuilder();
+        mSimulator.toJson(sb);
+        mUtil.writeToSysLogFile("SdDataSourceSimulator.stop() - stats " + sb);
+    }
+
+    @Override
+    public SdData getSdData() {
+        return mSimulator.getSdData();
+    }
+
+    /**
+     * @return the simulator, for its statistics.
+     */
+    public SdSimulator getSimulator() {
+        return mSimulator;
+    }
+
+    /**
+     * updatePrefs() - update basic settings from the SharedPreferences
+     * - defined in res/xml/simulator_datasource_prefs.xml
+     */
+    public void updatePrefs() {
+        Log.v(TAG, "updatePrefs()");
+        SharedPreferences SP = PreferenceManager
+                .getDefaultSharedPreferences(mContext);
+        try {
+            String mode = SP.getString("SimulatorMode", "Synthetic");
+            String fname = SP.getString("SimulatorFile", "");
+            switch (mode) {
+                case "Raw":
+                    mSimulator.setRawSamples(SdSimulator.readRaw(
+                            new FileInputStream(new File(mUtil.getDataStorageDir(), fname))));
+                    break;
+                case "DataLog":
+                    mSimulator.setDataLog(SdSimulator.readDataLog(
+                            new FileInputStream(new File(mUtil.getDataStorageDir(), fname))));
+                    break;
+                default:
+                    mSimulator.setScenario(SdSimulator.parseScenario(
+                            SP.getString("SimulatorScenario", SdSimulator.DEFAULT_SCENARIO)));
+            }
+            Log.v(TAG, "updatePrefs() - mode = " + mode + ", file = " + fname);
+
+            int speed = Integer.parseInt(SP.getString("SimulatorSpeed", "1"));
+            mSimulator.setSpeed(Math.max(1, speed));
+            mSimulator.setLoop(SP.getBoolean("SimulatorLoop", true));
+            Log.v(TAG, "updatePrefs() - speed = " + speed);
+
+            // Use the same alarm settings as the watch, so the simulated alarm
+            // latencies reflect the configuration the patient is really using.
+            int alarmFreqMin = Integer.parseInt(SP.getString("AlarmFreqMin", "3"));
+            int alarmFreqMax = Integer.parseInt(SP.getString("AlarmFreqMax", "10"));
+            int warnTime = Integer.parseInt(SP.getString("WarnTime", "5"));
+            int alarmTime = Integer.parseInt(SP.getString("AlarmTime", "10"));
+            int alarmThresh = Integer.parseInt(SP.getString("AlarmThresh", "100"));
+            int alarmRatioThresh = Integer.parseInt(SP.getString("AlarmRatioThresh", "50"));
+            int faultTimerPeriod = Integer.parseInt(SP.getString("FaultTimerPeriod", "30"));
+            mSimulator.setSettings(25, 5, 5, alarmFreqMin, alarmFreqMax, warnTime, alarmTime,
+                    alarmThresh, alarmRatioThresh, faultTimerPeriod);
+            Log.v(TAG, "updatePrefs() - alarmThresh = " + alarmThresh + ", alarmRatioThresh = " + alarmRatioThresh);
+        } catch (Exception ex) {
+            Log.v(TAG, "updatePrefs() - Problem parsing preferences!");
+            mUtil.writeToSysLogFile("SdDataSourceSimulator.updatePrefs() - ERROR " + ex.toString());
+            Toast toast = Toast.makeText(mContext, "Problem Parsing Simulator Preferences - " + ex.getMessage(), Toast.LENGTH_SHORT);
+            toast.show();
+        }
+    }
+}
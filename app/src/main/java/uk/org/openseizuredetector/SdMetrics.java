@@ -0,0 +1,403 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of counters, gauges and latency histograms describing how the
+ * app is performing, exported in the Prometheus text format (see
+ * writePrometheus(), served as /metrics) or as JSON.
+ * Updating a metric does not take any locks or allocate memory, so it is
+ * cheap enough for every message from the watch - keep a reference to the
+ * metric rather than looking it up by name on hot paths.
+ * Metric names should be in Prometheus style, e.g. osd_watch_messages_total,
+ * optionally with labels, e.g. type="raw".
+ */
+public class SdMetrics {
+    private static SdMetrics sInstance = null;
+
+    private final ConcurrentHashMap<String, Metric> mMetrics = new ConcurrentHashMap<String, Metric>();
+    private final long mStartMs = System.currentTimeMillis();
+
+    /**
+     * @return the registry shared by the whole app.
+     */
+    public static synchronized SdMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new SdMetrics();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Supplies the current value of a gauge, or of a counter kept elsewhere.
+     */
+    public interface Gauge {
+        double get();
+    }
+
+    /**
+     * @return the counter called name, creating it if it does not exist.
+     */
+    public Counter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    public Counter counter(String name, String labels, String help) {
+        Metric m = register(new Counter(name, labels, help), false);
+        return (Counter) m;
+    }
+
+    /**
+     * @return the histogram called name, creating it if it does not exist.
+     * Its values are exported in seconds.
+     */
+    public Histogram histogram(String name, String help) {
+        return histogram(name, null, help);
+    }
+
+    public Histogram histogram(String name, String labels, String help) {
+        Metric m = register(new Histogram(name, labels, help), false);
+        return (Histogram) m;
+    }
+
+    /**
+     * Export a value that can go up or down, read from source when the
+     * metrics are exported.  This replaces any existing gauge called name.
+     */
+    public void gauge(String name, String help, Gauge source) {
+        register(new GaugeMetric(name, null, help, "gauge", source), true);
+    }
+
+    /**
+     * Export a count kept by another class (e.g. LogWriter's dropped
+     * record count), read from source when the metrics are exported.
+     * This replaces any existing metric called name.
+     */
+    public void counter(String name, String help, Gauge source) {
+        register(new GaugeMetric(name, null, help, "counter", source), true);
+    }
+
+    private Metric register(Metric m, boolean replace) {
+        String key = m.getKey();
+        if (replace) {
+            mMetrics.put(key, m);
+            return m;
+        }
+        Metric prev = mMetrics.putIfAbsent(key, m);
+        if (prev == null) return m;
+        if (!prev.getClass().equals(m.getClass())) {
+            throw new IllegalArgumentException("Metric " + key + " is already a " + prev.type);
+        }
+        return prev;
+    }
+
+    /**
+     * @return the metric with the given name and labels, or null.
+     */
+    public Metric get(String name, String labels) {
+        return mMetrics.get(Metric.key(name, labels));
+    }
+
+    /**
+     * Remove all metrics (for tests).
+     */
+    public void clear() {
+        mMetrics.clear();
+    }
+
+    /**
+     * @return the metrics sorted by name, so the metrics with the same name
+     * and different labels are together.
+     */
+    private TreeMap<String, Metric> sorted() {
+        return new TreeMap<String, Metric>(mMetrics);
+    }
+
+    /**
+     * Append all of the metrics to sb in the Prometheus text format.
+     */
+    public void writePrometheus(StringBuilder sb) {
+        String family = null;
+        for (Map.Entry<String, Metric> e : sorted().entrySet()) {
+            Metric m = e.getValue();
+            if (!m.name.equals(family)) {
+                family = m.name;
+                sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+                sb.append("# TYPE ").append(m.name).append(' ').append(m.type).append('\n');
+            }
+            m.writePrometheus(sb);
+        }
+    }
+
+    /**
+     * Append all of the metrics to sb as a JSON object.
+     */
+    public void toJson(StringBuilder sb) {
+        sb.append("{\"uptimeMs\":").append(System.currentTimeMillis() - mStartMs)
+                .append(",\"metrics\":[");
+        boolean first = true;
+        for (Map.Entry<String, Metric> e : sorted().entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            Metric m = e.getValue();
+            sb.append("{\"name\":\"").append(m.name).append('"')
+                    .append(",\"labels\":\"").append(m.labels == null ? "" : m.labels.replace("\"", "\\\""))
+                    .append("\",\"type\":\"").append(m.type).append('"');
+            m.toJson(sb);
+            sb.append('}');
+        }
+        sb.append("]}");
+    }
+
+    static void appendValue(StringBuilder sb, double val) {
+        if (val == Math.rint(val) && Math.abs(val) < 1e15) {
+            sb.append((long) val);
+        } else {
+            sb.append(val);
+        }
+    }
+
+    /**
+     * A named metric, possibly with labels.
+     */
+    public abstract static class Metric {
+        public final String name;
+        public final String labels;
+        public final String help;
+        public final String type;
+
+        Metric(String name, String labels, String help, String type) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+        }
+
+        static String key(String name, String labels) {
+            return (labels == null) ? name : name + "{" + labels + "}";
+        }
+
+        String getKey() {
+            return key(name, labels);
+        }
+
+        /**
+         * Append a sample line for this metric, with an extra label if
+         * extraLabel is not null.
+         */
+        void writeSample(StringBuilder sb, String suffix, String extraLabel, double val) {
+            sb.append(name).append(suffix);
+            if (labels != null || extraLabel != null) {
+                sb.append('{');
+                if (labels != null) sb.append(labels);
+                if (labels != null && extraLabel != null) sb.append(',');
+                if (extraLabel != null) sb.append(extraLabel);
+                sb.append('}');
+            }
+            sb.append(' ');
+            appendValue(sb, val);
+            sb.append('\n');
+        }
+
+        abstract void writePrometheus(StringBuilder sb);
+
+        abstract void toJson(StringBuilder sb);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong mCount = new AtomicLong();
+
+        Counter(String name, String labels, String help) {
+            super(name, labels, help, "counter");
+        }
+
+        public void inc() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long n) {
+            mCount.addAndGet(n);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+
+        void writePrometheus(StringBuilder sb) {
+            writeSample(sb, "", null, mCount.get());
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append(",\"value\":").append(mCount.get());
+        }
+    }
+
+    private static class GaugeMetric extends Metric {
+        private final Gauge mSource;
+
+        GaugeMetric(String name, String labels, String help, String type, Gauge source) {
+            super(name, labels, help, type);
+            mSource = source;
+        }
+
+        void writePrometheus(StringBuilder sb) {
+            writeSample(sb, "", null, mSource.get());
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append(",\"value\":");
+            appendValue(sb, mSource.get());
+        }
+    }
+
+    /**
+     * A histogram of durations, from 1 us to about 12 days, with a
+     * resolution of 1/8 of the value (like an HdrHistogram with one
+     * significant figure), so percentiles are within 12.5%.  Values are
+     * kept in microseconds in log-linear buckets: a power of two split into
+     * SUB_BUCKETS equal parts.
+     * Exported to Prometheus as a summary with the 50th, 90th and 99th
+     * percentiles, in seconds.
+     */
+    public static class Histogram extends Metric {
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int MAX_BITS = 40;
+        static final int NBUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(NBUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNs = new AtomicLong();
+        private final AtomicLong mMaxNs = new AtomicLong();
+
+        Histogram(String name, String labels, String help) {
+            super(name, labels, help, "summary");
+        }
+
+        /**
+         * @return the bucket for a value in us.
+         */
+        static int bucket(long us) {
+            if (us < SUB_BUCKETS) return (int) us;
+            int exp = 63 - Long.numberOfLeadingZeros(us);
+            if (exp >= MAX_BITS) return NBUCKETS - 1;
+            int sub = (int) (us >> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the highest value in us that goes in bucket i.
+         */
+        static long bucketUpperUs(int i) {
+            if (i < SUB_BUCKETS) return i;
+            int exp = i / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = i % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        /**
+         * Add one duration.
+         */
+        public void record(long ns) {
+            if (ns < 0) ns = 0;
+            mCounts.incrementAndGet(bucket(ns / 1000));
+            mCount.incrementAndGet();
+            mTotalNs.addAndGet(ns);
+            long max;
+            while (ns > (max = mMaxNs.get())) {
+                if (mMaxNs.compareAndSet(max, ns)) break;
+            }
+        }
+
+        /**
+         * Add the time since startNs (from System.nanoTime()).
+         */
+        public void recordSince(long startNs) {
+            record(System.nanoTime() - startNs);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public double getMeanMs() {
+            long n = mCount.get();
+            return (n == 0) ? 0 : mTotalNs.get() / 1e6 / n;
+        }
+
+        public double getMaxMs() {
+            return mMaxNs.get() / 1e6;
+        }
+
+        /**
+         * @param fraction - e.g. 0.99 for the 99th percentile.
+         * @return the highest value in ms in the bucket containing the
+         * percentile, limited to the maximum value recorded.
+         */
+        public double getPercentileMs(double fraction) {
+            long total = 0;
+            long[] counts = new long[NBUCKETS];
+            for (int i = 0; i < NBUCKETS; i++) {
+                counts[i] = mCounts.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(fraction * total));
+            long n = 0;
+            for (int i = 0; i < NBUCKETS; i++) {
+                n += counts[i];
+                if (n >= target) {
+                    return Math.min((bucketUpperUs(i) + 1) / 1e3, getMaxMs());
+                }
+            }
+            return getMaxMs();
+        }
+
+        void writePrometheus(StringBuilder sb) {
+            for (double q : QUANTILES) {
+                writeSample(sb, "", "quantile=\"" + q + "\"", getPercentileMs(q) / 1e3);
+            }
+            writeSample(sb, "_sum", null, mTotalNs.get() / 1e9);
+            writeSample(sb, "_count", null, mCount.get());
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append(",\"count\":").append(mCount.get())
+                    .append(",\"meanMs\":").append(Math.round(getMeanMs() * 1000) / 1000.0)
+                    .append(",\"p50Ms\":").append(Math.round(getPercentileMs(0.5) * 1000) / 1000.0)
+                    .append(",\"p99Ms\":").append(Math.round(getPercentileMs(0.99) * 1000) / 1000.0)
+                    .append(",\"maxMs\":").append(Math.round(getMaxMs() * 1000) / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single scheduler thread shared by all of the periodic and one-off tasks
+ * in the app, replacing a separate java.util.Timer (and thread) for each.
+ *
+ * Periodic tasks with the same period share one scheduled wake-up, and all
+ * periodic wake-ups are aligned to multiples of their period from a common
+ * start time, so tasks whose periods are multiples of each other (e.g. 5 s
+ * and 60 s) run together rather than waking the phone separately.
+ *
+ * Run time and lateness statistics are kept for each task name - see
+ * getStats().
+ */
+public class SdScheduler {
+    public static final String WAKE_REASON = "scheduler";
+    private String TAG = "SdScheduler";
+    private static SdScheduler sInstance = null;
+
+    private ScheduledThreadPoolExecutor mExecutor;
+    private final long mEpochNs;
+    private final HashMap<Long, Group> mGroups = new HashMap<Long, Group>();
+    private final ConcurrentHashMap<String, TaskStats> mStats = new ConcurrentHashMap<String, TaskStats>();
+    private volatile SdWakeManager mWakeManager = null;
+
+    /**
+     * @return the scheduler shared by the whole app.
+     */
+    public static synchronized SdScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new SdScheduler();
+        }
+        return sInstance;
+    }
+
+    public SdScheduler() {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SdScheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mEpochNs = System.nanoTime();
+    }
+
+    /**
+     * Hold wm while tasks are running, so the phone does not go back to
+     * sleep part way through a task.
+     */
+    public void setWakeManager(SdWakeManager wm) {
+        mWakeManager = wm;
+    }
+
+    /**
+     * Run runnable on the scheduler thread every periodMs, starting after
+     * initialDelayMs.  Later runs are aligned with other tasks of the same
+     * or a related period, so may be up to periodMs earlier than they would
+     * be counting from the first run.
+     * @param name - used to identify the task in the statistics.
+     */
+    public Task schedulePeriodic(String name, Runnable runnable, long initialDelayMs, long periodMs) {
+        if (periodMs <= 0) throw new IllegalArgumentException("periodMs must be > 0");
+        Task task = new Task(name, runnable, periodMs);
+        long periodNs = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        long nowNs = System.nanoTime();
+        synchronized (mGroups) {
+            Group group = mGroups.get(periodMs);
+            if (group == null) {
+                // First run at the next multiple of the period since mEpochNs.
+                long firstNs = mEpochNs + ((nowNs - mEpochNs) / periodNs + 1) * periodNs;
+                group = new Group(periodMs, firstNs);
+                group.mFuture = mExecutor.scheduleAtFixedRate(group, firstNs - nowNs, periodNs,
+                        TimeUnit.NANOSECONDS);
+                mGroups.put(periodMs, group);
+            }
+            task.mGroup = group;
+            group.mTasks.add(task);
+            // If the caller wants the first run sooner than the group's next
+            // run, do an extra one at the requested time.
+            if (TimeUnit.MILLISECONDS.toNanos(initialDelayMs) < group.mNextNs - nowNs) {
+                task.mFuture = scheduleRun(task, initialDelayMs);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Run runnable once on the scheduler thread after delayMs.
+     * @param name - used to identify the task in the statistics.
+     */
+    public Task scheduleOnce(String name, Runnable runnable, long delayMs) {
+        Task task = new Task(name, runnable, 0);
+        task.mFuture = scheduleRun(task, delayMs);
+        return task;
+    }
+
+    private ScheduledFuture<?> scheduleRun(final Task task, long delayMs) {
+        final long scheduledNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        return mExecutor.schedule(new Runnable() {
+            public void run() {
+                task.run(scheduledNs);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void removeFromGroup(Task task) {
+        synchronized (mGroups) {
+            Group group = task.mGroup;
+            if (group == null) return;
+            group.mTasks.remove(task);
+            task.mGroup = null;
+            if (group.mTasks.isEmpty()) {
+                group.mFuture.cancel(false);
+                mGroups.remove(group.mPeriodMs);
+            }
+        }
+    }
+
+    /**
+     * @return the number of separate periodic wake-ups currently scheduled.
+     */
+    public int getPeriodicWakeupCount() {
+        synchronized (mGroups) {
+            return mGroups.size();
+        }
+    }
+
+    /**
+     * @return a copy of the statistics for each task name.
+     */
+    public ArrayList<TaskStats> getStats() {
+        ArrayList<TaskStats> stats = new ArrayList<TaskStats>();
+        for (TaskStats s : mStats.values()) {
+            stats.add(s.copy());
+        }
+        return stats;
+    }
+
+    /**
+     * Append the task statistics to sb as a JSON array.
+     */
+    public void statsToJson(StringBuilder sb) {
+        sb.append('[');
+        boolean first = true;
+        for (TaskStats s : getStats()) {
+            if (!first) sb.append(',');
+            first = false;
+            s.toJson(sb);
+        }
+        sb.append(']');
+    }
+
+    /**
+     * A scheduled task - use cancel() to stop it.
+     */
+    public class Task {
+        private final String mName;
+        private final Runnable mRunnable;
+        private final long mPeriodNs;
+        private final TaskStats mTaskStats;
+        private volatile boolean mCancelled = false;
+        private Group mGroup = null;
+        private ScheduledFuture<?> mFuture = null;
+
+        Task(String name, Runnable runnable, long periodMs) {
+            mName = name;
+            mRunnable = runnable;
+            mPeriodNs = TimeUnit.MILLISECONDS.toNanos(periodMs);
+            TaskStats stats = new TaskStats(name);
+            TaskStats prev = mStats.putIfAbsent(name, stats);
+            mTaskStats = (prev == null) ? stats : prev;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            removeFromGroup(this);
+            if (mFuture != null) mFuture.cancel(false);
+        }
+
+        void run(long scheduledNs) {
+            if (mCancelled) return;
+            SdWakeManager wm = mWakeManager;
+            if (wm != null) wm.acquire(WAKE_REASON);
+            long startNs = System.nanoTime();
+            boolean ok = false;
+            try {
+                mRunnable.run();
+                ok = true;
+            } catch (Throwable t) {
+                // Do not let one task stop the others (as an exception
+                // would stop a java.util.Timer).
+                Log.e(TAG, "Task " + mName + " threw " + t.toString());
+            } finally {
+                mTaskStats.record(startNs - scheduledNs, System.nanoTime() - startNs,
+                        mPeriodNs, ok);
+                if (wm != null) wm.release(WAKE_REASON);
+            }
+        }
+    }
+
+    /**
+     * Periodic tasks with the same period, run by a single scheduled wake-up.
+     */
+    private class Group implements Runnable {
+        final long mPeriodMs;
+        final long mPeriodNs;
+        final CopyOnWriteArrayList<Task> mTasks = new CopyOnWriteArrayList<Task>();
+        ScheduledFuture<?> mFuture;
+        volatile long mNextNs;
+
+        Group(long periodMs, long firstNs) {
+            mPeriodMs = periodMs;
+            mPeriodNs = TimeUnit.MILLISECONDS.toNanos(periodMs);
+            mNextNs = firstNs;
+        }
+
+        public void run() {
+            long scheduledNs = mNextNs;
+            mNextNs = scheduledNs + mPeriodNs;
+            for (Task task : mTasks) {
+                task.run(scheduledNs);
+            }
+        }
+    }
+
+    /**
+     * Statistics for all of the tasks with a given name.
+     * An overrun is a run of a periodic task that started, or took, more
+     * than one period late.
+     */
+    public static class TaskStats {
+        public final String name;
+        public long runs = 0;
+        public long errors = 0;
+        public long overruns = 0;
+        public long totalRunNs = 0;
+        public long maxRunNs = 0;
+        public long maxLateNs = 0;
+
+        TaskStats(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long lateNs, long runNs, long periodNs, boolean ok) {
+            runs++;
+            if (!ok) errors++;
+            totalRunNs += runNs;
+            if (runNs > maxRunNs) maxRunNs = runNs;
+            if (lateNs > maxLateNs) maxLateNs = lateNs;
+            if (periodNs > 0 && (lateNs > periodNs || runNs > periodNs)) overruns++;
+        }
+
+        synchronized TaskStats copy() {
+            TaskStats s = new TaskStats(name);
+            s.runs = runs;
+            s.errors = errors;
+            s.overruns = overruns;
+            s.totalRunNs = totalRunNs;
+            s.maxRunNs = maxRunNs;
+            s.maxLateNs = maxLateNs;
+            return s;
+        }
+
+        public double getMeanRunMs() {
+            return (runs == 0) ? 0 : totalRunNs / 1e6 / runs;
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append("{\"name\":\"").append(name).append('"')
+                    .append(",\"runs\":").append(runs)
+                    .append(",\"errors\":").append(errors)
+                    .append(",\"overruns\":").append(overruns)
+                    .append(",\"meanRunMs\":").append(Math.round(getMeanRunMs() * 1000) / 1000.0)
+                    .append(",\"maxRunMs\":").append(maxRunNs / 1000000)
+                    .append(",\"maxLateMs\":").append(maxLateNs / 1000000)
+                    .append('}');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            toJson(sb);
+            return sb.toString();
+        }
+    }
+}
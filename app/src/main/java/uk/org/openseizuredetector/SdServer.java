@@ -33,13 +33,16 @@ import java.util.Map;
 import fi.iki.elonen.NanoHTTPD;
 
 import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.AssetManager;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
@@ -53,10 +56,12 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.telephony.SmsManager;
@@ -64,11 +69,16 @@ import android.location.Location;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.io.*;
 import java.util.*;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import uk.org.openseizuredetector.EventLogManager.EventLogManager;
+import uk.org.openseizuredetector.EventLogManager.LogEntryModel;
 
 import android.text.format.Time;
 
@@ -90,19 +100,71 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
     private SdWebServer webServer = null;
     private final static String TAG = "SdServer";
-    private Timer dataLogTimer = null;
+    private SdScheduler.Task mDataLogTask = null;
+    private SdScheduler.Task mLogMaintenanceTask = null;
+    private final SdMetrics.Histogram mProcessTime = SdMetrics.getInstance().histogram(
+            "osd_sd_data_process_seconds", "Time taken to process data from the data source.");
+    private final SdMetrics.Counter mDataCount = SdMetrics.getInstance().counter(
+            "osd_sd_data_received_total", "Data received from the data source.");
+    private final SdMetrics.Counter mFaultCount = SdMetrics.getInstance().counter(
+            "osd_sd_data_faults_total", "Faults reported by the data source.");
+    private final SdMetrics.Histogram mFaultCheckLateness = SdMetrics.getInstance().histogram(
+            "osd_fault_check_late_seconds", "How late the power saving fault check wake-up fired.");
+    private LogMaintenance mLogMaintenance = null;
+    private boolean mLogCompress = true;
+    private int mLogRetentionDays = 0;
+    private int mLogMaxSizeMb = 0;
     private CancelAudibleTimer mCancelAudibleTimer = null;
     private int mCancelAudiblePeriod = 10;  // Cancel Audible Period in minutes
     private long mCancelAudibleTimeRemaining = 0;
+    // The fault timer is started from the annunciator thread and stopped
+    // from the thread that processes the data, so its state is guarded by
+    // mFaultTimerLock.  mFaultTimerGen is increased by each stop, so a start
+    // that is still waiting to run on the UI thread can tell it is stale.
+    private final Object mFaultTimerLock = new Object();
     private FaultTimer mFaultTimer = null;
     private int mFaultTimerPeriod = 30;  // Fault Timer Period in sec
     private boolean mFaultTimerCompleted = false;
+    private boolean mFaultTimerStarting = false;
+    private long mFaultTimerGen = 0;
 
     private HandlerThread thread;
     private WakeLock mWakeLock = null;
+    private SdWakeManager mWakeManager = null;
+    private AlarmStateMachine mAlarmStateMachine = null;
+    private ThreadPoolExecutor mAnnunciator = null;
+    private ExecutorService mAlarmLogger = null;
+    private boolean mPowerSavingMode = false;
+    private PatientRegistry mPatientRegistry = null;
+    private final ArrayList<SdDataSource> mPatientSources = new ArrayList<SdDataSource>();
+    private final ArrayList<PatientAlarmActions> mPatientActions = new ArrayList<PatientAlarmActions>();
+    private int mLocalNotificationLevel = 0;
+    private int mShownNotificationLevel = -1;
+    private String mPatientList = "";
+    private final static String ACTION_FAULT_CHECK = "uk.org.openseizuredetector.FAULT_CHECK";
+    private final static String WAKE_FAULT_CHECK = "faultCheck";
+    private final static String WAKE_FAULT_TIMER = "faultTimer";
+    private final static String WAKE_FAULT_STANDING = "faultStanding";
+    private final static String WAKE_ALARM_LATCH = "alarmLatch";
+    private final static String WAKE_CANCEL_AUDIBLE = "cancelAudible";
+    private final static String WAKE_SMS = "sms";
+    private AlarmManager mAlarmManager = null;
+    private PendingIntent mFaultCheckIntent = null;
+    private BroadcastReceiver mFaultCheckReceiver = null;
+    private volatile long mLastDataElapsedMs = 0;
+    private volatile long mFaultCheckAtMs = 0;
     private LocationFinder mLocationFinder;
     public SdDataSource mSdDataSource;
     public SdData mSdData = null;
+    // JSON copy of mSdData, re-created whenever mSdData is updated.
+    private volatile SdDataSnapshot mSdDataSnapshot = null;
+    private long mSdDataVersion = 0;
+    private long mChangeSeq = 0;
+    // 24 hours of data at one update every 2 seconds.
+    private final static int HISTORY_CAPACITY = 24 * 3600 / 2;
+    private SdDataHistory mSdDataHistory = new SdDataHistory(HISTORY_CAPACITY);
+    private final List<SdDataListener> mSdDataListeners = new CopyOnWriteArrayList<SdDataListener>();
+    private final SdDataSerializer mSdDataSerializer = new SdDataSerializer();
     public String mSdDataSourceName = "undefined";  // The name of the data soruce specified in the preferences.
     private boolean mLatchAlarms = false;
     private int mLatchAlarmPeriod = 0;
@@ -115,7 +177,6 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
     private boolean mSMSAlarm = false;
     private String[] mSMSNumbers;
     private String mSMSMsgStr = "default SMS Message";
-    public Time mSMSTime = null;  // last time we sent an SMS Alarm (limited to one per minute)
     private boolean mLogAlarms = true;
     private boolean mLogData = false;
     private File mOutFile;
@@ -177,9 +238,28 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
 
         // Create a wake lock, but don't use it until the service is started.
+        // mWakeManager decides when it is held.
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "MyWakelockTag");
+        mWakeLock.setReferenceCounted(false);
+        mWakeManager = new SdWakeManager(new SdWakeManager.WakeLockHandle() {
+            public void acquire() {
+                mWakeLock.acquire();
+            }
+
+            public void release() {
+                mWakeLock.release();
+            }
+        });
+        SdScheduler.getInstance().setWakeManager(mWakeManager);
+
+        // Alarm annunciations and logging run on their own threads so
+        // they are not delayed by each other or by the UI.
+        mAnnunciator = AlarmStateMachine.newAnnunciatorExecutor();
+        mAlarmLogger = Executors.newSingleThreadExecutor();
+        mAlarmStateMachine = new AlarmStateMachine(new AlarmActions(), mAnnunciator, mAlarmLogger);
+        mAlarmStateMachine.setWakeManager(mWakeManager);
     }
 
     /**
@@ -207,6 +287,11 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
                 mUtil.writeToSysLogFile("SdServer.onStartCommand() - creating SdDataSourceNetwork");
                 mSdDataSource = new SdDataSourceNetwork(this.getApplicationContext(), mHandler, this);
                 break;
+            case "Simulator":
+                Log.v(TAG, "Selecting Simulator DataSource");
+                mUtil.writeToSysLogFile("SdServer.onStartCommand() - creating SdDataSourceSimulator");
+                mSdDataSource = new SdDataSourceSimulator(this.getApplicationContext(), mHandler, this);
+                break;
             default:
                 Log.v(TAG, "Datasource " + mSdDataSourceName + " not recognised - Exiting");
                 mUtil.writeToSysLogFile("SdServer.onStartCommand() - Datasource " + mSdDataSourceName + " not recognised - exiting");
@@ -219,49 +304,66 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mLocationFinder = new LocationFinder(getApplicationContext());
         }
         mUtil.writeToSysLogFile("SdServer.onStartCommand() - starting SdDataSource");
+        mSdDataSource.setWakeManager(mWakeManager);
         mSdDataSource.start();
+        startPatients();
 
 
         // Display a notification icon in the status bar of the phone to
         // show the service is running.
         Log.v(TAG, "showing Notification");
         mUtil.writeToSysLogFile("SdServer.onStartCommand() - showing Notification");
-        showNotification(0);
-
-        // Record last time we sent an SMS so we can limit rate of SMS
-        // sending to one per minute.
-        mSMSTime = new Time(Time.getCurrentTimezone());
+        updateNotification(0);
 
 
         // Start timer to log data regularly..
-        if (dataLogTimer == null) {
+        if (mDataLogTask == null) {
             Log.v(TAG, "onStartCommand(): starting dataLog timer");
             mUtil.writeToSysLogFile("SdServer.onStartCommand() - starting dataLog timer");
-            dataLogTimer = new Timer();
-            dataLogTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    logData();
-                }
-            }, 0, 1000 * 60);
+            mDataLogTask = SdScheduler.getInstance().schedulePeriodic("SdServer.logData",
+                    new Runnable() {
+                        public void run() {
+                            logData();
+                        }
+                    }, 0, 1000 * 60);
         } else {
             Log.v(TAG, "onStartCommand(): dataLog timer already running.");
             mUtil.writeToSysLogFile("SdServer.onStartCommand() - dataLog timer already running???");
         }
 
+        // Compress and delete old log files once an hour, on a background thread.
+        if (mLogMaintenanceTask == null) {
+            mLogMaintenance = new LogMaintenance(mUtil.getDataStorageDir());
+            setLogMaintenancePolicy();
+            mLogMaintenanceTask = SdScheduler.getInstance().schedulePeriodic("SdServer.logMaintenance",
+                    new Runnable() {
+                        public void run() {
+                            mLogMaintenance.runInBackground();
+                        }
+                    }, 60 * 1000, 60 * 60 * 1000);
+        }
+
 
         // Start the web server
         mUtil.writeToSysLogFile("SdServer.onStartCommand() - starting web server");
         startWebServer();
 
-        // Apply the wake-lock to prevent CPU sleeping (very battery intensive!)
-        if (mWakeLock != null) {
-            mWakeLock.acquire();
+        // In power saving mode only hold the wake lock while there is work
+        // to do, and rely on an AlarmManager wake-up to detect loss of data.
+        // Otherwise apply it permanently to prevent the CPU sleeping (very
+        // battery intensive!).  Only the pebble data source supports power
+        // saving mode - the network data source polls on its own thread, as
+        // do the sources for any other patients being monitored.
+        if (mPowerSavingMode && mSdDataSource.getFaultCheckDelayMs() > 0
+                && mPatientSources.isEmpty()) {
+            Log.v(TAG, "Power saving mode - only holding wake lock while processing data");
+            mUtil.writeToSysLogFile("SdServer.onStartCommand() - power saving mode");
+            mWakeManager.setDutyCycled(true);
+            startFaultCheck();
+        } else {
             Log.v(TAG, "Applied Wake Lock to prevent device sleeping");
             mUtil.writeToSysLogFile("SdServer.onStartCommand() - applying wake lock");
-        } else {
-            Log.d(TAG, "mmm...mWakeLock is null, so not aquiring lock.  This shouldn't happen!");
-            mUtil.writeToSysLogFile("SdServer.onStartCommand() - mWakeLock is not null - this shouldn't happen???");
+            mWakeManager.setDutyCycled(false);
         }
 
         return START_STICKY;
@@ -272,20 +374,13 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         Log.v(TAG, "onDestroy(): SdServer Service stopping");
         mUtil.writeToSysLogFile("SdServer.onDestroy() - releasing wakelock");
         // release the wake lock to allow CPU to sleep and reduce
-        // battery drain.
-        if (mWakeLock != null) {
-            try {
-                mWakeLock.release();
-                Log.v(TAG, "Released Wake Lock to allow device to sleep.");
-            } catch (Exception e) {
-                Log.e(TAG, "Error Releasing Wakelock - " + e.toString());
-                mUtil.writeToSysLogFile("SdServer.onDestroy() - Error releasing wakelock.");
-                mUtil.showToast("Error Releasing Wakelock");
-            }
-        } else {
-            Log.d(TAG, "mmm...mWakeLock is null, so not releasing lock.  This shouldn't happen!");
-            mUtil.writeToSysLogFile("SdServer.onDestroy() - mWakeLock is null so not releasing lock - this Shouldn't happen???");
-        }
+        // battery drain, recording how long it was held for.
+        stopFaultCheck();
+        StringBuilder wakeStats = new StringBuilder();
+        mWakeManager.statsToJson(wakeStats);
+        mUtil.writeToSysLogFile("SdServer.onDestroy() - wake lock stats " + wakeStats);
+        mWakeManager.releaseAll();
+        Log.v(TAG, "Released Wake Lock to allow device to sleep.");
 
         if (mSdDataSource != null) {
             Log.v(TAG, "stopping mSdDataSource");
@@ -295,6 +390,7 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             Log.e(TAG, "ERROR - mSdDataSource is null - why????");
             mUtil.writeToSysLogFile("SdServer.onDestroy() - mSdDataSource is null - why???");
         }
+        stopPatients();
 
         // Stop the Cancel Audible timer
         if (mCancelAudibleTimer != null) {
@@ -307,11 +403,39 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         // Stop the Cancel Alarm Latch timer
         stopLatchTimer();
 
+        // Stop the data log timer, and record how the scheduled tasks performed.
+        if (mDataLogTask != null) {
+            mDataLogTask.cancel();
+            mDataLogTask = null;
+        }
+        if (mLogMaintenanceTask != null) {
+            mLogMaintenanceTask.cancel();
+            mLogMaintenanceTask = null;
+            mUtil.writeToSysLogFile("SdServer.onDestroy() - log maintenance " + mLogMaintenance);
+        }
+        StringBuilder schedStats = new StringBuilder();
+        SdScheduler.getInstance().statsToJson(schedStats);
+        mUtil.writeToSysLogFile("SdServer.onDestroy() - scheduler stats " + schedStats);
+
+        // Stop the alarm threads, letting any queued annunciations finish.
+        mAnnunciator.shutdown();
+        mAlarmLogger.shutdown();
+        StringBuilder alarmStats = new StringBuilder();
+        mAlarmStateMachine.toJson(alarmStats);
+        mUtil.writeToSysLogFile("SdServer.onDestroy() - alarm stats " + alarmStats);
+
+        // Let any bound activities show that we have stopped, then forget them.
+        notifySdDataListeners();
+        mSdDataListeners.clear();
+
         try {
             // Cancel the notification.
             Log.v(TAG, "onDestroy(): cancelling notification");
             mUtil.writeToSysLogFile("SdServer.onDestroy - cancelling notification");
             mNM.cancel(NOTIFICATION_ID);
+            synchronized (this) {
+                mShownNotificationLevel = -1;
+            }
             // Stop web server
             Log.v(TAG, "onDestroy(): stopping web server");
             mUtil.writeToSysLogFile("SdServer.onDestroy() - stopping Web Server");
@@ -328,6 +452,8 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
         mUtil.writeToSysLogFile("SdServer.onDestroy() - releasing mToneGenerator");
         mToneGenerator.release();
+        // Make sure the log files are up to date in case the process is killed.
+        mUtil.getLogWriter().flush(1000);
         mToneGenerator = null;
     }
 
@@ -369,6 +495,32 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         mNM.notify(NOTIFICATION_ID, notification);
     }
 
+    /**
+     * Record the notification level for the local patient and show the
+     * worst level across all of the patients being monitored, so an OK
+     * update for one patient does not hide another patient's alarm.
+     */
+    private void updateNotification(int alarmLevel) {
+        showWorstNotification(alarmLevel, null, 0);
+    }
+
+    private synchronized void showWorstNotification(int localLevel, PatientAlarmActions patient,
+                                                    int patientLevel) {
+        if (patient == null) {
+            mLocalNotificationLevel = localLevel;
+        } else {
+            patient.mNotificationLevel = patientLevel;
+        }
+        int worst = mLocalNotificationLevel;
+        for (PatientAlarmActions actions : mPatientActions) {
+            worst = Math.max(worst, actions.mNotificationLevel);
+        }
+        if (worst != mShownNotificationLevel) {
+            mShownNotificationLevel = worst;
+            showNotification(worst);
+        }
+    }
+
     // Show the main activity on the user's screen.
     private void showMainActivity() {
         Log.v(TAG, "showMainActivity()");
@@ -396,124 +548,105 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
      * @param sdData
      */
     public void onSdDataReceived(SdData sdData) {
-        Log.v(TAG, "onSdDataReceived() - " + sdData.toString());
-        if (sdData.alarmState == 0) {
-            if ((!mLatchAlarms) ||
-                    (mLatchAlarms &&
-                            (!mSdData.alarmStanding && !mSdData.fallAlarmStanding))) {
-                sdData.alarmPhrase = "OK";
-                sdData.alarmStanding = false;
-                sdData.fallAlarmStanding = false;
-                showNotification(0);
-            }
-        }
-        // Handle manual mute from watch buttons.
-        if (sdData.alarmState == 6) {
-            sdData.alarmPhrase = "MUTE";
-            sdData.alarmStanding = false;
-            sdData.fallAlarmStanding = false;
-            showNotification(0);
-        }
-        // Handle warning alarm state
-        if (sdData.alarmState == 1) {
-            if ((!mLatchAlarms) ||
-                    (mLatchAlarms &&
-                            (!mSdData.alarmStanding && !mSdData.fallAlarmStanding))) {
-                sdData.alarmPhrase = "WARNING";
-                sdData.alarmStanding = false;
-                sdData.fallAlarmStanding = false;
-            }
-            if (mLogAlarms) {
-                Log.v(TAG, "WARNING - Logging to SD Card");
-                writeAlarmToSD();
-                logData();
-            } else {
-                Log.v(TAG, "WARNING");
-            }
-            warningBeep();
-            showNotification(1);
-        }
-        // respond to normal alarms (2) and manual alarms (5)
-        if ((sdData.alarmState == 2) || (sdData.alarmState == 5)) {
-            sdData.alarmPhrase = "ALARM";
-            sdData.alarmStanding = true;
-            if (mLogAlarms) {
-                Log.v(TAG, "***ALARM*** - Logging to SD Card");
-                writeAlarmToSD();
-                logData();
-            } else {
-                Log.v(TAG, "***ALARM***");
-            }
-            // Make alarm beep tone
-            alarmBeep();
-            showNotification(2);
-            // Display MainActvity
-            showMainActivity();
-            // Send SMS Alarm.
-            if (mSMSAlarm) {
-                Time tnow = new Time(Time.getCurrentTimezone());
-                tnow.setToNow();
-                // limit SMS alarms to one per minute
-                if ((tnow.toMillis(false)
-                        - mSMSTime.toMillis(false))
-                        > 60000) {
-                    sendSMSAlarm();
-                    mSMSTime = tnow;
-                }
-            }
-            startLatchTimer();
-        }
-        // Handle fall alarm
-        if ((sdData.alarmState == 3) || (sdData.fallAlarmStanding)) {
-            sdData.alarmPhrase = "FALL";
-            sdData.fallAlarmStanding = true;
-            if (mLogAlarms) {
-                Log.v(TAG, "***FALL*** - Logging to SD Card");
-                writeAlarmToSD();
-                logData();
-            } else {
-                Log.v(TAG, "***FALL***");
-            }
-            // Make alarm beep tone
-            alarmBeep();
-            // Display MainActvity
-            showMainActivity();
-            // Send SMS Alarm.
-            if (mSMSAlarm) {
-                Time tnow = new Time(Time.getCurrentTimezone());
-                tnow.setToNow();
-                // limit SMS alarms to one per minute
-                if ((tnow.toMillis(false)
-                        - mSMSTime.toMillis(false))
-                        > 60000) {
-                    sendSMSAlarm();
-                    mSMSTime = tnow;
-                }
-            }
-
-        }
-        // Fault
-        if ((sdData.alarmState) == 4 || (sdData.alarmState == 7)) {
-            sdData.alarmPhrase = "FAULT";
-            writeAlarmToSD();
-            faultWarningBeep();
-        } else {
-            stopFaultTimer();
+        long receivedNs = System.nanoTime();
+        Log.v(TAG, "onSdDataReceived() - alarmState=" + sdData.alarmState);
+        mLastDataElapsedMs = SystemClock.elapsedRealtime();
+        if (mFaultCheckReceiver != null) {
+            // Data is arriving again, so let the phone sleep between messages
+            // and move the fault check wake-up on.
+            mWakeManager.setHeld(WAKE_FAULT_STANDING, false);
+            scheduleFaultCheck();
         }
+        mAlarmStateMachine.process(sdData, receivedNs);
         mSdData = sdData;
         if (webServer != null) webServer.setSdData(mSdData);
-        Log.v(TAG, "onSdDataReceived() - setting mSdData to " + mSdData.toString());
+        mSdDataHistory.add(System.currentTimeMillis(), mSdData);
+        publishSdData();
+        mDataCount.inc();
+        mProcessTime.recordSince(receivedNs);
+        Log.v(TAG, "onSdDataReceived() - setting mSdData to " + mSdDataSnapshot.getJson());
     }
 
     // Called by SdDataSource when a fault condition is detected.
     public void onSdDataFault(SdData sdData) {
+        long receivedNs = System.nanoTime();
         Log.v(TAG, "onSdDataFault()");
         mSdData = sdData;
-        mSdData.alarmState = 4;  // set fault alarm state.
+        mAlarmStateMachine.processFault(mSdData, receivedNs);  // sets fault alarm state.
         if (webServer != null) webServer.setSdData(mSdData);
-        if (mAudibleFaultWarning) {
-            faultWarningBeep();
+        publishSdData();
+        mFaultCount.inc();
+    }
+
+    // Called by SdDataSource when the watch connection status or settings
+    // change, so clients do not see them stale until the next data arrives.
+    public void onSdDataStatus(SdData sdData) {
+        Log.v(TAG, "onSdDataStatus()");
+        mSdData = sdData;
+        publishSdData();
+    }
+
+    /**
+     * Serialise mSdData once and make it available to other threads through
+     * getSdDataSnapshot(), and to clients of the web server /stream.
+     */
+    private synchronized void publishSdData() {
+        SdDataSnapshot prev = mSdDataSnapshot;
+        mSdDataVersion++;
+        mSdDataSnapshot = SdDataSnapshot.create(mSdData, mSdDataVersion, mSdDataSerializer);
+        // Push the new data to web clients straight away, flagging changes of
+        // alarm state so they can react to them immediately.
+        boolean alarmChanged = (prev == null)
+                || (prev.getAlarmState() != mSdDataSnapshot.getAlarmState());
+        if (webServer != null) webServer.publishSdData(mSdDataSnapshot, alarmChanged);
+        notifySdDataListeners();
+    }
+
+    /**
+     * @return the recent history of the detector outputs.
+     */
+    public SdDataHistory getSdDataHistory() {
+        return mSdDataHistory;
+    }
+
+    /**
+     * Register a listener to be told whenever the data or alarm status
+     * changes.  Must be called on the UI thread.
+     */
+    public void addSdDataListener(SdDataListener listener) {
+        if (!mSdDataListeners.contains(listener)) mSdDataListeners.add(listener);
+    }
+
+    public void removeSdDataListener(SdDataListener listener) {
+        mSdDataListeners.remove(listener);
+    }
+
+    /**
+     * @return the sequence number of the most recent change notification.
+     */
+    public synchronized long getChangeSeq() {
+        return mChangeSeq;
+    }
+
+    /**
+     * Tell the listeners that something they display has changed.
+     */
+    private void notifySdDataListeners() {
+        long seq;
+        synchronized (this) {
+            seq = ++mChangeSeq;
         }
+        for (SdDataListener listener : mSdDataListeners) {
+            listener.onSdDataChanged(seq);
+        }
+    }
+
+    /**
+     * @return the latest data as an immutable JSON snapshot, or null if we
+     * have not received any data yet.
+     */
+    public SdDataSnapshot getSdDataSnapshot() {
+        return mSdDataSnapshot;
     }
 
     /* from http://stackoverflow.com/questions/12154940/how-to-make-a-beep-in-android */
@@ -534,45 +667,62 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
     /*
      * beep, provided mAudibleAlarm is set
+     * @return true if a beep was made.
      */
-    public void faultWarningBeep() {
-        if (mFaultTimerCompleted) {
-            if (mCancelAudible) {
-                Log.v(TAG, "faultWarningBeep() - CancelAudible Active - silent beep...");
-            } else {
-                if (mAudibleFaultWarning) {
-                    if (mMp3Alarm) {
-                        Log.v(TAG,"making MP3 alarm beep");
-                        // From https://stackoverflow.com/questions/4441334/how-to-play-an-android-notification-sound
-                        // This plays an audio file as a notification, using the notification sound channel.
-                        NotificationManager notificationManager =
-                                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-                        Uri soundUri = Uri.parse("android.resource://"+getPackageName()+"/raw/fault");
-                        NotificationCompat.Builder mBuilder =
-                                new NotificationCompat.Builder(getApplicationContext())
-                                        .setSound(soundUri); //This sets the sound to play
-                        notificationManager.notify(0, mBuilder.build());
-                    } else {
-                        beep(10);
-                    }
-                    Log.v(TAG, "faultWarningBeep()");
-                    mUtil.writeToSysLogFile("SdServer.faultWarningBeep() - beeping");
-                } else {
-                    Log.v(TAG, "faultWarningBeep() - silent...");
-                }
-            }
+    public boolean faultWarningBeep() {
+        boolean completed;
+        synchronized (mFaultTimerLock) {
+            completed = mFaultTimerCompleted;
+        }
+        if (completed) {
+            return makeFaultBeep();
         } else {
             startFaultTimer();
             Log.v(TAG, "faultWarningBeep() - starting Fault Timer");
+            return false;
         }
 
     }
 
+    /*
+     * beep straight away, provided mAudibleFaultWarning is set.
+     * @return true if a beep was made.
+     */
+    boolean makeFaultBeep() {
+        if (mCancelAudible) {
+            Log.v(TAG, "faultWarningBeep() - CancelAudible Active - silent beep...");
+        } else {
+            if (mAudibleFaultWarning) {
+                if (mMp3Alarm) {
+                    Log.v(TAG,"making MP3 alarm beep");
+                    // From https://stackoverflow.com/questions/4441334/how-to-play-an-android-notification-sound
+                    // This plays an audio file as a notification, using the notification sound channel.
+                    NotificationManager notificationManager =
+                            (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+                    Uri soundUri = Uri.parse("android.resource://"+getPackageName()+"/raw/fault");
+                    NotificationCompat.Builder mBuilder =
+                            new NotificationCompat.Builder(getApplicationContext())
+                                    .setSound(soundUri); //This sets the sound to play
+                    notificationManager.notify(0, mBuilder.build());
+                } else {
+                    beep(10);
+                }
+                Log.v(TAG, "faultWarningBeep()");
+                mUtil.writeToSysLogFile("SdServer.faultWarningBeep() - beeping");
+                return true;
+            } else {
+                Log.v(TAG, "faultWarningBeep() - silent...");
+            }
+        }
+        return false;
+    }
+
 
     /*
      * beep, provided mAudibleAlarm is set
+     * @return true if a beep was made.
      */
-    public void alarmBeep() {
+    public boolean alarmBeep() {
         if (mCancelAudible) {
             Log.v(TAG, "alarmBeep() - CancelAudible Active - silent beep...");
         } else {
@@ -593,16 +743,19 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
                 }
                 Log.v(TAG, "alarmBeep()");
                 mUtil.writeToSysLogFile("SdServer.alarmBeep() - beeping");
+                return true;
             } else {
                 Log.v(TAG, "alarmBeep() - silent...");
             }
         }
+        return false;
     }
 
     /*
      * beep, provided mAudibleWarning is set
+     * @return true if a beep was made.
      */
-    public void warningBeep() {
+    public boolean warningBeep() {
         if (mCancelAudible) {
             Log.v(TAG, "warningBeep() - CancelAudible Active - silent beep...");
         } else {
@@ -623,10 +776,12 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
                 }
                 Log.v(TAG, "warningBeep()");
                 mUtil.writeToSysLogFile("SdServer.warningBeep() - beeping");
+                return true;
             } else {
                 Log.v(TAG, "warningBeep() - silent...");
             }
         }
+        return false;
     }
 
 
@@ -637,6 +792,9 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
      */
     public void sendSMSAlarm() {
         if (mSMSAlarm) {
+            // Stay awake until the location search finishes and the second
+            // SMS has been sent - see onSdLocationReceived().
+            mWakeManager.acquire(WAKE_SMS);
             mLocationFinder.getLocation(this);
             Location loc = mLocationFinder.getLastLocation();
             if (loc != null) {
@@ -673,6 +831,14 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
     @Override
     public void onSdLocationReceived(Location ll) {
+        try {
+            sendLocationSMS(ll);
+        } finally {
+            mWakeManager.release(WAKE_SMS);
+        }
+    }
+
+    private void sendLocationSMS(Location ll) {
         if (ll == null) {
             mUtil.showToast("onSdLocationReceived() - NULL LOCATION RECEIVED");
             Log.v(TAG, "onSdLocationReceived() - NULL LOCATION RECEIVED");
@@ -732,6 +898,7 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mLatchAlarmTimer =
                     new LatchAlarmTimer(mLatchAlarmPeriod * 1000, 1000);
             mLatchAlarmTimer.start();
+            mWakeManager.setHeld(WAKE_ALARM_LATCH, true);
         } else {
             Log.v(TAG, "startLatchTimer() - Latch Alarms disabled - not doing anything");
         }
@@ -746,6 +913,7 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mLatchAlarmTimer.cancel();
             mLatchAlarmTimer = null;
         }
+        mWakeManager.setHeld(WAKE_ALARM_LATCH, false);
     }
 
     /**
@@ -755,8 +923,10 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         Log.v(TAG, "acceptAlarm()");
         mSdData.alarmStanding = false;
         mSdData.fallAlarmStanding = false;
+        mAlarmStateMachine.acceptAlarm();
         mSdDataSource.acceptAlarm();
         stopLatchTimer();
+        publishSdData();
     }
 
 
@@ -768,6 +938,7 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mCancelAudibleTimer.cancel();
             mCancelAudibleTimer = null;
             mCancelAudible = false;
+            mWakeManager.setHeld(WAKE_CANCEL_AUDIBLE, false);
         } else {
             Log.v(TAG, "cancelAudible(): starting cancel audible timer");
             mCancelAudible = true;
@@ -775,7 +946,9 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
                     // conver to ms.
                     new CancelAudibleTimer(mCancelAudiblePeriod * 60 * 1000, 1000);
             mCancelAudibleTimer.start();
+            mWakeManager.setHeld(WAKE_CANCEL_AUDIBLE, true);
         }
+        notifySdDataListeners();
     }
 
     public boolean isAudibleCancelled() {
@@ -882,6 +1055,11 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mMp3Alarm = SP.getBoolean("UseMp3Alarm", false);
             Log.v(TAG, "updatePrefs() - mMp3Alarm = " + mMp3Alarm);
 
+            mPowerSavingMode = SP.getBoolean("PowerSavingMode", false);
+            Log.v(TAG, "updatePrefs() - mPowerSavingMode = " + mPowerSavingMode);
+            mPatientList = SP.getString("Patients", "");
+            Log.v(TAG, "updatePrefs() - mPatientList = " + mPatientList);
+
             mSMSAlarm = SP.getBoolean("SMSAlarm", false);
             Log.v(TAG, "updatePrefs() - mSMSAlarm = " + mSMSAlarm);
             String SMSNumberStr = SP.getString("SMSNumbers", "");
@@ -893,6 +1071,23 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             Log.v(TAG, "updatePrefs() - mLogAlarms = " + mLogAlarms);
             mLogData = SP.getBoolean("LogData", false);
             Log.v(TAG, "updatePrefs() - mLogData = " + mLogData);
+            mLogCompress = SP.getBoolean("LogCompress", true);
+            try {
+                mLogRetentionDays = Integer.parseInt(SP.getString("LogRetentionDays", "0"));
+                mLogMaxSizeMb = Integer.parseInt(SP.getString("LogMaxSizeMb", "0"));
+                Log.v(TAG, "updatePrefs() - mLogRetentionDays = " + mLogRetentionDays
+                        + ", mLogMaxSizeMb = " + mLogMaxSizeMb);
+            } catch (Exception ex) {
+                Log.v(TAG, "updatePrefs() - Problem with log retention preferences!");
+                Toast toast = Toast.makeText(getApplicationContext(), "Problem Parsing Log Retention Preferences", Toast.LENGTH_SHORT);
+                toast.show();
+            }
+            setLogMaintenancePolicy();
+
+            mAlarmStateMachine.setLatchAlarms(mLatchAlarms);
+            mAlarmStateMachine.setLogAlarms(mLogAlarms);
+            mAlarmStateMachine.setSmsAlarm(mSMSAlarm);
+            mAlarmStateMachine.setAudibleFaultWarning(mAudibleFaultWarning);
 
         } catch (Exception ex) {
             Log.v(TAG, "updatePrefs() - Problem parsing preferences!");
@@ -910,6 +1105,26 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         writeToSD(true);
     }
 
+    /**
+     * Record a change of alarm state in the event log database.  This is
+     * called on the alarm logger thread, so alarms are committed straight
+     * away (addRow(..., true)) rather than waiting for the next batch, so
+     * they are not lost if the process dies.
+     */
+    private void logEvent(int state, String alarmPhrase, String dataJson) {
+        LogEntryModel event = new LogEntryModel();
+        event.setDate(new Date());
+        event.setAlarmState(state);
+        event.setNote(alarmPhrase);
+        event.setDataJSON(dataJson);
+        boolean alarm = state == AlarmStateMachine.STATE_WARNING
+                || state == AlarmStateMachine.STATE_ALARM
+                || state == AlarmStateMachine.STATE_FALL;
+        if (!EventLogManager.getInstance(this).addRow(event, alarm)) {
+            mUtil.writeToSysLogFile("SdServer.logEvent() - timed out writing alarm event");
+        }
+    }
+
     /**
      * Write to data log file on SD Card
      */
@@ -923,10 +1138,6 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
      */
     public void writeToSD(boolean alarm) {
         Log.v(TAG, "writeToSD(" + alarm + ")");
-        Time tnow = new Time(Time.getCurrentTimezone());
-        tnow.setToNow();
-        String dateStr = tnow.format("%Y-%m-%d");
-
         // Select filename depending on 'alarm' parameter.
         String fname;
         if (alarm)
@@ -934,19 +1145,21 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         else
             fname = "DataLog";
 
-        fname = fname + "_" + dateStr + ".txt";
-        // Open output directory on SD Card.
         if (mUtil.isExternalStorageWritable()) {
-            try {
-                FileWriter of = new FileWriter(mUtil.getDataStorageDir().toString()
-                        + "/" + fname, true);
-                if (mSdData != null) {
-                    Log.v(TAG, "writing mSdData.toString()");
-                    of.append(mSdData.toString() + "\n");
+            if (mSdData != null) {
+                // Alarms are flushed to the card immediately, data log
+                // entries are written in batches using the compact binary
+                // DataLogFormat.
+                if (alarm) {
+                    SdDataSnapshot snapshot = mSdDataSnapshot;
+                    String json = (snapshot != null) ? snapshot.getJson() : mSdData.toString();
+                    mUtil.getLogWriter().write(fname, json, false, true);
+                } else {
+                    long timeMs = (mSdData.dataTime != null) ?
+                            mSdData.dataTime.toMillis(false) : System.currentTimeMillis();
+                    mUtil.getLogWriter().writeBinary(fname, DataLogFormat.FILE_EXT,
+                            DataLogFormat.header(), DataLogFormat.encode(timeMs, mSdData), false);
                 }
-                of.close();
-            } catch (Exception ex) {
-                Log.e(TAG, "writeAlarmToSD - error " + ex.toString());
             }
         } else {
             Log.e(TAG, "ERROR - Can not Write to External Folder");
@@ -991,7 +1204,9 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
         @Override
         public void onFinish() {
             mCancelAudible = false;
+            mWakeManager.setHeld(WAKE_CANCEL_AUDIBLE, false);
             Log.v(TAG, "mCancelAudibleTimer - removing cancelAudible flag");
+            notifySdDataListeners();
         }
 
         @Override
@@ -999,8 +1214,315 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
             mCancelAudibleTimeRemaining = msRemaining / 1000;
             Log.v(TAG, "mCancelAudibleTimer - onTick() - Time Remaining = "
                     + mCancelAudibleTimeRemaining);
+            // The UI shows the time remaining.
+            notifySdDataListeners();
+        }
+
+    }
+
+    /**
+     * In power saving mode the SdScheduler thread does not run while the
+     * phone is asleep, so set an AlarmManager wake-up to ask the data source
+     * to check for a fault if data stops arriving.
+     * Once a fault has been found the CPU is held awake (WAKE_FAULT_STANDING)
+     * until data arrives again, so the status timer, FaultTimer and repeated
+     * fault beeps run on time rather than waiting for further wake-ups.
+     * Limit: in Doze, Android allows an app only about one allow-while-idle
+     * alarm every 9 minutes, so the first fault check after a previous fault
+     * can be deferred by up to that long.  How late each wake-up fires is
+     * recorded in the osd_fault_check_late_seconds metric.
+     */
+    private void startFaultCheck() {
+        if (mFaultCheckReceiver != null) {
+            Log.v(TAG, "startFaultCheck() - already running");
+            return;
+        }
+        mAlarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        mFaultCheckReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mWakeManager.run(WAKE_FAULT_CHECK, new Runnable() {
+                    public void run() {
+                        long nowMs = SystemClock.elapsedRealtime();
+                        Log.v(TAG, "Fault check wake-up - " + (nowMs - mFaultCheckAtMs) + " ms late");
+                        if (mFaultCheckAtMs > 0 && nowMs > mFaultCheckAtMs) {
+                            mFaultCheckLateness.record((nowMs - mFaultCheckAtMs) * 1000000L);
+                        }
+                        if (mSdDataSource != null) mSdDataSource.checkStatus();
+                        if (mSdDataSource != null && nowMs - mLastDataElapsedMs
+                                >= mSdDataSource.getFaultCheckDelayMs()) {
+                            mUtil.writeToSysLogFile("SdServer - fault check found no data - holding wake lock until data returns");
+                            mWakeManager.setHeld(WAKE_FAULT_STANDING, true);
+                        } else {
+                            scheduleFaultCheck();
+                        }
+                    }
+                });
+            }
+        };
+        registerReceiver(mFaultCheckReceiver, new IntentFilter(ACTION_FAULT_CHECK));
+        Intent intent = new Intent(ACTION_FAULT_CHECK);
+        intent.setPackage(getPackageName());
+        mFaultCheckIntent = PendingIntent.getBroadcast(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        mLastDataElapsedMs = SystemClock.elapsedRealtime();
+        scheduleFaultCheck();
+    }
+
+    /**
+     * Set the fault check wake-up for the time a fault would be detected if
+     * no more data arrives.  This is called for every message, so the
+     * wake-up only fires once data has stopped and does not use up the
+     * Doze allowance while data is arriving.
+     */
+    private void scheduleFaultCheck() {
+        if (mFaultCheckIntent == null || mSdDataSource == null) return;
+        long delayMs = mSdDataSource.getFaultCheckDelayMs();
+        long nowMs = SystemClock.elapsedRealtime();
+        long atMs = mLastDataElapsedMs + delayMs;
+        if (atMs <= nowMs) atMs = nowMs + delayMs;
+        mFaultCheckAtMs = atMs;
+        if (Build.VERSION.SDK_INT >= 23) {
+            // Still fires in Doze mode.
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    atMs, mFaultCheckIntent);
+        } else if (Build.VERSION.SDK_INT >= 19) {
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, atMs, mFaultCheckIntent);
+        } else {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, atMs, mFaultCheckIntent);
+        }
+    }
+
+    private void stopFaultCheck() {
+        if (mFaultCheckReceiver != null) {
+            Log.v(TAG, "stopFaultCheck()");
+            mAlarmManager.cancel(mFaultCheckIntent);
+            unregisterReceiver(mFaultCheckReceiver);
+            mWakeManager.setHeld(WAKE_FAULT_STANDING, false);
+            mFaultCheckReceiver = null;
+            mFaultCheckIntent = null;
+        }
+    }
+
+    /**
+     * @return the alarm state machine, which records the alarm latencies.
+     */
+    public AlarmStateMachine getAlarmStateMachine() {
+        return mAlarmStateMachine;
+    }
+
+    /**
+     * Carries out the side effects of the alarm states for mAlarmStateMachine.
+     * Everything except the timers is called on the annunciator or logger
+     * threads.
+     */
+    private class AlarmActions implements AlarmStateMachine.Actions {
+        public boolean warningBeep() {
+            return SdServer.this.warningBeep();
+        }
+
+        public boolean alarmBeep() {
+            return SdServer.this.alarmBeep();
+        }
+
+        public boolean faultWarningBeep() {
+            return SdServer.this.faultWarningBeep();
+        }
+
+        public void showNotification(int alarmLevel) {
+            updateNotification(alarmLevel);
+        }
+
+        public void showMainActivity() {
+            SdServer.this.showMainActivity();
+        }
+
+        public void sendSMSAlarm() {
+            // LocationFinder needs a Looper to request location updates.
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    SdServer.this.sendSMSAlarm();
+                }
+            });
+        }
+
+        public void logAlarm(boolean logData) {
+            writeAlarmToSD();
+            if (logData) logData();
+        }
+
+        public void logEvent(int state, String alarmPhrase, String dataJson) {
+            SdServer.this.logEvent(state, alarmPhrase, dataJson);
         }
 
+        public void startLatchTimer() {
+            SdServer.this.startLatchTimer();
+        }
+
+        public void stopFaultTimer() {
+            SdServer.this.stopFaultTimer();
+        }
+    }
+
+    /**
+     * Start a network data source for each of the other patients listed in
+     * the Patients preference, each with its own alarm state and history.
+     * The sources are polled on the registry's thread pool rather than
+     * having a thread each.
+     */
+    private void startPatients() {
+        List<String[]> patients = PatientRegistry.parsePatientList(mPatientList);
+        if (patients.isEmpty()) return;
+        mPatientRegistry = new PatientRegistry(PatientRegistry.DEFAULT_MAX_PATIENTS,
+                PatientRegistry.DEFAULT_POOL_THREADS);
+        for (int i = 0; i < patients.size(); i++) {
+            if (i >= mPatientRegistry.getMaxPatients()) {
+                mUtil.writeToSysLogFile("SdServer.startPatients() - too many patients - ignoring "
+                        + (patients.size() - i));
+                break;
+            }
+            String name = patients.get(i)[0];
+            String address = patients.get(i)[1];
+            PatientAlarmActions actions = new PatientAlarmActions(name);
+            AlarmStateMachine asm = new AlarmStateMachine(actions, mAnnunciator, mAlarmLogger);
+            asm.setWakeManager(mWakeManager);
+            asm.setLatchAlarms(mLatchAlarms);
+            asm.setLogAlarms(mLogAlarms);
+            asm.setAudibleFaultWarning(mAudibleFaultWarning);
+            PatientRegistry.Patient patient =
+                    mPatientRegistry.addPatient(String.valueOf(i + 1), name, asm);
+            actions.mPatient = patient;
+            synchronized (this) {
+                mPatientActions.add(actions);
+            }
+            SdDataSourceNetwork source = new SdDataSourceNetwork(getApplicationContext(),
+                    mHandler, patient, address, mPatientRegistry.getPool());
+            source.setWakeManager(mWakeManager);
+            source.start();
+            mPatientSources.add(source);
+            Log.v(TAG, "startPatients() - monitoring " + name + " at " + address);
+            mUtil.writeToSysLogFile("SdServer.startPatients() - monitoring " + name + " at " + address);
+        }
+    }
+
+    private void stopPatients() {
+        for (SdDataSource source : mPatientSources) {
+            source.stop();
+        }
+        mPatientSources.clear();
+        synchronized (this) {
+            mPatientActions.clear();
+        }
+        if (mPatientRegistry != null) {
+            mPatientRegistry.shutdown();
+        }
+    }
+
+    /**
+     * Pass the log compression and retention preferences to mLogMaintenance.
+     */
+    private void setLogMaintenancePolicy() {
+        if (mLogMaintenance != null) {
+            mLogMaintenance.setPolicy(mLogCompress, mLogRetentionDays,
+                    mLogMaxSizeMb * 1024L * 1024L);
+        }
+    }
+
+    /**
+     * @return the log file maintenance job, or null if it is not running.
+     */
+    public LogMaintenance getLogMaintenance() {
+        return mLogMaintenance;
+    }
+
+    /**
+     * @return the other patients being monitored, or null if there are none.
+     */
+    public PatientRegistry getPatientRegistry() {
+        return mPatientRegistry;
+    }
+
+    /**
+     * Alarm actions for another patient being monitored.  The beeps are
+     * shared with the local patient and the notification shows the worst
+     * state of all the patients, but SMS alarms are only sent for the local
+     * patient, and the fault and latch timers are kept separately for each
+     * patient.
+     */
+    private class PatientAlarmActions implements AlarmStateMachine.Actions {
+        private final String mName;
+        private PatientRegistry.Patient mPatient;
+        private volatile long mFaultStartMs = 0;
+        private SdScheduler.Task mLatchTask = null;
+        private int mNotificationLevel = 0;
+
+        PatientAlarmActions(String name) {
+            mName = name;
+        }
+
+        public boolean warningBeep() {
+            return SdServer.this.warningBeep();
+        }
+
+        public boolean alarmBeep() {
+            return SdServer.this.alarmBeep();
+        }
+
+        public boolean faultWarningBeep() {
+            // Only beep once the fault has been standing for mFaultTimerPeriod.
+            long nowMs = SystemClock.elapsedRealtime();
+            if (mFaultStartMs == 0) {
+                mFaultStartMs = nowMs;
+            } else if (nowMs - mFaultStartMs >= mFaultTimerPeriod * 1000L) {
+                return makeFaultBeep();
+            }
+            return false;
+        }
+
+        public void showNotification(int alarmLevel) {
+            showWorstNotification(0, this, alarmLevel);
+        }
+
+        public void showMainActivity() {
+            SdServer.this.showMainActivity();
+        }
+
+        public void sendSMSAlarm() {
+            Log.v(TAG, "PatientAlarmActions.sendSMSAlarm() - not sending SMS for " + mName);
+        }
+
+        public void logAlarm(boolean logData) {
+            mUtil.writeToSysLogFile("SdServer - alarm for patient " + mName + ": "
+                    + AlarmStateMachine.STATE_NAMES[mPatient.getAlarmStateMachine().getState()]);
+        }
+
+        public void logEvent(int state, String alarmPhrase, String dataJson) {
+            // Other patients' alarms are only recorded in the system log.
+        }
+
+        public synchronized void startLatchTimer() {
+            if (!mLatchAlarms) return;
+            // Like SdServer.startLatchTimer(), release the latch
+            // mLatchAlarmPeriod after the most recent alarm.
+            if (mLatchTask != null) mLatchTask.cancel();
+            mLatchTask = SdScheduler.getInstance().scheduleOnce("SdServer.patientLatch", new Runnable() {
+                public void run() {
+                    mPatient.acceptAlarm();
+                }
+            }, mLatchAlarmPeriod * 1000L);
+        }
+
+        public void stopFaultTimer() {
+            mFaultStartMs = 0;
+        }
+    }
+
+    /**
+     * @return the wake lock manager, which records how long the wake lock
+     * has been held and why.
+     */
+    public SdWakeManager getWakeManager() {
+        return mWakeManager;
     }
 
     /**
@@ -1008,30 +1530,49 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
      * standing for a period before raising fault beeps.
      */
     public void startFaultTimer() {
-        if (mFaultTimer != null) {
-            Log.v(TAG, "startFaultTimer(): fault timer already running - not doing anything.");
-        } else {
+        final long gen;
+        synchronized (mFaultTimerLock) {
+            if (mFaultTimer != null || mFaultTimerStarting) {
+                Log.v(TAG, "startFaultTimer(): fault timer already running - not doing anything.");
+                return;
+            }
             Log.v(TAG, "startFaultTimer(): starting fault timer.");
-            runOnUiThread(new Runnable() {
-                public void run() {
-                    mFaultTimerCompleted = false;
+            mFaultTimerStarting = true;
+            mFaultTimerCompleted = false;
+            mWakeManager.setHeld(WAKE_FAULT_TIMER, true);
+            gen = mFaultTimerGen;
+        }
+        // CountDownTimer needs the UI thread's Looper.
+        runOnUiThread(new Runnable() {
+            public void run() {
+                synchronized (mFaultTimerLock) {
+                    if (gen != mFaultTimerGen) {
+                        Log.v(TAG, "startFaultTimer(): stopped before it started.");
+                        return;
+                    }
+                    mFaultTimerStarting = false;
                     mFaultTimer =
                             // convert to ms.
                             new FaultTimer(mFaultTimerPeriod * 1000, 1000);
                     mFaultTimer.start();
                 }
-            });
-        }
+            }
+        });
     }
 
     public void stopFaultTimer() {
-        if (mFaultTimer != null) {
-            Log.v(TAG, "stopFaultTimer(): fault timer already running - cancelling it.");
-            mFaultTimer.cancel();
-            mFaultTimer = null;
+        synchronized (mFaultTimerLock) {
+            if (mFaultTimer != null || mFaultTimerStarting) {
+                Log.v(TAG, "stopFaultTimer(): fault timer already running - cancelling it.");
+                if (mFaultTimer != null) mFaultTimer.cancel();
+                mFaultTimer = null;
+                mFaultTimerStarting = false;
+                mFaultTimerGen++;
+                mWakeManager.setHeld(WAKE_FAULT_TIMER, false);
+            } else {
+                Log.v(TAG, "stopFaultTimer(): fault timer not running - not doing anything.");
+            }
             mFaultTimerCompleted = false;
-        } else {
-            Log.v(TAG, "stopFaultTimer(): fault timer not running - not doing anything.");
         }
     }
 
@@ -1049,7 +1590,12 @@ public class SdServer extends Service implements SdDataReceiver, SdLocationRecei
 
         @Override
         public void onFinish() {
-            mFaultTimerCompleted = true;
+            synchronized (mFaultTimerLock) {
+                // A cancelled timer can still finish if it was already due.
+                if (mFaultTimer != this) return;
+                mFaultTimerCompleted = true;
+                mWakeManager.setHeld(WAKE_FAULT_TIMER, false);
+            }
             Log.v(TAG, "mFaultTimer - removing mFaultTimerRunning flag");
         }
 
@@ -40,6 +40,7 @@ public class SdServiceConnection implements ServiceConnection {
     public SdServer mSdServer = null;
     public boolean mBound = false;
     public Context mContext;
+    private SdDataListener mSdDataListener = null;
 
     public SdServiceConnection(Context context) {
         mContext = context;
@@ -55,6 +56,10 @@ public class SdServiceConnection implements ServiceConnection {
         if (mSdServer != null) {
             Log.v(TAG, "onServiceConnected() - Asking server to update its settings");
             mSdServer.updatePrefs();
+            if (mSdDataListener != null) {
+                mSdServer.addSdDataListener(mSdDataListener);
+                mSdDataListener.onSdDataChanged(mSdServer.getChangeSeq());
+            }
         } else {
             Log.v(TAG, "onServiceConnected() - mSdServer is null - this is wrong!");
         }
@@ -64,6 +69,24 @@ public class SdServiceConnection implements ServiceConnection {
     public void onServiceDisconnected(ComponentName arg0) {
         Log.v(TAG, "onServiceDisonnected()");
         mBound = false;
+        if (mSdServer != null && mSdDataListener != null) {
+            mSdServer.removeSdDataListener(mSdDataListener);
+            mSdDataListener.onSdDataChanged(mSdServer.getChangeSeq());
+        }
+    }
+
+    /**
+     * Set the listener to be registered with the server whenever we are
+     * bound to it, or null to stop listening.
+     */
+    public void setSdDataListener(SdDataListener listener) {
+        if (mSdServer != null && mSdDataListener != null) {
+            mSdServer.removeSdDataListener(mSdDataListener);
+        }
+        mSdDataListener = listener;
+        if (mBound && mSdServer != null && listener != null) {
+            mSdServer.addSdDataListener(listener);
+        }
     }
 
     /**
@@ -0,0 +1,697 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simulated watch, so the data processing and alarm pipeline can be tested
+ * and benchmarked without a Pebble or another phone.
+ * Data comes from one of:
+ *   SOURCE_SYNTHETIC - a scenario of accelerometer noise, tremor, data bursts
+ *                      and dropouts (see setScenario()),
+ *   SOURCE_RAW       - a recording of raw accelerometer magnitudes,
+ *   SOURCE_DATALOG   - a recorded DataLog (.osdl) file of analysis results.
+ * Raw data is analysed with SdAnalyser, as in the pebble SD_MODE_RAW, and the
+ * results are passed to the SdDataReceiver through the delivery Executor (the
+ * UI thread on the phone) at between 1 and MAX_SPEED times real time.
+ * Throughput and latency statistics are kept - see toJson().
+ * Everything other than logging is plain Java, so it can also be run on a PC
+ * with main().
+ */
+public class SdSimulator implements Runnable {
+    public final static int SOURCE_SYNTHETIC = 0;
+    public final static int SOURCE_RAW = 1;
+    public final static int SOURCE_DATALOG = 2;
+    private final static String[] SOURCE_NAMES = {"synthetic", "raw", "datalog"};
+    public final static int MAX_SPEED = 100;
+    // Updates delivered back to back in a burst segment.
+    public final static int BURST_SIZE = 5;
+    // Longest gap between DataLog records we wait for when replaying.
+    public final static long MAX_REPLAY_GAP_MS = 60000;
+    public final static String DEFAULT_SCENARIO =
+            "quiet:60,tremor:60,quiet:30,burst:30,dropout:60,quiet:30";
+
+    public final static int SEG_QUIET = 0;
+    public final static int SEG_TREMOR = 1;
+    public final static int SEG_BURST = 2;
+    public final static int SEG_DROPOUT = 3;
+    private final static String[] SEG_NAMES = {"quiet", "tremor", "burst", "dropout"};
+    private final static double DEFAULT_TREMOR_FREQ = 5.0;   // Hz
+    private final static double DEFAULT_TREMOR_AMP = 400;    // milli-g
+    private final static double BASELINE = 1000;             // 1 g
+    private final static double NOISE = 20;                  // milli-g rms
+
+    private String TAG = "SdSimulator";
+    private final SdDataReceiver mReceiver;
+    private final Executor mDelivery;
+    private final SdAnalyser mAnalyser = new SdAnalyser();
+    private final Random mRandom = new Random(1);
+
+    // Settings
+    private int mSource = SOURCE_SYNTHETIC;
+    private int mSpeed = 1;
+    private boolean mLoop = false;
+    private int mSampleFreq = 25;
+    private int mUpdatePeriod = 5;
+    private int mFaultPeriod = 30;
+    private ArrayList<Segment> mScenario = parseScenario(DEFAULT_SCENARIO);
+    private double[] mRawSamples = new double[0];
+    private ArrayList<DataLogFormat.Record> mRecords = new ArrayList<DataLogFormat.Record>();
+
+    // Simulation state
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+    private long mSimMs = 0;
+    private long mLastDataSimMs = 0;
+    private int mPos = 0;
+    private int mSegNo = -1;
+    private int mBurstCount = 0;
+    private double mPhase = 0;
+    private volatile SdData mSdData = new SdData();
+
+    // Statistics
+    private long mStartNs = 0;
+    private long mEndNs = 0;
+    private long mSamples = 0;
+    private final AtomicLong mUpdates = new AtomicLong();
+    private final AtomicLong mFaults = new AtomicLong();
+    private final AtomicLong mPending = new AtomicLong();
+    private volatile long mMaxPending = 0;
+    private final LatencyHistogram mAnalysisTime = new LatencyHistogram("analysis");
+    private final LatencyHistogram mDeliveryTime = new LatencyHistogram("delivery");
+    private final LatencyHistogram mAlarmDeliveryTime = new LatencyHistogram("alarmDelivery");
+    private final ArrayList<Detection> mDetections = new ArrayList<Detection>();
+
+    /**
+     * One part of a synthetic scenario.
+     */
+    public static class Segment {
+        public final int type;
+        public final int durationSec;
+        public final double freq;
+        public final double amplitude;
+
+        public Segment(int type, int durationSec, double freq, double amplitude) {
+            this.type = type;
+            this.durationSec = durationSec;
+            this.freq = freq;
+            this.amplitude = amplitude;
+        }
+    }
+
+    /**
+     * How long it took the analysis to raise a warning and an alarm after
+     * the start of a tremor segment, in simulated time (-1 if it did not).
+     */
+    public static class Detection {
+        public final int segment;
+        public final long startMs;
+        public long warningMs = -1;
+        public long alarmMs = -1;
+
+        Detection(int segment, long startMs) {
+            this.segment = segment;
+            this.startMs = startMs;
+        }
+    }
+
+    /**
+     * @param receiver - receives the simulated data.
+     * @param delivery - runs the calls to receiver.
+     */
+    public SdSimulator(SdDataReceiver receiver, Executor delivery) {
+        mReceiver = receiver;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Parse a scenario - a comma separated list of segments, each of the form
+     * type:seconds[:frequencyHz[:amplitude]], where type is one of
+     *   quiet   - accelerometer noise only,
+     *   tremor  - noise plus a sine wave (5 Hz, 400 milli-g by default),
+     *   burst   - noise, with the updates delivered BURST_SIZE at a time,
+     *   dropout - no data at all, which should be reported as a fault.
+     * e.g. "quiet:60,tremor:30:6:300,dropout:45".
+     * @throws IllegalArgumentException if the scenario is not valid.
+     */
+    public static ArrayList<Segment> parseScenario(String scenario) {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (String segStr : scenario.split(",")) {
+            segStr = segStr.trim();
+            if (segStr.isEmpty()) continue;
+            String[] parts = segStr.split(":");
+            int type = -1;
+            for (int i = 0; i < SEG_NAMES.length; i++) {
+                if (SEG_NAMES[i].equalsIgnoreCase(parts[0].trim())) type = i;
+            }
+            if (type < 0 || parts.length < 2 || parts.length > 4) {
+                throw new IllegalArgumentException("Invalid scenario segment '" + segStr + "'");
+            }
+            try {
+                int durationSec = Integer.parseInt(parts[1].trim());
+                double freq = (parts.length > 2) ? Double.parseDouble(parts[2].trim()) : DEFAULT_TREMOR_FREQ;
+                double amp = (parts.length > 3) ? Double.parseDouble(parts[3].trim()) : DEFAULT_TREMOR_AMP;
+                if (durationSec <= 0) {
+                    throw new IllegalArgumentException("Invalid duration in segment '" + segStr + "'");
+                }
+                segments.add(new Segment(type, durationSec, freq, amp));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in segment '" + segStr + "'");
+            }
+        }
+        if (segments.isEmpty()) throw new IllegalArgumentException("Empty scenario");
+        return segments;
+    }
+
+    /**
+     * Read raw accelerometer data - one sample per line, either a single
+     * magnitude or x,y,z (from which the magnitude is calculated).  Blank
+     * lines and lines starting with # are ignored.
+     */
+    public static double[] readRaw(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        double[] samples = new double[1024];
+        int n = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("[,\\s]+");
+            double val;
+            try {
+                if (parts.length >= 3) {
+                    double x = Double.parseDouble(parts[0]);
+                    double y = Double.parseDouble(parts[1]);
+                    double z = Double.parseDouble(parts[2]);
+                    val = Math.sqrt(x * x + y * y + z * z);
+                } else {
+                    val = Double.parseDouble(parts[0]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid raw data line '" + line + "'");
+            }
+            if (n == samples.length) {
+                double[] bigger = new double[samples.length * 2];
+                System.arraycopy(samples, 0, bigger, 0, n);
+                samples = bigger;
+            }
+            samples[n++] = val;
+        }
+        reader.close();
+        double[] result = new double[n];
+        System.arraycopy(samples, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Read all of the records from a DataLog file.
+     */
+    public static ArrayList<DataLogFormat.Record> readDataLog(InputStream in) throws IOException {
+        ArrayList<DataLogFormat.Record> records = new ArrayList<DataLogFormat.Record>();
+        DataLogFormat.Reader reader = new DataLogFormat.Reader(in);
+        DataLogFormat.Record rec = new DataLogFormat.Record();
+        while (reader.next(rec)) {
+            records.add(rec);
+            rec = new DataLogFormat.Record();
+        }
+        reader.close();
+        return records;
+    }
+
+    public void setScenario(ArrayList<Segment> scenario) {
+        mSource = SOURCE_SYNTHETIC;
+        mScenario = scenario;
+    }
+
+    public void setRawSamples(double[] samples) {
+        mSource = SOURCE_RAW;
+        mRawSamples = samples;
+    }
+
+    public void setDataLog(ArrayList<DataLogFormat.Record> records) {
+        mSource = SOURCE_DATALOG;
+        mRecords = records;
+    }
+
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * @param speed - how many times faster than real time to run, between
+     *              1 and MAX_SPEED, or 0 to run as fast as possible.
+     */
+    public void setSpeed(int speed) {
+        mSpeed = Math.max(0, Math.min(speed, MAX_SPEED));
+    }
+
+    /**
+     * Start again from the beginning at the end of the data, rather than stopping.
+     */
+    public void setLoop(boolean loop) {
+        mLoop = loop;
+    }
+
+    /**
+     * Set the analysis parameters - see SdAnalyser.setSettings().
+     * @param updatePeriod - seconds of data between analyses.
+     * @param faultPeriod - seconds without data (after the update period)
+     *                    before a fault is reported.
+     */
+    public void setSettings(int sampleFreq, int analysisPeriod, int updatePeriod,
+                            int alarmFreqMin, int alarmFreqMax,
+                            int warnTime, int alarmTime,
+                            int alarmThresh, int alarmRatioThresh, int faultPeriod) {
+        mSampleFreq = sampleFreq > 0 ? sampleFreq : 25;
+        mUpdatePeriod = updatePeriod > 0 ? updatePeriod : 5;
+        mFaultPeriod = faultPeriod;
+        mAnalyser.setSettings(mSampleFreq, analysisPeriod, alarmFreqMin, alarmFreqMax,
+                warnTime, alarmTime, alarmThresh, alarmRatioThresh);
+    }
+
+    /**
+     * @return the most recent data sent to the receiver.
+     */
+    public SdData getSdData() {
+        return mSdData;
+    }
+
+    /**
+     * Run the simulation on a new thread.
+     */
+    public synchronized void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mThread = new Thread(this, "SdSimulator");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Run the simulation to the end (or until stop() is called) on the
+     * calling thread.
+     */
+    public void run() {
+        mRunning = true;
+        reset();
+        Log.v(TAG, "run() - starting " + SOURCE_NAMES[mSource] + " simulation at speed " + mSpeed);
+        long nextNs = mStartNs;
+        while (mRunning) {
+            long delayMs = step();
+            if (delayMs < 0) break;
+            if (mSpeed == 0 || delayMs == 0) continue;
+            nextNs += TimeUnit.MILLISECONDS.toNanos(delayMs) / mSpeed;
+            long sleepNs = nextNs - System.nanoTime();
+            if (sleepNs > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        mEndNs = System.nanoTime();
+        mRunning = false;
+        Log.v(TAG, "run() - finished after " + mSimMs + " ms of simulated time");
+    }
+
+    private synchronized void reset() {
+        mAnalyser.reset();
+        mSimMs = 0;
+        mLastDataSimMs = 0;
+        mPos = 0;
+        mSegNo = -1;
+        mBurstCount = 0;
+        mPhase = 0;
+        mStartNs = System.nanoTime();
+        mEndNs = 0;
+        mSamples = 0;
+        mUpdates.set(0);
+        mFaults.set(0);
+        mPending.set(0);
+        mMaxPending = 0;
+        mAnalysisTime.reset();
+        mDeliveryTime.reset();
+        mAlarmDeliveryTime.reset();
+        mDetections.clear();
+    }
+
+    /**
+     * Advance the simulation by one update period (or one record when
+     * replaying a DataLog).
+     * @return how long (ms of simulated time) to wait before the next step,
+     * or -1 at the end of the data.
+     */
+    synchronized long step() {
+        if (mSource == SOURCE_DATALOG) return stepDataLog();
+        long periodMs = mUpdatePeriod * 1000L;
+        int nSamp = mSampleFreq * mUpdatePeriod;
+        Segment seg = null;
+        if (mSource == SOURCE_SYNTHETIC) {
+            seg = segmentAt(mSimMs);
+            if (seg == null) return -1;
+        } else if (mPos + nSamp > mRawSamples.length) {
+            if (!mLoop || mRawSamples.length < nSamp) return -1;
+            mPos = 0;
+        }
+
+        long delayMs = periodMs;
+        mSimMs += periodMs;
+        if (seg != null && seg.type == SEG_DROPOUT) {
+            // Report a fault at each update once there has been no data for
+            // the fault period, as the pebble data source does.
+            if (mSimMs - mLastDataSimMs > periodMs + mFaultPeriod * 1000L) {
+                SdData sdData = newSdData();
+                sdData.pebbleAppRunning = false;
+                deliver(sdData, true);
+            }
+            mAnalyser.reset();
+            return delayMs;
+        }
+
+        for (int i = 0; i < nSamp; i++) {
+            double val;
+            if (seg == null) {
+                val = mRawSamples[mPos++];
+            } else {
+                val = BASELINE + NOISE * mRandom.nextGaussian();
+                if (seg.type == SEG_TREMOR) {
+                    mPhase += 2 * Math.PI * seg.freq / mSampleFreq;
+                    val += seg.amplitude * Math.sin(mPhase);
+                }
+            }
+            mAnalyser.addSample(val);
+        }
+        mSamples += nSamp;
+        mLastDataSimMs = mSimMs;
+
+        SdData sdData = newSdData();
+        long startNs = System.nanoTime();
+        boolean haveResult = mAnalyser.analyse(sdData, mUpdatePeriod);
+        mAnalysisTime.record(System.nanoTime() - startNs);
+        if (haveResult) {
+            if (seg != null && seg.type == SEG_TREMOR) recordDetection(sdData.alarmState);
+            deliver(sdData, false);
+        }
+        if (seg != null && seg.type == SEG_BURST) {
+            // Hold back the updates and send them all together.
+            mBurstCount++;
+            delayMs = (mBurstCount % BURST_SIZE == 0) ? BURST_SIZE * periodMs : 0;
+        }
+        return delayMs;
+    }
+
+    private long stepDataLog() {
+        if (mPos >= mRecords.size()) {
+            if (!mLoop || mRecords.isEmpty()) return -1;
+            mPos = 0;
+        }
+        DataLogFormat.Record rec = mRecords.get(mPos++);
+        SdData sdData = newSdData();
+        sdData.dataTime.set(rec.timeMs);
+        sdData.alarmState = rec.alarmState;
+        sdData.batteryPc = rec.batteryPc;
+        sdData.maxFreq = rec.maxFreq;
+        sdData.maxVal = rec.maxVal;
+        sdData.specPower = rec.specPower;
+        sdData.roiPower = rec.roiPower;
+        System.arraycopy(rec.simpleSpec, 0, sdData.simpleSpec, 0,
+                Math.min(rec.simpleSpec.length, sdData.simpleSpec.length));
+        deliver(sdData, false);
+        long delayMs = mUpdatePeriod * 1000L;
+        if (mPos < mRecords.size()) {
+            delayMs = Math.max(0, Math.min(mRecords.get(mPos).timeMs - rec.timeMs, MAX_REPLAY_GAP_MS));
+        }
+        mSimMs += delayMs;
+        return delayMs;
+    }
+
+    /**
+     * @return the scenario segment covering simulated time simMs, or null at
+     * the end of the scenario (unless looping).
+     */
+    private Segment segmentAt(long simMs) {
+        long totalMs = 0;
+        for (Segment seg : mScenario) totalMs += seg.durationSec * 1000L;
+        if (simMs >= totalMs) {
+            if (!mLoop) return null;
+            simMs = simMs % totalMs;
+        }
+        long segStartMs = 0;
+        for (int i = 0; i < mScenario.size(); i++) {
+            Segment seg = mScenario.get(i);
+            long segEndMs = segStartMs + seg.durationSec * 1000L;
+            if (simMs < segEndMs) {
+                if (i != mSegNo) {
+                    mSegNo = i;
+                    mBurstCount = 0;
+                    if (seg.type == SEG_TREMOR) mDetections.add(new Detection(i, mSimMs));
+                }
+                return seg;
+            }
+            segStartMs = segEndMs;
+        }
+        return null;
+    }
+
+    private void recordDetection(long alarmState) {
+        if (mDetections.isEmpty()) return;
+        Detection d = mDetections.get(mDetections.size() - 1);
+        long detectMs = mSimMs - d.startMs;
+        if (alarmState >= 1 && d.warningMs < 0) d.warningMs = detectMs;
+        if (alarmState >= 2 && d.alarmMs < 0) d.alarmMs = detectMs;
+    }
+
+    private SdData newSdData() {
+        // A new object each time, as the receiver may still be using the
+        // previous one when we are running faster than real time.
+        SdData sdData = new SdData();
+        sdData.dataTime.setToNow();
+        sdData.haveSettings = true;
+        sdData.haveData = true;
+        sdData.pebbleConnected = true;
+        sdData.pebbleAppRunning = true;
+        sdData.batteryPc = 100;
+        sdData.alarmPhrase = "Unknown";
+        sdData.mSampleFreq = mSampleFreq;
+        sdData.mDataUpdatePeriod = (short) mUpdatePeriod;
+        return sdData;
+    }
+
+    private void deliver(final SdData sdData, final boolean fault) {
+        final long readyNs = System.nanoTime();
+        long pending = mPending.incrementAndGet();
+        if (pending > mMaxPending) mMaxPending = pending;
+        mSdData = sdData;
+        mDelivery.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (fault) {
+                        mReceiver.onSdDataFault(sdData);
+                        mFaults.incrementAndGet();
+                    } else {
+                        mReceiver.onSdDataReceived(sdData);
+                        mUpdates.incrementAndGet();
+                    }
+                } finally {
+                    long ns = System.nanoTime() - readyNs;
+                    mDeliveryTime.record(ns);
+                    if (!fault && sdData.alarmState == 2) mAlarmDeliveryTime.record(ns);
+                    mPending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    public long getUpdateCount() {
+        return mUpdates.get();
+    }
+
+    public long getFaultCount() {
+        return mFaults.get();
+    }
+
+    public long getSimulatedMs() {
+        return mSimMs;
+    }
+
+    /**
+     * @return real time since the simulation started (until it finished).
+     */
+    public long getElapsedMs() {
+        long endNs = (mEndNs != 0) ? mEndNs : System.nanoTime();
+        return (mStartNs == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(endNs - mStartNs);
+    }
+
+    /**
+     * @return updates delivered per second of real time.
+     */
+    public double getThroughput() {
+        long endNs = (mEndNs != 0) ? mEndNs : System.nanoTime();
+        double sec = (endNs - mStartNs) / 1e9;
+        return (sec > 0) ? mUpdates.get() / sec : 0;
+    }
+
+    public LatencyHistogram getAnalysisTime() {
+        return mAnalysisTime;
+    }
+
+    /**
+     * @return the time from an update being ready to the receiver having
+     * processed it, including any time queued waiting for the delivery
+     * Executor.
+     */
+    public LatencyHistogram getDeliveryTime() {
+        return mDeliveryTime;
+    }
+
+    /**
+     * @return as getDeliveryTime(), but only for updates in the ALARM state.
+     */
+    public LatencyHistogram getAlarmDeliveryTime() {
+        return mAlarmDeliveryTime;
+    }
+
+    public synchronized ArrayList<Detection> getDetections() {
+        return new ArrayList<Detection>(mDetections);
+    }
+
+    public synchronized void toJson(StringBuilder sb) {
+        sb.append("{\"source\":\"").append(SOURCE_NAMES[mSource]).append('"')
+                .append(",\"speed\":").append(mSpeed)
+                .append(",\"running\":").append(mRunning)
+                .append(",\"simulatedMs\":").append(mSimMs)
+                .append(",\"elapsedMs\":").append(getElapsedMs())
+                .append(",\"samples\":").append(mSamples)
+                .append(",\"updates\":").append(mUpdates.get())
+                .append(",\"faults\":").append(mFaults.get())
+                .append(",\"updatesPerSec\":").append(Math.round(getThroughput() * 10) / 10.0)
+                .append(",\"maxPending\":").append(mMaxPending)
+                .append(",\"analysis\":");
+        mAnalysisTime.toJson(sb);
+        sb.append(",\"delivery\":");
+        mDeliveryTime.toJson(sb);
+        sb.append(",\"alarmDelivery\":");
+        mAlarmDeliveryTime.toJson(sb);
+        sb.append(",\"detections\":[");
+        for (int i = 0; i < mDetections.size(); i++) {
+            Detection d = mDetections.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"segment\":").append(d.segment)
+                    .append(",\"startMs\":").append(d.startMs)
+                    .append(",\"warningMs\":").append(d.warningMs)
+                    .append(",\"alarmMs\":").append(d.alarmMs)
+                    .append('}');
+        }
+        sb.append("]}");
+    }
+
+    /**
+     * Run a simulation on a PC, passing the data straight to an
+     * AlarmStateMachine, and print the statistics as JSON.
+     * Arguments are [--speed N] [--raw file | --datalog file | scenario].
+     */
+    public static void main(String[] args) throws IOException {
+        int speed = 0;
+        String rawFile = null;
+        String dataLogFile = null;
+        String scenario = DEFAULT_SCENARIO;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--speed") && i + 1 < args.length) speed = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--raw") && i + 1 < args.length) rawFile = args[++i];
+            else if (args[i].equals("--datalog") && i + 1 < args.length) dataLogFile = args[++i];
+            else scenario = args[i];
+        }
+        Executor direct = new Executor() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        final AlarmStateMachine asm = new AlarmStateMachine(new AlarmStateMachine.Actions() {
+            public boolean warningBeep() { return true; }
+            public boolean alarmBeep() { return true; }
+            public boolean faultWarningBeep() { return true; }
+            public void showNotification(int alarmLevel) { }
+            public void showMainActivity() { }
+            public void sendSMSAlarm() { }
+            public void logAlarm(boolean logData) { }
+            public void logEvent(int state, String alarmPhrase, String dataJson) { }
+            public void startLatchTimer() { }
+            public void stopFaultTimer() { }
+        }, direct, direct);
+        SdSimulator sim = new SdSimulator(new SdDataReceiver() {
+            public void onSdDataReceived(SdData sdData) {
+                asm.process(sdData, System.nanoTime());
+            }
+
+            public void onSdDataFault(SdData sdData) {
+                asm.processFault(sdData, System.nanoTime());
+            }
+
+            public void onSdDataStatus(SdData sdData) {
+            }
+        }, direct);
+        sim.setSettings(25, 5, 5, 3, 10, 5, 10, 100, 50, 30);
+        if (rawFile != null) {
+            sim.setRawSamples(readRaw(new FileInputStream(rawFile)));
+        } else if (dataLogFile != null) {
+            sim.setDataLog(readDataLog(new FileInputStream(dataLogFile)));
+        } else {
+            sim.setScenario(parseScenario(scenario));
+        }
+        sim.setSpeed(speed);
+        sim.run();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"simulator\":");
+        sim.toJson(sb);
+        sb.append(",\"alarms\":");
+        asm.toJson(sb);
+        sb.append('}');
+        System.out.println(sb);
+    }
+}
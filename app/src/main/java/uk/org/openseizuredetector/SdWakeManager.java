@@ -0,0 +1,297 @@
+/*
+  Android_Pebble_sd - Android alarm client for openseizuredetector..
+
+  See http://openseizuredetector.org for more information.
+
+  Copyright Graham Jones, 2015, 2016
+
+  This file is part of pebble_sd.
+
+  Android_Pebble_sd is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Android_Pebble_sd is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Android_pebble_sd.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package uk.org.openseizuredetector;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds the CPU awake only while there is work to do, rather than for the
+ * whole life of the service.
+ *
+ * Code that must not be interrupted by the phone going to sleep calls
+ * acquire(reason) / release(reason) (or run(reason, runnable)) around that
+ * work.  The underlying wake lock is held while any reason is active.
+ * Calling setDutyCycled(false) holds it permanently instead, as the
+ * service always used to.
+ *
+ * The time the lock is held for each reason is recorded, so the two
+ * modes can be compared - see getStats().
+ */
+public class SdWakeManager {
+    public static final String REASON_PERMANENT = "permanent";
+
+    /**
+     * The lock being managed - in the app a PowerManager.WakeLock.
+     */
+    public interface WakeLockHandle {
+        void acquire();
+        void release();
+    }
+
+    private String TAG = "SdWakeManager";
+    private final WakeLockHandle mLock;
+    private final LinkedHashMap<String, ReasonStats> mReasons = new LinkedHashMap<String, ReasonStats>();
+    private int mActive = 0;
+    private boolean mDutyCycled = true;
+    private long mHeldSinceMs = 0;
+    private long mTotalHeldMs = 0;
+    private long mStatsStartMs;
+
+    public SdWakeManager(WakeLockHandle lock) {
+        mLock = lock;
+        mStatsStartMs = now();
+    }
+
+    /**
+     * Select duty-cycled (true) or permanent (false) wake locking.
+     */
+    public synchronized void setDutyCycled(boolean dutyCycled) {
+        if (dutyCycled == mDutyCycled) return;
+        Log.v(TAG, "setDutyCycled(" + dutyCycled + ")");
+        mDutyCycled = dutyCycled;
+        if (dutyCycled) {
+            release(REASON_PERMANENT);
+        } else {
+            acquire(REASON_PERMANENT);
+        }
+    }
+
+    public synchronized boolean isDutyCycled() {
+        return mDutyCycled;
+    }
+
+    /**
+     * Keep the CPU awake until release(reason) is called.  Calls nest.
+     */
+    public synchronized void acquire(String reason) {
+        long now = now();
+        ReasonStats rs = getReason(reason);
+        if (rs.mCount == 0) {
+            rs.mHeldSinceMs = now;
+            rs.mAcquisitions++;
+        }
+        rs.mCount++;
+        if (mActive == 0) {
+            mHeldSinceMs = now;
+            mLock.acquire();
+        }
+        mActive++;
+    }
+
+    /**
+     * Undo one call to acquire(reason).  Extra calls are ignored.
+     */
+    public synchronized void release(String reason) {
+        ReasonStats rs = mReasons.get(reason);
+        if (rs == null || rs.mCount == 0) {
+            Log.v(TAG, "release(" + reason + ") - not held");
+            return;
+        }
+        long now = now();
+        rs.mCount--;
+        if (rs.mCount == 0) {
+            rs.addHeld(now - rs.mHeldSinceMs);
+        }
+        mActive--;
+        if (mActive == 0) {
+            mTotalHeldMs += now - mHeldSinceMs;
+            mLock.release();
+        }
+    }
+
+    /**
+     * Hold or release reason depending on held, for conditions (such as an
+     * alarm latch) that are switched on and off rather than nested.
+     */
+    public synchronized void setHeld(String reason, boolean held) {
+        boolean isHeld = getReason(reason).mCount > 0;
+        if (held && !isHeld) {
+            acquire(reason);
+        } else if (!held && isHeld) {
+            release(reason);
+        }
+    }
+
+    /**
+     * Run runnable with the CPU held awake for reason.
+     */
+    public void run(String reason, Runnable runnable) {
+        acquire(reason);
+        try {
+            runnable.run();
+        } finally {
+            release(reason);
+        }
+    }
+
+    /**
+     * Release every reason, e.g. when the service is stopping, and return to
+     * duty-cycled mode.
+     */
+    public synchronized void releaseAll() {
+        long now = now();
+        for (ReasonStats rs : mReasons.values()) {
+            if (rs.mCount > 0) {
+                rs.addHeld(now - rs.mHeldSinceMs);
+                rs.mCount = 0;
+            }
+        }
+        if (mActive > 0) {
+            mTotalHeldMs += now - mHeldSinceMs;
+            mActive = 0;
+            mLock.release();
+        }
+        mDutyCycled = true;
+    }
+
+    public synchronized boolean isHeld() {
+        return mActive > 0;
+    }
+
+    /**
+     * @return the fraction of the time since the statistics were reset
+     * that the lock has been held.
+     */
+    public synchronized double getDutyCycle() {
+        long now = now();
+        long elapsed = now - mStatsStartMs;
+        if (elapsed <= 0) return mActive > 0 ? 1.0 : 0.0;
+        long held = mTotalHeldMs + (mActive > 0 ? now - mHeldSinceMs : 0);
+        return (double) held / elapsed;
+    }
+
+    /**
+     * @return a copy of the statistics for each reason, including time
+     * held so far by reasons that are currently active.
+     */
+    public synchronized ArrayList<ReasonStats> getStats() {
+        long now = now();
+        ArrayList<ReasonStats> stats = new ArrayList<ReasonStats>();
+        for (ReasonStats rs : mReasons.values()) {
+            ReasonStats s = new ReasonStats(rs.name);
+            s.mAcquisitions = rs.mAcquisitions;
+            s.mTotalHeldMs = rs.mTotalHeldMs;
+            s.mMaxHeldMs = rs.mMaxHeldMs;
+            s.mCount = rs.mCount;
+            if (rs.mCount > 0) s.addHeld(now - rs.mHeldSinceMs);
+            stats.add(s);
+        }
+        return stats;
+    }
+
+    /**
+     * Start a new measurement period.
+     */
+    public synchronized void resetStats() {
+        long now = now();
+        mStatsStartMs = now;
+        mTotalHeldMs = 0;
+        if (mActive > 0) mHeldSinceMs = now;
+        for (ReasonStats rs : mReasons.values()) {
+            rs.mAcquisitions = (rs.mCount > 0) ? 1 : 0;
+            rs.mTotalHeldMs = 0;
+            rs.mMaxHeldMs = 0;
+            if (rs.mCount > 0) rs.mHeldSinceMs = now;
+        }
+    }
+
+    /**
+     * Append the statistics to sb as a JSON object.
+     */
+    public synchronized void statsToJson(StringBuilder sb) {
+        sb.append("{\"dutyCycled\":").append(mDutyCycled)
+                .append(",\"held\":").append(mActive > 0)
+                .append(",\"measuredMs\":").append(now() - mStatsStartMs)
+                .append(",\"dutyCycle\":").append(Math.round(getDutyCycle() * 10000) / 10000.0)
+                .append(",\"reasons\":[");
+        boolean first = true;
+        for (ReasonStats s : getStats()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append("{\"reason\":\"").append(s.name).append('"')
+                    .append(",\"held\":").append(s.mCount > 0)
+                    .append(",\"acquisitions\":").append(s.mAcquisitions)
+                    .append(",\"totalHeldMs\":").append(s.mTotalHeldMs)
+                    .append(",\"maxHeldMs\":").append(s.mMaxHeldMs)
+                    .append('}');
+        }
+        sb.append("]}");
+    }
+
+    /**
+     * @return the current time in ms - overridden by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private ReasonStats getReason(String reason) {
+        ReasonStats rs = mReasons.get(reason);
+        if (rs == null) {
+            rs = new ReasonStats(reason);
+            mReasons.put(reason, rs);
+        }
+        return rs;
+    }
+
+    /**
+     * How long the lock has been held for one reason.
+     */
+    public static class ReasonStats {
+        public final String name;
+        int mCount = 0;
+        long mHeldSinceMs = 0;
+        long mAcquisitions = 0;
+        long mTotalHeldMs = 0;
+        long mMaxHeldMs = 0;
+
+        ReasonStats(String name) {
+            this.name = name;
+        }
+
+        void addHeld(long ms) {
+            mTotalHeldMs += ms;
+            if (ms > mMaxHeldMs) mMaxHeldMs = ms;
+        }
+
+        public long getAcquisitions() {
+            return mAcquisitions;
+        }
+
+        public long getTotalHeldMs() {
+            return mTotalHeldMs;
+        }
+
+        public long getMaxHeldMs() {
+            return mMaxHeldMs;
+        }
+
+        public boolean isHeld() {
+            return mCount > 0;
+        }
+    }
+}
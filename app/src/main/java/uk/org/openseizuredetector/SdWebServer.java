@@ -7,13 +7,17 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -28,6 +32,23 @@ public class SdWebServer extends NanoHTTPD {
     private SdServer mSdServer;
     private Context mContext;
     private File mDataStorageDir = null;
+    private SdDataBroadcaster mBroadcaster = new SdDataBroadcaster();
+    // Each /stream client holds a thread for as long as it is connected, so
+    // leave room for those as well as ordinary requests.
+    private static final int MAX_THREADS = SdDataBroadcaster.MAX_SUBSCRIBERS + 8;
+    private static final int MAX_QUEUED = 16;
+    private static final int MAX_CONNECTIONS_PER_CLIENT = 6;
+    private static final int IDLE_TIMEOUT_MS = 15000;
+    private BoundedAsyncRunner mAsyncRunner;
+    private HttpContent mAssets;
+    private final SdMetrics.Histogram mRequestTime = SdMetrics.getInstance().histogram(
+            "osd_http_request_seconds", "Time taken to create the response to an HTTP request.");
+    // Directory modification times may only be accurate to a few seconds,
+    // so the cached list of log files is also re-read after a while.
+    private static final long LOG_LIST_MAX_AGE_MS = 10000;
+    private String[] mLogFileList = null;
+    private long mLogFileListModified = 0;
+    private long mLogFileListTime = 0;
 
     public SdWebServer(Context context, File storageDir, SdData sdData, SdServer sdServer) {
         // Set the port to listen on (8080)
@@ -36,6 +57,32 @@ public class SdWebServer extends NanoHTTPD {
         mContext = context;
         mSdServer = sdServer;
         mDataStorageDir = storageDir;
+        mAsyncRunner = new BoundedAsyncRunner(MAX_THREADS, MAX_QUEUED);
+        setAsyncRunner(mAsyncRunner);
+        setMaxConnectionsPerClient(MAX_CONNECTIONS_PER_CLIENT);
+        setSocketReadTimeout(IDLE_TIMEOUT_MS);
+        mAssets = new HttpContent(new HttpContent.Loader() {
+            public InputStream open(String path) throws IOException {
+                return openAsset(path);
+            }
+        });
+        SdMetrics metrics = SdMetrics.getInstance();
+        metrics.gauge("osd_http_open_connections", "Open HTTP connections.", new SdMetrics.Gauge() {
+            public double get() {
+                return getOpenConnectionCount();
+            }
+        });
+        metrics.counter("osd_http_rejected_connections_total",
+                "HTTP connections rejected because the server was busy.", new SdMetrics.Gauge() {
+                    public double get() {
+                        return getRejectedConnectionCount();
+                    }
+                });
+        metrics.gauge("osd_stream_clients", "Clients connected to /stream.", new SdMetrics.Gauge() {
+            public double get() {
+                return mBroadcaster.getSubscriberCount();
+            }
+        });
     }
 
     public void setSdData(SdData sdData) {
@@ -43,11 +90,58 @@ public class SdWebServer extends NanoHTTPD {
         mSdData = sdData;
     }
 
+    /**
+     * Send new data to the clients connected to /stream.
+     * @param alarm - true if the alarm state has changed.
+     */
+    public void publishSdData(SdDataSnapshot snapshot, boolean alarm) {
+        mBroadcaster.publish(snapshot, alarm);
+    }
+
+    @Override
+    public void stop() {
+        mBroadcaster.closeAll();
+        super.stop();
+        mAsyncRunner.shutdown();
+    }
+
+    /**
+     * Serve a request, recording the number of requests for each kind of
+     * URI and the time taken to create the response (not including sending
+     * it, which may take a long time for files and /stream).
+     */
     @Override
     public Response serve(String uri, Method method,
                           Map<String, String> header,
                           Map<String, String> parameters,
                           Map<String, String> files) {
+        long startNs = System.nanoTime();
+        Response res = serveRequest(uri, method, header, parameters, files);
+        mRequestTime.recordSince(startNs);
+        SdMetrics.getInstance().counter("osd_http_requests_total",
+                "path=\"" + getMetricsPath(uri) + "\"", "HTTP requests received.").inc();
+        return res;
+    }
+
+    /**
+     * @return uri reduced to a small number of values, so the number of
+     * request counters is limited.
+     */
+    static String getMetricsPath(String uri) {
+        if (uri.equals("/")) return "/index.html";
+        if (uri.startsWith("/js/") || uri.startsWith("/css/") || uri.startsWith("/img/")) {
+            return uri.substring(0, uri.indexOf('/', 1) + 1);
+        }
+        if (uri.equals("/logs/query")) return uri;
+        int slash = uri.indexOf('/', 1);
+        String path = (slash > 0) ? uri.substring(0, slash + 1) : uri;
+        return path.matches("/[A-Za-z_.]{1,20}/?") ? path : "other";
+    }
+
+    private Response serveRequest(String uri, Method method,
+                                  Map<String, String> header,
+                                  Map<String, String> parameters,
+                                  Map<String, String> files) {
         Log.v(TAG, "WebServer.serve() - uri=" + uri + " Method=" + method.toString());
         String answer = "Error - you should not see this message! - Something wrong in WebServer.serve()";
 
@@ -63,13 +157,17 @@ public class SdWebServer extends NanoHTTPD {
             case "/data":
                 //Log.v(TAG,"WebServer.serve() - Returning data");
                 try {
-                    answer = mSdData.toString();
+                    SdDataSnapshot snapshot = mSdServer.getSdDataSnapshot();
+                    answer = (snapshot != null) ? snapshot.getJson() : mSdData.toString();
                 } catch (Exception ex) {
                     Log.v(TAG, "Error Creating Data Object - " + ex.toString());
                     answer = "Error Creating Data Object";
                 }
                 break;
 
+            case "/stream":
+                return serveStream();
+
             case "/settings":
                 //Log.v(TAG,"WebServer.serve() - Returning settings");
                 try {
@@ -112,6 +210,21 @@ public class SdWebServer extends NanoHTTPD {
                 }
                 break;
 
+            case "/history":
+                answer = getHistoryJson(mSdServer.getSdDataHistory(), parameters);
+                break;
+
+            case "/status":
+                answer = getStatusJson();
+                break;
+
+            case "/metrics":
+                return serveMetrics(parameters, header);
+
+            case "/patients":
+                answer = getPatientsJson();
+                break;
+
             case "/acceptalarm":
                 Log.v(TAG, "WebServer.serve() - Accepting alarm");
                 mSdServer.acceptAlarm();
@@ -121,15 +234,20 @@ public class SdWebServer extends NanoHTTPD {
             default:
                 if (uri.startsWith("/index.html") ||
                         uri.startsWith("/logfiles.html") ||
+                        uri.startsWith("/metrics.html") ||
                         uri.startsWith("/favicon.ico") ||
                         uri.startsWith("/js/") ||
                         uri.startsWith("/css/") ||
                         uri.startsWith("/img/")) {
                     //Log.v(TAG,"Serving File");
-                    return serveFile(uri);
+                    return serveFile(uri, header);
+                } else if (uri.startsWith("/patients/")) {
+                    return servePatient(uri, parameters, header);
+                } else if (uri.equals("/logs/query")) {
+                    return serveLogQuery(parameters, header);
                 } else if (uri.startsWith("/logs")) {
                     Log.v(TAG, "WebServer.serve() - serving data logs - uri=" + uri);
-                    NanoHTTPD.Response resp = serveLogFile(uri);
+                    NanoHTTPD.Response resp = serveLogFile(uri, parameters, header);
                     Log.v(TAG, "WebServer.serve() - response = " + resp.toString());
                     return resp;
                 } else {
@@ -139,14 +257,197 @@ public class SdWebServer extends NanoHTTPD {
                 }
         }
 
-        return new NanoHTTPD.Response(answer);
+        return textResponse(answer, header);
     }
 
+    /**
+     * @return a response containing answer, gzip compressed if it is big
+     * enough to be worth it and the client accepts it.
+     */
+    NanoHTTPD.Response textResponse(String answer, Map<String, String> header) {
+        NanoHTTPD.Response res = new NanoHTTPD.Response(answer);
+        if (answer.length() >= HttpContent.MIN_GZIP_SIZE
+                && HttpContent.acceptsGzip(header.get("accept-encoding"))) {
+            res.setGzipEncoding(true);
+        }
+        res.addHeader("Vary", "Accept-Encoding");
+        return res;
+    }
+
+
+    /**
+     * Return the history of the detector outputs as JSON.  The optional
+     * parameters are from and to (ms since the epoch - default the last
+     * hour) and points (the maximum number of points - default 300).
+     */
+    String getHistoryJson(SdDataHistory history, Map<String, String> parameters) {
+        try {
+            long to = parseLong(parameters.get("to"), System.currentTimeMillis());
+            long from = parseLong(parameters.get("from"), to - 3600 * 1000L);
+            int points = (int) Math.min(parseLong(parameters.get("points"), 300), 5000);
+            SdDataHistory.Series series = history.query(from, to, points);
+            StringBuilder sb = new StringBuilder(64 + series.n * 64);
+            series.toJson(sb);
+            return sb.toString();
+        } catch (Exception ex) {
+            Log.v(TAG, "Error Creating History Object - " + ex.toString());
+            return "Error Creating History Object";
+        }
+    }
+
+    /**
+     * @return a summary of this phone's data and of every other patient
+     * being monitored, for a dashboard.
+     */
+    String getPatientsJson() {
+        StringBuilder sb = new StringBuilder(256);
+        SdDataSnapshot snapshot = mSdServer.getSdDataSnapshot();
+        sb.append("{\"local\":").append(snapshot != null ? snapshot.getJson() : "null")
+                .append(",\"patients\":");
+        PatientRegistry registry = mSdServer.getPatientRegistry();
+        if (registry != null) {
+            registry.dashboardToJson(sb);
+        } else {
+            sb.append("[]");
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Serve /patients/{id}/data, /patients/{id}/history or
+     * /patients/{id}/acceptalarm for one of the patients in the registry.
+     */
+    NanoHTTPD.Response servePatient(String uri, Map<String, String> parameters,
+                                    Map<String, String> header) {
+        String[] parts = uri.split("/");
+        PatientRegistry registry = mSdServer.getPatientRegistry();
+        PatientRegistry.Patient patient = null;
+        if (parts.length == 4 && registry != null) {
+            patient = registry.getPatient(parts[2]);
+        }
+        if (patient == null) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND,
+                    NanoHTTPD.MIME_PLAINTEXT, "Unknown patient: " + uri);
+        }
+        switch (parts[3]) {
+            case "data":
+                SdDataSnapshot snapshot = patient.getSnapshot();
+                return new NanoHTTPD.Response(snapshot != null ? snapshot.getJson() : "{}");
+            case "history":
+                return textResponse(getHistoryJson(patient.getHistory(), parameters), header);
+            case "acceptalarm":
+                patient.acceptAlarm();
+                return new NanoHTTPD.Response("Alarm Accepted");
+            default:
+                return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND,
+                        NanoHTTPD.MIME_PLAINTEXT, "Unknown URI: " + uri);
+        }
+    }
+
+    private long parseLong(String str, long defaultVal) {
+        if (str == null) return defaultVal;
+        try {
+            return Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            return defaultVal;
+        }
+    }
+
+    /**
+     * Return the performance metrics (see SdMetrics) in the Prometheus text
+     * format, or as JSON with format=json (used by metrics.html).
+     */
+    NanoHTTPD.Response serveMetrics(Map<String, String> parameters, Map<String, String> header) {
+        StringBuilder sb = new StringBuilder(8192);
+        if ("json".equals(parameters.get("format"))) {
+            SdMetrics.getInstance().toJson(sb);
+            return textResponse(sb.toString(), header);
+        }
+        SdMetrics.getInstance().writePrometheus(sb);
+        NanoHTTPD.Response res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                "text/plain; version=0.0.4", sb.toString());
+        res.addHeader("Cache-Control", "no-cache");
+        return res;
+    }
+
+    /**
+     * @return JSON description of the load on the web server.
+     */
+    String getStatusJson() {
+        try {
+            JSONObject jsonObj = new JSONObject();
+            jsonObj.put("activeConnections", mAsyncRunner.getActiveCount());
+            jsonObj.put("openConnections", getOpenConnectionCount());
+            jsonObj.put("queuedRequests", mAsyncRunner.getQueuedCount());
+            jsonObj.put("rejectedRequests", getRejectedConnectionCount());
+            jsonObj.put("completedRequests", mAsyncRunner.getCompletedCount());
+            jsonObj.put("maxThreads", mAsyncRunner.getMaxThreads());
+            jsonObj.put("streamClients", mBroadcaster.getSubscriberCount());
+            jsonObj.put("streamEvictions", mBroadcaster.getEvictedCount());
+            StringBuilder assets = new StringBuilder();
+            assetCacheToJson(assets);
+            jsonObj.put("assetCache", new JSONObject(assets.toString()));
+            StringBuilder sched = new StringBuilder();
+            SdScheduler.getInstance().statsToJson(sched);
+            jsonObj.put("schedulerWakeups", SdScheduler.getInstance().getPeriodicWakeupCount());
+            jsonObj.put("scheduler", new JSONArray(sched.toString()));
+            AlarmStateMachine asm = mSdServer.getAlarmStateMachine();
+            if (asm != null) {
+                StringBuilder alarms = new StringBuilder();
+                asm.toJson(alarms);
+                jsonObj.put("alarms", new JSONObject(alarms.toString()));
+            }
+            SdWakeManager wm = mSdServer.getWakeManager();
+            if (wm != null) {
+                StringBuilder wake = new StringBuilder();
+                wm.statsToJson(wake);
+                jsonObj.put("wakeLock", new JSONObject(wake.toString()));
+            }
+            LogMaintenance lm = mSdServer.getLogMaintenance();
+            if (lm != null) {
+                StringBuilder logs = new StringBuilder();
+                lm.toJson(logs);
+                jsonObj.put("logMaintenance", new JSONObject(logs.toString()));
+            }
+            if (mSdServer.mSdDataSource instanceof SdDataSourceSimulator) {
+                StringBuilder sim = new StringBuilder();
+                ((SdDataSourceSimulator) mSdServer.mSdDataSource).getSimulator().toJson(sim);
+                jsonObj.put("simulator", new JSONObject(sim.toString()));
+            }
+            return jsonObj.toString();
+        } catch (Exception ex) {
+            Log.v(TAG, "Error Creating Status Object - " + ex.toString());
+            return "Error Creating Status Object";
+        }
+    }
+
+    /**
+     * Return a Server-Sent Events stream that receives every data update as
+     * it happens, rather than the client having to poll /data.
+     */
+    NanoHTTPD.Response serveStream() {
+        SdDataBroadcaster.Subscriber sub = mBroadcaster.subscribe();
+        if (sub == null) {
+            Log.v(TAG, "serveStream() - too many clients");
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE,
+                    NanoHTTPD.MIME_PLAINTEXT, "Too many stream clients");
+        }
+        Log.v(TAG, "serveStream() - " + mBroadcaster.getSubscriberCount() + " clients");
+        NanoHTTPD.Response res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                "text/event-stream", sub);
+        res.addHeader("Cache-Control", "no-cache");
+        res.setChunkedTransfer(true);
+        return res;
+    }
 
     /**
-     * Return a file from the external storage folder
+     * Return a file from the external storage folder.
+     * Binary data logs (DataLogFormat) are converted to JSON, or CSV if the
+     * format=csv parameter is given, as they are sent, unless format=raw.
      */
-    NanoHTTPD.Response serveLogFile(String uri) {
+    NanoHTTPD.Response serveLogFile(String uri, Map<String, String> parameters,
+                                    Map<String, String> header) {
         NanoHTTPD.Response res;
         InputStream ip = null;
         String uripart;
@@ -173,14 +474,13 @@ public class SdWebServer extends NanoHTTPD {
                 try {
                     JSONObject jsonObj = new JSONObject();
                     if (dirs.exists()) {
-                        String[] fileList = dirs.list();
+                        String[] fileList = listLogFiles();
                         JSONArray arr = new JSONArray();
                         for (int i = 0; i < fileList.length; i++)
                             arr.put(fileList[i]);
                         jsonObj.put("logFileList", arr);
                     }
-                    res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-                            "text/html", jsonObj.toString());
+                    res = textResponse(jsonObj.toString(), header);
                 } catch (Exception ex) {
                     res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
                             "text/html", "ERROR - " + ex.toString());
@@ -192,11 +492,57 @@ public class SdWebServer extends NanoHTTPD {
             uripart = uriParts.nextToken();  // this is the requested file.
             String fname = mDataStorageDir.toString() + "/" + uripart;
             Log.v(TAG, "serveLogFile - uri=" + uri + ", fname=" + fname);
-            ip = new FileInputStream(fname);
-            String mimeStr = "text/html";
-            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-                    mimeStr, ip);
-            res.addHeader("Content-Length", "" + ip.available());
+            String format = parameters.get("format");
+            boolean convert = fname.endsWith(DataLogFormat.FILE_EXT) && !"raw".equals(format);
+            if (convert && !"csv".equals(format)) format = "json";
+            // Files that are still being written get a new ETag as they grow.
+            File file = new File(fname);
+            // Finished logs may have been compressed by LogMaintenance.
+            boolean compressed = false;
+            if (!file.exists() && LogMaintenance.getCompressedFile(file).exists()) {
+                file = LogMaintenance.getCompressedFile(file);
+                compressed = true;
+            }
+            String etag = HttpContent.fileEtag(file.length(), file.lastModified(), convert ? format : null);
+            boolean gzip = HttpContent.acceptsGzip(header.get("accept-encoding"));
+            if (HttpContent.etagMatches(header.get("if-none-match"), etag)) {
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_MODIFIED,
+                        null, (InputStream) null);
+                res.addHeader("ETag", header.get("if-none-match").contains(HttpContent.gzipEtag(etag))
+                        ? HttpContent.gzipEtag(etag) : etag);
+                res.addHeader("Cache-Control", HttpContent.CACHE_REVALIDATE);
+                return res;
+            }
+            if (convert) {
+                ip = new FileInputStream(file);
+                if (compressed) ip = new GZIPInputStream(ip);
+                DataLogExporter exporter = new DataLogExporter(ip,
+                        "csv".equals(format) ? DataLogExporter.FORMAT_CSV : DataLogExporter.FORMAT_JSON);
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        exporter.getMimeType(), exporter);
+                // Log files are text and compress to a fraction of their size.
+                if (gzip) {
+                    res.setGzipEncoding(true);
+                    res.addHeader("ETag", HttpContent.gzipEtag(etag));
+                } else {
+                    res.setChunkedTransfer(true);
+                    res.addHeader("ETag", etag);
+                }
+            } else {
+                String mimeStr = HttpContent.getMimeType(fname);
+                if (mimeStr.equals(HttpContent.MIME_UNKNOWN) && !fname.endsWith(DataLogFormat.FILE_EXT)
+                        && !LogMaintenance.isCompressed(new File(fname))) {
+                    mimeStr = NanoHTTPD.MIME_PLAINTEXT;
+                }
+                if (compressed) {
+                    res = serveCompressedFile(file, mimeStr, etag, gzip);
+                } else {
+                    res = serveRawFile(file, mimeStr, etag, gzip && HttpContent.isCompressible(mimeStr),
+                            parameters, header);
+                }
+            }
+            res.addHeader("Cache-Control", HttpContent.CACHE_REVALIDATE);
+            res.addHeader("Vary", "Accept-Encoding");
         } catch (IOException ex) {
             Log.v(TAG, "serveLogFile(): Error Opening File - " + ex.toString());
             res = new NanoHTTPD.Response("serveLogFile(): Error Opening file " + uri);
@@ -205,22 +551,252 @@ public class SdWebServer extends NanoHTTPD {
     }
 
     /**
-     * Return a file from the apps /assets folder
+     * @return the names of the files in the log folder, without the index
+     * files.  The folder is only listed again if it has changed.
      */
-    NanoHTTPD.Response serveFile(String uri) {
+    private synchronized String[] listLogFiles() {
+        long modified = mDataStorageDir.lastModified();
+        long now = System.currentTimeMillis();
+        if (mLogFileList == null || modified != mLogFileListModified
+                || now - mLogFileListTime > LOG_LIST_MAX_AGE_MS) {
+            String[] all = mDataStorageDir.list();
+            ArrayList<String> names = new ArrayList<String>();
+            if (all != null) {
+                for (String name : all) {
+                    if (!LogIndex.isIndexFile(name)) names.add(name);
+                }
+            }
+            // Compressed logs are listed, and served, under their original names.
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (LogMaintenance.isCompressed(new File(name))) {
+                    String plain = name.substring(0, name.length() - LogMaintenance.GZIP_EXT.length());
+                    if (names.contains(plain)) {
+                        names.remove(i--);
+                    } else {
+                        names.set(i, plain);
+                    }
+                }
+            }
+            mLogFileList = names.toArray(new String[names.size()]);
+            mLogFileListModified = modified;
+            mLogFileListTime = now;
+        }
+        return mLogFileList;
+    }
+
+    /**
+     * Return the records of one log type between two times, from as many
+     * daily files as needed, e.g. /logs/query?type=SysLog&from=<ms>&to=<ms>.
+     * The files' indexes are used to read only the part of each file in the
+     * time range.  DataLog records are converted to JSON (or CSV with
+     * format=csv) as for serveLogFile.
+     */
+    NanoHTTPD.Response serveLogQuery(Map<String, String> parameters, Map<String, String> header) {
+        String type = parameters.get("type");
+        if (type == null) type = "SysLog";
+        if (!type.matches("[A-Za-z]+")) {
+            return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST,
+                    NanoHTTPD.MIME_PLAINTEXT, "Invalid log type " + type);
+        }
+        long to = parseLong(parameters.get("to"), System.currentTimeMillis());
+        long from = parseLong(parameters.get("from"), to - 3600 * 1000L);
+        String format = parameters.get("format");
+        boolean binary = "DataLog".equals(type);
+        Log.v(TAG, "serveLogQuery - type=" + type + ", from=" + from + ", to=" + to);
+        LogQuery query = new LogQuery(mDataStorageDir, type,
+                binary ? DataLogFormat.FILE_EXT : ".txt", from, to);
         NanoHTTPD.Response res;
-        InputStream ip = null;
         try {
-            if (ip != null) ip.close();
-            String assetPath = "www";
-            String fname = assetPath + uri;
-            //Log.v(TAG,"serveFile - uri="+uri+", fname="+fname);
-            AssetManager assetManager = mContext.getResources().getAssets();
-            ip = assetManager.open(fname);
-            String mimeStr = "text/html";
-            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
-                    mimeStr, ip);
-            res.addHeader("Content-Length", "" + ip.available());
+            if (binary && !"raw".equals(format)) {
+                DataLogExporter exporter = new DataLogExporter(query,
+                        "csv".equals(format) ? DataLogExporter.FORMAT_CSV : DataLogExporter.FORMAT_JSON);
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        exporter.getMimeType(), exporter);
+            } else {
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        binary ? HttpContent.MIME_UNKNOWN : NanoHTTPD.MIME_PLAINTEXT, query);
+            }
+        } catch (IOException ex) {
+            Log.v(TAG, "serveLogQuery(): Error - " + ex.toString());
+            try {
+                query.close();
+            } catch (IOException e) {
+                Log.v(TAG, "serveLogQuery(): Error closing query - " + e.toString());
+            }
+            return new NanoHTTPD.Response("serveLogQuery(): Error " + ex.toString());
+        }
+        if (HttpContent.acceptsGzip(header.get("accept-encoding"))
+                && HttpContent.isCompressible(res.getMimeType())) {
+            res.setGzipEncoding(true);
+        } else {
+            res.setChunkedTransfer(true);
+        }
+        res.addHeader("Cache-Control", HttpContent.CACHE_REVALIDATE);
+        res.addHeader("Vary", "Accept-Encoding");
+        return res;
+    }
+
+    /**
+     * Send a file as it is, honouring Range requests (206 Partial Content),
+     * so downloads can be resumed.  With the since=offset parameter, only
+     * the bytes added to the file after offset are sent, and the X-Log-Offset
+     * header gives the offset to use next time, so a log can be followed
+     * without downloading it again.  Uncompressed bodies are sent directly
+     * from the file with FileChannel.transferTo().
+     */
+    private NanoHTTPD.Response serveRawFile(File file, String mimeStr, String etag, boolean gzip,
+                                            Map<String, String> parameters,
+                                            Map<String, String> header) throws IOException {
+        long length = file.length();
+        long start = 0;
+        long end = length - 1;
+        NanoHTTPD.Response.Status status = NanoHTTPD.Response.Status.OK;
+        String contentRange = null;
+        boolean truncated = false;
+        String since = parameters.get("since");
+        if (since != null) {
+            start = parseLong(since, 0);
+            if (start < 0 || start > length) {
+                // The file has been replaced by a shorter one, so start again.
+                start = 0;
+                truncated = true;
+            }
+        } else {
+            HttpContent.Range range = HttpContent.parseRange(header.get("range"), length);
+            if (range != null && HttpContent.ifRangeMatches(header.get("if-range"), etag, file.lastModified())) {
+                if (range == HttpContent.UNSATISFIABLE) {
+                    NanoHTTPD.Response res = new NanoHTTPD.Response(
+                            NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
+                            NanoHTTPD.MIME_PLAINTEXT, "Requested range not satisfiable");
+                    res.addHeader("Content-Range", "bytes */" + length);
+                    return res;
+                }
+                start = range.start;
+                end = range.end;
+                status = NanoHTTPD.Response.Status.PARTIAL_CONTENT;
+                contentRange = range.toContentRange(length);
+                // Ranges are of the uncompressed file.
+                gzip = false;
+            }
+        }
+        long count = end - start + 1;
+        FileInputStream fis = new FileInputStream(file);
+        NanoHTTPD.Response res;
+        if (gzip && count >= HttpContent.MIN_GZIP_SIZE) {
+            fis.getChannel().position(start);
+            res = new NanoHTTPD.Response(status, mimeStr, new LimitedInputStream(fis, count));
+            res.setGzipEncoding(true);
+            res.addHeader("ETag", HttpContent.gzipEtag(etag));
+        } else {
+            res = new NanoHTTPD.Response(status, mimeStr, (InputStream) null);
+            res.setFileRegion(fis.getChannel(), start, count);
+            res.addHeader("ETag", etag);
+        }
+        if (contentRange != null) res.addHeader("Content-Range", contentRange);
+        if (since != null) {
+            res.addHeader("X-Log-Offset", "" + (end + 1));
+            if (truncated) res.addHeader("X-Log-Truncated", "true");
+        }
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("Last-Modified", HttpContent.formatHttpDate(file.lastModified()));
+        return res;
+    }
+
+    /**
+     * Send a log file compressed by LogMaintenance - as it is with
+     * Content-Encoding: gzip if the client accepts it, otherwise
+     * uncompressed as it is sent.  Ranges are not supported.
+     */
+    private NanoHTTPD.Response serveCompressedFile(File file, String mimeStr, String etag,
+                                                   boolean gzip) throws IOException {
+        NanoHTTPD.Response res;
+        FileInputStream fis = new FileInputStream(file);
+        if (gzip) {
+            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, mimeStr, (InputStream) null);
+            res.setFileRegion(fis.getChannel(), 0, file.length());
+            res.addHeader("Content-Encoding", "gzip");
+            res.addHeader("ETag", HttpContent.gzipEtag(etag));
+        } else {
+            res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, mimeStr,
+                    new GZIPInputStream(fis));
+            res.setChunkedTransfer(true);
+            res.addHeader("ETag", etag);
+        }
+        res.addHeader("Last-Modified", HttpContent.formatHttpDate(file.lastModified()));
+        return res;
+    }
+
+    /**
+     * Reads at most a given number of bytes from another stream, so a file
+     * that is growing is only sent up to the length it had when requested.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (n > 0) mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+    }
+
+    /**
+     * Return a file from the apps /assets folder.  Small files are served
+     * from memory, already gzip compressed if the client accepts it, and a
+     * 304 Not Modified response is sent if the client's copy is up to date.
+     */
+    NanoHTTPD.Response serveFile(String uri, Map<String, String> header) {
+        NanoHTTPD.Response res;
+        try {
+            HttpContent.Entry entry = mAssets.get(uri);
+            boolean compressible = HttpContent.isCompressible(entry.mimeType);
+            boolean gzip = HttpContent.acceptsGzip(header.get("accept-encoding"))
+                    && (entry.gzipData != null || (entry.data == null && compressible));
+            String etag = gzip ? HttpContent.gzipEtag(entry.etag) : entry.etag;
+            if (HttpContent.etagMatches(header.get("if-none-match"), entry.etag)) {
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_MODIFIED,
+                        entry.mimeType, (InputStream) null);
+            } else if (gzip && entry.gzipData != null) {
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        entry.mimeType, new ByteArrayInputStream(entry.gzipData));
+                res.addHeader("Content-Encoding", "gzip");
+            } else if (entry.data != null) {
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        entry.mimeType, new ByteArrayInputStream(entry.data));
+            } else {
+                // Too big to keep in memory.
+                res = new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK,
+                        entry.mimeType, openAsset(uri));
+                if (gzip) {
+                    res.setGzipEncoding(true);
+                } else {
+                    res.addHeader("Content-Length", "" + entry.length);
+                }
+            }
+            res.addHeader("ETag", etag);
+            res.addHeader("Cache-Control", HttpContent.getCacheControl(uri));
+            if (compressible) res.addHeader("Vary", "Accept-Encoding");
         } catch (IOException ex) {
             Log.v(TAG, "serveFile(): Error Opening File - " + ex.toString());
             res = new NanoHTTPD.Response("serveFile(): Error Opening file " + uri);
@@ -228,5 +804,18 @@ public class SdWebServer extends NanoHTTPD {
         return (res);
     }
 
+    private InputStream openAsset(String uri) throws IOException {
+        AssetManager assetManager = mContext.getResources().getAssets();
+        return assetManager.open("www" + uri);
+    }
 
+    /**
+     * Append the asset cache statistics to sb as a JSON object.
+     */
+    void assetCacheToJson(StringBuilder sb) {
+        sb.append("{\"bytes\":").append(mAssets.getCacheBytes())
+                .append(",\"hits\":").append(mAssets.getHits())
+                .append(",\"misses\":").append(mAssets.getMisses())
+                .append('}');
+    }
 }
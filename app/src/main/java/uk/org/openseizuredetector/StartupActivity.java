@@ -49,8 +49,6 @@ import android.widget.Button;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * StartupActivity is shown on app start-up.  It starts the SdServer background service and waits
@@ -68,7 +66,7 @@ public class StartupActivity extends Activity {
 
 
     private OsdUtil mUtil;
-    private Timer mUiTimer;
+    private SdScheduler.Task mUiTimer;
     private SdServiceConnection mConnection;
     private boolean mStartedMainActivity = false;
     private boolean mDialogDisplayed = false;
@@ -102,6 +100,7 @@ public class StartupActivity extends Activity {
         PreferenceManager.setDefaultValues(this, R.xml.camera_prefs, true);
         PreferenceManager.setDefaultValues(this, R.xml.general_prefs, true);
         PreferenceManager.setDefaultValues(this, R.xml.network_datasource_prefs, true);
+        PreferenceManager.setDefaultValues(this, R.xml.simulator_datasource_prefs, true);
 
 
         Button b;
@@ -212,9 +211,7 @@ public class StartupActivity extends Activity {
         checkFirstRun();
 
         // start timer to refresh user interface every second.
-        mUiTimer = new Timer();
-        mUiTimer.schedule(new TimerTask() {
-            @Override
+        mUiTimer = SdScheduler.getInstance().schedulePeriodic("StartupActivity.ui", new Runnable() {
             public void run() {
                 mHandler.post(serverStatusRunnable);
                 //updateServerStatus();
@@ -0,0 +1,281 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the alarm state machine, using an Actions implementation that
+ * records what it was asked to do.
+ */
+public class AlarmStateMachineTest {
+    private final List<String> mCalls = new ArrayList<String>();
+    private long mNow;
+    private volatile CountDownLatch mBlock = null;
+    private volatile CountDownLatch mBlockStarted = null;
+    private volatile boolean mFaultTimerCompleted = true;
+    private AlarmStateMachine mAsm;
+
+    private class RecordingActions implements AlarmStateMachine.Actions {
+        private void add(String call) {
+            synchronized (mCalls) {
+                mCalls.add(call);
+            }
+        }
+
+        public boolean warningBeep() { add("warningBeep"); return true; }
+        public boolean alarmBeep() { add("alarmBeep"); return true; }
+        public boolean faultWarningBeep() {
+            add("faultWarningBeep");
+            return mFaultTimerCompleted;
+        }
+        public void showNotification(int alarmLevel) {
+            add("notification" + alarmLevel);
+            CountDownLatch block = mBlock;
+            if (block != null) {
+                mBlock = null;
+                mBlockStarted.countDown();
+                try {
+                    block.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        public void showMainActivity() { add("showMainActivity"); }
+        public void sendSMSAlarm() { add("sms"); }
+        public void logAlarm(boolean logData) { add("log" + (logData ? "+data" : "")); }
+        public void logEvent(int state, String alarmPhrase, String dataJson) {
+            add("event" + state);
+        }
+        public void startLatchTimer() { add("startLatchTimer"); }
+        public void stopFaultTimer() { add("stopFaultTimer"); }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mNow = 1000000;
+        mAsm = newMachine(DIRECT);
+    }
+
+    private AlarmStateMachine newMachine(Executor annunciator) {
+        return new AlarmStateMachine(new RecordingActions(), annunciator, DIRECT) {
+            @Override
+            long now() {
+                return mNow;
+            }
+        };
+    }
+
+    private SdData process(SdData sdData, int alarmState) {
+        mCalls.clear();
+        sdData.alarmState = alarmState;
+        mAsm.process(sdData, System.nanoTime());
+        return sdData;
+    }
+
+    private void assertCalls(String... calls) {
+        assertArrayEquals(calls, mCalls.toArray(new String[mCalls.size()]));
+    }
+
+    @Test
+    public void testOkAndWarning() throws Exception {
+        SdData d = process(new SdData(), 0);
+        assertEquals("OK", d.alarmPhrase);
+        assertCalls("notification0", "stopFaultTimer");
+        assertEquals(AlarmStateMachine.STATE_OK, mAsm.getState());
+
+        process(d, 1);
+        assertEquals("WARNING", d.alarmPhrase);
+        assertCalls("log+data", "warningBeep", "notification1", "stopFaultTimer", "event1");
+        assertEquals(AlarmStateMachine.STATE_WARNING, mAsm.getState());
+        assertEquals(1, mAsm.getTransitionCount());
+        assertEquals(1, mAsm.getLatencyHistograms()[0].getCount());
+
+        mAsm.setLogAlarms(false);
+        process(d, 1);
+        assertCalls("warningBeep", "notification1", "stopFaultTimer");
+    }
+
+    @Test
+    public void testAlarmLatching() throws Exception {
+        mAsm.setLatchAlarms(true);
+        SdData d = process(new SdData(), 2);
+        assertEquals("ALARM", d.alarmPhrase);
+        assertTrue(d.alarmStanding);
+        assertCalls("log+data", "alarmBeep", "notification2", "showMainActivity",
+                "startLatchTimer", "stopFaultTimer", "event2");
+        assertTrue(mAsm.isLatched());
+
+        // Latched - an OK or WARNING does not change the phrase.
+        process(d, 0);
+        assertEquals("ALARM", d.alarmPhrase);
+        assertCalls("stopFaultTimer");
+        process(d, 1);
+        assertEquals("ALARM", d.alarmPhrase);
+        assertEquals(AlarmStateMachine.STATE_ALARM, mAsm.getState());
+
+        mAsm.acceptAlarm();
+        assertFalse(mAsm.isLatched());
+        process(d, 0);
+        assertEquals("OK", d.alarmPhrase);
+        assertFalse(d.alarmStanding);
+    }
+
+    @Test
+    public void testNotLatched() throws Exception {
+        SdData d = process(new SdData(), 5);
+        assertEquals("ALARM", d.alarmPhrase);
+        assertFalse(mAsm.isLatched());
+        process(d, 0);
+        assertEquals("OK", d.alarmPhrase);
+    }
+
+    @Test
+    public void testFallStaysStanding() throws Exception {
+        mAsm.setLatchAlarms(true);
+        SdData d = process(new SdData(), 3);
+        assertEquals("FALL", d.alarmPhrase);
+        assertCalls("log+data", "alarmBeep", "showMainActivity", "stopFaultTimer", "event3");
+        process(d, 0);
+        assertEquals("FALL", d.alarmPhrase);
+        assertEquals(AlarmStateMachine.STATE_FALL, mAsm.getState());
+        assertEquals(2, mAsm.getLatencyHistograms()[2].getCount());
+    }
+
+    @Test
+    public void testFaults() throws Exception {
+        // The fault beep is held back until the fault timer completes.
+        mFaultTimerCompleted = false;
+        SdData d = process(new SdData(), 4);
+        assertEquals("FAULT", d.alarmPhrase);
+        assertCalls("log", "faultWarningBeep", "event4");
+        assertEquals(0, mAsm.getLatencyHistograms()[3].getCount());
+        mFaultTimerCompleted = true;
+        mAsm.processFault(d, System.nanoTime());
+        assertEquals(1, mAsm.getLatencyHistograms()[3].getCount());
+        assertEquals(AlarmStateMachine.STATE_FAULT, mAsm.getState());
+        process(d, 7);
+        assertEquals(AlarmStateMachine.STATE_NETFAULT, mAsm.getState());
+
+        mCalls.clear();
+        mAsm.setAudibleFaultWarning(false);
+        mAsm.processFault(d, System.nanoTime());
+        assertEquals(4, d.alarmState);
+        assertCalls("event4");
+        mAsm.setAudibleFaultWarning(true);
+        mAsm.processFault(d, System.nanoTime());
+        assertCalls("event4", "faultWarningBeep");
+        assertEquals(AlarmStateMachine.STATE_FAULT, mAsm.getState());
+    }
+
+    @Test
+    public void testEventsOnStateChangeOnly() throws Exception {
+        SdData d = process(new SdData(), 2);
+        assertTrue(mCalls.contains("event2"));
+        // A standing alarm is one event, however many updates report it.
+        process(d, 2);
+        assertFalse(mCalls.contains("event2"));
+        process(d, 0);
+        assertFalse(mCalls.contains("event0"));
+        process(d, 2);
+        assertTrue(mCalls.contains("event2"));
+
+        mAsm.setLogAlarms(false);
+        process(d, 4);
+        assertCalls("faultWarningBeep");
+        mCalls.clear();
+        mAsm.processFault(d, System.nanoTime());
+        process(d, 7);
+        assertFalse(mCalls.contains("log"));
+        assertFalse(mCalls.contains("event7"));
+    }
+
+    @Test
+    public void testSmsRateLimit() throws Exception {
+        mAsm.setSmsAlarm(true);
+        SdData d = process(new SdData(), 2);
+        assertTrue(mCalls.contains("sms"));
+        mNow += 30000;
+        process(d, 2);
+        assertFalse(mCalls.contains("sms"));
+        mNow += 31000;
+        process(d, 3);
+        assertTrue(mCalls.contains("sms"));
+    }
+
+    @Test
+    public void testWakeLockHeldUntilDone() throws Exception {
+        final int[] held = new int[1];
+        SdWakeManager wm = new SdWakeManager(new SdWakeManager.WakeLockHandle() {
+            public void acquire() {
+                held[0]++;
+            }
+
+            public void release() {
+                held[0]--;
+            }
+        });
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        mAsm = newMachine(new Executor() {
+            public void execute(Runnable r) {
+                queued.add(r);
+            }
+        });
+        mAsm.setWakeManager(wm);
+        process(new SdData(), 2);
+        assertEquals(1, held[0]);
+        for (Runnable r : queued) {
+            r.run();
+        }
+        assertEquals(0, held[0]);
+        assertFalse(wm.isHeld());
+    }
+
+    @Test
+    public void testAnnunciationPriority() throws Exception {
+        ThreadPoolExecutor ex = AlarmStateMachine.newAnnunciatorExecutor();
+        mAsm = newMachine(ex);
+        mAsm.setSmsAlarm(true);
+        mAsm.setLogAlarms(false);
+        // Block the annunciator thread in the first notification while
+        // two more messages are processed.
+        CountDownLatch block = new CountDownLatch(1);
+        mBlockStarted = new CountDownLatch(1);
+        mBlock = block;
+        SdData d = new SdData();
+        d.alarmState = 0;
+        mAsm.process(d, System.nanoTime());
+        assertTrue(mBlockStarted.await(1, TimeUnit.SECONDS));
+        d.alarmState = 2;
+        mAsm.process(d, System.nanoTime());
+        d.alarmState = 1;
+        mAsm.process(d, System.nanoTime());
+        block.countDown();
+        ex.shutdown();
+        assertTrue(ex.awaitTermination(1, TimeUnit.SECONDS));
+        List<String> annunciations = new ArrayList<String>();
+        for (String c : mCalls) {
+            if (!c.endsWith("Timer")) annunciations.add(c);
+        }
+        assertArrayEquals(new String[]{"notification0", "alarmBeep", "warningBeep",
+                        "notification2", "notification1", "showMainActivity", "sms"},
+                annunciations.toArray(new String[annunciations.size()]));
+        assertEquals(1, mAsm.getLatencyHistograms()[0].getCount());
+        assertEquals(1, mAsm.getLatencyHistograms()[1].getCount());
+    }
+}
@@ -0,0 +1,102 @@
+package uk.org.openseizuredetector;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the web server's bounded thread pool.
+ */
+public class BoundedAsyncRunnerTest {
+    private BoundedAsyncRunner mRunner;
+    private CountDownLatch mRelease = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        mRelease.countDown();
+        if (mRunner != null) mRunner.shutdown();
+    }
+
+    private Runnable blocker(final CountDownLatch started) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // finish
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRunsTask() throws Exception {
+        mRunner = new BoundedAsyncRunner(2, 2);
+        final CountDownLatch done = new CountDownLatch(1);
+        mRunner.exec(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testQueuesThenRejects() throws Exception {
+        mRunner = new BoundedAsyncRunner(2, 1);
+        CountDownLatch started = new CountDownLatch(2);
+        mRunner.exec(blocker(started));
+        mRunner.exec(blocker(started));
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertEquals(2, mRunner.getActiveCount());
+
+        mRunner.exec(blocker(new CountDownLatch(1)));
+        assertEquals(1, mRunner.getQueuedCount());
+
+        try {
+            mRunner.exec(blocker(new CountDownLatch(1)));
+            fail("Expected the full pool to reject the task");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, mRunner.getRejectedCount());
+    }
+
+    @Test
+    public void testUsesAllThreadsBeforeQueueing() throws Exception {
+        mRunner = new BoundedAsyncRunner(4, 16);
+        CountDownLatch started = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) mRunner.exec(blocker(started));
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertEquals(4, mRunner.getActiveCount());
+        assertEquals(0, mRunner.getQueuedCount());
+        mRunner.exec(blocker(new CountDownLatch(1)));
+        assertEquals(1, mRunner.getQueuedCount());
+    }
+
+    @Test
+    public void testCompletedCount() throws Exception {
+        mRunner = new BoundedAsyncRunner(2, 4);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            mRunner.exec(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mRunner.getCompletedCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, mRunner.getCompletedCount());
+        assertEquals(0, mRunner.getQueuedCount());
+    }
+}
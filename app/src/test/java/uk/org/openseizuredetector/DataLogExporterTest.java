@@ -0,0 +1,102 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests for the binary data log format and the JSON/CSV exporter.
+ */
+public class DataLogExporterTest {
+
+    private SdData makeSdData(int i) {
+        SdData sdData = new SdData();
+        sdData.alarmState = i % 3;
+        sdData.maxVal = 1000 + i;
+        sdData.maxFreq = 5;
+        sdData.specPower = 20 + i;
+        sdData.roiPower = 40 + i;
+        sdData.batteryPc = 80;
+        for (int j = 0; j < sdData.simpleSpec.length; j++) sdData.simpleSpec[j] = i * j;
+        return sdData;
+    }
+
+    private byte[] makeLog(int nRecords) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(DataLogFormat.header());
+        for (int i = 0; i < nRecords; i++) {
+            bos.write(DataLogFormat.encode(1451606400000L + i * 60000L, makeSdData(i)));
+        }
+        return bos.toByteArray();
+    }
+
+    private String export(byte[] log, int format) throws Exception {
+        InputStream in = new DataLogExporter(new ByteArrayInputStream(log), format);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) > 0) out.write(buf, 0, n);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] log = makeLog(3);
+        assertEquals(DataLogFormat.HEADER_SIZE + 3 * DataLogFormat.RECORD_SIZE, log.length);
+        DataLogFormat.Reader reader = new DataLogFormat.Reader(new ByteArrayInputStream(log));
+        DataLogFormat.Record rec = new DataLogFormat.Record();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(reader.next(rec));
+            assertEquals(1451606400000L + i * 60000L, rec.timeMs);
+            assertEquals(i % 3, rec.alarmState);
+            assertEquals(1000 + i, rec.maxVal);
+            assertEquals(40 + i, rec.roiPower);
+            assertEquals(80, rec.batteryPc);
+            assertEquals(i * 9, rec.simpleSpec[9]);
+        }
+        assertFalse(reader.next(rec));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        String csv = export(makeLog(2), DataLogExporter.FORMAT_CSV);
+        String[] lines = csv.split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("time,dataTimeStr,alarmState"));
+        String[] fields = lines[2].split(",");
+        assertEquals(18, fields.length);
+        assertEquals("1451606460000", fields[0]);
+        assertEquals("1001", fields[3]);
+        assertEquals("9", fields[17]);
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        String json = export(makeLog(2), DataLogExporter.FORMAT_JSON);
+        assertTrue(json.startsWith("{\"dataLog\":["));
+        assertTrue(json.contains("\"maxVal\":1001"));
+        assertTrue(json.trim().endsWith("]}"));
+        assertEquals(2, json.split("\"time\"").length - 1);
+        // An empty log is still a valid document.
+        assertEquals("{\"dataLog\":[\n\n]}\n", export(makeLog(0), DataLogExporter.FORMAT_JSON));
+    }
+
+    @Test
+    public void testTruncatedRecordIgnored() throws Exception {
+        byte[] log = makeLog(2);
+        byte[] truncated = java.util.Arrays.copyOf(log, log.length - 10);
+        String csv = export(truncated, DataLogExporter.FORMAT_CSV);
+        assertEquals(2, csv.split("\n").length);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testBadHeader() throws Exception {
+        new DataLogExporter(new ByteArrayInputStream("{\"dataTime\":1}".getBytes()),
+                DataLogExporter.FORMAT_JSON);
+    }
+}
@@ -0,0 +1,61 @@
+package uk.org.openseizuredetector.EventLogManager;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for building paged event log queries.
+ */
+public class EventLogQueryTest {
+
+    @Test
+    public void testDefaultQuery() throws Exception {
+        EventLogQuery q = new EventLogQuery();
+        assertEquals("event_time>=? AND event_time<=?", q.getSelection());
+        assertArrayEquals(new String[]{"0", String.valueOf(Long.MAX_VALUE)}, q.getSelectionArgs());
+        assertEquals("event_time DESC, _id DESC", q.getOrderBy());
+        assertEquals(String.valueOf(EventLogQuery.DEFAULT_PAGE_SIZE), q.getLimit());
+    }
+
+    @Test
+    public void testDataOnlyLoadedWhenRequested() throws Exception {
+        EventLogQuery q = new EventLogQuery();
+        assertEquals(4, q.getColumns().length);
+        for (String col : q.getColumns()) {
+            assertFalse(col.equals("data_json"));
+        }
+        q.setIncludeData(true);
+        assertEquals(5, q.getColumns().length);
+        assertEquals("data_json", q.getColumns()[4]);
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        EventLogQuery q = new EventLogQuery()
+                .setTimeRange(1000, 2000)
+                .setAlarmState(2)
+                .setPageSize(10);
+        assertEquals("event_time>=? AND event_time<=? AND alarm_state=?", q.getSelection());
+        assertArrayEquals(new String[]{"1000", "2000", "2"}, q.getSelectionArgs());
+        assertEquals("10", q.getLimit());
+    }
+
+    @Test
+    public void testNextPage() throws Exception {
+        EventLogQuery q = new EventLogQuery().setAlarmState(1).setPageSize(20);
+        LogEntryModel last = new LogEntryModel();
+        last.setId(42);
+        last.setDate(new Date(123456));
+        EventLogQuery next = q.nextPage(last);
+        assertEquals("event_time>=? AND event_time<=? AND alarm_state=?"
+                + " AND (event_time<? OR (event_time=? AND _id<?))", next.getSelection());
+        assertArrayEquals(new String[]{"0", String.valueOf(Long.MAX_VALUE), "1",
+                "123456", "123456", "42"}, next.getSelectionArgs());
+        assertEquals(20, next.getPageSize());
+        // The original query is unchanged.
+        assertEquals(3, q.getSelectionArgs().length);
+    }
+}
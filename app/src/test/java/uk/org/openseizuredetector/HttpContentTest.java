@@ -0,0 +1,283 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the web server content types, ETags, compression and asset cache.
+ */
+public class HttpContentTest {
+    private final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+    private int mOpens = 0;
+
+    private HttpContent newContent() {
+        return new HttpContent(new HttpContent.Loader() {
+            public InputStream open(String path) throws IOException {
+                byte[] data = mFiles.get(path);
+                if (data == null) throw new FileNotFoundException(path);
+                mOpens++;
+                return new ByteArrayInputStream(data);
+            }
+        });
+    }
+
+    private static byte[] text(int len) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < len) sb.append("function osd() { return 42; }\n");
+        return sb.substring(0, len).getBytes();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) bos.write(buf, 0, n);
+        in.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testMimeTypes() throws Exception {
+        assertEquals("text/html", HttpContent.getMimeType("/index.html"));
+        assertEquals("application/javascript", HttpContent.getMimeType("/js/jquery.JS"));
+        assertEquals("text/css", HttpContent.getMimeType("/css/osd.css"));
+        assertEquals("image/png", HttpContent.getMimeType("/img/icon_48x48.png"));
+        assertEquals("image/x-icon", HttpContent.getMimeType("/favicon.ico"));
+        assertEquals(HttpContent.MIME_UNKNOWN, HttpContent.getMimeType("/logs/DataLog.osdl"));
+        assertTrue(HttpContent.isCompressible("text/csv"));
+        assertTrue(HttpContent.isCompressible("application/json"));
+        assertTrue(HttpContent.isCompressible("image/svg+xml"));
+        assertFalse(HttpContent.isCompressible("image/png"));
+        assertFalse(HttpContent.isCompressible(HttpContent.MIME_UNKNOWN));
+        assertEquals(HttpContent.CACHE_STATIC, HttpContent.getCacheControl("/js/osd_main.js"));
+        assertEquals(HttpContent.CACHE_REVALIDATE, HttpContent.getCacheControl("/index.html"));
+    }
+
+    @Test
+    public void testAcceptsGzip() throws Exception {
+        assertFalse(HttpContent.acceptsGzip(null));
+        assertFalse(HttpContent.acceptsGzip("identity"));
+        assertTrue(HttpContent.acceptsGzip("gzip, deflate, br"));
+        assertTrue(HttpContent.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+        assertFalse(HttpContent.acceptsGzip("gzip;q=0"));
+        assertFalse(HttpContent.acceptsGzip("x-gzip"));
+    }
+
+    @Test
+    public void testEtags() throws Exception {
+        String etag = HttpContent.fileEtag(1234, 5678, null);
+        assertNotEquals(etag, HttpContent.fileEtag(1235, 5678, null));
+        assertNotEquals(etag, HttpContent.fileEtag(1234, 5678, "csv"));
+        String gz = HttpContent.gzipEtag(etag);
+        assertTrue(gz.startsWith("\"") && gz.endsWith("-gzip\""));
+        assertFalse(HttpContent.etagMatches(null, etag));
+        assertTrue(HttpContent.etagMatches(etag, etag));
+        assertTrue(HttpContent.etagMatches("\"x\", " + gz, etag));
+        assertTrue(HttpContent.etagMatches("*", etag));
+        assertFalse(HttpContent.etagMatches("\"x\"", etag));
+    }
+
+    @Test
+    public void testAssetCache() throws Exception {
+        byte[] js = text(50000);
+        byte[] small = text(100);
+        byte[] png = new byte[5000];
+        new java.util.Random(1).nextBytes(png);
+        mFiles.put("/js/a.js", js);
+        mFiles.put("/index.html", small);
+        mFiles.put("/img/a.png", png);
+        HttpContent content = newContent();
+
+        HttpContent.Entry e = content.get("/js/a.js");
+        assertEquals("application/javascript", e.mimeType);
+        assertArrayEquals(js, e.data);
+        assertArrayEquals(js, gunzip(e.gzipData));
+        assertTrue(e.gzipData.length < js.length / 10);
+        assertSame(e, content.get("/js/a.js"));
+        assertEquals(1, mOpens);
+        assertEquals(1, content.getHits());
+
+        // Too small to compress, or does not compress.
+        assertNull(content.get("/index.html").gzipData);
+        assertNull(content.get("/img/a.png").gzipData);
+        assertNotNull(content.get("/img/a.png").data);
+        assertEquals(js.length + e.gzipData.length + small.length + png.length, content.getCacheBytes());
+
+        // Same content, same ETag.
+        mFiles.put("/js/b.js", js);
+        assertEquals(e.etag, content.get("/js/b.js").etag);
+        assertNotEquals(e.etag, content.get("/index.html").etag);
+
+        try {
+            content.get("/missing.html");
+            fail("Expected an exception");
+        } catch (FileNotFoundException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCacheLimits() throws Exception {
+        byte[] big = new byte[HttpContent.MAX_CACHED_SIZE + 1];
+        mFiles.put("/js/big.js", big);
+        HttpContent content = newContent();
+        HttpContent.Entry e = content.get("/js/big.js");
+        assertNull(e.data);
+        assertNull(e.gzipData);
+        assertEquals(big.length, e.length);
+        assertEquals(0, content.getCacheBytes());
+        // The ETag is remembered, so the asset is not read again to work it out.
+        assertSame(e, content.get("/js/big.js"));
+        assertEquals(1, mOpens);
+
+        // Fill the cache with incompressible assets - the least recently
+        // used ones are dropped.
+        java.util.Random rnd = new java.util.Random(2);
+        int n = HttpContent.MAX_CACHE_SIZE / HttpContent.MAX_CACHED_SIZE + 2;
+        for (int i = 0; i < n; i++) {
+            byte[] b = new byte[HttpContent.MAX_CACHED_SIZE];
+            rnd.nextBytes(b);
+            mFiles.put("/img/" + i + ".png", b);
+            content.get("/img/" + i + ".png");
+        }
+        assertTrue(content.getCacheBytes() <= HttpContent.MAX_CACHE_SIZE);
+        assertNull(content.get("/img/0.png").data);
+        assertNotNull(content.get("/img/" + (n - 1) + ".png").data);
+        assertNotNull(content.get("/img/0.png").etag);
+    }
+
+    /**
+     * Check that NanoHTTPD sends a gzip encoded response that the client
+     * can decode.
+     */
+    @Test
+    public void testGzipResponse() throws Exception {
+        final byte[] body = text(100000);
+        NanoHTTPD server = new NanoHTTPD(0) {
+            @Override
+            public Response serve(String uri, Method method, Map<String, String> header,
+                                  Map<String, String> parameters, Map<String, String> files) {
+                Response res = new Response(Response.Status.OK, "text/plain",
+                        new ByteArrayInputStream(body));
+                if (HttpContent.acceptsGzip(header.get("accept-encoding"))) {
+                    res.setGzipEncoding(true);
+                }
+                return res;
+            }
+        };
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getListeningPort() + "/");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertArrayEquals(body, readAll(new GZIPInputStream(conn.getInputStream())));
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertArrayEquals(body, readAll(conn.getInputStream()));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testParseRange() throws Exception {
+        assertNull(HttpContent.parseRange(null, 100));
+        assertNull(HttpContent.parseRange("items=0-10", 100));
+        assertNull(HttpContent.parseRange("bytes=0-10,20-30", 100));
+        assertNull(HttpContent.parseRange("bytes=abc", 100));
+        HttpContent.Range r = HttpContent.parseRange("bytes=10-19", 100);
+        assertEquals(10, r.start);
+        assertEquals(19, r.end);
+        assertEquals(10, r.getLength());
+        assertEquals("bytes 10-19/100", r.toContentRange(100));
+        // Open ended and past the end ranges are limited to the file.
+        assertEquals(99, HttpContent.parseRange("bytes=50-", 100).end);
+        assertEquals(99, HttpContent.parseRange("bytes=50-500", 100).end);
+        r = HttpContent.parseRange("bytes=-30", 100);
+        assertEquals(70, r.start);
+        assertEquals(99, r.end);
+        assertEquals(0, HttpContent.parseRange("bytes=-300", 100).start);
+        assertSame(HttpContent.UNSATISFIABLE, HttpContent.parseRange("bytes=100-", 100));
+        assertSame(HttpContent.UNSATISFIABLE, HttpContent.parseRange("bytes=0-", 0));
+    }
+
+    @Test
+    public void testIfRange() throws Exception {
+        long modified = 1500000000123L;
+        String date = HttpContent.formatHttpDate(modified);
+        assertEquals("Fri, 14 Jul 2017 02:40:00 GMT", date);
+        assertEquals(1500000000000L, HttpContent.parseHttpDate(date));
+        assertEquals(-1, HttpContent.parseHttpDate("yesterday"));
+        assertTrue(HttpContent.ifRangeMatches(null, "\"a\"", modified));
+        assertTrue(HttpContent.ifRangeMatches("\"a\"", "\"a\"", modified));
+        assertFalse(HttpContent.ifRangeMatches("\"b\"", "\"a\"", modified));
+        assertFalse(HttpContent.ifRangeMatches("W/\"a\"", "W/\"a\"", modified));
+        assertTrue(HttpContent.ifRangeMatches(date, "\"a\"", modified));
+        assertFalse(HttpContent.ifRangeMatches(HttpContent.formatHttpDate(modified + 1000),
+                "\"a\"", modified));
+    }
+
+    /**
+     * Check that NanoHTTPD sends just the requested region of a file.
+     */
+    @Test
+    public void testFileRegionResponse() throws Exception {
+        final byte[] body = text(100000);
+        final File file = File.createTempFile("region", ".txt");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(body);
+        fos.close();
+        NanoHTTPD server = new NanoHTTPD(0) {
+            @Override
+            public Response serve(String uri, Method method, Map<String, String> header,
+                                  Map<String, String> parameters, Map<String, String> files) {
+                try {
+                    Response res = new Response(Response.Status.PARTIAL_CONTENT, "text/plain",
+                            (InputStream) null);
+                    res.setFileRegion(new FileInputStream(file).getChannel(), 1000, 50000);
+                    return res;
+                } catch (IOException e) {
+                    return new Response(e.toString());
+                }
+            }
+        };
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getListeningPort() + "/");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            assertEquals(206, conn.getResponseCode());
+            assertEquals("50000", conn.getHeaderField("Content-Length"));
+            byte[] expected = new byte[50000];
+            System.arraycopy(body, 1000, expected, 0, expected.length);
+            assertArrayEquals(expected, readAll(conn.getInputStream()));
+        } finally {
+            server.stop();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package uk.org.openseizuredetector;
+
+/**
+ * Micro-benchmark comparing IntRingBuffer with CircularArrayList for the raw
+ * data streams the watch can send (25, 50 and 100 Hz).  Each iteration
+ * simulates one second of data - the producer writes one second of samples as
+ * a single message, then the consumer reads them all back.
+ * It is not run with the unit tests - run main() by hand to see the results.
+ */
+public class IntRingBufferBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 200000;
+    private static final int CAPACITY = 1024;
+
+    private long benchRingBuffer(int sampleFreq, int iterations) {
+        IntRingBuffer rb = new IntRingBuffer(CAPACITY);
+        byte[] msg = new byte[4 * sampleFreq];
+        for (int i = 0; i < msg.length; i += 4) msg[i] = (byte) i;
+        int[] dest = new int[CAPACITY];
+        long sum = 0;
+        for (int it = 0; it < iterations; it++) {
+            rb.putInt32LE(msg, 0, sampleFreq);
+            int n = rb.read(dest, 0, dest.length);
+            for (int i = 0; i < n; i++) sum += dest[i];
+        }
+        return sum;
+    }
+
+    private long benchCircularArrayList(int sampleFreq, int iterations) {
+        CircularArrayList<Integer> cal = new CircularArrayList<Integer>(CAPACITY);
+        byte[] msg = new byte[4 * sampleFreq];
+        for (int i = 0; i < msg.length; i += 4) msg[i] = (byte) i;
+        long sum = 0;
+        for (int it = 0; it < iterations; it++) {
+            for (int i = 0; i < sampleFreq; i++) {
+                int p = 4 * i;
+                cal.add((msg[p] & 0xff) | ((msg[p + 1] & 0xff) << 8)
+                        | ((msg[p + 2] & 0xff) << 16) | (msg[p + 3] << 24));
+            }
+            while (cal.size() > 0) sum += cal.remove(0);
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) {
+        IntRingBufferBenchmark b = new IntRingBufferBenchmark();
+        for (int sampleFreq : new int[]{25, 50, 100}) {
+            long expected = b.benchCircularArrayList(sampleFreq, WARMUP_ITERATIONS);
+            if (b.benchRingBuffer(sampleFreq, WARMUP_ITERATIONS) != expected) {
+                throw new IllegalStateException("IntRingBuffer read back different samples");
+            }
+
+            long t0 = System.nanoTime();
+            b.benchCircularArrayList(sampleFreq, ITERATIONS);
+            long t1 = System.nanoTime();
+            b.benchRingBuffer(sampleFreq, ITERATIONS);
+            long t2 = System.nanoTime();
+
+            double calNs = (double) (t1 - t0) / ((long) ITERATIONS * sampleFreq);
+            double rbNs = (double) (t2 - t1) / ((long) ITERATIONS * sampleFreq);
+            System.out.println(String.format(
+                    "%3d Hz: CircularArrayList %.1f ns/sample, IntRingBuffer %.1f ns/sample (x%.1f)",
+                    sampleFreq, calNs, rbNs, calNs / rbNs));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single producer / single consumer IntRingBuffer.
+ */
+public class IntRingBufferTest {
+
+    @Test
+    public void testPutRead() throws Exception {
+        IntRingBuffer rb = new IntRingBuffer(8);
+        for (int i = 0; i < 5; i++) rb.put(i);
+        assertEquals(5, rb.available());
+        int[] dest = new int[8];
+        assertEquals(5, rb.read(dest, 0, 8));
+        for (int i = 0; i < 5; i++) assertEquals(i, dest[i]);
+        assertEquals(0, rb.available());
+        assertEquals(0, rb.read(dest, 0, 8));
+    }
+
+    @Test
+    public void testOverwriteOldest() throws Exception {
+        IntRingBuffer rb = new IntRingBuffer(8);
+        for (int i = 0; i < 20; i++) rb.put(i);
+        int[] dest = new int[8];
+        assertEquals(8, rb.read(dest, 0, 8));
+        assertEquals(12, dest[0]);
+        assertEquals(19, dest[7]);
+        assertEquals(12, rb.getOverwrittenCount());
+    }
+
+    @Test
+    public void testPutInt32LE() throws Exception {
+        IntRingBuffer rb = new IntRingBuffer(4);
+        byte[] bytes = {(byte) 0xe8, 0x03, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        rb.putInt32LE(bytes, 0, 2);
+        int[] dest = new int[4];
+        assertEquals(2, rb.read(dest, 0, 4));
+        assertEquals(1000, dest[0]);
+        assertEquals(-1, dest[1]);
+    }
+
+    @Test
+    public void testPutInt32LEWraps() throws Exception {
+        // Messages that do not divide the capacity must wrap round correctly.
+        IntRingBuffer rb = new IntRingBuffer(8);
+        byte[] msg = new byte[4 * 3];
+        int[] dest = new int[8];
+        int next = 0;
+        for (int it = 0; it < 10; it++) {
+            for (int i = 0; i < 3; i++) msg[4 * i] = (byte) (3 * it + i);
+            rb.putInt32LE(msg, 0, 3);
+            assertEquals(3, rb.read(dest, 0, dest.length));
+            for (int i = 0; i < 3; i++) assertEquals(next++, dest[i]);
+        }
+        assertEquals(0, rb.getOverwrittenCount());
+    }
+
+    @Test
+    public void testReadWindow() throws Exception {
+        IntRingBuffer rb = new IntRingBuffer(16);
+        double[] window = new double[4];
+        rb.put(1);
+        rb.put(2);
+        assertEquals(2, rb.readWindow(window, 4));
+        for (int i = 3; i <= 40; i++) rb.put(i);
+        assertEquals(4, rb.readWindow(window, 4));
+        assertEquals(37.0, window[0], 0);
+        assertEquals(40.0, window[3], 0);
+        // readWindow does not consume data.
+        assertEquals(16, rb.available());
+    }
+
+    @Test
+    public void testConcurrentProducerConsumer() throws Exception {
+        final IntRingBuffer rb = new IntRingBuffer(1024);
+        final int total = 1000000;
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < total; i++) rb.put(i);
+            }
+        });
+        producer.start();
+        int[] dest = new int[256];
+        long received = 0;
+        int last = -1;
+        while (last < total - 1) {
+            int n = rb.read(dest, 0, dest.length);
+            for (int i = 0; i < n; i++) {
+                // Samples may be skipped if we fall behind, but must always be in order.
+                assertTrue(dest[i] > last);
+                last = dest[i];
+            }
+            received += n;
+        }
+        producer.join();
+        assertEquals(total, received + rb.getOverwrittenCount());
+    }
+}
@@ -0,0 +1,51 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the alarm latency histogram.
+ */
+public class LatencyHistogramTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void testBuckets() throws Exception {
+        LatencyHistogram h = new LatencyHistogram("test");
+        h.record(0);
+        h.record(MS / 2);
+        h.record(MS);
+        h.record(7 * MS);
+        h.record(60000 * MS);
+        h.record(-5);
+        long[] counts = h.getCounts();
+        assertEquals(LatencyHistogram.BUCKET_BOUNDS_MS.length + 1, counts.length);
+        assertEquals(3, counts[0]);   // < 1 ms
+        assertEquals(1, counts[1]);   // 1-2 ms
+        assertEquals(1, counts[3]);   // 5-10 ms
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(6, h.getCount());
+        assertEquals(60000.0, h.getMaxMs(), 1e-9);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        LatencyHistogram h = new LatencyHistogram("test");
+        assertEquals(0.0, h.getPercentileMs(0.5), 1e-9);
+        for (int i = 0; i < 99; i++) {
+            h.record(3 * MS);
+        }
+        h.record(300 * MS);
+        assertEquals(5.97, h.getMeanMs(), 1e-9);
+        assertEquals(5.0, h.getPercentileMs(0.5), 1e-9);
+        assertEquals(5.0, h.getPercentileMs(0.99), 1e-9);
+        assertEquals(300.0, h.getPercentileMs(1.0), 1e-9);
+        StringBuilder sb = new StringBuilder();
+        h.toJson(sb);
+        assertTrue(sb.toString().startsWith("{\"name\":\"test\",\"count\":100,"));
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0.0, h.getMaxMs(), 1e-9);
+    }
+}
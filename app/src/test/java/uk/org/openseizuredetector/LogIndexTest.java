@@ -0,0 +1,180 @@
+package uk.org.openseizuredetector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the log file time index and queries using it.
+ */
+public class LogIndexTest {
+    private static final long MINUTE = 60 * 1000L;
+    private File mDir;
+    private long mDayStart;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("logindextest", "");
+        mDir.delete();
+        mDir.mkdirs();
+        Calendar cal = Calendar.getInstance();
+        cal.set(2016, Calendar.MARCH, 1, 0, 0, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        mDayStart = cal.getTimeInMillis();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        mDir.delete();
+    }
+
+    private String sysLogLine(long timeMs, String msg) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.UK);
+        return fmt.format(new Date(timeMs)) + ", " + timeMs + ", " + msg + "<br/>\n";
+    }
+
+    private File logFile(String logName, long timeMs, String ext) {
+        String dateStr = new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date(timeMs));
+        return new File(mDir, logName + "_" + dateStr + ext);
+    }
+
+    /**
+     * Write a SysLog file for the day starting at dayStart with one line a
+     * minute, maintaining its index as LogWriter does.
+     */
+    private File writeSysLog(long dayStart, boolean index) throws Exception {
+        File f = logFile("SysLog", dayStart, ".txt");
+        FileOutputStream fos = new FileOutputStream(f);
+        LogIndex.Writer w = index ? LogIndex.Writer.open(f) : null;
+        for (int i = 0; i < 24 * 60; i++) {
+            long t = dayStart + i * MINUTE;
+            byte[] line = sysLogLine(t, "msg " + i).getBytes("UTF-8");
+            if (w != null) w.add(t, line.length);
+            fos.write(line);
+        }
+        fos.close();
+        if (w != null) w.close();
+        return f;
+    }
+
+    private String readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+        in.close();
+        return bos.toString("UTF-8");
+    }
+
+    @Test
+    public void testGetRecordTime() throws Exception {
+        assertEquals(mDayStart, LogIndex.getRecordTime(sysLogLine(mDayStart, "a, b, c")));
+        assertEquals(-1, LogIndex.getRecordTime("just some text, with commas, in it"));
+        String alarm = "{\"dataTime\":\"01-03-2016 00:00:05\",\"dataTimeStr\":\"20160301T000005\"}";
+        assertEquals(mDayStart + 5000, LogIndex.getRecordTime(alarm));
+    }
+
+    @Test
+    public void testWrittenIndexMatchesBuiltIndex() throws Exception {
+        File f = writeSysLog(mDayStart, true);
+        LogIndex written = LogIndex.load(f, false);
+        assertEquals((24 * 60 + LogIndex.INTERVAL - 1) / LogIndex.INTERVAL, written.size());
+        assertEquals(0, written.getOffset(0));
+        LogIndex built = LogIndex.build(f, null);
+        assertEquals(written.size(), built.size());
+        for (int i = 0; i < built.size(); i++) {
+            assertEquals(written.getTime(i), built.getTime(i));
+            assertEquals(written.getOffset(i), built.getOffset(i));
+        }
+    }
+
+    @Test
+    public void testQueryReadsOnlyPartOfFile() throws Exception {
+        writeSysLog(mDayStart, true);
+        long from = mDayStart + 3 * 60 * MINUTE + 12 * MINUTE;
+        LogQuery query = new LogQuery(mDir, "SysLog", ".txt", from, from + 2 * MINUTE);
+        String text = readAll(query);
+        assertEquals(sysLogLine(from, "msg 192") + sysLogLine(from + MINUTE, "msg 193")
+                + sysLogLine(from + 2 * MINUTE, "msg 194"), text);
+        assertEquals(3, query.getRecordsSent());
+        assertTrue(query.getRecordsRead() <= 2 * LogIndex.INTERVAL);
+    }
+
+    @Test
+    public void testQueryAcrossDays() throws Exception {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(mDayStart);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        long day2 = cal.getTimeInMillis();
+        writeSysLog(mDayStart, true);
+        // The second day has no index yet, so one is built.
+        File f2 = writeSysLog(day2, false);
+        LogQuery query = new LogQuery(mDir, "SysLog", ".txt", day2 - 5 * MINUTE, day2 + 4 * MINUTE);
+        String[] lines = readAll(query).split("\n");
+        assertEquals(2, query.getFiles().size());
+        assertEquals(10, lines.length);
+        assertTrue(lines[0].contains("msg 1435"));
+        assertTrue(lines[9].contains("msg 4"));
+        // Past days' indexes are saved for next time.
+        assertTrue(LogIndex.indexFile(f2).exists());
+    }
+
+    @Test
+    public void testBinaryQuery() throws Exception {
+        File f = logFile("DataLog", mDayStart, DataLogFormat.FILE_EXT);
+        FileOutputStream fos = new FileOutputStream(f);
+        LogIndex.Writer w = LogIndex.Writer.open(f);
+        fos.write(DataLogFormat.header());
+        w.skip(DataLogFormat.HEADER_SIZE);
+        SdData sdData = new SdData();
+        for (int i = 0; i < 1000; i++) {
+            long t = mDayStart + i * 5000L;
+            sdData.maxVal = i;
+            byte[] rec = DataLogFormat.encode(t, sdData);
+            w.add(t, rec.length);
+            fos.write(rec);
+        }
+        fos.close();
+        w.close();
+        LogQuery query = new LogQuery(mDir, "DataLog", DataLogFormat.FILE_EXT,
+                mDayStart + 500 * 5000L, mDayStart + 509 * 5000L);
+        DataLogFormat.Reader reader = new DataLogFormat.Reader(query);
+        DataLogFormat.Record rec = new DataLogFormat.Record();
+        int n = 0;
+        while (reader.next(rec)) {
+            assertEquals(500 + n, rec.maxVal);
+            n++;
+        }
+        assertEquals(10, n);
+        assertTrue(query.getRecordsRead() <= 2 * LogIndex.INTERVAL);
+    }
+
+    @Test
+    public void testStaleIndexRebuilt() throws Exception {
+        File f = writeSysLog(mDayStart, true);
+        // Replace the log with a shorter one, leaving the old index.
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(sysLogLine(mDayStart, "new").getBytes("UTF-8"));
+        fos.close();
+        LogIndex.Writer w = LogIndex.Writer.open(f);
+        w.close();
+        LogIndex idx = LogIndex.load(f, false);
+        assertEquals(1, idx.size());
+        assertEquals(mDayStart, idx.getTime(0));
+    }
+}
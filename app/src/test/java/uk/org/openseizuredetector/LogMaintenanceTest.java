@@ -0,0 +1,183 @@
+package uk.org.openseizuredetector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for log file compression and deletion.
+ */
+public class LogMaintenanceTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private File mDir;
+    private LogMaintenance mLm;
+    private long mNow;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("logmaintenancetest", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mLm = new LogMaintenance(mDir);
+        Calendar cal = Calendar.getInstance();
+        cal.set(2016, Calendar.MARCH, 10, 12, 0, 0);
+        mNow = cal.getTimeInMillis();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        mDir.delete();
+    }
+
+    private String dateStr(long timeMs) {
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date(timeMs));
+    }
+
+    /**
+     * Write a SysLog file for daysAgo days before mNow, with lines lines.
+     */
+    private File writeLog(String type, int daysAgo, int lines) throws Exception {
+        long dayTime = mNow - daysAgo * DAY;
+        File f = new File(mDir, type + "_" + dateStr(dayTime) + ".txt");
+        FileOutputStream fos = new FileOutputStream(f);
+        for (int i = 0; i < lines; i++) {
+            long t = dayTime + i * 1000L;
+            fos.write((dateStr(t) + " 12:00:00, " + t + ", line " + i + "<br/>\n").getBytes("UTF-8"));
+        }
+        fos.close();
+        // As if it was last written at the end of its day.
+        f.setLastModified(Math.min(dayTime + lines * 1000L, mNow));
+        return f;
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+        in.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testCompressesFinishedDays() throws Exception {
+        File old = writeLog("SysLog", 2, 1000);
+        byte[] contents = readAll(new FileInputStream(old));
+        long modified = old.lastModified();
+        File today = writeLog("SysLog", 0, 10);
+        mLm.setPolicy(true, 0, 0);
+        mLm.runNow(mNow);
+        assertFalse(old.exists());
+        File gz = LogMaintenance.getCompressedFile(old);
+        assertTrue(gz.exists());
+        assertTrue(gz.length() < contents.length / 4);
+        assertEquals(modified / 1000, gz.lastModified() / 1000);
+        assertArrayEquals(contents, readAll(new GZIPInputStream(new FileInputStream(gz))));
+        assertTrue(today.exists());
+        assertFalse(LogMaintenance.getCompressedFile(today).exists());
+        StringBuilder sb = new StringBuilder();
+        mLm.toJson(sb);
+        assertTrue(sb.toString().contains("\"filesCompressed\":1"));
+    }
+
+    @Test
+    public void testQueryReadsCompressedFile() throws Exception {
+        File old = writeLog("SysLog", 1, 1000);
+        long dayTime = mNow - DAY;
+        LogIndex.Writer.open(old).close();
+        mLm.setPolicy(true, 0, 0);
+        mLm.runNow(mNow);
+        assertFalse(old.exists());
+        // The index of the uncompressed file is kept.
+        assertTrue(LogIndex.indexFile(LogMaintenance.getCompressedFile(old)).exists());
+        LogQuery query = new LogQuery(mDir, "SysLog", ".txt", dayTime + 500 * 1000L,
+                dayTime + 501 * 1000L);
+        String text = new String(readAll(query), "UTF-8");
+        assertTrue(text.startsWith(dateStr(dayTime) + " 12:00:00, " + (dayTime + 500 * 1000L)));
+        assertEquals(2, query.getRecordsSent());
+    }
+
+    @Test
+    public void testLateRecordsAppended() throws Exception {
+        File old = writeLog("SysLog", 2, 100);
+        mLm.setPolicy(true, 0, 0);
+        mLm.runNow(mNow);
+        // A record written to the file after it was compressed.
+        writeLog("SysLog", 2, 1);
+        mLm.runNow(mNow);
+        assertFalse(old.exists());
+        String text = new String(readAll(new GZIPInputStream(new FileInputStream(
+                LogMaintenance.getCompressedFile(old)))), "UTF-8");
+        assertEquals(101, text.split("\n").length);
+    }
+
+    @Test
+    public void testRecentFilesNotCompressed() throws Exception {
+        // Yesterday's file, but written to within the last hour.
+        File f = writeLog("SysLog", 1, 10);
+        f.setLastModified(mNow - 10 * 60 * 1000L);
+        mLm.setPolicy(true, 0, 0);
+        mLm.runNow(mNow);
+        assertTrue(f.exists());
+    }
+
+    @Test
+    public void testDeletesOldFiles() throws Exception {
+        File old = writeLog("SysLog", 40, 10);
+        LogIndex.Writer.open(old).close();
+        File recent = writeLog("SysLog", 5, 10);
+        File alarm = writeLog("AlarmLog", 40, 10);
+        File other = new File(mDir, "notes.txt");
+        new FileOutputStream(other).close();
+        other.setLastModified(mNow - 100 * DAY);
+        mLm.setPolicy(false, 30, 0);
+        mLm.runNow(mNow);
+        assertFalse(old.exists());
+        assertFalse(LogIndex.indexFile(old).exists());
+        assertTrue(recent.exists());
+        assertTrue(alarm.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void testSizeLimitPerType() throws Exception {
+        File[] sys = new File[5];
+        for (int i = 0; i < 5; i++) {
+            sys[i] = writeLog("SysLog", i, 100);
+        }
+        File alarm = writeLog("AlarmLog", 4, 100);
+        long size = sys[1].length();
+        // Room for a little under three days of SysLog.
+        mLm.setPolicy(false, 0, size * 3 - 1);
+        mLm.runNow(mNow);
+        assertTrue(sys[0].exists());
+        assertTrue(sys[1].exists());
+        assertFalse(sys[2].exists());
+        assertFalse(sys[3].exists());
+        assertFalse(sys[4].exists());
+        assertTrue(alarm.exists());
+        // Today's file is kept whatever its size.
+        mLm.setPolicy(false, 0, 1);
+        mLm.runNow(mNow);
+        assertTrue(sys[0].exists());
+        assertFalse(sys[1].exists());
+        assertTrue(alarm.exists());
+    }
+}
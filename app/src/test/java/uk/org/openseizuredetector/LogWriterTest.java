@@ -0,0 +1,157 @@
+package uk.org.openseizuredetector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that LogWriter writes queued records to the right files.
+ */
+public class LogWriterTest {
+    private File mDir;
+    private LogWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("logwritertest", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mWriter = new LogWriter(mDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        mDir.delete();
+    }
+
+    private List<String> readLines(String logName) throws Exception {
+        String dateStr = new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date());
+        File f = new File(mDir, logName + "_" + dateStr + ".txt");
+        List<String> lines = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        String line;
+        while ((line = br.readLine()) != null) lines.add(line);
+        br.close();
+        return lines;
+    }
+
+    @Test
+    public void testWriteAndFlush() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            mWriter.write("DataLog", "data " + i, false, false);
+        }
+        mWriter.write("SysLog", "hello", true, false);
+        assertTrue(mWriter.flush(5000));
+        List<String> data = readLines("DataLog");
+        assertEquals(100, data.size());
+        assertEquals("data 0", data.get(0));
+        assertEquals("data 99", data.get(99));
+        List<String> sys = readLines("SysLog");
+        assertEquals(1, sys.size());
+        assertTrue(sys.get(0).endsWith(", hello<br/>"));
+        assertEquals(101, mWriter.getWrittenCount());
+    }
+
+    @Test
+    public void testSyncRecordWrittenWithoutFlush() throws Exception {
+        mWriter.write("AlarmLog", "alarm", false, true);
+        // The alarm should reach the file without anyone calling flush().
+        long end = System.currentTimeMillis() + 2000;
+        List<String> lines = new ArrayList<String>();
+        while (System.currentTimeMillis() < end) {
+            try {
+                lines = readLines("AlarmLog");
+            } catch (java.io.FileNotFoundException e) {
+                // not created yet.
+            }
+            if (lines.size() > 0) break;
+            Thread.sleep(10);
+        }
+        assertEquals(1, lines.size());
+        assertEquals("alarm", lines.get(0));
+    }
+
+    @Test
+    public void testAppendsToExistingFile() throws Exception {
+        mWriter.write("DataLog", "first", false, false);
+        assertTrue(mWriter.flush(5000));
+        mWriter.close();
+        mWriter = new LogWriter(mDir);
+        mWriter.write("DataLog", "second", false, false);
+        assertTrue(mWriter.flush(5000));
+        List<String> lines = readLines("DataLog");
+        assertEquals(2, lines.size());
+        assertEquals("second", lines.get(1));
+    }
+
+    @Test
+    public void testBinaryHeaderWrittenOnce() throws Exception {
+        byte[] header = {'H', 'D'};
+        mWriter.writeBinary("DataLog", ".bin", header, new byte[]{1, 2, 3}, false);
+        assertTrue(mWriter.flush(5000));
+        mWriter.close();
+        mWriter = new LogWriter(mDir);
+        mWriter.writeBinary("DataLog", ".bin", header, new byte[]{4}, false);
+        assertTrue(mWriter.flush(5000));
+        String dateStr = new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date());
+        File f = new File(mDir, "DataLog_" + dateStr + ".bin");
+        byte[] contents = java.nio.file.Files.readAllBytes(f.toPath());
+        assertArrayEquals(new byte[]{'H', 'D', 1, 2, 3, 4}, contents);
+    }
+
+    @Test
+    public void testPartialRecordRemoved() throws Exception {
+        byte[] header = {'H', 'D'};
+        mWriter.writeBinary("DataLog", ".bin", header, new byte[]{1, 2, 3}, false);
+        assertTrue(mWriter.flush(5000));
+        mWriter.close();
+        // Simulate a crash part way through writing the next record.
+        String dateStr = new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date());
+        File f = new File(mDir, "DataLog_" + dateStr + ".bin");
+        java.nio.file.Files.write(f.toPath(), new byte[]{9, 9},
+                java.nio.file.StandardOpenOption.APPEND);
+        mWriter = new LogWriter(mDir);
+        mWriter.writeBinary("DataLog", ".bin", header, new byte[]{4, 5, 6}, false);
+        assertTrue(mWriter.flush(5000));
+        byte[] contents = java.nio.file.Files.readAllBytes(f.toPath());
+        assertArrayEquals(new byte[]{'H', 'D', 1, 2, 3, 4, 5, 6}, contents);
+    }
+
+    @Test
+    public void testIndexWritten() throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            mWriter.write("SysLog", "line " + i, true, false);
+        }
+        assertTrue(mWriter.flush(5000));
+        String dateStr = new SimpleDateFormat("yyyy-MM-dd", Locale.UK).format(new Date());
+        File f = new File(mDir, "SysLog_" + dateStr + ".txt");
+        LogIndex idx = LogIndex.load(f, false);
+        assertEquals((100 + LogIndex.INTERVAL - 1) / LogIndex.INTERVAL, idx.size());
+        assertEquals(0, idx.getOffset(0));
+        assertTrue(idx.getTime(0) >= start);
+        LogQuery query = new LogQuery(mDir, "SysLog", ".txt", start, System.currentTimeMillis());
+        int lines = 0;
+        int b;
+        while ((b = query.read()) >= 0) {
+            if (b == '\n') lines++;
+        }
+        assertEquals(100, lines);
+    }
+}
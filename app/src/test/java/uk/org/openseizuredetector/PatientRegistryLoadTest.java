@@ -0,0 +1,127 @@
+package uk.org.openseizuredetector;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test for PatientRegistry - runs many fake data sources on the
+ * registry's pool, much faster than real ones, and reports how long each
+ * update took to process and how much memory the patients use.
+ * This is not a rigorous benchmark - it is intended to show that one
+ * phone can keep up with a care home full of watches.  It depends on the
+ * speed of the machine, so it is not run with the unit tests - run main()
+ * by hand to see the results.
+ */
+public class PatientRegistryLoadTest {
+    private static final int PATIENTS = 25;
+    private static final long PERIOD_MS = 20;    // real sources update every 2000 ms.
+    private static final long RUN_MS = 3000;
+
+    /**
+     * Produces random data for one patient on the registry pool, re-using
+     * its SdData objects and re-scheduling itself after each update in the
+     * same way as SdDataSourceNetwork.
+     */
+    private static class FakeSource implements Runnable {
+        final PatientRegistry mRegistry;
+        final PatientRegistry.Patient mPatient;
+        final Random mRandom;
+        final SdData[] mBufs = {new SdData(), new SdData()};
+        int mBufNo = 0;
+        volatile boolean mRunning = true;
+        volatile ScheduledFuture<?> mFuture;
+
+        FakeSource(PatientRegistry registry, PatientRegistry.Patient patient, long seed) {
+            mRegistry = registry;
+            mPatient = patient;
+            mRandom = new Random(seed);
+        }
+
+        public void run() {
+            if (!mRunning) return;
+            mBufNo = (mBufNo + 1) % mBufs.length;
+            SdData d = mBufs[mBufNo];
+            int r = mRandom.nextInt(1000);
+            d.alarmState = (r < 980) ? 0 : (r < 990) ? 1 : (r < 995) ? 2 : 7;
+            d.specPower = mRandom.nextInt(10000);
+            d.roiPower = mRandom.nextInt(1000);
+            d.dataTime.setToNow();
+            if (r == 999) {
+                mPatient.onSdDataFault(d);
+            } else {
+                mPatient.onSdDataReceived(d);
+            }
+            if (mRunning) {
+                mFuture = mRegistry.getPool().schedule(this, PERIOD_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long heapBefore = rt.totalMemory() - rt.freeMemory();
+
+        PatientRegistry registry = new PatientRegistry(PatientRegistry.DEFAULT_MAX_PATIENTS,
+                PatientRegistry.DEFAULT_POOL_THREADS);
+        ThreadPoolExecutor annunciator = AlarmStateMachine.newAnnunciatorExecutor();
+        Executor logger = new Executor() {
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+        PatientRegistryTest.NullActions actions = new PatientRegistryTest.NullActions();
+        ArrayList<FakeSource> sources = new ArrayList<FakeSource>();
+        for (int i = 0; i < PATIENTS; i++) {
+            AlarmStateMachine asm = new AlarmStateMachine(actions, annunciator, logger);
+            asm.setLatchAlarms(true);
+            PatientRegistry.Patient p = registry.addPatient(String.valueOf(i + 1), "Patient " + (i + 1), asm);
+            sources.add(new FakeSource(registry, p, i));
+        }
+        System.gc();
+        long heapAfter = rt.totalMemory() - rt.freeMemory();
+
+        for (FakeSource s : sources) {
+            registry.getPool().execute(s);
+        }
+        Thread.sleep(RUN_MS);
+        for (FakeSource s : sources) {
+            s.mRunning = false;
+        }
+        StringBuilder sb = new StringBuilder();
+        registry.dashboardToJson(sb);
+        registry.shutdown();
+        annunciator.shutdown();
+        if (!annunciator.awaitTermination(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("annunciator did not finish");
+        }
+
+        long total = 0;
+        long minUpdates = Long.MAX_VALUE;
+        double maxP99 = 0;
+        double maxMs = 0;
+        for (FakeSource s : sources) {
+            long n = s.mPatient.getUpdateCount();
+            total += n;
+            minUpdates = Math.min(minUpdates, n);
+            LatencyHistogram h = s.mPatient.getProcessTime();
+            maxP99 = Math.max(maxP99, h.getPercentileMs(0.99));
+            maxMs = Math.max(maxMs, h.getMaxMs());
+        }
+        System.out.println(String.format("PatientRegistryLoadTest: %d patients, %d updates in %d ms "
+                        + "(%.0f/s), min %d per patient, process time p99 <= %.1f ms, max %.1f ms, "
+                        + "%.0f kB per patient, dashboard %d chars",
+                PATIENTS, total, RUN_MS, total * 1000.0 / RUN_MS, minUpdates, maxP99, maxMs,
+                (heapAfter - heapBefore) / 1024.0 / PATIENTS, sb.length()));
+
+        // Every patient should have been kept up to date - at least half
+        // of the requested rate.
+        if (minUpdates < RUN_MS / PERIOD_MS / 2) {
+            throw new IllegalStateException("patient starved - " + minUpdates + " updates");
+        }
+    }
+}
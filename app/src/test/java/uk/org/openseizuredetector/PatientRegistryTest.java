@@ -0,0 +1,134 @@
+package uk.org.openseizuredetector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the multi-patient registry.
+ */
+public class PatientRegistryTest {
+    private PatientRegistry mRegistry;
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    static class NullActions implements AlarmStateMachine.Actions {
+        volatile int mAlarmBeeps = 0;
+
+        public boolean warningBeep() { return true; }
+        public boolean alarmBeep() { mAlarmBeeps++; return true; }
+        public boolean faultWarningBeep() { return true; }
+        public void showNotification(int alarmLevel) { }
+        public void showMainActivity() { }
+        public void sendSMSAlarm() { }
+        public void logAlarm(boolean logData) { }
+        public void logEvent(int state, String alarmPhrase, String dataJson) { }
+        public void startLatchTimer() { }
+        public void stopFaultTimer() { }
+    }
+
+    @Before
+    public void setUp() {
+        mRegistry = new PatientRegistry(3, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mRegistry.shutdown();
+    }
+
+    private PatientRegistry.Patient addPatient(String id, String name, NullActions actions) {
+        return mRegistry.addPatient(id, name, new AlarmStateMachine(actions, DIRECT, DIRECT));
+    }
+
+    @Test
+    public void testParsePatientList() throws Exception {
+        List<String[]> l = PatientRegistry.parsePatientList(" Room 1=192.168.1.20, 192.168.1.21 ,,Bob= ,");
+        assertEquals(2, l.size());
+        assertArrayEquals(new String[]{"Room 1", "192.168.1.20"}, l.get(0));
+        assertArrayEquals(new String[]{"192.168.1.21", "192.168.1.21"}, l.get(1));
+        assertEquals(0, PatientRegistry.parsePatientList(null).size());
+    }
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        NullActions actions = new NullActions();
+        addPatient("1", "a", actions);
+        addPatient("2", "b", actions);
+        try {
+            addPatient("2", "c", actions);
+            fail("duplicate id accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        addPatient("3", "c", actions);
+        try {
+            addPatient("4", "d", actions);
+            fail("too many patients accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(3, mRegistry.size());
+        assertEquals("b", mRegistry.removePatient("2").getName());
+        assertNull(mRegistry.getPatient("2"));
+        assertEquals("c", mRegistry.getPatients().get(1).getName());
+    }
+
+    @Test
+    public void testStatusRepublished() throws Exception {
+        PatientRegistry.Patient p = addPatient("1", "a", new NullActions());
+        SdData d = new SdData();
+        d.batteryPc = 80;
+        p.onSdDataReceived(d);
+        long version = p.getSnapshot().getVersion();
+        d.batteryPc = 79;
+        p.onSdDataStatus(d);
+        assertTrue(p.getSnapshot().getVersion() > version);
+        assertTrue(p.getSnapshot().getJson().contains("\"batteryPc\":79"));
+        // A status change is not a new update.
+        assertEquals(1, p.getUpdateCount());
+        assertEquals(1, p.getHistory().size());
+    }
+
+    @Test
+    public void testPatientsAreIndependent() throws Exception {
+        NullActions actions = new NullActions();
+        PatientRegistry.Patient p1 = addPatient("1", "Room \"1\"", actions);
+        PatientRegistry.Patient p2 = addPatient("2", "Room 2", actions);
+        assertNull(p1.getSnapshot());
+
+        SdData d = new SdData();
+        d.alarmState = 2;
+        d.specPower = 50;
+        p1.onSdDataReceived(d);
+        d = new SdData();
+        d.alarmState = 0;
+        p2.onSdDataReceived(d);
+        p2.onSdDataFault(d);
+
+        assertEquals(1, actions.mAlarmBeeps);
+        assertEquals(AlarmStateMachine.STATE_ALARM, p1.getAlarmStateMachine().getState());
+        assertEquals(AlarmStateMachine.STATE_FAULT, p2.getAlarmStateMachine().getState());
+        assertEquals(2, p1.getSnapshot().getAlarmState());
+        assertTrue(p1.getSnapshot().getJson().contains("\"alarmPhrase\":\"ALARM\""));
+        assertEquals(1, p1.getHistory().size());
+        assertEquals(2, p2.getUpdateCount());
+        assertEquals(2, p2.getProcessTime().getCount());
+
+        StringBuilder sb = new StringBuilder();
+        mRegistry.dashboardToJson(sb);
+        String json = sb.toString();
+        assertTrue(json.startsWith("[{\"id\":\"1\",\"name\":\"Room \\\"1\\\"\",\"state\":\"ALARM\""));
+        assertTrue(json.contains("{\"id\":\"2\",\"name\":\"Room 2\",\"state\":\"FAULT\""));
+        assertTrue(json.contains("\"faults\":1"));
+    }
+}
@@ -0,0 +1,166 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Pebble link quality monitor.
+ */
+public class PebbleLinkMonitorTest {
+
+    @Test
+    public void testInOrder() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        assertEquals(PebbleLinkMonitor.MSG_RESET, m.onMessage(10L, null, 1000));
+        for (long i = 11; i < 30; i++) {
+            assertEquals(PebbleLinkMonitor.MSG_OK, m.onMessage(i, null, i * 100));
+        }
+        assertEquals(20, m.getMessages());
+        assertEquals(0, m.getLost());
+        assertEquals(0.0, m.getLossPc(), 1e-9);
+        assertFalse(m.isLinkPoor());
+    }
+
+    @Test
+    public void testGapsDuplicatesAndLate() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        m.onMessage(1L, 1000L, 0);
+        assertEquals(PebbleLinkMonitor.MSG_GAP, m.onMessage(4L, 4000L, 0));
+        assertEquals(2, m.getLost());
+        double loss = m.getLossPc();
+        assertTrue(loss > 0);
+        assertEquals(PebbleLinkMonitor.MSG_DUPLICATE, m.onMessage(4L, 4000L, 0));
+        assertEquals(PebbleLinkMonitor.MSG_LATE, m.onMessage(2L, 2000L, 0));
+        assertEquals(1, m.getLost());
+        assertEquals(1, m.getLate());
+        assertTrue(m.getLossPc() < loss);
+        // A re-sent copy of the late message is still a duplicate.
+        assertEquals(PebbleLinkMonitor.MSG_DUPLICATE, m.onMessage(2L, 2000L, 0));
+        assertEquals(2, m.getDuplicates());
+        assertEquals(3, m.getMessages());
+        // Without the watch time only a repeat of the last message is a duplicate.
+        PebbleLinkMonitor n = new PebbleLinkMonitor(5000);
+        n.onMessage(1L, null, 0);
+        assertEquals(PebbleLinkMonitor.MSG_DUPLICATE, n.onMessage(1L, null, 0));
+    }
+
+    @Test
+    public void testRestartFromZero() throws Exception {
+        // Older sequence below the reorder window, with and without watch times.
+        for (int withTime = 0; withTime < 2; withTime++) {
+            PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+            long t = 0;
+            for (long i = 0; i < 20; i++) {
+                m.onMessage(i, withTime == 1 ? t : null, t);
+                t += 5000;
+            }
+            assertEquals(PebbleLinkMonitor.MSG_RESET, m.onMessage(0L, withTime == 1 ? t : null, t));
+            for (long i = 1; i < 20; i++) {
+                t += 5000;
+                assertEquals(PebbleLinkMonitor.MSG_OK, m.onMessage(i, withTime == 1 ? t : null, t));
+            }
+            assertEquals(1, m.getResets());
+            assertEquals(0, m.getDuplicates());
+            assertEquals(0, m.getLost());
+        }
+    }
+
+    @Test
+    public void testWrapAndReset() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        m.onMessage(0xFFFFFFFEL, null, 0);
+        assertEquals(PebbleLinkMonitor.MSG_OK, m.onMessage(0xFFFFFFFFL, null, 0));
+        assertEquals(PebbleLinkMonitor.MSG_OK, m.onMessage(0L, null, 0));
+        assertEquals(0, m.getLost());
+        // Watch app restarted and started counting again.
+        assertEquals(PebbleLinkMonitor.MSG_RESET, m.onMessage(5000L, null, 0));
+        assertEquals(1, m.getResets());
+        assertEquals(PebbleLinkMonitor.MSG_OK, m.onMessage(5001L, null, 0));
+    }
+
+    @Test
+    public void testOldWatchApp() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        long t = 0;
+        for (int i = 0; i < 20; i++) {
+            assertEquals(PebbleLinkMonitor.MSG_NO_SEQ, m.onMessage(null, null, t));
+            m.onResults(t);
+            t += 5000;
+        }
+        assertFalse(m.hasSequenceNumbers());
+        assertEquals(0.0, m.getJitterMs(), 1e-9);
+        assertEquals(100, m.getQuality(t - 5000));
+        // Irregular arrivals give jitter.
+        for (int i = 0; i < 20; i++) {
+            t += (i % 2 == 0) ? 2000 : 8000;
+            m.onMessage(null, null, t);
+            m.onResults(t);
+        }
+        assertTrue(m.getJitterMs() > 1000);
+        assertTrue(m.getQuality(t) < 100);
+    }
+
+    @Test
+    public void testWatchTimeJitter() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        // Messages sent at irregular times but delivered without delay.
+        long watch = 0xFFFFF000L;
+        long t = 100000;
+        for (long i = 0; i < 20; i++) {
+            m.onMessage(i, watch & 0xFFFFFFFFL, t);
+            long step = (i % 2 == 0) ? 1000 : 7000;
+            watch += step;
+            t += step;
+        }
+        assertEquals(0.0, m.getJitterMs(), 1e-9);
+        // Now every other message is delayed by 2 seconds.
+        for (long i = 20; i < 60; i++) {
+            m.onMessage(i, watch & 0xFFFFFFFFL, t + ((i % 2 == 0) ? 2000 : 0));
+            watch += 5000;
+            t += 5000;
+        }
+        assertTrue(m.getJitterMs() > 1000);
+    }
+
+    @Test
+    public void testPoorLinkAndStall() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        long t = 0;
+        long seq = 0;
+        for (int i = 0; i < 40; i++) {
+            m.onMessage(seq, null, t);
+            m.onResults(t);
+            seq++;
+            t += 5000;
+        }
+        assertFalse(m.isLinkPoor());
+        // The watch app stops sending - the data gets old but the link is not poor.
+        t += 60000;
+        assertFalse(m.isLinkPoor());
+        assertTrue(m.getDataAgeMs(t) > 60000);
+        assertTrue(m.getQuality(t) < PebbleLinkMonitor.POOR_SCORE);
+        // Most messages are lost.
+        for (int i = 0; i < 40; i++) {
+            seq += 3;
+            m.onMessage(seq, null, t);
+            m.onResults(t);
+            t += 15000;
+        }
+        assertTrue(m.getLossPc() > 50);
+        assertTrue(m.isLinkPoor());
+    }
+
+    @Test
+    public void testConnectionState() throws Exception {
+        PebbleLinkMonitor m = new PebbleLinkMonitor(5000);
+        assertTrue(m.isConnectionUnstable(0, 60000));
+        m.onConnectionState(true, 0);
+        assertFalse(m.isConnectionUnstable(1000, 60000));
+        m.onConnectionState(false, 2000);
+        m.onConnectionState(true, 3000);
+        assertEquals(1, m.getDisconnects());
+        assertTrue(m.isConnectionUnstable(10000, 60000));
+        assertFalse(m.isConnectionUnstable(70000, 60000));
+    }
+}
@@ -0,0 +1,49 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the network data source adaptive polling.
+ */
+public class PollIntervalPolicyTest {
+
+    @Test
+    public void testNormalPeriod() throws Exception {
+        PollIntervalPolicy p = new PollIntervalPolicy(2000);
+        assertEquals(2000, p.getNextDelayMs());
+        p.onSuccess(0);
+        assertEquals(2000, p.getNextDelayMs());
+    }
+
+    @Test
+    public void testFasterDuringAlarm() throws Exception {
+        PollIntervalPolicy p = new PollIntervalPolicy(2000);
+        p.onSuccess(2);
+        assertEquals(1000, p.getNextDelayMs());
+        p.onSuccess(1);
+        assertEquals(1000, p.getNextDelayMs());
+        p.onSuccess(0);
+        assertEquals(2000, p.getNextDelayMs());
+        p.setBasePeriod(600);
+        p.onSuccess(2);
+        assertEquals(PollIntervalPolicy.MIN_PERIOD_MS, p.getNextDelayMs());
+    }
+
+    @Test
+    public void testBackOff() throws Exception {
+        PollIntervalPolicy p = new PollIntervalPolicy(2000);
+        p.onFailure();
+        assertEquals(2000, p.getNextDelayMs());
+        p.onFailure();
+        assertEquals(4000, p.getNextDelayMs());
+        p.onFailure();
+        assertEquals(8000, p.getNextDelayMs());
+        for (int i = 0; i < 100; i++) p.onFailure();
+        assertEquals(PollIntervalPolicy.MAX_BACKOFF_MS, p.getNextDelayMs());
+        p.onSuccess(0);
+        assertEquals(0, p.getConsecutiveFailures());
+        assertEquals(2000, p.getNextDelayMs());
+    }
+}
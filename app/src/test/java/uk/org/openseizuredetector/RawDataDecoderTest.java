@@ -0,0 +1,70 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RawDataDecoder against the byte layouts sent by the watch.
+ */
+public class RawDataDecoderTest {
+
+    private byte[] magPayload(int[] vals) {
+        byte[] b = new byte[4 * vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            b[4 * i] = (byte) vals[i];
+            b[4 * i + 1] = (byte) (vals[i] >> 8);
+            b[4 * i + 2] = (byte) (vals[i] >> 16);
+            b[4 * i + 3] = (byte) (vals[i] >> 24);
+        }
+        return b;
+    }
+
+    @Test
+    public void testMagnitudes() throws Exception {
+        RawDataDecoder decoder = new RawDataDecoder(4);
+        int[] vals = {0, 1000, 65536 + 7, -5};
+        AccelSampleBatch batch = decoder.decode(magPayload(vals), vals.length);
+        assertEquals(4, batch.size);
+        assertFalse(batch.hasXyz);
+        for (int i = 0; i < vals.length; i++) {
+            assertEquals(vals[i], batch.mag[i]);
+        }
+    }
+
+    @Test
+    public void testXyzMatchesAccelData() throws Exception {
+        byte[] b = new byte[2 * RawDataDecoder.BYTES_PER_XYZ_SAMPLE];
+        int[][] xyz = {{100, -200, 980}, {-1000, 30, -4}};
+        for (int i = 0; i < 2; i++) {
+            int p = i * RawDataDecoder.BYTES_PER_XYZ_SAMPLE;
+            for (int a = 0; a < 3; a++) {
+                b[p + 2 * a] = (byte) xyz[i][a];
+                b[p + 2 * a + 1] = (byte) (xyz[i][a] >> 8);
+            }
+        }
+        RawDataDecoder decoder = new RawDataDecoder(1);
+        AccelSampleBatch batch = decoder.decode(b, 2);
+        assertEquals(2, batch.size);
+        assertTrue(batch.hasXyz);
+        for (int i = 0; i < 2; i++) {
+            AccelData ref = new AccelData(java.util.Arrays.copyOfRange(b,
+                    i * RawDataDecoder.BYTES_PER_XYZ_SAMPLE, (i + 1) * RawDataDecoder.BYTES_PER_XYZ_SAMPLE));
+            assertEquals(ref.getX(), batch.x[i]);
+            assertEquals(ref.getY(), batch.y[i]);
+            assertEquals(ref.getZ(), batch.z[i]);
+            assertEquals(ref.getMagnitude(), batch.mag[i]);
+        }
+    }
+
+    @Test
+    public void testBatchIsReused() throws Exception {
+        RawDataDecoder decoder = new RawDataDecoder(8);
+        AccelSampleBatch first = decoder.decode(magPayload(new int[]{1, 2, 3}), 3);
+        AccelSampleBatch second = decoder.decode(magPayload(new int[]{4}), 1);
+        assertSame(first, second);
+        assertEquals(1, second.size);
+        assertEquals(4, second.mag[0]);
+        assertEquals(0, decoder.decode(null, 0).size);
+    }
+}
@@ -0,0 +1,153 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the phone based SdAnalyser, using the default watch settings from
+ * pebble_datasource_prefs.xml so the thresholds mean the same as on the watch.
+ */
+public class SdAnalyserTest {
+    private static final int SAMPLE_FREQ = 25;
+    private static final int ANALYSIS_PERIOD = 5;
+    private static final int UPDATE_PERIOD = 5;
+    private static final int ALARM_FREQ_MIN = 3;
+    private static final int ALARM_FREQ_MAX = 10;
+    private static final int WARN_TIME = 5;
+    private static final int ALARM_TIME = 10;
+    private static final int ALARM_THRESH = 100;
+    private static final int ALARM_RATIO_THRESH = 50;
+
+    private SdAnalyser makeAnalyser() {
+        SdAnalyser analyser = new SdAnalyser();
+        analyser.setSettings(SAMPLE_FREQ, ANALYSIS_PERIOD, ALARM_FREQ_MIN, ALARM_FREQ_MAX,
+                WARN_TIME, ALARM_TIME, ALARM_THRESH, ALARM_RATIO_THRESH);
+        return analyser;
+    }
+
+    private double[] makeSignal(int nSec, double tremorFreq, double tremorAmp, double noise, long seed) {
+        Random rnd = new Random(seed);
+        double[] x = new double[nSec * SAMPLE_FREQ];
+        for (int i = 0; i < x.length; i++) {
+            double t = (double) i / SAMPLE_FREQ;
+            x[i] = 1000 + noise * rnd.nextGaussian()
+                    + tremorAmp * Math.sin(2 * Math.PI * tremorFreq * t);
+        }
+        return x;
+    }
+
+    /**
+     * Feed the signal to the analyser UPDATE_PERIOD seconds at a time.
+     * @return the highest alarm state seen.
+     */
+    private long run(double[] x) {
+        SdAnalyser analyser = makeAnalyser();
+        SdData sdData = new SdData();
+        long maxState = 0;
+        int chunk = UPDATE_PERIOD * SAMPLE_FREQ;
+        for (int end = chunk; end <= x.length; end += chunk) {
+            for (int i = end - chunk; i < end; i++) analyser.addSample(x[i]);
+            if (!analyser.analyse(sdData, UPDATE_PERIOD)) continue;
+            maxState = Math.max(maxState, sdData.alarmState);
+        }
+        return maxState;
+    }
+
+    @Test
+    public void testFftSize() throws Exception {
+        SdAnalyser analyser = makeAnalyser();
+        assertEquals(128, analyser.getNSamp());
+        assertEquals(15, analyser.getNMin());
+        assertEquals(51, analyser.getNMax());
+        analyser.setSettings(100, 5, 3, 10, 5, 10, 100, 50);
+        assertEquals(SdAnalyser.NSAMP_MAX, analyser.getNSamp());
+    }
+
+    @Test
+    public void testNotEnoughData() throws Exception {
+        SdAnalyser analyser = makeAnalyser();
+        for (int i = 0; i < 100; i++) analyser.addSample(1000);
+        assertFalse(analyser.analyse(new SdData(), UPDATE_PERIOD));
+    }
+
+    /**
+     * A sine wave centred on fft bin k, with amplitude A, gives a power of
+     * (A/2)^2 in that bin once the fft is scaled by 1/nSamp, so the outputs
+     * can be worked out by hand.
+     */
+    @Test
+    public void testKnownSpectrum() throws Exception {
+        SdAnalyser analyser = makeAnalyser();
+        int nSamp = 128;
+        int k = 25;   // 25 * 25 / 128 = 4.9 Hz, in the region of interest.
+        double amp = 200;
+        for (int i = 0; i < nSamp; i++) {
+            analyser.addSample(1000 + amp * Math.sin(2 * Math.PI * k * i / nSamp));
+        }
+        SdData sdData = new SdData();
+        assertTrue(analyser.analyse(sdData, UPDATE_PERIOD));
+        long binPower = 10000;   // (200 / 2)^2
+        assertEquals(binPower, sdData.maxVal, 1);
+        assertEquals(4, sdData.maxFreq);
+        assertEquals(binPower / (51 - 15), sdData.roiPower);          // 277
+        assertEquals(binPower / (2 * nSamp), sdData.specPower);       // 39
+        assertEquals(binPower, sdData.simpleSpec[4], 1);
+        // roiRatio = 10 * 277 / 39 = 71, above the default threshold of 50.
+        assertTrue(10 * sdData.roiPower / sdData.specPower > ALARM_RATIO_THRESH);
+    }
+
+    @Test
+    public void testRestingNoAlarm() throws Exception {
+        assertEquals(0, run(makeSignal(120, 0, 0, 20, 1)));
+    }
+
+    @Test
+    public void testTremorAlarm() throws Exception {
+        assertEquals(2, run(makeSignal(120, 5.0, 400, 20, 2)));
+    }
+
+    @Test
+    public void testTremorWarning() throws Exception {
+        // Tremor for 10 seconds of analysis gives a warning but not an alarm.
+        double[] x = makeSignal(60, 0, 0, 20, 5);
+        double[] t = makeSignal(10, 5.0, 400, 20, 6);
+        System.arraycopy(t, 0, x, 20 * SAMPLE_FREQ, t.length);
+        assertEquals(1, run(x));
+    }
+
+    @Test
+    public void testWalkingNoAlarm() throws Exception {
+        // Large but low frequency movement is outside the region of interest.
+        assertEquals(0, run(makeSignal(120, 1.5, 400, 20, 3)));
+    }
+
+    @Test
+    public void testBroadbandNoAlarm() throws Exception {
+        // Vigorous random movement is above the power threshold, but is not
+        // concentrated in the region of interest, so the ratio test rejects it.
+        SdAnalyser analyser = makeAnalyser();
+        double[] x = makeSignal(120, 0, 0, 200, 7);
+        SdData sdData = new SdData();
+        int chunk = UPDATE_PERIOD * SAMPLE_FREQ;
+        for (int end = chunk; end <= x.length; end += chunk) {
+            for (int i = end - chunk; i < end; i++) analyser.addSample(x[i]);
+            if (!analyser.analyse(sdData, UPDATE_PERIOD)) continue;
+            assertTrue(sdData.roiPower > ALARM_THRESH);
+            assertEquals(0, sdData.alarmState);
+        }
+    }
+
+    @Test
+    public void testMaxFreq() throws Exception {
+        SdAnalyser analyser = makeAnalyser();
+        double[] x = makeSignal(10, 6.0, 400, 20, 4);
+        for (double v : x) analyser.addSample(v);
+        SdData sdData = new SdData();
+        assertTrue(analyser.analyse(sdData, UPDATE_PERIOD));
+        assertEquals(6, sdData.maxFreq, 1);
+        assertTrue(sdData.simpleSpec[6] > sdData.simpleSpec[2]);
+    }
+}
@@ -0,0 +1,107 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the /stream event broadcaster.
+ */
+public class SdDataBroadcasterTest {
+
+    private SdDataSnapshot snapshot(long version, long alarmState) {
+        return new SdDataSnapshot(version, alarmState, "{\"v\":" + version + "}");
+    }
+
+    /**
+     * Read one event (or keepalive) from the stream as a string.
+     */
+    private String readEvent(SdDataBroadcaster.Subscriber sub) throws Exception {
+        byte[] buf = new byte[1024];
+        int n = sub.read(buf, 0, buf.length);
+        if (n < 0) return null;
+        return new String(buf, 0, n, "UTF-8");
+    }
+
+    @Test
+    public void testPublishToAll() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster();
+        SdDataBroadcaster.Subscriber s1 = b.subscribe();
+        SdDataBroadcaster.Subscriber s2 = b.subscribe();
+        b.publish(snapshot(1, 0), false);
+        b.publish(snapshot(2, 2), true);
+        assertEquals("event: data\nid: 1\ndata: {\"v\":1}\n\n", readEvent(s1));
+        assertEquals("event: alarm\nid: 2\ndata: {\"v\":2}\n\n", readEvent(s1));
+        assertTrue(readEvent(s2).contains("id: 1"));
+        assertEquals(2, b.getSubscriberCount());
+        s1.close();
+        assertEquals(1, b.getSubscriberCount());
+        assertNull(readEvent(s1));
+    }
+
+    @Test
+    public void testSlowClientKeepsLatestAndAlarms() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster();
+        SdDataBroadcaster.Subscriber sub = b.subscribe();
+        b.publish(snapshot(1, 2), true);
+        for (int i = 2; i <= 10; i++) b.publish(snapshot(i, 2), false);
+        // The alarm must survive, and the newest data must be there.
+        assertTrue(readEvent(sub).contains("event: alarm"));
+        String last = null;
+        for (int i = 1; i < SdDataBroadcaster.QUEUE_SIZE; i++) {
+            last = readEvent(sub);
+        }
+        assertTrue(last.contains("id: 10"));
+        assertFalse(sub.isClosed());
+    }
+
+    @Test
+    public void testStalledClientEvicted() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster();
+        SdDataBroadcaster.Subscriber sub = b.subscribe();
+        for (int i = 0; i < SdDataBroadcaster.QUEUE_SIZE + SdDataBroadcaster.MAX_DROPPED_EVENTS; i++) {
+            b.publish(snapshot(i, 0), false);
+        }
+        assertTrue(sub.isClosed());
+        assertEquals(1, b.getEvictedCount());
+        assertEquals(0, b.getSubscriberCount());
+        assertNull(readEvent(sub));
+    }
+
+    @Test
+    public void testSubscriberLimit() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster();
+        for (int i = 0; i < SdDataBroadcaster.MAX_SUBSCRIBERS; i++) {
+            assertNotNull(b.subscribe());
+        }
+        assertNull(b.subscribe());
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster(10);
+        SdDataBroadcaster.Subscriber sub = b.subscribe();
+        assertEquals(":\n\n", readEvent(sub));
+    }
+
+    @Test
+    public void testCloseWakesReader() throws Exception {
+        SdDataBroadcaster b = new SdDataBroadcaster();
+        final SdDataBroadcaster.Subscriber sub = b.subscribe();
+        final String[] result = {"not read"};
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    result[0] = readEvent(sub);
+                } catch (Exception e) {
+                    result[0] = e.toString();
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        b.closeAll();
+        t.join(2000);
+        assertNull(result[0]);
+    }
+}
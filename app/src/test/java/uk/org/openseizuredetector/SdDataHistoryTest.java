@@ -0,0 +1,114 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the rolling history of detector outputs.
+ */
+public class SdDataHistoryTest {
+    private static final int SPEC = SdDataHistory.FIELD_SPEC_POWER;
+    private static final int ROI = SdDataHistory.FIELD_ROI_POWER;
+
+    private void add(SdDataHistory h, long t, float spec, float roi) {
+        float[] v = new float[SdDataHistory.NFIELDS];
+        v[SPEC] = spec;
+        v[ROI] = roi;
+        h.add(t, v);
+    }
+
+    @Test
+    public void testRawQuery() throws Exception {
+        SdDataHistory h = new SdDataHistory(100);
+        for (int i = 0; i < 10; i++) {
+            add(h, 1000 * i, i, 2 * i);
+        }
+        SdDataHistory.Series s = h.query(2000, 5000, 100);
+        assertEquals(4, s.n);
+        assertEquals(2000, s.time[0]);
+        assertEquals(5000, s.time[3]);
+        assertEquals(3f, s.mean[SPEC][1], 0f);
+        assertEquals(6f, s.max[ROI][1], 0f);
+    }
+
+    @Test
+    public void testDownsample() throws Exception {
+        SdDataHistory h = new SdDataHistory(100);
+        for (int i = 0; i < 10; i++) {
+            add(h, 1000 * i, i, 0);
+        }
+        // Two points, each covering 5 samples.
+        SdDataHistory.Series s = h.query(0, 9999, 2);
+        assertEquals(2, s.n);
+        assertEquals(0f, s.min[SPEC][0], 0f);
+        assertEquals(4f, s.max[SPEC][0], 0f);
+        assertEquals(2f, s.mean[SPEC][0], 0f);
+        assertEquals(5f, s.min[SPEC][1], 0f);
+        assertEquals(9f, s.max[SPEC][1], 0f);
+        assertEquals(7f, s.mean[SPEC][1], 0f);
+    }
+
+    @Test
+    public void testAggregateLevels() throws Exception {
+        SdDataHistory h = new SdDataHistory(10000);
+        // One hour of data every 2 seconds, value = minute number.
+        for (long t = 0; t < 3600 * 1000L; t += 2000) {
+            add(h, t, t / 60000, 1);
+        }
+        // One point per 10 minutes - answered from the 10 minute aggregates.
+        SdDataHistory.Series s = h.query(0, 3600 * 1000L - 1, 6);
+        assertEquals(6, s.n);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i * 600 * 1000L, s.time[i]);
+            assertEquals(10f * i, s.min[SPEC][i], 0f);
+            assertEquals(10f * i + 9, s.max[SPEC][i], 0f);
+            assertEquals(10f * i + 4.5f, s.mean[SPEC][i], 0.001f);
+            assertEquals(1f, s.mean[ROI][i], 0f);
+        }
+        // One point per minute - from the one minute aggregates.
+        s = h.query(600 * 1000L, 1200 * 1000L - 1, 10);
+        assertEquals(10, s.n);
+        assertEquals(10f, s.min[SPEC][0], 0f);
+        assertEquals(19f, s.max[SPEC][9], 0f);
+    }
+
+    @Test
+    public void testRingOverwrite() throws Exception {
+        SdDataHistory h = new SdDataHistory(5);
+        for (int i = 0; i < 12; i++) {
+            add(h, 1000 * i, i, 0);
+        }
+        assertEquals(5, h.size());
+        SdDataHistory.Series s = h.query(0, 11000, 100);
+        assertEquals(5, s.n);
+        assertEquals(7000, s.time[0]);
+        assertEquals(11f, s.max[SPEC][4], 0f);
+    }
+
+    @Test
+    public void testTimeNeverGoesBackwards() throws Exception {
+        SdDataHistory h = new SdDataHistory(10);
+        add(h, 5000, 1, 0);
+        add(h, 4000, 2, 0);
+        SdDataHistory.Series s = h.query(0, 10000, 100);
+        assertEquals(1, s.n);
+        assertEquals(5000, s.time[0]);
+        assertEquals(1.5f, s.mean[SPEC][0], 0f);
+    }
+
+    @Test
+    public void testEmptyAndJson() throws Exception {
+        SdDataHistory h = new SdDataHistory(10);
+        SdDataHistory.Series s = h.query(0, 10000, 10);
+        assertEquals(0, s.n);
+        add(h, 1000, 3, 4.5f);
+        s = h.query(0, 10000, 10);
+        StringBuilder sb = new StringBuilder();
+        s.toJson(sb);
+        assertEquals("{\"time\":[1000],"
+                + "\"specPower\":{\"min\":[3],\"max\":[3],\"mean\":[3]},"
+                + "\"roiPower\":{\"min\":[4.5],\"max\":[4.5],\"mean\":[4.5]},"
+                + "\"alarmState\":{\"min\":[0],\"max\":[0],\"mean\":[0]}}", sb.toString());
+    }
+}
@@ -0,0 +1,89 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the streaming SdData JSON parser.
+ */
+public class SdDataParserTest {
+
+    @Test
+    public void testParseSerializerOutput() throws Exception {
+        SdData src = new SdData();
+        src.dataTime.setToNow();
+        src.maxVal = 1234;
+        src.maxFreq = 6;
+        src.specPower = 45;
+        src.roiPower = 78;
+        src.batteryPc = 90;
+        src.pebbleConnected = true;
+        src.alarmState = 2;
+        src.alarmPhrase = "ALARM \"quoted\" \u00e9\n";
+        src.alarmThresh = 100;
+        src.alarmRatioThresh = 50;
+        for (int i = 0; i < src.simpleSpec.length; i++) src.simpleSpec[i] = i * 11;
+
+        SdData dest = new SdData();
+        assertTrue(new SdDataParser().parse(
+                new StringReader(new SdDataSerializer().toJson(src)), dest));
+        assertEquals(1234, dest.maxVal);
+        assertEquals(6, dest.maxFreq);
+        assertEquals(45, dest.specPower);
+        assertEquals(78, dest.roiPower);
+        assertEquals(90, dest.batteryPc);
+        assertTrue(dest.pebbleConnected);
+        assertFalse(dest.pebbleAppRunning);
+        assertEquals(2, dest.alarmState);
+        assertEquals(src.alarmPhrase, dest.alarmPhrase);
+        assertEquals(100, dest.alarmThresh);
+        assertEquals(50, dest.alarmRatioThresh);
+        assertEquals(99, dest.simpleSpec[9]);
+        assertTrue(dest.haveData);
+    }
+
+    @Test
+    public void testUnknownFieldsIgnored() throws Exception {
+        String json = "{ \"newObject\": {\"a\": [1, {\"b\": \"}]\"}], \"c\": null},"
+                + " \"maxVal\" : 42, \"newArray\": [[1,2],[3]], \"newNumber\": -1.5e3,"
+                + " \"newBool\": true, \"newNull\": null, \"alarmState\": 1,"
+                + " \"simpleSpec\": [1,2,3,4,5,6,7,8,9,10,11,12] }";
+        SdData dest = new SdData();
+        assertTrue(new SdDataParser().parse(new StringReader(json), dest));
+        assertEquals(42, dest.maxVal);
+        assertEquals(1, dest.alarmState);
+        assertEquals(10, dest.simpleSpec[9]);
+    }
+
+    @Test
+    public void testLargePayload() throws Exception {
+        // Much bigger than the 500 characters the old code read.
+        StringBuilder sb = new StringBuilder("{\"padding\":\"");
+        for (int i = 0; i < 10000; i++) sb.append('x');
+        sb.append("\",\"roiPower\":77}");
+        SdData dest = new SdData();
+        assertTrue(new SdDataParser().parse(new StringReader(sb.toString()), dest));
+        assertEquals(77, dest.roiPower);
+    }
+
+    @Test
+    public void testReuseClearsOldValues() throws Exception {
+        SdDataParser parser = new SdDataParser();
+        SdData dest = new SdData();
+        parser.parse(new StringReader("{\"maxVal\":5,\"alarmPhrase\":\"ALARM\",\"alarmState\":2}"), dest);
+        dest.alarmStanding = true;
+        parser.parse(new StringReader("{\"alarmState\":0}"), dest);
+        assertEquals(0, dest.maxVal);
+        assertEquals("", dest.alarmPhrase);
+        assertFalse(dest.alarmStanding);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        new SdDataParser().parse(new StringReader("{\"maxVal\":5,\"alarmSt"), new SdData());
+    }
+}
@@ -0,0 +1,47 @@
+package uk.org.openseizuredetector;
+
+/**
+ * Compares the time taken to serialise SdData with SdDataSerializer and
+ * with the org.json based SdData.toDataString().
+ * This is not a rigorous benchmark - it is intended to show the relative
+ * cost of the two methods.  It is not run with the unit tests - run main()
+ * by hand to see the results.
+ */
+public class SdDataSerializerBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        SdData sdData = new SdData();
+        sdData.dataTime.setToNow();
+        sdData.alarmPhrase = "OK";
+        for (int i = 0; i < sdData.simpleSpec.length; i++) sdData.simpleSpec[i] = i * 100;
+        SdDataSerializer serializer = new SdDataSerializer();
+
+        long total = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sdData.maxVal = i;
+            total += sdData.toDataString().length();
+            total += serializer.toJson(sdData).length();
+        }
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sdData.maxVal = i;
+            total += sdData.toDataString().length();
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sdData.maxVal = i;
+            total += serializer.toJson(sdData).length();
+        }
+        long t2 = System.nanoTime();
+
+        double jsonNs = (double) (t1 - t0) / ITERATIONS;
+        double serNs = (double) (t2 - t1) / ITERATIONS;
+        System.out.println(String.format("SdData.toDataString() %.0f ns/call, SdDataSerializer %.0f ns/call (x%.1f)",
+                jsonNs, serNs, jsonNs / serNs));
+        // Use the total so the JIT cannot remove the loops.
+        System.out.println("(" + total + " characters written)");
+    }
+}
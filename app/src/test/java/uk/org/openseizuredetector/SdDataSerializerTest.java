@@ -0,0 +1,80 @@
+package uk.org.openseizuredetector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that SdDataSerializer produces the same JSON as SdData.toDataString().
+ */
+public class SdDataSerializerTest {
+
+    private SdData makeSdData() {
+        SdData sdData = new SdData();
+        sdData.dataTime.set(1451653507000L);
+        sdData.maxVal = 1234;
+        sdData.maxFreq = 6;
+        sdData.specPower = 45;
+        sdData.roiPower = 78;
+        sdData.batteryPc = 90;
+        sdData.pebbleConnected = true;
+        sdData.alarmState = 2;
+        sdData.alarmPhrase = "ALARM \"test\"\n";
+        sdData.mSdMode = 1;
+        sdData.mSampleFreq = 25;
+        sdData.analysisPeriod = 5;
+        sdData.alarmFreqMin = 3;
+        sdData.alarmFreqMax = 10;
+        sdData.alarmThresh = 100;
+        sdData.alarmRatioThresh = 50;
+        for (int i = 0; i < sdData.simpleSpec.length; i++) sdData.simpleSpec[i] = i * 11;
+        return sdData;
+    }
+
+    @Test
+    public void testMatchesToDataString() throws Exception {
+        SdData sdData = makeSdData();
+        JSONObject expected = new JSONObject(sdData.toDataString());
+        JSONObject actual = new JSONObject(new SdDataSerializer().toJson(sdData));
+        assertEquals(expected.length(), actual.length());
+        Iterator<String> keys = expected.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.equals("simpleSpec")) {
+                JSONArray e = expected.getJSONArray(key);
+                JSONArray a = actual.getJSONArray(key);
+                assertEquals(e.length(), a.length());
+                for (int i = 0; i < e.length(); i++) assertEquals(e.getInt(i), a.getInt(i));
+            } else {
+                assertEquals(key, expected.get(key).toString(), actual.get(key).toString());
+            }
+        }
+    }
+
+    @Test
+    public void testNullPhraseOmitted() throws Exception {
+        SdData sdData = makeSdData();
+        sdData.alarmPhrase = null;
+        JSONObject actual = new JSONObject(new SdDataSerializer().toJson(sdData));
+        assertFalse(actual.has("alarmPhrase"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        SdDataSerializer serializer = new SdDataSerializer();
+        SdData sdData = makeSdData();
+        SdDataSnapshot snap = SdDataSnapshot.create(sdData, 7, serializer);
+        sdData.alarmState = 0;
+        SdDataSnapshot snap2 = SdDataSnapshot.create(sdData, 8, serializer);
+        // The first snapshot must not change when the data or serializer are re-used.
+        assertEquals(2, snap.getAlarmState());
+        assertEquals(2, new JSONObject(snap.getJson()).getInt("alarmState"));
+        assertEquals(0, new JSONObject(snap2.getJson()).getInt("alarmState"));
+        assertEquals(7, snap.getVersion());
+        assertEquals(8, snap2.getVersion());
+    }
+}
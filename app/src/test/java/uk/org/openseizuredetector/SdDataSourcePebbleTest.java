@@ -2,6 +2,9 @@ package uk.org.openseizuredetector;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static org.junit.Assert.*;
 
 /**
@@ -48,4 +51,42 @@ public class SdDataSourcePebbleTest {
     public void testGetPebbleStatus() throws Exception {
 
     }
-}
\ No newline at end of file
+
+    /**
+     * @return a KEY_SPEC_DATA payload holding values.
+     */
+    private static byte[] specBytes(int... values) {
+        ByteBuffer buf = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v : values) buf.putInt(v);
+        return buf.array();
+    }
+
+    @Test
+    public void testResultsPublishedWithTheirSpectrum() throws Exception {
+        final SdDataSerializer serializer = new SdDataSerializer();
+        final SdDataSnapshot[] published = new SdDataSnapshot[1];
+        SdDataReceiver receiver = new SdDataReceiver() {
+            public void onSdDataReceived(SdData sdData) {
+                // As SdServer.publishSdData() does.
+                published[0] = SdDataSnapshot.create(sdData, 1, serializer);
+            }
+
+            public void onSdDataFault(SdData sdData) {
+            }
+
+            public void onSdDataStatus(SdData sdData) {
+            }
+        };
+        SdData sdData = new SdData();
+        SdDataSourcePebble.deliverResults(sdData,
+                specBytes(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), receiver);
+        assertTrue(published[0].getJson().contains("\"simpleSpec\":[1,2,3,4,5,6,7,8,9,10]"));
+
+        sdData.roiPower = 500;
+        SdDataSourcePebble.deliverResults(sdData,
+                specBytes(10, 20, 30, 40, 50, 60, 70, 80, 90, 100, 110), receiver);
+        String json = published[0].getJson();
+        assertTrue(json.contains("\"roiPower\":500"));
+        assertTrue(json.contains("\"simpleSpec\":[10,20,30,40,50,60,70,80,90,100]"));
+    }
+}
@@ -0,0 +1,116 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the metrics registry.
+ */
+public class SdMetricsTest {
+    private SdMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mMetrics = new SdMetrics();
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        SdMetrics.Counter c = mMetrics.counter("osd_test_total", "A test.");
+        c.inc();
+        c.add(4);
+        assertSame(c, mMetrics.counter("osd_test_total", "A test."));
+        assertEquals(5, c.get());
+        SdMetrics.Counter raw = mMetrics.counter("osd_msgs_total", "type=\"raw\"", "Messages.");
+        assertNotSame(raw, mMetrics.counter("osd_msgs_total", "type=\"results\"", "Messages."));
+        assertSame(raw, mMetrics.get("osd_msgs_total", "type=\"raw\""));
+        try {
+            mMetrics.histogram("osd_test_total", "A test.");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        // Every value is in a bucket whose upper bound is at least the value
+        // and within 1/8 of it.
+        int prev = -1;
+        for (long us = 0; us < 100000; us += 1 + us / 50) {
+            int b = SdMetrics.Histogram.bucket(us);
+            assertTrue(b >= prev);
+            prev = b;
+            long upper = SdMetrics.Histogram.bucketUpperUs(b);
+            assertTrue(upper >= us);
+            assertTrue(upper - us <= us / 8);
+            if (b > 0) assertTrue(SdMetrics.Histogram.bucketUpperUs(b - 1) < us);
+        }
+        assertEquals(SdMetrics.Histogram.NBUCKETS - 1, SdMetrics.Histogram.bucket(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        SdMetrics.Histogram h = mMetrics.histogram("osd_test_seconds", "A test.");
+        assertEquals(0, h.getPercentileMs(0.5), 0);
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 10000L);   // 0.01 to 10 ms
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(5.005, h.getMeanMs(), 1e-9);
+        assertEquals(10.0, h.getMaxMs(), 1e-9);
+        assertEquals(5.0, h.getPercentileMs(0.5), 5.0 / 8);
+        assertEquals(9.9, h.getPercentileMs(0.99), 9.9 / 8);
+        assertEquals(10.0, h.getPercentileMs(1.0), 1e-9);
+    }
+
+    @Test
+    public void testPrometheusFormat() throws Exception {
+        mMetrics.counter("osd_msgs_total", "type=\"raw\"", "Messages.").add(3);
+        mMetrics.counter("osd_msgs_total", "type=\"results\"", "Messages.").inc();
+        mMetrics.gauge("osd_connected", "Connected.", new SdMetrics.Gauge() {
+            public double get() {
+                return 1;
+            }
+        });
+        mMetrics.histogram("osd_decode_seconds", "Decode time.").record(2000000);
+        StringBuilder sb = new StringBuilder();
+        mMetrics.writePrometheus(sb);
+        String text = sb.toString();
+        assertTrue(text.contains("# TYPE osd_msgs_total counter\n"
+                + "osd_msgs_total{type=\"raw\"} 3\n"
+                + "osd_msgs_total{type=\"results\"} 1\n"));
+        assertEquals(text.indexOf("# HELP osd_msgs_total"), text.lastIndexOf("# HELP osd_msgs_total"));
+        assertTrue(text.contains("# TYPE osd_connected gauge\nosd_connected 1\n"));
+        assertTrue(text.contains("# TYPE osd_decode_seconds summary\n"));
+        assertTrue(text.contains("osd_decode_seconds{quantile=\"0.5\"} 0.002\n"));
+        assertTrue(text.contains("osd_decode_seconds_count 1\n"));
+        sb = new StringBuilder();
+        mMetrics.toJson(sb);
+        assertTrue(sb.toString().contains("\"labels\":\"type=\\\"raw\\\"\",\"type\":\"counter\",\"value\":3"));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final SdMetrics.Counter c = mMetrics.counter("osd_test_total", "A test.");
+        final SdMetrics.Histogram h = mMetrics.histogram("osd_test_seconds", "A test.");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        c.inc();
+                        h.record(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        assertEquals(400000, c.get());
+        assertEquals(400000, h.getCount());
+        assertEquals(99999 / 1e6, h.getMaxMs(), 1e-9);
+    }
+}
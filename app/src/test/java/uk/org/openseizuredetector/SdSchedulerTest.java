@@ -0,0 +1,131 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the shared scheduler.
+ */
+public class SdSchedulerTest {
+
+    private SdScheduler.TaskStats findStats(SdScheduler s, String name) {
+        for (SdScheduler.TaskStats stats : s.getStats()) {
+            if (stats.name.equals(name)) return stats;
+        }
+        return null;
+    }
+
+    @Test
+    public void testScheduleOnce() throws Exception {
+        SdScheduler s = new SdScheduler();
+        final CountDownLatch done = new CountDownLatch(1);
+        s.scheduleOnce("once", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        }, 20);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertEquals(1, findStats(s, "once").runs);
+    }
+
+    @Test
+    public void testPeriodicRunsImmediatelyAndRepeats() throws Exception {
+        SdScheduler s = new SdScheduler();
+        final CountDownLatch done = new CountDownLatch(4);
+        SdScheduler.Task task = s.schedulePeriodic("periodic", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        }, 0, 50);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        task.cancel();
+        assertTrue(task.isCancelled());
+        assertEquals(0, s.getPeriodicWakeupCount());
+    }
+
+    @Test
+    public void testSamePeriodSharesWakeup() throws Exception {
+        SdScheduler s = new SdScheduler();
+        final AtomicInteger a = new AtomicInteger();
+        final AtomicInteger b = new AtomicInteger();
+        SdScheduler.Task ta = s.schedulePeriodic("a", new Runnable() {
+            public void run() {
+                a.incrementAndGet();
+            }
+        }, 1000, 100);
+        SdScheduler.Task tb = s.schedulePeriodic("b", new Runnable() {
+            public void run() {
+                b.incrementAndGet();
+            }
+        }, 1000, 100);
+        SdScheduler.Task tc = s.schedulePeriodic("c", new Runnable() {
+            public void run() {
+            }
+        }, 1000, 200);
+        assertEquals(2, s.getPeriodicWakeupCount());
+        Thread.sleep(550);
+        assertTrue(a.get() >= 3);
+        assertTrue(Math.abs(a.get() - b.get()) <= 1);
+        ta.cancel();
+        assertEquals(2, s.getPeriodicWakeupCount());
+        tb.cancel();
+        assertEquals(1, s.getPeriodicWakeupCount());
+        tc.cancel();
+        assertEquals(0, s.getPeriodicWakeupCount());
+        int aRuns = a.get();
+        Thread.sleep(250);
+        assertEquals(aRuns, a.get());
+    }
+
+    @Test
+    public void testExceptionDoesNotStopOtherTasks() throws Exception {
+        SdScheduler s = new SdScheduler();
+        final CountDownLatch done = new CountDownLatch(3);
+        s.schedulePeriodic("bad", new Runnable() {
+            public void run() {
+                throw new RuntimeException("test");
+            }
+        }, 0, 30);
+        s.schedulePeriodic("good", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        }, 0, 30);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        SdScheduler.TaskStats bad = findStats(s, "bad");
+        assertTrue(bad.runs >= 2);
+        assertEquals(bad.runs, bad.errors);
+    }
+
+    @Test
+    public void testOverrunCounted() throws Exception {
+        SdScheduler s = new SdScheduler();
+        // Stats are recorded after the run, so wait for a third run to
+        // start to be sure two have been recorded.
+        final CountDownLatch done = new CountDownLatch(3);
+        SdScheduler.Task task = s.schedulePeriodic("slow", new Runnable() {
+            public void run() {
+                done.countDown();
+                try {
+                    Thread.sleep(60);
+                } catch (InterruptedException e) {
+                    // finish
+                }
+            }
+        }, 0, 20);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        task.cancel();
+        SdScheduler.TaskStats stats = findStats(s, "slow");
+        assertTrue(stats.overruns >= 2);
+        assertTrue(stats.maxRunNs >= TimeUnit.MILLISECONDS.toNanos(60));
+        StringBuilder sb = new StringBuilder();
+        s.statsToJson(sb);
+        assertTrue(sb.toString().startsWith("[{\"name\":\"slow\",\"runs\":"));
+    }
+}
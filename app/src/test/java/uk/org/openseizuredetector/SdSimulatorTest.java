@@ -0,0 +1,231 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the simulated watch and the data processing and alarm pipeline
+ * that it drives.
+ */
+public class SdSimulatorTest {
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * Records the alarm states it receives.
+     */
+    private static class Recorder implements SdDataReceiver {
+        final ArrayList<Long> mStates = new ArrayList<Long>();
+        int mFaults = 0;
+
+        public synchronized void onSdDataReceived(SdData sdData) {
+            mStates.add(sdData.alarmState);
+        }
+
+        public synchronized void onSdDataFault(SdData sdData) {
+            mFaults++;
+        }
+
+        public void onSdDataStatus(SdData sdData) {
+        }
+    }
+
+    private SdSimulator newSimulator(SdDataReceiver receiver, Executor delivery) {
+        SdSimulator sim = new SdSimulator(receiver, delivery);
+        // The default watch settings from pebble_datasource_prefs.xml.
+        sim.setSettings(25, 5, 5, 3, 10, 5, 10, 100, 50, 30);
+        sim.setSpeed(0);
+        return sim;
+    }
+
+    @Test
+    public void testParseScenario() throws Exception {
+        ArrayList<SdSimulator.Segment> s = SdSimulator.parseScenario(" quiet:10, Tremor:20:6, tremor:5:7:300,dropout:15");
+        assertEquals(4, s.size());
+        assertEquals(SdSimulator.SEG_QUIET, s.get(0).type);
+        assertEquals(SdSimulator.SEG_TREMOR, s.get(1).type);
+        assertEquals(20, s.get(1).durationSec);
+        assertEquals(6.0, s.get(1).freq, 1e-9);
+        assertEquals(400.0, s.get(1).amplitude, 1e-9);
+        assertEquals(300.0, s.get(2).amplitude, 1e-9);
+        assertEquals(SdSimulator.SEG_DROPOUT, s.get(3).type);
+        assertEquals(6, SdSimulator.parseScenario(SdSimulator.DEFAULT_SCENARIO).size());
+        String[] bad = {"", "quiet", "shake:10", "quiet:0", "quiet:ten", "tremor:1:2:3:4"};
+        for (String b : bad) {
+            try {
+                SdSimulator.parseScenario(b);
+                fail("Parsed invalid scenario '" + b + "'");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testTremorAlarmAndDropoutFault() throws Exception {
+        Recorder rec = new Recorder();
+        SdSimulator sim = newSimulator(rec, DIRECT);
+        sim.setScenario(SdSimulator.parseScenario("quiet:30,tremor:60,dropout:60,quiet:20"));
+        sim.run();
+        assertEquals(170000, sim.getSimulatedMs());
+        // The analysis needs just over one update period of data to start,
+        // both at the beginning and after the dropout.
+        assertEquals(5 + 12 + 3, rec.mStates.size());
+        assertEquals(20, sim.getUpdateCount());
+        for (int i = 0; i < 5; i++) assertEquals(0L, (long) rec.mStates.get(i));
+        assertEquals(2L, (long) rec.mStates.get(5 + 11));
+        // A fault at each update once there has been no data for 5 + 30 seconds.
+        assertEquals(5, rec.mFaults);
+        assertEquals(5, sim.getFaultCount());
+
+        ArrayList<SdSimulator.Detection> d = sim.getDetections();
+        assertEquals(1, d.size());
+        assertEquals(30000, d.get(0).startMs);
+        assertTrue(d.get(0).warningMs > 5000 && d.get(0).warningMs <= 15000);
+        assertTrue(d.get(0).alarmMs > 10000 && d.get(0).alarmMs <= 20000);
+        assertTrue(sim.getAlarmDeliveryTime().getCount() > 0);
+    }
+
+    @Test
+    public void testBurstDelivery() throws Exception {
+        SdSimulator sim = newSimulator(new Recorder(), DIRECT);
+        sim.setScenario(SdSimulator.parseScenario("quiet:10,burst:50"));
+        assertEquals(5000, sim.step());
+        assertEquals(5000, sim.step());
+        long[] expected = {0, 0, 0, 0, 25000, 0, 0, 0, 0, 25000};
+        for (long e : expected) assertEquals(e, sim.step());
+        assertEquals(-1, sim.step());
+    }
+
+    @Test
+    public void testRawReplay() throws Exception {
+        StringBuilder sb = new StringBuilder("# x,y,z in milli-g\n\n");
+        int n = 25 * 40;
+        for (int i = 0; i < n; i++) {
+            double t = i / 25.0;
+            double z = 1000 + ((t >= 10) ? 400 * Math.sin(2 * Math.PI * 5 * t) : 0);
+            sb.append("0, 0, ").append(z).append('\n');
+        }
+        double[] raw = SdSimulator.readRaw(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+        assertEquals(n, raw.length);
+        assertEquals(1000.0, raw[0], 1e-9);
+        assertEquals(2.5, SdSimulator.readRaw(new ByteArrayInputStream("2.5\n".getBytes()))[0], 1e-9);
+
+        Recorder rec = new Recorder();
+        SdSimulator sim = newSimulator(rec, DIRECT);
+        sim.setRawSamples(raw);
+        sim.run();
+        assertEquals(SdSimulator.SOURCE_RAW, sim.getSource());
+        assertEquals(7, rec.mStates.size());
+        assertEquals(0L, (long) rec.mStates.get(0));
+        assertEquals(2L, (long) rec.mStates.get(6));
+    }
+
+    @Test
+    public void testDataLogReplay() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(DataLogFormat.header());
+        long[] times = {1000000, 1060000, 1065000, 5000000};
+        long[] states = {0, 1, 2, 0};
+        for (int i = 0; i < times.length; i++) {
+            SdData d = new SdData();
+            d.alarmState = states[i];
+            d.roiPower = 100 + i;
+            out.write(DataLogFormat.encode(times[i], d));
+        }
+        Recorder rec = new Recorder();
+        SdSimulator sim = newSimulator(rec, DIRECT);
+        sim.setDataLog(SdSimulator.readDataLog(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(60000, sim.step());
+        assertEquals(5000, sim.step());
+        // Long gaps are shortened.
+        assertEquals(SdSimulator.MAX_REPLAY_GAP_MS, sim.step());
+        assertEquals(102, sim.getSdData().roiPower);
+        sim.step();
+        assertEquals(-1, sim.step());
+        assertEquals(4, rec.mStates.size());
+        for (int i = 0; i < states.length; i++) assertEquals(states[i], (long) rec.mStates.get(i));
+    }
+
+    @Test
+    public void testSpeed() throws Exception {
+        Recorder rec = new Recorder();
+        SdSimulator sim = newSimulator(rec, DIRECT);
+        sim.setScenario(SdSimulator.parseScenario("quiet:50"));
+        sim.setSpeed(1000);   // limited to MAX_SPEED
+        sim.start();
+        long startMs = System.currentTimeMillis();
+        while (sim.isRunning() && System.currentTimeMillis() - startMs < 5000) {
+            Thread.sleep(10);
+        }
+        assertFalse(sim.isRunning());
+        // 50 seconds of data at 100 times real time.
+        assertTrue("elapsed " + sim.getElapsedMs(), sim.getElapsedMs() >= 400 && sim.getElapsedMs() < 2000);
+        assertEquals(9, rec.mStates.size());
+    }
+
+    /**
+     * Run the default scenario twice through an AlarmStateMachine on a
+     * separate delivery thread (like the phone's UI thread), and check that
+     * every update is delivered and each tremor raises an alarm.
+     * SdSimulator.main() reports the throughput and latencies for a scenario.
+     */
+    @Test
+    public void testPipeline() throws Exception {
+        ThreadPoolExecutor annunciator = AlarmStateMachine.newAnnunciatorExecutor();
+        final AlarmStateMachine asm = new AlarmStateMachine(new PatientRegistryTest.NullActions(),
+                annunciator, DIRECT);
+        ExecutorService delivery = Executors.newSingleThreadExecutor();
+        final Recorder rec = new Recorder();
+        SdSimulator sim = newSimulator(new SdDataReceiver() {
+            public void onSdDataReceived(SdData sdData) {
+                asm.process(sdData, System.nanoTime());
+                rec.onSdDataReceived(sdData);
+            }
+
+            public void onSdDataFault(SdData sdData) {
+                asm.processFault(sdData, System.nanoTime());
+                rec.onSdDataFault(sdData);
+            }
+
+            public void onSdDataStatus(SdData sdData) {
+            }
+        }, delivery);
+        sim.setScenario(SdSimulator.parseScenario(SdSimulator.DEFAULT_SCENARIO + ","
+                + SdSimulator.DEFAULT_SCENARIO));
+        sim.run();
+        delivery.shutdown();
+        assertTrue(delivery.awaitTermination(10, TimeUnit.SECONDS));
+        annunciator.shutdown();
+        assertTrue(annunciator.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Nothing is lost between the simulator thread and the delivery thread.
+        assertEquals(sim.getUpdateCount(), rec.mStates.size());
+        assertEquals(sim.getFaultCount(), rec.mFaults);
+        assertEquals(sim.getUpdateCount() + sim.getFaultCount(), sim.getDeliveryTime().getCount());
+        assertTrue(sim.getFaultCount() > 0);
+
+        assertEquals(2, sim.getDetections().size());
+        for (SdSimulator.Detection d : sim.getDetections()) {
+            assertTrue(d.warningMs > 0);
+            assertTrue(d.alarmMs > d.warningMs);
+        }
+        assertTrue(asm.getLatencyHistograms()[1].getCount() > 0);
+        // Both runs end quietly.
+        assertEquals(0L, (long) rec.mStates.get(rec.mStates.size() - 1));
+        assertEquals(AlarmStateMachine.STATE_OK, asm.getState());
+    }
+}
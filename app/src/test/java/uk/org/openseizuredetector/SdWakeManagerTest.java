@@ -0,0 +1,154 @@
+package uk.org.openseizuredetector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the duty-cycled wake lock manager.
+ */
+public class SdWakeManagerTest {
+    private long mNow;
+    private int mAcquires;
+    private int mReleases;
+    private SdWakeManager mWm;
+
+    @Before
+    public void setUp() {
+        mNow = 1000;
+        mAcquires = 0;
+        mReleases = 0;
+        mWm = new SdWakeManager(new SdWakeManager.WakeLockHandle() {
+            public void acquire() {
+                mAcquires++;
+            }
+
+            public void release() {
+                mReleases++;
+            }
+        }) {
+            @Override
+            long now() {
+                return mNow;
+            }
+        };
+    }
+
+    private SdWakeManager.ReasonStats getStats(String reason) {
+        ArrayList<SdWakeManager.ReasonStats> stats = mWm.getStats();
+        for (SdWakeManager.ReasonStats s : stats) {
+            if (s.name.equals(reason)) return s;
+        }
+        return null;
+    }
+
+    @Test
+    public void testLockOnlyHeldWhileReasonsActive() throws Exception {
+        assertFalse(mWm.isHeld());
+        mWm.acquire("a");
+        mWm.acquire("b");
+        mWm.acquire("a");
+        assertEquals(1, mAcquires);
+        mWm.release("a");
+        mWm.release("b");
+        assertTrue(mWm.isHeld());
+        assertEquals(0, mReleases);
+        mWm.release("a");
+        assertFalse(mWm.isHeld());
+        assertEquals(1, mReleases);
+        // Unmatched releases are ignored.
+        mWm.release("a");
+        mWm.release("c");
+        assertEquals(1, mReleases);
+    }
+
+    @Test
+    public void testTimeHeldPerReason() throws Exception {
+        mWm.acquire("msg");
+        mNow += 50;
+        mWm.release("msg");
+        mNow += 1000;
+        mWm.run("msg", new Runnable() {
+            public void run() {
+                mNow += 150;
+            }
+        });
+        mWm.acquire("alarm");
+        mNow += 300;
+        SdWakeManager.ReasonStats msg = getStats("msg");
+        assertEquals(2, msg.getAcquisitions());
+        assertEquals(200, msg.getTotalHeldMs());
+        assertEquals(150, msg.getMaxHeldMs());
+        assertFalse(msg.isHeld());
+        // Time so far is included for reasons still held.
+        SdWakeManager.ReasonStats alarm = getStats("alarm");
+        assertEquals(300, alarm.getTotalHeldMs());
+        assertTrue(alarm.isHeld());
+        assertEquals(500.0 / 1500, mWm.getDutyCycle(), 1e-9);
+    }
+
+    @Test
+    public void testPermanentMode() throws Exception {
+        mWm.setDutyCycled(false);
+        mWm.setDutyCycled(false);
+        assertFalse(mWm.isDutyCycled());
+        assertTrue(mWm.isHeld());
+        assertEquals(1, mAcquires);
+        mWm.run("msg", new Runnable() {
+            public void run() {
+                mNow += 10;
+            }
+        });
+        assertTrue(mWm.isHeld());
+        mNow += 90;
+        assertEquals(1.0, mWm.getDutyCycle(), 1e-9);
+        mWm.setDutyCycled(true);
+        assertFalse(mWm.isHeld());
+        assertEquals(1, mReleases);
+        assertEquals(100, getStats(SdWakeManager.REASON_PERMANENT).getTotalHeldMs());
+    }
+
+    @Test
+    public void testSetHeld() throws Exception {
+        mWm.setHeld("alarm", true);
+        mWm.setHeld("alarm", true);
+        assertTrue(mWm.isHeld());
+        mWm.setHeld("alarm", false);
+        assertFalse(mWm.isHeld());
+        assertEquals(1, mAcquires);
+        assertEquals(1, mReleases);
+    }
+
+    @Test
+    public void testReleaseAll() throws Exception {
+        mWm.setDutyCycled(false);
+        mWm.acquire("a");
+        mWm.acquire("a");
+        mNow += 100;
+        mWm.releaseAll();
+        assertFalse(mWm.isHeld());
+        assertTrue(mWm.isDutyCycled());
+        assertEquals(1, mReleases);
+        assertEquals(100, getStats("a").getTotalHeldMs());
+        mWm.release("a");
+        assertEquals(1, mReleases);
+    }
+
+    @Test
+    public void testResetStats() throws Exception {
+        mWm.acquire("a");
+        mNow += 100;
+        mWm.resetStats();
+        mNow += 100;
+        mWm.release("a");
+        mNow += 200;
+        assertEquals(100, getStats("a").getTotalHeldMs());
+        assertEquals(1.0 / 3, mWm.getDutyCycle(), 1e-9);
+        StringBuilder sb = new StringBuilder();
+        mWm.statsToJson(sb);
+        assertTrue(sb.toString().contains("\"reason\":\"a\""));
+    }
+}